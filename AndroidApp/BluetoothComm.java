@@ -3,34 +3,30 @@ package com.example.seniorproject;
 
 import android.annotation.TargetApi;
 import android.app.IntentService;
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanFilter;
-import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
-import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.UUID;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Service for managing the BLE data connection with the GATT database.
+ * Service for managing the BLE data connections with the GATT database of one or more lamps.
+ * The single-lamp methods used by the main activity act on the lamp found by the last scan.
  */
 @TargetApi(Build.VERSION_CODES.LOLLIPOP) // This is required to allow us to use the lollipop and later scan APIs
 public class BluetoothComm extends Service {
@@ -39,37 +35,58 @@ public class BluetoothComm extends Service {
     // Bluetooth objects that we need to interact with
     private static BluetoothManager mBluetoothManager;
     private static BluetoothAdapter mBluetoothAdapter;
-    private static BluetoothLeScanner mLEScanner;
+    private static LampScanner mLampScanner;
     private static BluetoothDevice mLeDevice;
-    private static BluetoothGatt mBluetoothGatt;
-
-    // Bluetooth characteristics that we need to read/write
-    private static BluetoothGattCharacteristic mLedCharacterisitc;
-    private static BluetoothGattCharacteristic mCapsenseCharacteristic;
-    //private static BluetoothGattDescriptor mCapSenseCccd;
 
     // UUIDs for the service and characteristics that the custom CapSenseLED service uses
     private final static String baseUUID = "00000000-0000-1000-8000-00805f9b34f";
-    private final static String capsenseLedServiceUUID = "00009D67-0000-1000-8000-00805F9B34FB";
+    final static String capsenseLedServiceUUID = "00009D67-0000-1000-8000-00805F9B34FB";
     public final static String ledCharacteristicUUID = "00004BE6-0000-1000-8000-00805F9B34FB";
-    public final static String capsenseCharacteristicUUID = "00002B67-0000-1000-8000-00805F9B34FB";
-    private final static String CccdUUID = "00002902-0000-1000-8000-00805F9B34FB";
-
-    // Variables to keep track of the LED switch state and CapSense Value
-    private static boolean mLedSwitchState = false;
-    //private static String mCapSenseValue = "-1"; // This is the No Touch value (0xFFFF)
-
-    // Actions used during broadcasts to the main activity
-    public final static String ACTION_BLESCAN_CALLBACK =
-            "com.menu.seniorproject.ACTION_BLESCAN_CALLBACK";
-    public final static String ACTION_CONNECTED =
-            "com.menu.seniorproject.ACTION_CONNECTED";
-    public final static String ACTION_DISCONNECTED =
-            "com.menu.seniorproject.ACTION_DISCONNECTED";
-    public final static String ACTION_SERVICES_DISCOVERED =
-            "com.menu.seniorproject.ACTION_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_RECEIVED =
-            "com.menu.seniorproject.ACTION_DATA_RECEIVED";
+    final static String CccdUUID = "00002902-0000-1000-8000-00805F9B34FB";
+
+    // How long to keep listening after the first lamp was heard before picking the nearest one
+    private final static long NEAREST_LAMP_WINDOW_MS = 1000;
+
+    // The firmware asks for a 50-52 x 1.25 ms connection interval (see BLEApplications.h),
+    // there is no point in sending frames faster than that
+    public final static long CONNECTION_INTERVAL_MS = 64;
+
+    // MTU asked for once a lamp is discovered. Firmware that unpacks batched writes is built with
+    // a larger MTU than the default, so the answer also tells whether a lamp takes them
+    public final static int REQUESTED_MTU = 247;
+
+    // Connections to every lamp, and the one the single-lamp methods act on
+    private LampConnectionManager mConnectionManager;
+    private volatile LampConnection mActiveLamp;
+
+    // Lamps seen in earlier sessions, and when the app was launched for the launch-to-color metric
+    private KnownLampStore mKnownLamps;
+    private volatile long mLaunchNanos;
+
+    // Last state of every lamp and the saved scenes, and the frame lamp states are copied through.
+    // The store opens on first use, not in onCreate
+    private SceneStore mScenes;
+    private final LedFrame mStoreFrame = new LedFrame();
+
+    // Events to the main activity and anyone else in the app, and the frame used to read lamp state into
+    private final LampEventDispatcher mEvents = new LampEventDispatcher();
+    private final LedFrame mReadFrame = new LedFrame();
+    // Colors from the pipeline are built here, guarded by itself
+    private final LedFrame mColorFrame = new LedFrame();
+
+    // Timings of scans, connections and GATT operations, shared by the scanner and every lamp
+    private final LampMetrics mMetrics = new LampMetrics();
+
+    // Keeps the last RECORDING_RING_BYTES of commands, link operations and callbacks of every
+    // lamp, so a session that went wrong can be saved and replayed
+    public final static int RECORDING_RING_BYTES = 256 * 1024;
+    public final static String RECORDING_FILE_NAME = "recording.bin";
+    private final static int RECORDING_BUFFER_BYTES = 16 * 1024;
+    private final CommandRecorder mRecorder = new CommandRecorder();
+
+    // One-tap connection, and the timer thread of its timeouts
+    private final ScheduledExecutorService mPipelineScheduler = Executors.newSingleThreadScheduledExecutor();
+    private ConnectPipeline mPipeline;
 
     public BluetoothComm() {
     }
@@ -81,6 +98,18 @@ public class BluetoothComm extends Service {
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mConnectionManager = new LampConnectionManager(this, mMetrics);
+        mConnectionManager.setRecorder(mRecorder);
+        mConnectionManager.addListener(mLampListener);
+        mRecorder.startRing(RECORDING_RING_BYTES);
+        mKnownLamps = new KnownLampStore(this);
+        mScenes = new SceneStore(new File(getFilesDir(), SceneStore.FILE_NAME));
+        mPipeline = new ConnectPipeline(mPipelineSteps, mPipelineListener, mPipelineScheduler, mMetrics);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -93,6 +122,74 @@ public class BluetoothComm extends Service {
         return super.onUnbind(intent);
     }
 
+    @Override
+    public void onDestroy() {
+        mPipeline.cancel();
+        mPipelineScheduler.shutdownNow();
+        if (mLampScanner != null) {
+            mLampScanner.shutdown();
+            mLampScanner = null;
+        }
+        mConnectionManager.shutdown();
+        mRecorder.stop();
+        mScenes.flush();
+        super.onDestroy();
+    }
+
+    /**
+     * Prints the latency histograms, run "adb shell dumpsys activity service
+     * com.example.seniorproject/.BluetoothComm" to get them. Add "reset" to clear them afterwards,
+     * or "record" to save the recording ring to RECORDING_FILE_NAME in the app's files.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mMetrics.dump(writer);
+        if (args != null && args.length > 0 && "reset".equals(args[0])) {
+            mMetrics.reset();
+            writer.println("metrics reset");
+        }
+        if (args != null && args.length > 0 && "record".equals(args[0])) {
+            File file = new File(getFilesDir(), RECORDING_FILE_NAME);
+            try {
+                writer.println(saveRecording(file) + " records saved to " + file);
+            } catch (IOException e) {
+                writer.println("recording not saved: " + e);
+            }
+        }
+    }
+
+    //commands, link operations and callbacks of every lamp, see CommandRecorder
+    public CommandRecorder getRecorder() {
+        return mRecorder;
+    }
+
+    /**
+     * Records the session to a file from now on, until stopRecording(). Replaces the ring.
+     */
+    public void startRecording(File file) throws IOException {
+        mRecorder.startFile(file, RECORDING_BUFFER_BYTES);
+    }
+
+    //ends a file recording and goes back to keeping the ring
+    public void stopRecording() {
+        mRecorder.stop();
+        mRecorder.startRing(RECORDING_RING_BYTES);
+    }
+
+    /**
+     * Writes what the ring holds, the last few minutes of the session, to a file for
+     * CommandReplay.
+     *
+     * @return the number of records written
+     */
+    public int saveRecording(File file) throws IOException {
+        return mRecorder.save(file);
+    }
+
+    public LampMetrics getMetrics() {
+        return mMetrics;
+    }
+
     private final IBinder mBinder = new LocalBinder();
 
     //initialize reference to local BLE adapter
@@ -118,72 +215,215 @@ public class BluetoothComm extends Service {
 
     //scan for BLE devices with matching UUIDs
     public void scan() {
-        /* Scan for devices and look for the one with the service that we want */
-        UUID capsenseLedService = UUID.fromString(capsenseLedServiceUUID);
-        UUID[] capsenseLedServiceArray = {capsenseLedService};
-
-        // Use old scan method for versions older than lollipop
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-            //noinspection deprecation
-            mBluetoothAdapter.startLeScan(capsenseLedServiceArray, mLeScanCallback);
-        } else { // New BLE scanning introduced in LOLLIPOP
-            ScanSettings settings;
-            List<ScanFilter> filters;
-            mLEScanner = mBluetoothAdapter.getBluetoothLeScanner();
-            settings = new ScanSettings.Builder()
-                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                    .build();
-            filters = new ArrayList<>();
-            // We will scan just for the CAR's UUID
-            ParcelUuid PUuid = new ParcelUuid(capsenseLedService);
-            ScanFilter filter = new ScanFilter.Builder().setServiceUuid(PUuid).build();
-            filters.add(filter);
-            mLEScanner.startScan(filters, settings, mScanCallback);
+        /* Scan for devices and pick the nearest one with the service that we want */
+        if (mLampScanner == null) {
+            mLampScanner = new LampScanner(mBluetoothAdapter, LampTransport.LED_SERVICE_UUID, mScanListener, mMetrics);
         }
+        mLampScanner.selectNearest(NEAREST_LAMP_WINDOW_MS, new LampScanner.SelectionCallback() {
+            @Override
+            public void onNearestLamp(LampDeviceTable.Entry entry) {
+                if (entry == null) {
+                    return;
+                }
+                mLeDevice = mLampScanner.getDevice(entry.getAddress());
+                mLampScanner.stop(); // Stop scanning once the nearest device is known
+                // Tell the main activity that a device has been found
+                mEvents.dispatchLampSelected(mLeDevice, entry.getSmoothedRssi());
+            }
+        });
+    }
+
+    /**
+     * The scanner keeps running in the background, e.g. to find more lamps for the fleet. Use
+     * getLampScanner().setDutyCycle() to limit the radio time.
+     */
+    public LampScanner getLampScanner() {
+        return mLampScanner;
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device found by the last scan.
      */
     public boolean connect() {
+        if (mBluetoothAdapter == null || mLeDevice == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return false;
+        }
+        LampConnection lamp = mConnectionManager.add(mLeDevice);
+        restoreLastState(lamp);
+        mActiveLamp = lamp;
+        return lamp.connect(false);
+    }
+
+    /**
+     * Connects straight to the lamp used last, skipping the scan. The layout remembered from the
+     * last session lets discovery start as soon as the link is up and queued frames go out the
+     * moment it completes.
+     *
+     * @param autoConnect keep reconnecting in the background whenever the lamp is in range
+     * @return false if no lamp is known yet
+     */
+    public boolean reconnectLastLamp(boolean autoConnect) {
+        String address = mKnownLamps.getLastAddress();
+        if (mBluetoothAdapter == null || address == null
+                || !BluetoothAdapter.checkBluetoothAddress(address)) {
+            return false;
+        }
+        mLeDevice = mBluetoothAdapter.getRemoteDevice(address);
+        LampConnection lamp = mConnectionManager.get(address);
+        if (lamp == null) {
+            lamp = mConnectionManager.add(mLeDevice);
+            lamp.setCachedLayout(mKnownLamps.getLayout(address));
+        }
+        restoreLastState(lamp);
+        mActiveLamp = lamp;
+        Log.d(TAG, "Reconnecting to known lamp " + address);
+        return lamp.connect(true, autoConnect);
+    }
+
+    /**
+     * Connects to a lamp without any further input: the lamp used last if it answers, otherwise
+     * the nearest one a scan finds. Progress shows up as the usual lamp selected and connection
+     * state events, see ConnectPipeline for the steps and timeouts.
+     */
+    public void connectAutomatically() {
+        mPipeline.start();
+    }
+
+    //stops connectAutomatically(), a lamp that is not ready yet is closed
+    public void cancelConnect() {
+        mPipeline.cancel();
+    }
+
+    public ConnectPipeline getConnectPipeline() {
+        return mPipeline;
+    }
+
+    public KnownLampStore getKnownLamps() {
+        return mKnownLamps;
+    }
+
+    /**
+     * Tells the service when the app was launched. The time until the first color is applied on
+     * the lamp is logged and kept in the KnownLampStore.
+     *
+     * @param elapsedRealtimeNanos SystemClock.elapsedRealtimeNanos() at launch
+     */
+    public void setLaunchTime(long elapsedRealtimeNanos) {
+        mLaunchNanos = elapsedRealtimeNanos;
+    }
+
+    /**
+     * Adds another lamp to the fleet. Services are discovered as soon as it connects, after that
+     * it takes part in group commands.
+     */
+    public LampConnection connectLamp(BluetoothDevice device) {
         if (mBluetoothAdapter == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
+            return null;
+        }
+        LampConnection lamp = mConnectionManager.add(device);
+        restoreLastState(lamp);
+        lamp.connect(true);
+        return lamp;
+    }
+
+    // The firmware turns the LEDs off when the link drops, give the lamp its last state back
+    private void restoreLastState(LampConnection lamp) {
+        synchronized (mStoreFrame) {
+            if (mScenes.getLampState(lamp.getAddress(), mStoreFrame) && lamp.restoreFrame(mStoreFrame)) {
+                Log.d(TAG, "Restoring " + lamp.getAddress() + " to " + mStoreFrame);
+            }
+        }
+    }
+
+    public SceneStore getSceneStore() {
+        return mScenes;
+    }
+
+    /**
+     * Saves what the active lamp shows under a name, replacing a scene of the same name.
+     *
+     * @return false if there is no active lamp, the name is too long or the store failed
+     */
+    public boolean saveScene(String name) {
+        LampConnection lamp = mActiveLamp;
+        if (lamp == null) {
             return false;
         }
+        synchronized (mStoreFrame) {
+            lamp.getFrame(mStoreFrame);
+            return mScenes.saveScene(name, mStoreFrame);
+        }
+    }
 
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            return mBluetoothGatt.connect();
+    /**
+     * Sends a saved scene to every connected lamp.
+     *
+     * @return the number of lamps it was sent to, -1 if there is no scene by that name
+     */
+    public int applyScene(String name) {
+        LedFrame frame = new LedFrame();
+        int index = mScenes.findScene(name);
+        if (index < 0) {
+            return -1;
         }
+        mScenes.getScene(index, frame);
+        return applyGroupFrame(frame);
+    }
 
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = mLeDevice.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        return true;
+    public LampConnectionManager getConnectionManager() {
+        return mConnectionManager;
+    }
+
+    /**
+     * Registers for scan, connection, channel state and frame write events of every lamp.
+     */
+    public void addEventListener(LampEventListener listener) {
+        mEvents.addListener(listener);
+    }
+
+    public void removeEventListener(LampEventListener listener) {
+        mEvents.removeListener(listener);
+    }
+
+    /**
+     * Sets the executor event listeners are called on, the main thread by default.
+     *
+     * @see LampEventDispatcher#directExecutor()
+     */
+    public void setEventExecutor(Executor executor) {
+        mEvents.setExecutor(executor);
+    }
+
+    //whether the device is the lamp the single-lamp methods act on
+    public boolean isActiveLamp(BluetoothDevice device) {
+        LampConnection lamp = mActiveLamp;
+        return lamp != null && device != null && device.equals(lamp.getDevice());
     }
 
     /**
      * Runs service discovery on the connected device.
      */
     public void discoverServices() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        LampConnection lamp = mActiveLamp;
+        if (mBluetoothAdapter == null || lamp == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.discoverServices();
+        lamp.discoverServices();
     }
 
     /**
      * Disconnects an existing connection or cancel a pending connection.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        LampConnection lamp = mActiveLamp;
+        if (mBluetoothAdapter == null || lamp == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        lamp.disconnect();
     }
 
     /**
@@ -191,126 +431,348 @@ public class BluetoothComm extends Service {
      * released properly.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
-            return;
-        }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        mConnectionManager.closeAll();
     }
 
     //read LED state
     public void readLedCharacteristic() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        LampConnection lamp = mActiveLamp;
+        if (lamp == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(mLedCharacterisitc);
+        lamp.readLedCharacteristic();
     }
 
   //LED on and OFF values
     public void writeLedCharacteristic(boolean value) {
-        byte[] byteVal = new byte[1];
-        if (value) {
-            byteVal[0] = (byte) (1);
-        } else {
-            byteVal[0] = (byte) (0);
+        LampConnection lamp = mActiveLamp;
+        // Also called when the switch only follows a state the lamp reported
+        if (lamp == null || lamp.isLampOn() == value) {
+            return;
         }
         Log.i(TAG, "LED " + value);
-        mLedSwitchState = value;
-        mLedCharacterisitc.setValue(byteVal);
-        mBluetoothGatt.writeCharacteristic(mLedCharacterisitc);
+        // The switch drives the intensity byte, the frame goes out acknowledged on the next tick
+        int intensity = value ? LedFrame.MAX_LEVEL : 0;
+        recordCommand(CommandRecorder.CMD_INTENSITY, lamp, intensity, null);
+        lamp.setIntensity(intensity);
     }
 
+    /**
+     * Sets the level (0-255) of one LED channel. Updates are coalesced, only the newest value of
+     * each channel is sent, at most once per connection interval.
+     *
+     * @param channel one of the LedFrame.CHANNEL_ constants
+     */
+    public void setChannelLevel(int channel, int level) {
+        LampConnection lamp = mActiveLamp;
+        if (lamp != null) {
+            if (mRecorder.isRecording()) {
+                mRecorder.record(CommandRecorder.CMD_CHANNEL, mRecorder.lampIndex(lamp.getAddress()), channel, level);
+            }
+            lamp.setChannelLevel(channel, level);
+        }
+    }
 
-    //return LED state
-    public boolean getLedSwitchState() {
-        return mLedSwitchState;
+    /**
+     * Sets the active lamp to a color of the hue wheel. Coalesced like setChannelLevel().
+     *
+     * @param hue        0 to ColorPipeline.HUE_STEPS, red at 0, green at 512, blue at 1024
+     * @param saturation 0 for white to 255 for the pure color
+     * @param brightness perceptual brightness 0-255
+     */
+    public void setHueColor(int hue, int saturation, int brightness) {
+        LampConnection lamp = mActiveLamp;
+        if (lamp == null) {
+            return;
+        }
+        synchronized (mColorFrame) {
+            ColorPipeline.color(hue, saturation, brightness, mColorFrame);
+            recordCommand(CommandRecorder.CMD_COLOR, lamp, 0, mColorFrame);
+            lamp.setColor(mColorFrame);
+        }
     }
 
+    /**
+     * Sets the active lamp to white of a color temperature. Lamps with white strings mix them,
+     * others make the white from red, green and blue.
+     *
+     * @param kelvin     ColorPipeline.WARM_KELVIN to ColorPipeline.COOL_KELVIN
+     * @param brightness perceptual brightness 0-255
+     */
+    public void setColorTemperature(int kelvin, int brightness) {
+        LampConnection lamp = mActiveLamp;
+        if (lamp == null) {
+            return;
+        }
+        synchronized (mColorFrame) {
+            ColorPipeline.temperature(kelvin, brightness,
+                    lamp.getFrameFormat() == LedFrameCodec.FORMAT_RGBW, mColorFrame);
+            recordCommand(CommandRecorder.CMD_COLOR, lamp, 0, mColorFrame);
+            lamp.setColor(mColorFrame);
+        }
+    }
 
-    //callback for scanning devices with desired service
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
-                @Override
-                public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-                    mLeDevice = device;
-                    //noinspection deprecation
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback); // Stop scanning after the first device is found
-                    broadcastUpdate(ACTION_BLESCAN_CALLBACK); // Tell the main activity that a device has been found
+    /**
+     * Marks the end of a slider gesture. Intermediate values may have been streamed without
+     * response, the final levels are sent once more as an acknowledged write.
+     */
+    public void settleChannels() {
+        LampConnection lamp = mActiveLamp;
+        if (lamp != null) {
+            recordCommand(CommandRecorder.CMD_SETTLE, lamp, 0, null);
+            lamp.settle();
+        }
+    }
+
+    /**
+     * Sends one scene to every connected lamp in parallel.
+     *
+     * @return the number of lamps it was sent to
+     */
+    public int applyGroupFrame(LedFrame frame) {
+        recordCommand(CommandRecorder.CMD_FRAME, null, 0, frame);
+        return mConnectionManager.applyGroupFrame(frame);
+    }
+
+    /**
+     * Plays a fade, color cycle, breathing or keyframe effect on every connected lamp. Moving a
+     * slider or the switch stops it on the active lamp.
+     *
+     * @return the number of lamps it was started on
+     */
+    public int playEffect(LedEffect effect) {
+        mRecorder.recordEffect(CommandRecorder.LAMP_ALL, effect);
+        return mConnectionManager.playGroupEffect(effect);
+    }
+
+    public void stopEffect() {
+        recordCommand(CommandRecorder.CMD_EFFECT_STOP, null, 0, null);
+        mConnectionManager.stopGroupEffect();
+    }
+
+    /**
+     * Fades every connected lamp to a frame. Lamps with fade support step the LEDs themselves
+     * from one write, the others are streamed the fade as an effect.
+     *
+     * @return the number of lamps the fade was started on
+     */
+    public int fadeTo(LedFrame frame, long durationMs) {
+        recordCommand(CommandRecorder.CMD_FADE, null, durationMs, frame);
+        return mConnectionManager.fadeGroupTo(frame, durationMs);
+    }
+
+    //set when the lamps run firmware that takes fade writes, off by default
+    public void setFadeSupported(boolean supported) {
+        mConnectionManager.setFadeSupported(supported);
+    }
+
+    /**
+     * Fades every connected lamp to a frame so that they all start at the same moment, for scene
+     * changes across several lamps. The skew between them is logged and kept in the metrics.
+     * Lamps without the timed fade write (setTimedFadeSupported()) fade at once instead and are
+     * not part of the change.
+     *
+     * @return the change, see SyncedChange
+     */
+    public SyncedChange syncFadeTo(LedFrame frame, long durationMs) {
+        recordCommand(CommandRecorder.CMD_SYNC_FADE, null, durationMs, frame);
+        return mConnectionManager.changeGroupAt(frame, durationMs);
+    }
+
+    //set when the lamps run firmware that takes timed fade writes, off by default
+    public void setTimedFadeSupported(boolean supported) {
+        mConnectionManager.setTimedFadeSupported(supported);
+    }
+
+    /**
+     * Measures group command latency for 1..N of the connected lamps on a background thread and
+     * logs the results.
+     */
+    public void runFleetBenchmark(final int rounds) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new FleetBenchmark(mConnectionManager, rounds).run();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Fleet benchmark interrupted");
                 }
-            };
+            }
+        }, "FleetBenchmark").start();
+    }
+
+    //number of GATT operations waiting to go out, including the one in flight
+    public int getOperationQueueDepth() {
+        LampConnection lamp = mActiveLamp;
+        return lamp == null ? 0 : lamp.getOperationQueueDepth();
+    }
+
+
+    /**
+     * Records a command for CommandReplay while the recorder runs.
+     *
+     * @param lamp  the lamp it is for, null for every lamp
+     * @param value level of CMD_INTENSITY or duration of CMD_FADE and CMD_SYNC_FADE
+     * @param frame frame of CMD_COLOR, CMD_FRAME, CMD_FADE and CMD_SYNC_FADE
+     */
+    private void recordCommand(int type, LampConnection lamp, long value, LedFrame frame) {
+        if (!mRecorder.isRecording()) {
+            return;
+        }
+        int index = lamp != null ? mRecorder.lampIndex(lamp.getAddress()) : CommandRecorder.LAMP_ALL;
+        if (frame != null) {
+            mRecorder.recordFrame(type, index, frame, value);
+        } else if (type == CommandRecorder.CMD_INTENSITY) {
+            mRecorder.record(type, index, (int) value);
+        } else {
+            mRecorder.record(type, index);
+        }
+    }
+
+    //return LED state, the power state of the active lamp as the app wants it
+    public boolean getLedSwitchState() {
+        LampConnection lamp = mActiveLamp;
+        return lamp != null && lamp.isLampOn();
+    }
+
+
+    //callback for scanner events
+    private final LampScanner.Listener mScanListener = new LampScanner.Listener() {
+        @Override
+        public void onLampFound(LampDeviceTable.Entry entry) {
+            Log.d(TAG, "Found lamp " + entry.getAddress() + " at " + entry.getSmoothedRssi() + " dBm");
+            mPipeline.onLampFound(entry.getAddress(), entry.getSmoothedRssi());
+            mEvents.dispatchLampFound(mLampScanner.getDevice(entry.getAddress()), entry.getLastRssi());
+        }
 
-    //callback for when device is found
-    private final ScanCallback mScanCallback = new ScanCallback() {
         @Override
-        public void onScanResult(int callbackType, ScanResult result) {
-            mLeDevice = result.getDevice();
-            mLEScanner.stopScan(mScanCallback); // Stop scanning after the first device is found
-            broadcastUpdate(ACTION_BLESCAN_CALLBACK); // Tell the main activity that a device has been found
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "Scan failed with error " + errorCode);
         }
     };
 
 
-    //GATT callback
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    //what the connection pipeline drives on the phone
+    private final ConnectPipeline.Steps mPipelineSteps = new ConnectPipeline.Steps() {
+        @Override
+        public boolean initialize() {
+            return BluetoothComm.this.initialize() && mBluetoothAdapter.isEnabled();
+        }
+
+        @Override
+        public String getKnownAddress() {
+            String address = mKnownLamps.getLastAddress();
+            return address != null && BluetoothAdapter.checkBluetoothAddress(address) ? address : null;
+        }
+
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                broadcastUpdate(ACTION_CONNECTED);
-                Log.i(TAG, "Connected to GATT server.");
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(ACTION_DISCONNECTED);
+        public void startScan() {
+            if (mLampScanner == null) {
+                mLampScanner = new LampScanner(mBluetoothAdapter, LampTransport.LED_SERVICE_UUID, mScanListener, mMetrics);
             }
+            // Every advertisement right away while the user waits, batching saves nothing here
+            mLampScanner.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+            mLampScanner.setReportDelay(0);
+            // Lamps heard by an earlier scan are not reported as found again
+            for (LampDeviceTable.Entry entry : mLampScanner.getTable().snapshot()) {
+                mPipeline.onLampFound(entry.getAddress(), entry.getSmoothedRssi());
+            }
+            mLampScanner.start();
         }
 
-        //broadcast characteristics to main activity
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            // Get just the service that we are looking for
-            BluetoothGattService mService = gatt.getService(UUID.fromString(capsenseLedServiceUUID));
-            /* Get characteristics from our desired service */
-            mLedCharacterisitc = mService.getCharacteristic(UUID.fromString(ledCharacteristicUUID));
-            mCapsenseCharacteristic = mService.getCharacteristic(UUID.fromString(capsenseCharacteristicUUID));
-            /* Get the CapSense CCCD */
-            //mCapSenseCccd = mCapsenseCharacteristic.getDescriptor(UUID.fromString(CccdUUID));
+        public void stopScan() {
+            mLampScanner.stop();
+            mLampScanner.setScanMode(ScanSettings.SCAN_MODE_BALANCED);
+            mLampScanner.setReportDelay(LampScanner.DEFAULT_REPORT_DELAY_MS);
+        }
 
-            // Read the current state of the LED from the device
-            readLedCharacteristic();
+        @Override
+        public LampConnection openLamp(String address) {
+            BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+            LampConnection lamp = mConnectionManager.get(address);
+            if (lamp == null) {
+                lamp = mConnectionManager.add(device);
+                lamp.setCachedLayout(mKnownLamps.getLayout(address));
+            }
+            restoreLastState(lamp);
+            mLeDevice = device;
+            mActiveLamp = lamp;
+            LampDeviceTable.Entry entry = mLampScanner != null ? mLampScanner.getTable().get(address) : null;
+            mEvents.dispatchLampSelected(device, entry != null ? entry.getSmoothedRssi() : 0);
+            return lamp;
+        }
+    };
 
-            // Broadcast that service/characteristic/descriptor discovery is done
-            broadcastUpdate(ACTION_SERVICES_DISCOVERED);
+    //progress of the connection pipeline
+    private final ConnectPipeline.Listener mPipelineListener = new ConnectPipeline.Listener() {
+        @Override
+        public void onStep(int step) {
+            Log.d(TAG, "Connection pipeline step " + step);
         }
 
+        @Override
+        public void onReady(LampConnection lamp, long elapsedNanos) {
+            Log.i(TAG, "Tap to controllable lamp: " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms");
+        }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                // Verify that the read was the LED state
-                String uuid = characteristic.getUuid().toString();
-                // In this case, the only read the app does is the LED state.
-                // If the application had additional characteristics to read we could
-                // use a switch statement here to operate on each one separately.
-                if (uuid.equalsIgnoreCase(ledCharacteristicUUID)) {
-                    final byte[] data = characteristic.getValue();
-                    // Set the LED switch state variable based on the characteristic value ttat was read
-                    mLedSwitchState = ((data[0] & 0xff) != 0x00);
-                }
-                // Notify the main activity that new data is available
-                broadcastUpdate(ACTION_DATA_RECEIVED);
+        public void onFailed(int reason) {
+            Log.w(TAG, "Could not connect automatically, reason " + reason);
+        }
+    };
+
+    //lamp callback, events of every lamp are passed on to the event listeners
+    private final LampConnection.Listener mLampListener = new LampConnection.Listener() {
+        @Override
+        public void onConnectionStateChanged(LampConnection lamp, int state) {
+            if (state == LampConnection.STATE_READY && lamp.getLayout() != null) {
+                mKnownLamps.remember(lamp.getAddress(), lamp.getLayout());
+            }
+            if (lamp != mActiveLamp) {
+                Log.i(TAG, "Lamp " + lamp.getAddress() + " changed to state " + state);
             }
+            mPipeline.onConnectionStateChanged(lamp, state);
+            mEvents.dispatchConnectionState(lamp.getDevice(), state);
         }
 
+        @Override
+        public void onLampFrameRead(LampConnection lamp) {
+            rememberState(lamp);
+            synchronized (mReadFrame) {
+                // The new desired state, which includes the white levels the lamp does not report
+                lamp.getFrame(mReadFrame);
+                // The dispatcher copies the frame into the event
+                mEvents.dispatchChannelState(lamp.getDevice(), mReadFrame);
+            }
+        }
 
-    }; // End of GATT event callback methods
+        @Override
+        public void onFrameWritten(LampConnection lamp, int status, long latencyNanos) {
+            long launch = mLaunchNanos;
+            if (status == 0 && launch != 0) {
+                mLaunchNanos = 0;
+                long millis = TimeUnit.NANOSECONDS.toMillis(SystemClock.elapsedRealtimeNanos() - launch);
+                Log.i(TAG, "Launch to first applied color: " + millis + " ms");
+                mKnownLamps.recordLaunchToColor(millis);
+            }
+            if (status == 0) {
+                rememberState(lamp);
+            } else {
+                Log.w(TAG, "Frame write to " + lamp.getAddress() + " failed with status " + status
+                        + " after " + TimeUnit.NANOSECONDS.toMillis(latencyNanos) + " ms");
+            }
+            mEvents.dispatchFrameWritten(lamp.getDevice(), status, latencyNanos);
+        }
 
-    //send broadcast to main activity
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
-    }
+        // Only a map write, cheap enough for every frame
+        private void rememberState(LampConnection lamp) {
+            synchronized (mStoreFrame) {
+                lamp.getFrame(mStoreFrame);
+                mScenes.recordLampState(lamp.getAddress(), mStoreFrame);
+            }
+        }
+    }; // End of lamp event callback methods
 
 }
@@ -0,0 +1,187 @@
+package com.example.seniorproject;
+
+/**
+ * Maps hue, saturation, color temperature and brightness to the five LED channels and the
+ * intensity byte.
+ *
+ * Colors are written at full level into the channels and the brightness goes into the intensity
+ * byte, which UpdateRGBled multiplies in as channel * intensity / 255. Brightness is perceptual:
+ * the intensity follows brightness^GAMMA, so equal slider steps look like equal steps. Brightness
+ * 1 lands on LED_NO_COLOR_THRESHOLD, the lowest intensity the firmware does not switch off.
+ *
+ * Everything is looked up in tables built once when the class is loaded. A conversion on the
+ * slider or effect path is a few array reads and integer operations, with no floating point and
+ * no allocation.
+ */
+public final class ColorPipeline {
+
+    public final static double GAMMA = 2.2;
+
+    // Hue wheel, six segments of 256 steps: red at 0, green at 512, blue at 1024
+    public final static int HUE_STEPS = 6 * 256;
+
+    // Color temperatures of the warm and the cool white string, the range temperature() covers
+    public final static int WARM_KELVIN = 2700;
+    public final static int COOL_KELVIN = 6500;
+    private final static int KELVIN_STEPS = 256;
+
+    // Brightness to intensity, and back for showing a reported intensity on a slider
+    private final static int[] INTENSITY_TABLE = new int[256];
+    private final static int[] BRIGHTNESS_TABLE = new int[256];
+    // 0xRRGGBB of each hue at full saturation
+    private final static int[] HUE_TABLE = new int[HUE_STEPS];
+    // 0xRRGGBB of a black body at each temperature step, and the share of the cool string 0-255
+    private final static int[] KELVIN_RGB_TABLE = new int[KELVIN_STEPS];
+    private final static int[] KELVIN_COOL_TABLE = new int[KELVIN_STEPS];
+
+    static {
+        int threshold = LedFrameCodec.LED_NO_COLOR_THRESHOLD;
+        for (int b = 1; b < 256; b++) {
+            double curve = Math.pow((b - 1) / 254.0, GAMMA);
+            INTENSITY_TABLE[b] = (int) Math.round(threshold + (255 - threshold) * curve);
+        }
+        int b = 0;
+        for (int i = 0; i < 256; i++) {
+            // Smallest brightness that gives at least this intensity
+            while (b < 255 && INTENSITY_TABLE[b] < i) {
+                b++;
+            }
+            BRIGHTNESS_TABLE[i] = b;
+        }
+
+        for (int hue = 0; hue < HUE_STEPS; hue++) {
+            int step = hue & 0xff;
+            int red;
+            int green;
+            int blue;
+            switch (hue >> 8) {
+                case 0:
+                    red = 255; green = step; blue = 0;
+                    break;
+                case 1:
+                    red = 255 - step; green = 255; blue = 0;
+                    break;
+                case 2:
+                    red = 0; green = 255; blue = step;
+                    break;
+                case 3:
+                    red = 0; green = 255 - step; blue = 255;
+                    break;
+                case 4:
+                    red = step; green = 0; blue = 255;
+                    break;
+                default:
+                    red = 255; green = 0; blue = 255 - step;
+                    break;
+            }
+            HUE_TABLE[hue] = red << 16 | green << 8 | blue;
+        }
+
+        double warmMired = 1e6 / WARM_KELVIN;
+        double coolMired = 1e6 / COOL_KELVIN;
+        for (int i = 0; i < KELVIN_STEPS; i++) {
+            double kelvin = WARM_KELVIN + (double) (COOL_KELVIN - WARM_KELVIN) * i / (KELVIN_STEPS - 1);
+            KELVIN_RGB_TABLE[i] = blackBodyRgb(kelvin);
+            // Mixing two whites is linear in mired, not in kelvin
+            KELVIN_COOL_TABLE[i] = (int) Math.round(255 * (warmMired - 1e6 / kelvin) / (warmMired - coolMired));
+        }
+    }
+
+    private ColorPipeline() {
+    }
+
+    //intensity byte for a perceptual brightness 0-255, 0 stays off
+    public static int intensityFor(int brightness) {
+        return INTENSITY_TABLE[clamp(brightness)];
+    }
+
+    //perceptual brightness of an intensity byte, the inverse of intensityFor()
+    public static int brightnessFor(int intensity) {
+        return BRIGHTNESS_TABLE[clamp(intensity)];
+    }
+
+    /**
+     * Sets red, green and blue to a color of the hue wheel and turns the white channels off. The
+     * intensity is left alone.
+     *
+     * @param hue        position on the wheel, wraps around every HUE_STEPS
+     * @param saturation 0 for white to 255 for the pure color
+     */
+    public static void setHue(int hue, int saturation, LedFrame out) {
+        hue %= HUE_STEPS;
+        if (hue < 0) {
+            hue += HUE_STEPS;
+        }
+        int rgb = HUE_TABLE[hue];
+        saturation = clamp(saturation);
+        out.set(LedFrame.CHANNEL_RED, desaturate(rgb >> 16 & 0xff, saturation));
+        out.set(LedFrame.CHANNEL_GREEN, desaturate(rgb >> 8 & 0xff, saturation));
+        out.set(LedFrame.CHANNEL_BLUE, desaturate(rgb & 0xff, saturation));
+        out.set(LedFrame.CHANNEL_COOL_WHITE, 0);
+        out.set(LedFrame.CHANNEL_WARM_WHITE, 0);
+    }
+
+    //a color of the hue wheel at a perceptual brightness 0-255
+    public static void color(int hue, int saturation, int brightness, LedFrame out) {
+        setHue(hue, saturation, out);
+        out.setIntensity(intensityFor(brightness));
+    }
+
+    /**
+     * White of a color temperature at a perceptual brightness 0-255.
+     *
+     * @param kelvin       clamped to WARM_KELVIN - COOL_KELVIN
+     * @param whiteStrings the lamp drives cool and warm white strings (LedFrameCodec.FORMAT_RGBW),
+     *                     which are mixed. Otherwise the white is made from red, green and blue
+     */
+    public static void temperature(int kelvin, int brightness, boolean whiteStrings, LedFrame out) {
+        if (kelvin < WARM_KELVIN) {
+            kelvin = WARM_KELVIN;
+        } else if (kelvin > COOL_KELVIN) {
+            kelvin = COOL_KELVIN;
+        }
+        int index = ((kelvin - WARM_KELVIN) * (KELVIN_STEPS - 1) + (COOL_KELVIN - WARM_KELVIN) / 2)
+                / (COOL_KELVIN - WARM_KELVIN);
+        if (whiteStrings) {
+            int cool = KELVIN_COOL_TABLE[index];
+            out.set(LedFrame.CHANNEL_RED, 0);
+            out.set(LedFrame.CHANNEL_GREEN, 0);
+            out.set(LedFrame.CHANNEL_BLUE, 0);
+            out.set(LedFrame.CHANNEL_COOL_WHITE, cool);
+            out.set(LedFrame.CHANNEL_WARM_WHITE, 255 - cool);
+        } else {
+            int rgb = KELVIN_RGB_TABLE[index];
+            out.set(LedFrame.CHANNEL_RED, rgb >> 16 & 0xff);
+            out.set(LedFrame.CHANNEL_GREEN, rgb >> 8 & 0xff);
+            out.set(LedFrame.CHANNEL_BLUE, rgb & 0xff);
+            out.set(LedFrame.CHANNEL_COOL_WHITE, 0);
+            out.set(LedFrame.CHANNEL_WARM_WHITE, 0);
+        }
+        out.setIntensity(intensityFor(brightness));
+    }
+
+    // Blends a channel towards full white as the saturation drops
+    private static int desaturate(int level, int saturation) {
+        return 255 - ((255 - level) * saturation + 127) / 255;
+    }
+
+    private static int clamp(int level) {
+        return level < 0 ? 0 : level > 255 ? 255 : level;
+    }
+
+    // Tanner Helland's fit of the black body colors, scaled so the strongest channel is 255.
+    // Package private so the benchmark can check the table against it
+    static int blackBodyRgb(double kelvin) {
+        double t = kelvin / 100;
+        double red = t <= 66 ? 255 : 329.698727446 * Math.pow(t - 60, -0.1332047592);
+        double green = t <= 66 ? 99.4708025861 * Math.log(t) - 161.1195681661
+                : 288.1221695283 * Math.pow(t - 60, -0.0755148492);
+        double blue = t >= 66 ? 255 : t <= 19 ? 0 : 138.5177312231 * Math.log(t - 10) - 305.0447927307;
+        red = Math.max(0, Math.min(255, red));
+        green = Math.max(0, Math.min(255, green));
+        blue = Math.max(0, Math.min(255, blue));
+        double scale = 255 / Math.max(red, Math.max(green, blue));
+        return (int) Math.round(red * scale) << 16 | (int) Math.round(green * scale) << 8
+                | (int) Math.round(blue * scale);
+    }
+}
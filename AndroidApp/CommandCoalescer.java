@@ -0,0 +1,187 @@
+package com.example.seniorproject;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latest-value-wins command stage between the sliders and the GATT link.
+ *
+ * A slider drag produces far more progress callbacks than the lamp can take. Only the newest level
+ * per channel is kept here, and the levels are handed to the {@link Sink} at most once per
+ * connection interval. The sink always takes them. If its link is still busy with the previous
+ * frame it keeps just the newest one for when the write completes, so a backlog of stale values
+ * can never build up on either side.
+ */
+public class CommandCoalescer {
+
+    /**
+     * Receives the coalesced channel levels.
+     */
+    public interface Sink {
+        /**
+         * @param levels      current level of every channel, 0-255. Only valid during the call.
+         * @param changedMask bit n is set when channel n changed since the last flush,
+         *                    bit LedFrame.CHANNEL_COUNT when {@link #touch()} was called
+         * @param settled     true when this is the final value of a gesture (see {@link #settle()})
+         */
+        void onFlush(int[] levels, int changedMask, boolean settled);
+    }
+
+    private final Sink mSink;
+    private long mIntervalNanos;
+    private final ScheduledExecutorService mScheduler;
+    private final boolean mOwnsScheduler;
+
+    private final int[] mLevels = new int[LedFrame.CHANNEL_COUNT];
+    private final int[] mSnapshot = new int[LedFrame.CHANNEL_COUNT];
+    private int mDirtyMask;
+    private boolean mSettleRequested;
+    private long mLastFlushNanos;
+    private ScheduledFuture<?> mTicker;
+
+    /**
+     * @param sink       where the coalesced values go
+     * @param intervalMs minimum time between two flushes, normally the connection interval
+     */
+    public CommandCoalescer(Sink sink, long intervalMs) {
+        this(sink, intervalMs, null);
+    }
+
+    /**
+     * @param scheduler timer thread to share with other coalescers, or null to create a private one
+     */
+    public CommandCoalescer(Sink sink, long intervalMs, ScheduledExecutorService scheduler) {
+        mSink = sink;
+        mIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        mOwnsScheduler = scheduler == null;
+        mScheduler = mOwnsScheduler ? Executors.newSingleThreadScheduledExecutor() : scheduler;
+        mLastFlushNanos = System.nanoTime() - mIntervalNanos;
+    }
+
+    /**
+     * Changes the minimum time between two flushes, e.g. when the connection interval changes.
+     */
+    public synchronized void setIntervalMicros(long intervalMicros) {
+        long intervalNanos = TimeUnit.MICROSECONDS.toNanos(intervalMicros);
+        if (intervalNanos <= 0 || intervalNanos == mIntervalNanos) {
+            return;
+        }
+        mIntervalNanos = intervalNanos;
+        if (mTicker != null) {
+            // Restart at the new rate
+            stopTicker();
+            startTicker();
+        }
+    }
+
+    /**
+     * Records a new level for a channel. Values outside 0-255 are clamped.
+     */
+    public synchronized void set(int channel, int level) {
+        if (level < 0) {
+            level = 0;
+        } else if (level > 255) {
+            level = 255;
+        }
+        if (mLevels[channel] == level && (mDirtyMask & (1 << channel)) == 0) {
+            return;
+        }
+        mLevels[channel] = level;
+        mDirtyMask |= 1 << channel;
+        startTicker();
+    }
+
+    /**
+     * Flushes on the next tick even if no level changed, for state the sink sends along with the
+     * levels, such as the intensity.
+     */
+    public synchronized void touch() {
+        mDirtyMask |= 1 << LedFrame.CHANNEL_COUNT;
+        startTicker();
+    }
+
+    /**
+     * Marks the end of a gesture. The current levels are flushed once more flagged as settled,
+     * even if they were already sent while streaming.
+     */
+    public synchronized void settle() {
+        mSettleRequested = true;
+        startTicker();
+    }
+
+    public synchronized int get(int channel) {
+        return mLevels[channel];
+    }
+
+    //true while some channel has a value the lamp has not been sent yet
+    public synchronized boolean hasPending() {
+        return mDirtyMask != 0 || mSettleRequested;
+    }
+
+    /**
+     * Takes over the levels of a frame that went to the lamp another way, without sending them.
+     */
+    public synchronized void overwrite(LedFrame frame) {
+        for (int i = 0; i < LedFrame.CHANNEL_COUNT; i++) {
+            mLevels[i] = frame.get(i);
+        }
+        discardPending();
+    }
+
+    /**
+     * Drops pending values without sending them, e.g. after a disconnect.
+     */
+    public synchronized void discardPending() {
+        mDirtyMask = 0;
+        mSettleRequested = false;
+        stopTicker();
+    }
+
+    public void shutdown() {
+        discardPending();
+        if (mOwnsScheduler) {
+            mScheduler.shutdownNow();
+        }
+    }
+
+    private void startTicker() {
+        if (mTicker == null) {
+            // Go out right away if the last frame is older than one interval
+            long wait = mLastFlushNanos + mIntervalNanos - System.nanoTime();
+            mTicker = mScheduler.scheduleAtFixedRate(mTick, Math.max(0, wait), mIntervalNanos,
+                    TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void stopTicker() {
+        if (mTicker != null) {
+            mTicker.cancel(false);
+            mTicker = null;
+        }
+    }
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            int changed;
+            boolean settled;
+            synchronized (CommandCoalescer.this) {
+                if (mDirtyMask == 0 && !mSettleRequested) {
+                    // Nothing new for a whole interval, stop ticking until the next change
+                    stopTicker();
+                    return;
+                }
+                changed = mDirtyMask;
+                settled = mSettleRequested;
+                System.arraycopy(mLevels, 0, mSnapshot, 0, LedFrame.CHANNEL_COUNT);
+                mDirtyMask = 0;
+                mSettleRequested = false;
+                mLastFlushNanos = System.nanoTime();
+            }
+            // Call out without holding the lock so the UI thread is never blocked on the link
+            mSink.onFlush(mSnapshot, changed, settled);
+        }
+    };
+}
@@ -0,0 +1,642 @@
+package com.example.seniorproject;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Records what the app asks of the lamps, the operations that go out on each link and the
+ * callbacks that come back, so a session can be replayed later with {@link CommandReplay}.
+ *
+ * A recording is a stream of records after a 5 byte header {magic, version}. Each record is
+ * <pre>
+ *     {type, lamp, time, payload length, payload}
+ * </pre>
+ * where the lamp is an index given out by a LAMP record that carries the address, or LAMP_ALL for
+ * a group command, and the time is the microseconds since the previous record, from
+ * System.nanoTime(). Time and length are unsigned varints, so most records take 4 to 10 bytes.
+ *
+ * The records go into one buffer. In file mode the buffer is appended to the file whenever it
+ * fills up and on stop(). In ring mode nothing is written and the oldest records make room for
+ * the newest, so the recorder can run all the time and the last few minutes be saved when
+ * something went wrong.
+ *
+ * Thread safe. A recorder that is not running costs one volatile read per record call.
+ */
+public class CommandRecorder {
+    private final static String TAG = CommandRecorder.class.getSimpleName();
+
+    public final static int MAGIC = 0x4C524543;
+    public final static int VERSION = 1;
+    public final static int HEADER_LENGTH = 5;
+
+    // Lamp of a group command
+    public final static int LAMP_ALL = 0xff;
+    public final static int MAX_LAMPS = 0xff;
+
+    // Records of the app's commands, the replay runs these again. Frames are 6 bytes, the
+    // channels in LedFrame order and the intensity
+    public final static int CMD_CHANNEL = 1;            // {channel, level}
+    public final static int CMD_COLOR = 2;              // {frame}
+    public final static int CMD_INTENSITY = 3;          // {level}
+    public final static int CMD_SETTLE = 4;             // {}
+    public final static int CMD_FRAME = 5;              // {frame}
+    public final static int CMD_FADE = 6;               // {frame, duration ms varint}
+    public final static int CMD_EFFECT = 7;             // {looping, duration ms varint, step ms varint, count varint, frames}
+    public final static int CMD_EFFECT_STOP = 8;        // {}
+    public final static int CMD_SYNC_FADE = 9;          // {frame, duration ms varint}, all lamps together
+
+    // Operations the client started on a link
+    public final static int OP_CONNECT = 16;            // {autoConnect}
+    public final static int OP_DISCONNECT = 17;         // {}
+    public final static int OP_DISCOVER = 18;           // {}
+    public final static int OP_PRIORITY = 19;           // {priority}
+    public final static int OP_MTU = 20;                // {mtu varint}
+    public final static int OP_READ = 21;               // {}
+    public final static int OP_NOTIFY = 22;             // {}
+    public final static int OP_WRITE = 23;              // {withResponse, value}
+    public final static int OP_REFUSED = 24;            // {type}, the link refused the last OP_ record of that type
+
+    // Callbacks of a link
+    public final static int EVT_CONNECTION = 32;        // {status, connected}
+    public final static int EVT_DISCOVERED = 33;        // {status}
+    public final static int EVT_READ = 34;              // {status, value}
+    public final static int EVT_WRITTEN = 35;           // {status}
+    public final static int EVT_MTU = 36;               // {status, mtu varint}
+    public final static int EVT_NOTIFYING = 37;         // {status}
+    public final static int EVT_CHANGED = 38;           // {value}
+
+    // A lamp joined the recording, {address in UTF-8}
+    public final static int LAMP = 48;
+
+    public final static int FRAME_LENGTH = LedFrame.CHANNEL_COUNT + 1;
+
+    // Effects are stored as keyframes sampled at this step, or a longer one if the effect would
+    // take more than MAX_EFFECT_KEYFRAMES. A straight fade comes back exactly, curves closely
+    public final static int EFFECT_STEP_MS = 20;
+    public final static int MAX_EFFECT_KEYFRAMES = 250;
+
+    // Largest record header, type, lamp and two 5 byte varints
+    private final static int MAX_RECORD_HEADER = 12;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final static int MODE_OFF = 0;
+    private final static int MODE_FILE = 1;
+    private final static int MODE_RING = 2;
+
+    private volatile int mMode = MODE_OFF;
+
+    // Guarded by this. The record buffer, a ring in ring mode and filled from the start otherwise
+    private byte[] mBuffer = new byte[0];
+    private int mHead;
+    private int mLength;
+    private long mLastNanos;
+    private OutputStream mOut;
+
+    // Guarded by this. Lamps by index, kept for the life of the recorder so the transports can
+    // hold on to theirs, the record being built and a frame for sampling effects
+    private final String[] mLamps = new String[MAX_LAMPS];
+    private int mLampCount;
+    private final byte[] mHeader = new byte[MAX_RECORD_HEADER];
+    private byte[] mPayload = new byte[64];
+    private int mPayloadLength;
+    private final LedFrame mSample = new LedFrame();
+
+    // Counters
+    private long mRecords;
+    private long mDroppedRecords;
+    private long mBytes;
+
+    /**
+     * Starts appending records to a file, which is overwritten.
+     *
+     * @param bufferSize bytes collected before they are written out
+     */
+    public synchronized void startFile(File file, int bufferSize) throws IOException {
+        stop();
+        OutputStream out = new FileOutputStream(file);
+        writeHeader(out);
+        mOut = out;
+        reset(bufferSize);
+        mMode = MODE_FILE;
+        recordLamps();
+    }
+
+    /**
+     * Starts keeping the newest records in memory, at most {@code capacity} bytes of them. Save
+     * them with save().
+     */
+    public synchronized void startRing(int capacity) {
+        stop();
+        reset(capacity);
+        mMode = MODE_RING;
+        recordLamps();
+    }
+
+    //writes what is left of a file recording and closes it, a ring keeps its records for save()
+    public synchronized void stop() {
+        if (mMode == MODE_FILE) {
+            try {
+                drain();
+                mOut.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not finish the recording: " + e.getMessage());
+            }
+            mOut = null;
+            mLength = 0;
+        }
+        mMode = MODE_OFF;
+    }
+
+    public boolean isRecording() {
+        return mMode != MODE_OFF;
+    }
+
+    /**
+     * Writes the records of the ring to a file, oldest first. The lamps are written again at the
+     * start, their own records may have been overwritten. The ring keeps running.
+     *
+     * @return the number of records written
+     */
+    public synchronized int save(File file) throws IOException {
+        if (mMode == MODE_FILE) {
+            throw new IllegalStateException("A file recording is written as it goes");
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            writeHeader(out);
+            int records = 0;
+            byte[] header = new byte[MAX_RECORD_HEADER];
+            for (int i = 0; i < mLampCount; i++) {
+                byte[] address = mLamps[i].getBytes(UTF_8);
+                out.write(header, 0, encodeHeader(header, LAMP, i, 0, address.length));
+                out.write(address);
+                records++;
+            }
+            int position = mHead;
+            int end = mHead + mLength;
+            boolean first = true;
+            while (position < end) {
+                int type = ringByte(position++);
+                int lamp = ringByte(position++);
+                long time = 0;
+                int shift = 0;
+                int b;
+                do {
+                    b = ringByte(position++);
+                    time |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                int length = 0;
+                shift = 0;
+                do {
+                    b = ringByte(position++);
+                    length |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                if (type == LAMP) {
+                    // Written above already
+                    position += length;
+                    continue;
+                }
+                // Whatever came before the oldest record is gone, it starts the recording
+                out.write(header, 0, encodeHeader(header, type, lamp, first ? 0 : time, length));
+                first = false;
+                for (int i = 0; i < length; i++) {
+                    out.write(ringByte(position++));
+                }
+                records++;
+            }
+            return records;
+        } finally {
+            out.close();
+        }
+    }
+
+    //records taken since start()
+    public synchronized long getRecordCount() {
+        return mRecords;
+    }
+
+    //records the ring overwrote, or a file recording lost to a write error
+    public synchronized long getDroppedRecordCount() {
+        return mDroppedRecords;
+    }
+
+    //bytes taken since start(), headers included
+    public synchronized long getByteCount() {
+        return mBytes;
+    }
+
+    //index of a lamp in the recording, giving it one if it has none yet
+    public synchronized int lampIndex(String address) {
+        for (int i = 0; i < mLampCount; i++) {
+            if (mLamps[i].equals(address)) {
+                return i;
+            }
+        }
+        if (mLampCount == MAX_LAMPS) {
+            return LAMP_ALL;
+        }
+        mLamps[mLampCount] = address;
+        recordLamp(mLampCount);
+        return mLampCount++;
+    }
+
+    // The record calls below do nothing while the recorder is off
+
+    public void record(int type, int lamp) {
+        if (mMode == MODE_OFF) {
+            return;
+        }
+        synchronized (this) {
+            beginPayload();
+            commit(type, lamp);
+        }
+    }
+
+    public void record(int type, int lamp, int value) {
+        if (mMode == MODE_OFF) {
+            return;
+        }
+        synchronized (this) {
+            beginPayload();
+            putVarint(value);
+            commit(type, lamp);
+        }
+    }
+
+    public void record(int type, int lamp, int first, int second) {
+        if (mMode == MODE_OFF) {
+            return;
+        }
+        synchronized (this) {
+            beginPayload();
+            putVarint(first);
+            putVarint(second);
+            commit(type, lamp);
+        }
+    }
+
+    /**
+     * A record that ends in a characteristic value, e.g. OP_WRITE or EVT_READ.
+     *
+     * @param first status or write type in front of the value, -1 for none
+     */
+    public void recordValue(int type, int lamp, int first, byte[] value) {
+        if (mMode == MODE_OFF) {
+            return;
+        }
+        synchronized (this) {
+            beginPayload();
+            if (first >= 0) {
+                putVarint(first);
+            }
+            int length = value != null ? value.length : 0;
+            for (int i = 0; i < length; i++) {
+                putByte(value[i]);
+            }
+            commit(type, lamp);
+        }
+    }
+
+    //CMD_COLOR, CMD_FRAME, CMD_FADE or CMD_SYNC_FADE
+    public void recordFrame(int type, int lamp, LedFrame frame, long durationMs) {
+        if (mMode == MODE_OFF) {
+            return;
+        }
+        synchronized (this) {
+            beginPayload();
+            putFrame(frame);
+            if (type == CMD_FADE || type == CMD_SYNC_FADE) {
+                putVarint((int) Math.min(durationMs, Integer.MAX_VALUE));
+            }
+            commit(type, lamp);
+        }
+    }
+
+    //CMD_EFFECT, sampled into keyframes
+    public void recordEffect(int lamp, LedEffect effect) {
+        if (mMode == MODE_OFF) {
+            return;
+        }
+        synchronized (this) {
+            long duration = effect.getDurationMs();
+            long step = Math.max(EFFECT_STEP_MS, (duration + MAX_EFFECT_KEYFRAMES - 2) / (MAX_EFFECT_KEYFRAMES - 1));
+            // A looping effect is the same at its end as at its start, the last keyframe wraps
+            // to the first. Otherwise the last keyframe is the end of the effect
+            int count = (int) ((duration + step - 1) / step) + (effect.isLooping() ? 0 : 1);
+            beginPayload();
+            putByte(effect.isLooping() ? 1 : 0);
+            putVarint((int) duration);
+            putVarint((int) step);
+            putVarint(count);
+            for (int i = 0; i < count; i++) {
+                effect.frameAt(Math.min(i * step, duration), mSample);
+                putFrame(mSample);
+            }
+            commit(CMD_EFFECT, lamp);
+        }
+    }
+
+    /**
+     * Reads the effect of a CMD_EFFECT payload back.
+     */
+    public static LedEffect decodeEffect(byte[] payload, int length) {
+        int[] position = {1};
+        boolean looping = payload[0] != 0;
+        long duration = readVarint(payload, position);
+        long step = readVarint(payload, position);
+        int count = (int) readVarint(payload, position);
+        LedEffect.Keyframes.Builder builder = new LedEffect.Keyframes.Builder();
+        LedFrame frame = new LedFrame();
+        for (int i = 0; i < count && position[0] + FRAME_LENGTH <= length; i++) {
+            decodeFrame(payload, position[0], frame);
+            position[0] += FRAME_LENGTH;
+            builder.add(Math.min(i * step, duration), frame);
+        }
+        if (looping) {
+            builder.setLooping(duration);
+        }
+        return builder.build();
+    }
+
+    public static void decodeFrame(byte[] data, int offset, LedFrame into) {
+        for (int i = 0; i < LedFrame.CHANNEL_COUNT; i++) {
+            into.set(i, data[offset + i] & 0xff);
+        }
+        into.setIntensity(data[offset + LedFrame.CHANNEL_COUNT] & 0xff);
+    }
+
+    /**
+     * Reads an unsigned varint at position[0] and moves position[0] past it.
+     */
+    public static long readVarint(byte[] data, int[] position) {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[position[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Goes through the records of a recording in order.
+     */
+    public static class Reader {
+        private final DataInputStream mIn;
+
+        // The record read last
+        private int mType;
+        private int mLamp;
+        private long mTimeMicros;
+        private byte[] mPayload = new byte[64];
+        private int mLength;
+
+        public Reader(InputStream in) throws IOException {
+            mIn = new DataInputStream(in);
+            if (mIn.readInt() != MAGIC) {
+                throw new IOException("Not a command recording");
+            }
+            int version = mIn.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unknown recording version " + version);
+            }
+        }
+
+        /**
+         * @return false at the end of the recording
+         */
+        public boolean next() throws IOException {
+            int type = mIn.read();
+            if (type < 0) {
+                return false;
+            }
+            try {
+                mType = type;
+                mLamp = mIn.readUnsignedByte();
+                mTimeMicros += readVarint();
+                mLength = (int) readVarint();
+                if (mPayload.length < mLength) {
+                    mPayload = new byte[Math.max(mLength, mPayload.length * 2)];
+                }
+                mIn.readFully(mPayload, 0, mLength);
+            } catch (EOFException e) {
+                // The app died while writing, the records before are fine
+                return false;
+            }
+            return true;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public int getLamp() {
+            return mLamp;
+        }
+
+        //microseconds since the first record
+        public long getTimeMicros() {
+            return mTimeMicros;
+        }
+
+        //only valid until the next call to next()
+        public byte[] getPayload() {
+            return mPayload;
+        }
+
+        public int getLength() {
+            return mLength;
+        }
+
+        public void close() throws IOException {
+            mIn.close();
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = mIn.readUnsignedByte();
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    private void reset(int capacity) {
+        if (mBuffer.length != capacity) {
+            mBuffer = new byte[capacity];
+        }
+        mHead = 0;
+        mLength = 0;
+        mLastNanos = System.nanoTime();
+        mRecords = 0;
+        mDroppedRecords = 0;
+        mBytes = 0;
+    }
+
+    // Every lamp is named again at the start, a replay needs their addresses
+    private void recordLamps() {
+        for (int i = 0; i < mLampCount; i++) {
+            recordLamp(i);
+        }
+    }
+
+    private void recordLamp(int index) {
+        if (mMode == MODE_OFF) {
+            return;
+        }
+        beginPayload();
+        for (byte b : mLamps[index].getBytes(UTF_8)) {
+            putByte(b);
+        }
+        commit(LAMP, index);
+    }
+
+    private static void writeHeader(OutputStream out) throws IOException {
+        out.write(MAGIC >>> 24);
+        out.write(MAGIC >>> 16);
+        out.write(MAGIC >>> 8);
+        out.write(MAGIC);
+        out.write(VERSION);
+    }
+
+    private void beginPayload() {
+        mPayloadLength = 0;
+    }
+
+    private void putByte(int b) {
+        if (mPayloadLength == mPayload.length) {
+            byte[] grown = new byte[mPayload.length * 2];
+            System.arraycopy(mPayload, 0, grown, 0, mPayloadLength);
+            mPayload = grown;
+        }
+        mPayload[mPayloadLength++] = (byte) b;
+    }
+
+    private void putVarint(int value) {
+        while ((value & ~0x7f) != 0) {
+            putByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        putByte(value);
+    }
+
+    private void putFrame(LedFrame frame) {
+        for (int i = 0; i < LedFrame.CHANNEL_COUNT; i++) {
+            putByte(frame.get(i));
+        }
+        putByte(frame.getIntensity());
+    }
+
+    private static int encodeHeader(byte[] out, int type, int lamp, long timeMicros, int length) {
+        int n = 0;
+        out[n++] = (byte) type;
+        out[n++] = (byte) lamp;
+        while ((timeMicros & ~0x7fL) != 0) {
+            out[n++] = (byte) ((timeMicros & 0x7f) | 0x80);
+            timeMicros >>>= 7;
+        }
+        out[n++] = (byte) timeMicros;
+        while ((length & ~0x7f) != 0) {
+            out[n++] = (byte) ((length & 0x7f) | 0x80);
+            length >>>= 7;
+        }
+        out[n++] = (byte) length;
+        return n;
+    }
+
+    // Appends the payload built since beginPayload() as a record, call with this locked
+    private void commit(int type, int lamp) {
+        if (mMode == MODE_OFF) {
+            return;
+        }
+        long now = System.nanoTime();
+        // Capped to the 5 bytes of varint the header has room for, over 9 hours
+        long micros = Math.min((now - mLastNanos) / 1000, (1L << 35) - 1);
+        mLastNanos = now;
+        int headerLength = encodeHeader(mHeader, type, lamp, micros, mPayloadLength);
+        int size = headerLength + mPayloadLength;
+        mRecords++;
+        mBytes += size;
+        if (size > mBuffer.length) {
+            mDroppedRecords++;
+            return;
+        }
+        if (mMode == MODE_FILE) {
+            if (mLength + size > mBuffer.length) {
+                try {
+                    drain();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not write the recording, stopping it: " + e.getMessage());
+                    mDroppedRecords++;
+                    stop();
+                    return;
+                }
+            }
+            System.arraycopy(mHeader, 0, mBuffer, mLength, headerLength);
+            System.arraycopy(mPayload, 0, mBuffer, mLength + headerLength, mPayloadLength);
+            mLength += size;
+            return;
+        }
+        while (mLength + size > mBuffer.length) {
+            evictOldest();
+        }
+        putRing(mHeader, headerLength);
+        putRing(mPayload, mPayloadLength);
+    }
+
+    private void drain() throws IOException {
+        mOut.write(mBuffer, 0, mLength);
+        mOut.flush();
+        mLength = 0;
+    }
+
+    private void putRing(byte[] data, int length) {
+        int tail = (mHead + mLength) % mBuffer.length;
+        int first = Math.min(length, mBuffer.length - tail);
+        System.arraycopy(data, 0, mBuffer, tail, first);
+        System.arraycopy(data, first, mBuffer, 0, length - first);
+        mLength += length;
+    }
+
+    private int ringByte(int position) {
+        return mBuffer[position % mBuffer.length] & 0xff;
+    }
+
+    // Drops the oldest record of the ring
+    private void evictOldest() {
+        int position = mHead + 2;
+        while ((ringByte(position++) & 0x80) != 0) {
+            // Time
+        }
+        int length = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = ringByte(position++);
+            length |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        int size = position - mHead + length;
+        mHead = (mHead + size) % mBuffer.length;
+        mLength -= size;
+        mDroppedRecords++;
+    }
+}
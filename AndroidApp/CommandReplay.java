@@ -0,0 +1,346 @@
+package com.example.seniorproject;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays the commands of a {@link CommandRecorder} recording back through LampConnections against
+ * SimulatedLamps, so a session a user had trouble with becomes a repeatable test.
+ *
+ * Each lamp of the recording gets a SimulatedLamp at its address. Once all of them are ready the
+ * commands run at their recorded times, divided by the speed. The simulated links keep their real
+ * connection intervals, so a speed above 1 loads the client stack with the same commands in less
+ * time. The operations and callbacks of the recording are not replayed, they are counted so the
+ * replay can be compared with what happened on the phone.
+ */
+public class CommandReplay {
+
+    // How long the lamps get to connect, and to drain their queues after the last command
+    private final static long READY_TIMEOUT_MS = 10000;
+    private final static long SETTLE_MS = 1000;
+
+    // The commands, in order
+    private final List<Command> mCommands = new ArrayList<>();
+    private final List<String> mLamps = new ArrayList<>();
+
+    // What the recording shows of the phone's link
+    private long mRecordedWrites;
+    private long mRecordedRefusals;
+    private long mRecordedCallbacks;
+    private final List<byte[]> mRecordedLastFrame = new ArrayList<>();
+
+    private boolean mFadeSupported = true;
+    private boolean mTimedFadeSupported = true;
+
+    private static class Command {
+        final long mTimeMicros;
+        final int mType;
+        final int mLamp;
+        final byte[] mPayload;
+
+        Command(long timeMicros, int type, int lamp, byte[] payload) {
+            mTimeMicros = timeMicros;
+            mType = type;
+            mLamp = lamp;
+            mPayload = payload;
+        }
+    }
+
+    /**
+     * What a replay did, next to what the recording shows.
+     */
+    public static class Result {
+        public int lamps;
+        public int commands;
+        // Wall time from the first command to the last one, and the most a command ran late
+        public long elapsedNanos;
+        public long maxLagNanos;
+        // Writes on the simulated links, and the ones of the phone in the recording
+        public long writes;
+        public long recordedWrites;
+        public long recordedRefusals;
+        public long busyRefusals;
+        public long ledUpdates;
+        // Lamps that ended on the frame the app asked for last, and on the frame the phone wrote last
+        public int converged;
+        public int matchingRecording;
+        public int recordedFrames;
+        public LatencyHistogram frameLatency;
+        // Between the first and the last lamp of each synced fade
+        public LatencyHistogram syncSkew;
+    }
+
+    public CommandReplay(File file) throws IOException {
+        this(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    /**
+     * Reads the whole recording and closes the stream.
+     */
+    public CommandReplay(InputStream in) throws IOException {
+        CommandRecorder.Reader reader = new CommandRecorder.Reader(in);
+        try {
+            while (reader.next()) {
+                int type = reader.getType();
+                int lamp = reader.getLamp();
+                byte[] payload = reader.getPayload();
+                int length = reader.getLength();
+                if (type == CommandRecorder.LAMP) {
+                    while (mLamps.size() <= lamp) {
+                        mLamps.add(null);
+                        mRecordedLastFrame.add(null);
+                    }
+                    mLamps.set(lamp, new String(payload, 0, length, "UTF-8"));
+                } else if (type < CommandRecorder.OP_CONNECT) {
+                    byte[] copy = new byte[length];
+                    System.arraycopy(payload, 0, copy, 0, length);
+                    mCommands.add(new Command(reader.getTimeMicros(), type, lamp, copy));
+                } else if (type == CommandRecorder.OP_WRITE) {
+                    mRecordedWrites++;
+                    if (lamp < mRecordedLastFrame.size()) {
+                        mRecordedLastFrame.set(lamp, endFrame(payload, length));
+                    }
+                } else if (type == CommandRecorder.OP_REFUSED) {
+                    mRecordedRefusals++;
+                } else if (type >= CommandRecorder.EVT_CONNECTION) {
+                    mRecordedCallbacks++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        // A recording of group commands only still needs a lamp to play them on
+        if (mLamps.isEmpty()) {
+            mLamps.add("00:00:00:00:00:00");
+            mRecordedLastFrame.add(null);
+        }
+        for (int i = 0; i < mLamps.size(); i++) {
+            if (mLamps.get(i) == null) {
+                mLamps.set(i, String.format("00:00:00:00:00:%02X", i));
+            }
+        }
+    }
+
+    public int getCommandCount() {
+        return mCommands.size();
+    }
+
+    public int getLampCount() {
+        return mLamps.size();
+    }
+
+    //time of the last command after the first one
+    public long getDurationMicros() {
+        return mCommands.isEmpty() ? 0 : mCommands.get(mCommands.size() - 1).mTimeMicros
+                - mCommands.get(0).mTimeMicros;
+    }
+
+    //callbacks of the phone's links in the recording
+    public long getRecordedCallbackCount() {
+        return mRecordedCallbacks;
+    }
+
+    //whether the simulated lamps take fade writes, true by default like SimulatedLamp
+    public void setFadeSupported(boolean supported) {
+        mFadeSupported = supported;
+    }
+
+    //whether the simulated lamps take timed fade writes, true by default like SimulatedLamp
+    public void setTimedFadeSupported(boolean supported) {
+        mTimedFadeSupported = supported;
+    }
+
+    /**
+     * Plays the recording on the calling thread and returns once the lamps settled.
+     *
+     * @param speed     1 for the recorded pace, higher to play it faster
+     * @param scheduler timer thread for the connections
+     */
+    public Result run(double speed, ScheduledExecutorService scheduler) throws InterruptedException {
+        int count = mLamps.size();
+        SimulatedLamp[] sims = new SimulatedLamp[count];
+        LampConnection[] lamps = new LampConnection[count];
+        LampMetrics metrics = new LampMetrics();
+        final CountDownLatch ready = new CountDownLatch(count);
+        LampConnection.Listener listener = new LampConnection.Listener() {
+            @Override
+            public void onConnectionStateChanged(LampConnection lamp, int state) {
+                if (state == LampConnection.STATE_READY) {
+                    ready.countDown();
+                }
+            }
+
+            @Override
+            public void onLampFrameRead(LampConnection lamp) {
+            }
+
+            @Override
+            public void onFrameWritten(LampConnection lamp, int status, long latencyNanos) {
+            }
+        };
+        Result result = new Result();
+        try {
+            for (int i = 0; i < count; i++) {
+                sims[i] = new SimulatedLamp(mLamps.get(i));
+                lamps[i] = new LampConnection(null, sims[i], scheduler, listener, metrics);
+                lamps[i].setFadeSupported(mFadeSupported);
+                lamps[i].setTimedFadeSupported(mTimedFadeSupported);
+                lamps[i].connect(true);
+            }
+            if (!ready.await(READY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Simulated lamps did not become ready");
+            }
+            // Let the MTU exchange and the subscription finish, as on a phone that connected a while ago
+            for (LampConnection lamp : lamps) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_MS);
+                while (lamp.getOperationQueueDepth() > 0 && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+            }
+            long[] writesBefore = new long[count];
+            long[] updatesBefore = new long[count];
+            for (int i = 0; i < count; i++) {
+                writesBefore[i] = sims[i].getWriteRequestCount() + sims[i].getWriteCommandCount();
+                updatesBefore[i] = sims[i].getLedUpdateCount();
+            }
+            metrics.reset();
+
+            LedFrame frame = new LedFrame();
+            long first = mCommands.isEmpty() ? 0 : mCommands.get(0).mTimeMicros;
+            long started = System.nanoTime();
+            for (Command command : mCommands) {
+                long due = started + (long) ((command.mTimeMicros - first) * 1000 / speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                result.maxLagNanos = Math.max(result.maxLagNanos, System.nanoTime() - due);
+                if (command.mType == CommandRecorder.CMD_SYNC_FADE) {
+                    // Only a group command, a lamp of its own has nobody to be in step with
+                    CommandRecorder.decodeFrame(command.mPayload, 0, frame);
+                    int[] position = {CommandRecorder.FRAME_LENGTH};
+                    LampConnectionManager.changeAt(lamps, frame,
+                            CommandRecorder.readVarint(command.mPayload, position), metrics);
+                } else if (command.mLamp == CommandRecorder.LAMP_ALL) {
+                    for (LampConnection lamp : lamps) {
+                        apply(lamp, command, frame);
+                    }
+                } else if (command.mLamp < count) {
+                    apply(lamps[command.mLamp], command, frame);
+                }
+            }
+            result.elapsedNanos = System.nanoTime() - started;
+            Thread.sleep(SETTLE_MS);
+
+            result.lamps = count;
+            result.commands = mCommands.size();
+            result.recordedWrites = mRecordedWrites;
+            result.recordedRefusals = mRecordedRefusals;
+            result.frameLatency = metrics.get(LampMetrics.FRAME_LATENCY);
+            result.syncSkew = metrics.get(LampMetrics.SYNC_SKEW);
+            LedFrame desired = new LedFrame();
+            for (int i = 0; i < count; i++) {
+                result.writes += sims[i].getWriteRequestCount() + sims[i].getWriteCommandCount() - writesBefore[i];
+                result.ledUpdates += sims[i].getLedUpdateCount() - updatesBefore[i];
+                result.busyRefusals += sims[i].getBusyCount();
+                lamps[i].getFrame(desired);
+                if (shows(sims[i], desired.get(LedFrame.CHANNEL_RED), desired.get(LedFrame.CHANNEL_GREEN),
+                        desired.get(LedFrame.CHANNEL_BLUE), desired.getIntensity())) {
+                    result.converged++;
+                }
+                byte[] recorded = mRecordedLastFrame.get(i);
+                if (recorded != null) {
+                    result.recordedFrames++;
+                    if (shows(sims[i], recorded[0] & 0xff, recorded[1] & 0xff, recorded[2] & 0xff,
+                            recorded[3] & 0xff)) {
+                        result.matchingRecording++;
+                    }
+                }
+            }
+        } finally {
+            for (int i = 0; i < count; i++) {
+                if (lamps[i] != null) {
+                    lamps[i].shutdown();
+                }
+                if (sims[i] != null) {
+                    sims[i].shutdown();
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void apply(LampConnection lamp, Command command, LedFrame frame) {
+        byte[] payload = command.mPayload;
+        switch (command.mType) {
+            case CommandRecorder.CMD_CHANNEL: {
+                int[] position = {0};
+                int channel = (int) CommandRecorder.readVarint(payload, position);
+                lamp.setChannelLevel(channel, (int) CommandRecorder.readVarint(payload, position));
+                break;
+            }
+            case CommandRecorder.CMD_COLOR:
+                CommandRecorder.decodeFrame(payload, 0, frame);
+                lamp.setColor(frame);
+                break;
+            case CommandRecorder.CMD_INTENSITY:
+                lamp.setIntensity((int) CommandRecorder.readVarint(payload, new int[1]));
+                break;
+            case CommandRecorder.CMD_SETTLE:
+                lamp.settle();
+                break;
+            case CommandRecorder.CMD_FRAME:
+                CommandRecorder.decodeFrame(payload, 0, frame);
+                lamp.writeFrame(frame);
+                break;
+            case CommandRecorder.CMD_FADE: {
+                CommandRecorder.decodeFrame(payload, 0, frame);
+                int[] position = {CommandRecorder.FRAME_LENGTH};
+                lamp.fadeTo(frame, CommandRecorder.readVarint(payload, position));
+                break;
+            }
+            case CommandRecorder.CMD_EFFECT:
+                lamp.playEffect(CommandRecorder.decodeEffect(payload, payload.length));
+                break;
+            case CommandRecorder.CMD_EFFECT_STOP:
+                lamp.stopEffect();
+                break;
+            default:
+                break;
+        }
+    }
+
+    // {R,G,B,Intensity} the lamp ends on after an OP_WRITE payload {withResponse, value}, null
+    // if the write does not say, e.g. a batch. Fades and timed fades end on their target
+    private static byte[] endFrame(byte[] payload, int length) {
+        int offset;
+        if (length == 1 + LedFrameCodec.RGBI_LENGTH) {
+            offset = 1;
+        } else if (length == 1 + LedFrameCodec.FADE_LENGTH && payload[1] == LedFrameCodec.FORMAT_FADE
+                || length == 1 + LedFrameCodec.TIMED_FADE_LENGTH && payload[1] == LedFrameCodec.FORMAT_TIMED_FADE) {
+            offset = 2;
+        } else {
+            return null;
+        }
+        byte[] frame = new byte[LedFrameCodec.RGBI_LENGTH];
+        System.arraycopy(payload, offset, frame, 0, frame.length);
+        return frame;
+    }
+
+    // Whether the simulated firmware holds the given {R,G,B,Intensity} in RGBledData
+    private static boolean shows(SimulatedLamp sim, int red, int green, int blue, int intensity) {
+        return sim.getRgbLedData(SimulatedLamp.RED_INDEX) == red
+                && sim.getRgbLedData(SimulatedLamp.GREEN_INDEX) == green
+                && sim.getRgbLedData(SimulatedLamp.BLUE_INDEX) == blue
+                && sim.getRgbLedData(SimulatedLamp.INTENSITY_INDEX) == intensity;
+    }
+}
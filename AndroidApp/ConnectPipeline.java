@@ -0,0 +1,444 @@
+package com.example.seniorproject;
+
+import android.util.Log;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes the app from one tap to a lamp it can control: initialize, scan, connect, discover and
+ * subscribe, each step started the moment the one before allows it.
+ *
+ * The lamp used last is connected to directly while the scanner listens in parallel, so a lamp
+ * that has moved away or was swapped costs one timeout, not a second round of scanning. Without a
+ * known lamp the scanner listens for a short window after the first advertisement and connects to
+ * the strongest lamp heard. Discovery starts as soon as the link is up, the connection subscribes
+ * to notifications right after it (see LampConnection), so the pipeline is done at
+ * LampConnection.STATE_READY. An attempt that does not get there in time is closed and the next
+ * strongest lamp is tried, up to MAX_ATTEMPTS.
+ *
+ * The pipeline does not talk to the Bluetooth stack itself, everything goes through {@link Steps}.
+ * BluetoothComm runs it on the phone, the benchmark against SimulatedLamps.
+ */
+public class ConnectPipeline {
+    private final static String TAG = ConnectPipeline.class.getSimpleName();
+
+    // Steps, reported to the listener as they start
+    public final static int STEP_IDLE = 0;
+    public final static int STEP_INITIALIZE = 1;
+    public final static int STEP_SCAN = 2;
+    public final static int STEP_CONNECT = 3;
+    public final static int STEP_DISCOVER = 4;
+    public final static int STEP_READY = 5;
+    public final static int STEP_FAILED = 6;
+
+    // Reasons the pipeline gave up
+    public final static int FAILURE_NO_ADAPTER = 1;
+    public final static int FAILURE_NO_LAMP = 2;
+    public final static int FAILURE_CONNECT = 3;
+    public final static int FAILURE_CANCELLED = 4;
+
+    // How long the lamp used last gets before the lamps the scan found are tried
+    public final static long KNOWN_LAMP_TIMEOUT_MS = 2500;
+    // Listening after the first advertisement, to prefer the nearest lamp over the first one
+    public final static long SELECTION_WINDOW_MS = 200;
+    // How long to scan before giving up, and how long a connect may take up to STATE_READY
+    public final static long SCAN_TIMEOUT_MS = 10000;
+    public final static long CONNECT_TIMEOUT_MS = 5000;
+    public final static int MAX_ATTEMPTS = 3;
+
+    /**
+     * What the pipeline drives. Called on the pipeline's timer thread or the thread that reported
+     * the event, never with the pipeline locked.
+     */
+    public interface Steps {
+        //get the Bluetooth adapter ready, false if there is none or it is off
+        boolean initialize();
+
+        //address of the lamp used last, null if there is none
+        String getKnownAddress();
+
+        //start scanning, report lamps through ConnectPipeline.onLampFound()
+        void startScan();
+
+        void stopScan();
+
+        //the connection for a lamp, with whatever is known about it, not connected yet
+        LampConnection openLamp(String address);
+    }
+
+    /**
+     * Receives the progress. Called without the pipeline locked.
+     */
+    public interface Listener {
+        //one of the STEP_ constants
+        void onStep(int step);
+
+        //the lamp can be controlled, elapsedNanos since start()
+        void onReady(LampConnection lamp, long elapsedNanos);
+
+        //one of the FAILURE_ constants
+        void onFailed(int reason);
+    }
+
+    private final Steps mSteps;
+    private final Listener mListener;
+    private final ScheduledExecutorService mScheduler;
+    private final LampMetrics mMetrics;
+
+    // Guarded by this
+    private int mStep = STEP_IDLE;
+    private long mStartedNanos;
+    private boolean mScanning;
+    private String mKnownAddress;
+    private LampConnection mLamp;
+    private int mAttempts;
+    // Strongest RSSI heard from every lamp of this run, and the addresses already tried
+    private final Map<String, Integer> mCandidates = new LinkedHashMap<>();
+    private final Set<String> mTried = new HashSet<>();
+    private ScheduledFuture<?> mAttemptTimeout;
+    private ScheduledFuture<?> mScanTimeout;
+    private ScheduledFuture<?> mSelection;
+    // Start time of every step of this run, 0 for the ones that did not run
+    private final long[] mStepNanos = new long[STEP_FAILED + 1];
+
+    public ConnectPipeline(Steps steps, Listener listener, ScheduledExecutorService scheduler) {
+        this(steps, listener, scheduler, new LampMetrics());
+    }
+
+    /**
+     * @param metrics records the time from start() to a controllable lamp
+     */
+    public ConnectPipeline(Steps steps, Listener listener, ScheduledExecutorService scheduler,
+                           LampMetrics metrics) {
+        mSteps = steps;
+        mListener = listener;
+        mScheduler = scheduler;
+        mMetrics = metrics;
+    }
+
+    //the step running now, one of the STEP_ constants
+    public synchronized int getStep() {
+        return mStep;
+    }
+
+    public synchronized boolean isRunning() {
+        return mStep != STEP_IDLE && mStep != STEP_READY && mStep != STEP_FAILED;
+    }
+
+    /**
+     * @return nanoseconds from start() until the step started in the last run, -1 if it did not run
+     */
+    public synchronized long getStepOffsetNanos(int step) {
+        return mStepNanos[step] == 0 ? -1 : mStepNanos[step] - mStartedNanos;
+    }
+
+    /**
+     * Runs the pipeline. Does nothing if it is running already.
+     */
+    public void start() {
+        synchronized (this) {
+            if (isRunning()) {
+                return;
+            }
+            mStartedNanos = System.nanoTime();
+            for (int i = 0; i < mStepNanos.length; i++) {
+                mStepNanos[i] = 0;
+            }
+            mCandidates.clear();
+            mTried.clear();
+            mAttempts = 0;
+            mLamp = null;
+            setStep(STEP_INITIALIZE);
+        }
+        mListener.onStep(STEP_INITIALIZE);
+        if (!mSteps.initialize()) {
+            fail(FAILURE_NO_ADAPTER);
+            return;
+        }
+        String known = mSteps.getKnownAddress();
+        synchronized (this) {
+            if (mStep != STEP_INITIALIZE) {
+                // Cancelled meanwhile
+                return;
+            }
+            mKnownAddress = known;
+            mScanTimeout = mScheduler.schedule(mScanTimeoutTask, SCAN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        // The scan runs alongside the direct connect, its results are the fallback
+        startScan();
+        if (known != null) {
+            Log.d(TAG, "Connecting to the known lamp " + known + " while scanning");
+            connect(known, KNOWN_LAMP_TIMEOUT_MS);
+        } else {
+            mListener.onStep(STEP_SCAN);
+        }
+    }
+
+    /**
+     * Stops the pipeline wherever it is. A lamp that is not ready yet is closed, the listener
+     * gets FAILURE_CANCELLED.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (!isRunning()) {
+                return;
+            }
+        }
+        fail(FAILURE_CANCELLED);
+    }
+
+    /**
+     * Tells the pipeline about a lamp the scanner heard.
+     */
+    public void onLampFound(String address, int rssi) {
+        synchronized (this) {
+            if (!isRunning() || address.equals(mKnownAddress)) {
+                // The direct connect takes care of the known lamp
+                return;
+            }
+            Integer best = mCandidates.get(address);
+            if (best == null || rssi > best) {
+                mCandidates.put(address, rssi);
+            }
+            // Without a connect in progress, the first lamp heard opens the selection window
+            if (mLamp != null || mSelection != null) {
+                return;
+            }
+            mSelection = mScheduler.schedule(mSelectionTask, SELECTION_WINDOW_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Passes on the connection state changes of every lamp, the pipeline follows the one it
+     * connects to.
+     */
+    public void onConnectionStateChanged(LampConnection lamp, int state) {
+        int step;
+        long elapsed = 0;
+        synchronized (this) {
+            if (lamp != mLamp || !isRunning()) {
+                return;
+            }
+            switch (state) {
+                case LampConnection.STATE_CONNECTED:
+                    step = STEP_DISCOVER;
+                    break;
+                case LampConnection.STATE_READY:
+                    step = STEP_READY;
+                    elapsed = System.nanoTime() - mStartedNanos;
+                    cancelTimers();
+                    mMetrics.record(LampMetrics.TAP_TO_READY, elapsed);
+                    break;
+                case LampConnection.STATE_DISCONNECTED:
+                    step = STEP_CONNECT;
+                    break;
+                default:
+                    return;
+            }
+            if (step != STEP_CONNECT) {
+                setStep(step);
+            }
+        }
+        if (step == STEP_READY) {
+            stopScan();
+            Log.i(TAG, "Lamp " + lamp.getAddress() + " ready after "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+            mListener.onStep(STEP_READY);
+            mListener.onReady(lamp, elapsed);
+        } else if (step == STEP_CONNECT) {
+            // Lost before it was ready, e.g. a connection timeout of the stack
+            Log.w(TAG, "Lamp " + lamp.getAddress() + " disconnected before it was ready");
+            nextAttempt(lamp);
+        } else {
+            mListener.onStep(step);
+        }
+    }
+
+    // Connects to a lamp and gives it until the timeout to become ready
+    private void connect(String address, long timeoutMs) {
+        final LampConnection lamp = mSteps.openLamp(address);
+        synchronized (this) {
+            if (!isRunning()) {
+                return;
+            }
+            mLamp = lamp;
+            mAttempts++;
+            mTried.add(address);
+            cancel(mAttemptTimeout);
+            mAttemptTimeout = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ConnectPipeline.this) {
+                        if (mLamp != lamp || !isRunning()) {
+                            return;
+                        }
+                    }
+                    Log.w(TAG, "Lamp " + lamp.getAddress() + " not ready in time");
+                    mMetrics.countTimeout();
+                    nextAttempt(lamp);
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+            setStep(STEP_CONNECT);
+        }
+        mListener.onStep(STEP_CONNECT);
+        if (lamp.isReady()) {
+            // Already connected from earlier
+            onConnectionStateChanged(lamp, LampConnection.STATE_READY);
+        } else if (!lamp.connect(true, false)) {
+            nextAttempt(lamp);
+        }
+    }
+
+    // Gives up on a lamp and tries the strongest one not tried yet, or waits for the scan
+    private void nextAttempt(LampConnection failed) {
+        String next;
+        boolean exhausted;
+        synchronized (this) {
+            if (failed != mLamp || !isRunning()) {
+                return;
+            }
+            mLamp = null;
+            cancel(mAttemptTimeout);
+            mAttemptTimeout = null;
+            exhausted = mAttempts >= MAX_ATTEMPTS;
+            next = exhausted ? null : strongestCandidate();
+            if (!exhausted && next == null) {
+                // Nothing else heard yet, the selection window starts with the next advertisement
+                setStep(STEP_SCAN);
+                if (mScanTimeout == null) {
+                    mScanTimeout = mScheduler.schedule(mScanTimeoutTask, SCAN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        failed.close();
+        if (exhausted) {
+            fail(FAILURE_CONNECT);
+        } else if (next != null) {
+            mMetrics.countRetry();
+            stopScan();
+            connect(next, CONNECT_TIMEOUT_MS);
+        } else {
+            startScan();
+            mListener.onStep(STEP_SCAN);
+        }
+    }
+
+    // Call with this locked. Null if every lamp heard was tried
+    private String strongestCandidate() {
+        String best = null;
+        int bestRssi = Integer.MIN_VALUE;
+        for (Map.Entry<String, Integer> candidate : mCandidates.entrySet()) {
+            if (!mTried.contains(candidate.getKey()) && candidate.getValue() > bestRssi) {
+                best = candidate.getKey();
+                bestRssi = candidate.getValue();
+            }
+        }
+        return best;
+    }
+
+    private void startScan() {
+        synchronized (this) {
+            if (mScanning || !isRunning()) {
+                return;
+            }
+            mScanning = true;
+            if (mLamp == null) {
+                setStep(STEP_SCAN);
+            }
+        }
+        mSteps.startScan();
+    }
+
+    private void stopScan() {
+        synchronized (this) {
+            if (!mScanning) {
+                return;
+            }
+            mScanning = false;
+        }
+        mSteps.stopScan();
+    }
+
+    private void fail(int reason) {
+        LampConnection lamp;
+        synchronized (this) {
+            if (!isRunning()) {
+                return;
+            }
+            lamp = mLamp;
+            mLamp = null;
+            cancelTimers();
+            setStep(STEP_FAILED);
+        }
+        stopScan();
+        if (lamp != null) {
+            lamp.close();
+        }
+        Log.w(TAG, "Connection pipeline failed, reason " + reason);
+        mListener.onStep(STEP_FAILED);
+        mListener.onFailed(reason);
+    }
+
+    // Call with this locked
+    private void setStep(int step) {
+        mStep = step;
+        if (mStepNanos[step] == 0) {
+            mStepNanos[step] = System.nanoTime();
+        }
+    }
+
+    // Call with this locked
+    private void cancelTimers() {
+        cancel(mAttemptTimeout);
+        cancel(mScanTimeout);
+        cancel(mSelection);
+        mAttemptTimeout = null;
+        mScanTimeout = null;
+        mSelection = null;
+    }
+
+    private static void cancel(ScheduledFuture<?> task) {
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    // The selection window after the first advertisement is over, connect to the strongest lamp
+    private final Runnable mSelectionTask = new Runnable() {
+        @Override
+        public void run() {
+            String next;
+            synchronized (ConnectPipeline.this) {
+                mSelection = null;
+                if (!isRunning() || mLamp != null) {
+                    return;
+                }
+                next = strongestCandidate();
+            }
+            if (next != null) {
+                stopScan();
+                connect(next, CONNECT_TIMEOUT_MS);
+            }
+        }
+    };
+
+    // Nothing was connected before the scan timed out
+    private final Runnable mScanTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ConnectPipeline.this) {
+                mScanTimeout = null;
+                if (!isRunning() || mLamp != null) {
+                    // A connect attempt has its own timeout
+                    return;
+                }
+            }
+            fail(FAILURE_NO_LAMP);
+        }
+    };
+}
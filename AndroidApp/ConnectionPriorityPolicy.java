@@ -0,0 +1,140 @@
+package com.example.seniorproject;
+
+import android.util.Log;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raises the connection priority of a lamp link while someone is interacting with it and lowers it
+ * again once the link has been idle for a while.
+ *
+ * A short connection interval gets slider moves and effect frames to the lamp within a few
+ * milliseconds, but wakes both radios up on every event. Activity (a slider move, an effect frame,
+ * the link coming up for service discovery) requests CONNECTION_PRIORITY_HIGH, and the idle
+ * priority is requested after {@link #DEFAULT_IDLE_TIMEOUT_MS} without any. The firmware runs the
+ * same policy in UpdateConnectionParam with a slightly longer timeout, so its idle parameters are
+ * the last ones asked for.
+ */
+public class ConnectionPriorityPolicy {
+    private final static String TAG = ConnectionPriorityPolicy.class.getSimpleName();
+
+    public final static long DEFAULT_IDLE_TIMEOUT_MS = 2000;
+
+    /**
+     * Told about every priority the link was asked to move to.
+     */
+    public interface Listener {
+        void onPriorityRequested(int priority);
+    }
+
+    private final LampTransport mTransport;
+    private final ScheduledExecutorService mScheduler;
+    private final Listener mListener;
+    private final long mIdleTimeoutNanos;
+
+    private boolean mEnabled = true;
+    private boolean mConnected;
+    private int mIdlePriority = LampTransport.CONNECTION_PRIORITY_BALANCED;
+    private ScheduledFuture<?> mIdleCheck;
+    private long mRequestCount;
+
+    // Read without the lock on every slider move
+    private volatile boolean mActive;
+    private volatile long mLastActivityNanos;
+
+    public ConnectionPriorityPolicy(LampTransport transport, ScheduledExecutorService scheduler,
+                                    Listener listener) {
+        this(transport, scheduler, listener, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    public ConnectionPriorityPolicy(LampTransport transport, ScheduledExecutorService scheduler,
+                                    Listener listener, long idleTimeoutMs) {
+        mTransport = transport;
+        mScheduler = scheduler;
+        mListener = listener;
+        mIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+    }
+
+    /**
+     * @param priority CONNECTION_PRIORITY_BALANCED (the default) or CONNECTION_PRIORITY_LOW_POWER
+     */
+    public synchronized void setIdlePriority(int priority) {
+        mIdlePriority = priority;
+    }
+
+    //turn the policy off, the link then keeps whatever priority it has
+    public synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isActive() {
+        return mActive;
+    }
+
+    //number of priority changes requested, for diagnostics
+    public synchronized long getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized void onConnected() {
+        mConnected = true;
+    }
+
+    public synchronized void onDisconnected() {
+        mConnected = false;
+        mActive = false;
+        if (mIdleCheck != null) {
+            mIdleCheck.cancel(false);
+            mIdleCheck = null;
+        }
+    }
+
+    /**
+     * Something was sent or is about to be. Cheap enough to call on every slider move, only the
+     * first call after an idle period takes the lock.
+     */
+    public void onActivity() {
+        mLastActivityNanos = System.nanoTime();
+        if (mActive) {
+            return;
+        }
+        synchronized (this) {
+            if (!mConnected || !mEnabled || mActive) {
+                return;
+            }
+            mActive = true;
+            request(LampTransport.CONNECTION_PRIORITY_HIGH);
+            mIdleCheck = mScheduler.schedule(mIdleCheckTask, mIdleTimeoutNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void request(int priority) {
+        if (mTransport.requestConnectionPriority(priority)) {
+            mRequestCount++;
+            mListener.onPriorityRequested(priority);
+        } else {
+            Log.w(TAG, "Connection priority " + priority + " could not be requested");
+        }
+    }
+
+    // Runs once per timeout while active, and waits for the rest of it if there was activity since
+    private final Runnable mIdleCheckTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ConnectionPriorityPolicy.this) {
+                mIdleCheck = null;
+                if (!mActive) {
+                    return;
+                }
+                long remaining = mLastActivityNanos + mIdleTimeoutNanos - System.nanoTime();
+                if (remaining > 0) {
+                    mIdleCheck = mScheduler.schedule(this, remaining, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                mActive = false;
+                request(mIdlePriority);
+            }
+        }
+    };
+}
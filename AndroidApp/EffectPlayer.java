@@ -0,0 +1,223 @@
+package com.example.seniorproject;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a {@link LedEffect} on one lamp.
+ *
+ * The lamp cannot take more than one frame per connection interval, so the effect is sampled
+ * ahead of time once per interval. Samples the firmware would show exactly like the one before
+ * (see {@link LedFrameCodec#outputKey}) are dropped right there, a slow fade or the dim part of a
+ * breathing cycle only costs the packets that actually change the light. The remaining frames go
+ * out on a timer running at the connection interval, placed half an interval after a connection
+ * event so timer jitter never puts two frames into one event or leaves one empty.
+ *
+ * With a batch limit set, the frames of the next few ticks are handed over together so the lamp
+ * can get them in one batched write and play them out itself, see LedBatchCodec.
+ */
+public class EffectPlayer {
+
+    /**
+     * Receives the frames to send, on the timer thread.
+     */
+    public interface Sink {
+        /**
+         * Frames {@code first} to {@code first + count - 1} are due, the first one now and each
+         * following one at its tick. Without a batch limit count is always 1.
+         *
+         * @param frames only valid during the call
+         * @param ticks  tick of each frame within the pass, the distance between two of them is
+         *               the number of connection intervals between the frames
+         * @param last   the batch ends with the final frame of an effect that does not loop, worth
+         *               an acknowledged write
+         */
+        void onEffectFrames(LedFrame[] frames, int[] ticks, int first, int count, boolean last);
+    }
+
+    private final ScheduledExecutorService mScheduler;
+    private final Sink mSink;
+
+    // Precomputed pass: the tick each kept frame goes out on, and the frames
+    private int[] mFrameTicks;
+    private LedFrame[] mFrames;
+    private int mFrameCount;
+    private int mTickCount;
+    private boolean mLooping;
+    // Frame 0 shows the same as the last frame of a pass, it is only sent on the first pass
+    private boolean mSkipFirstOnRepeat;
+
+    // Playback position
+    private int mTick;
+    private int mNextFrame;
+    private ScheduledFuture<?> mTask;
+    private long mSentCount;
+    private long mBatchCount;
+
+    // Most ticks and frames handed to the sink at once
+    private int mBatchTicks = 1;
+    private int mBatchFrames = 1;
+
+    public EffectPlayer(ScheduledExecutorService scheduler, Sink sink) {
+        mScheduler = scheduler;
+        mSink = sink;
+    }
+
+    /**
+     * Stops whatever is playing and starts an effect.
+     *
+     * @param format          LedFrameCodec.FORMAT_ constant the lamp is written in, decides which
+     *                        channels can change the output
+     * @param intervalMicros  connection interval of the link
+     * @param lastEventNanos  System.nanoTime() of a recent connection event, e.g. when the last
+     *                        acknowledged write completed, 0 if none is known
+     */
+    public synchronized void start(LedEffect effect, int format, long intervalMicros, long lastEventNanos) {
+        stop();
+        prepare(effect, format, intervalMicros);
+        mTick = 0;
+        mNextFrame = 0;
+        mSentCount = 0;
+        mBatchCount = 0;
+
+        long intervalNanos = TimeUnit.MICROSECONDS.toNanos(intervalMicros);
+        long delay = 0;
+        if (lastEventNanos != 0) {
+            // Half an interval after the next connection event
+            long sinceEvent = (System.nanoTime() - lastEventNanos) % intervalNanos;
+            delay = (intervalNanos / 2 - sinceEvent + intervalNanos) % intervalNanos;
+        }
+        mTask = mScheduler.scheduleAtFixedRate(mTickTask, delay, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Lets the player hand over the frames of up to {@code ticks} ticks at once, at most
+     * {@code frames} of them. The lamp keeps playing a batch that was already sent when the
+     * player is stopped, so the ticks are kept short. 1 and 1 turn batching off.
+     */
+    public synchronized void setBatchLimit(int ticks, int frames) {
+        mBatchTicks = Math.max(1, Math.min(ticks, LedBatchCodec.MAX_DELAY));
+        mBatchFrames = Math.max(1, frames);
+    }
+
+    public synchronized void stop() {
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+    }
+
+    public synchronized boolean isPlaying() {
+        return mTask != null;
+    }
+
+    //ticks in one pass of the current effect
+    public synchronized int getTickCount() {
+        return mTickCount;
+    }
+
+    //frames that change the output in one pass, the rest were suppressed
+    public synchronized int getFrameCount() {
+        return mFrameCount;
+    }
+
+    //frames handed to the sink since the effect started
+    public synchronized long getSentCount() {
+        return mSentCount;
+    }
+
+    //calls to the sink since the effect started, one write each
+    public synchronized long getBatchCount() {
+        return mBatchCount;
+    }
+
+    // Samples the effect once per tick and keeps the frames that change the output
+    private void prepare(LedEffect effect, int format, long intervalMicros) {
+        long durationMicros = effect.getDurationMs() * 1000;
+        mLooping = effect.isLooping();
+        if (mLooping) {
+            // A whole number of ticks per period, so the loop stays on the interval grid
+            mTickCount = (int) Math.max(1, (durationMicros + intervalMicros / 2) / intervalMicros);
+        } else {
+            // One more tick for the end state
+            mTickCount = (int) ((durationMicros + intervalMicros - 1) / intervalMicros) + 1;
+        }
+        // New arrays every time, a tick of the previous effect may still be sending one of its frames
+        mFrameTicks = new int[16];
+        mFrames = new LedFrame[16];
+        mFrameCount = 0;
+        LedFrame sample = new LedFrame();
+        long previousKey = 0;
+        for (int tick = 0; tick < mTickCount; tick++) {
+            long timeMs = mLooping
+                    ? tick * effect.getDurationMs() / mTickCount
+                    : Math.min(tick * intervalMicros / 1000, effect.getDurationMs());
+            effect.frameAt(timeMs, sample);
+            long key = LedFrameCodec.outputKey(sample, format);
+            boolean last = !mLooping && tick == mTickCount - 1;
+            // The first frame is always sent, the lamp may show anything before the effect
+            if (tick == 0 || key != previousKey || last) {
+                keep(tick, sample);
+                previousKey = key;
+            }
+        }
+        mSkipFirstOnRepeat = mLooping
+                && LedFrameCodec.outputKey(mFrames[0], format) == previousKey;
+    }
+
+    private void keep(int tick, LedFrame frame) {
+        if (mFrameCount == mFrames.length) {
+            mFrames = Arrays.copyOf(mFrames, mFrameCount * 2);
+            mFrameTicks = Arrays.copyOf(mFrameTicks, mFrameCount * 2);
+        }
+        mFrames[mFrameCount] = new LedFrame(frame);
+        mFrameTicks[mFrameCount] = tick;
+        mFrameCount++;
+    }
+
+    private final Runnable mTickTask = new Runnable() {
+        @Override
+        public void run() {
+            LedFrame[] frames = null;
+            int[] ticks = null;
+            int first = 0;
+            int count = 0;
+            boolean last = false;
+            synchronized (EffectPlayer.this) {
+                if (mTask == null) {
+                    return;
+                }
+                if (mNextFrame < mFrameCount && mFrameTicks[mNextFrame] == mTick) {
+                    // This frame and the ones of the next few ticks, never past the end of a pass
+                    first = mNextFrame;
+                    int end = first + 1;
+                    while (end < mFrameCount && end - first < mBatchFrames
+                            && mFrameTicks[end] < mTick + mBatchTicks) {
+                        end++;
+                    }
+                    frames = mFrames;
+                    ticks = mFrameTicks;
+                    count = end - first;
+                    mNextFrame = end;
+                    last = !mLooping && mNextFrame == mFrameCount;
+                    mSentCount += count;
+                    mBatchCount++;
+                }
+                if (++mTick == mTickCount) {
+                    if (!mLooping || (mSkipFirstOnRepeat && mFrameCount == 1)) {
+                        // Done, or a loop that never changes the output again
+                        stop();
+                    } else {
+                        mTick = 0;
+                        mNextFrame = mSkipFirstOnRepeat ? 1 : 0;
+                    }
+                }
+            }
+            if (frames != null) {
+                mSink.onEffectFrames(frames, ticks, first, count, last);
+            }
+        }
+    };
+}
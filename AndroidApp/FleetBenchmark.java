@@ -0,0 +1,146 @@
+package com.example.seniorproject;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how the end-to-end latency of a group command grows with the number of lamps.
+ *
+ * For every fleet size from one lamp up to all ready lamps, a series of scene changes is sent with
+ * acknowledged writes and the time until the last lamp acknowledged is recorded. Blocks the calling
+ * thread, so run it off the main thread.
+ */
+public class FleetBenchmark implements LampConnection.Listener {
+    private final static String TAG = FleetBenchmark.class.getSimpleName();
+
+    // How long to wait for all lamps to acknowledge one scene before counting it as lost
+    private final static long ROUND_TIMEOUT_MS = 5000;
+
+    /**
+     * Latency of a group command for one fleet size.
+     */
+    public static class Result {
+        public final int lampCount;
+        public final int rounds;
+        public final int lost;
+        public final double medianMs;
+        public final double p95Ms;
+        public final double maxMs;
+
+        Result(int lampCount, int rounds, int lost, double medianMs, double p95Ms, double maxMs) {
+            this.lampCount = lampCount;
+            this.rounds = rounds;
+            this.lost = lost;
+            this.medianMs = medianMs;
+            this.p95Ms = p95Ms;
+            this.maxMs = maxMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d lamps: median %.1f ms, p95 %.1f ms, max %.1f ms, %d/%d lost",
+                    lampCount, medianMs, p95Ms, maxMs, lost, rounds);
+        }
+    }
+
+    private final LampConnectionManager mManager;
+    private final int mRounds;
+    // Guarded by this. Lamps of the current round that did not acknowledge yet
+    private final Set<LampConnection> mWaiting = new HashSet<>();
+    private CountDownLatch mPending;
+
+    public FleetBenchmark(LampConnectionManager manager, int rounds) {
+        mManager = manager;
+        mRounds = rounds;
+    }
+
+    /**
+     * Runs the benchmark against the lamps that are currently ready.
+     */
+    public List<Result> run() throws InterruptedException {
+        List<LampConnection> lamps = new ArrayList<>();
+        for (LampConnection lamp : mManager.getConnections()) {
+            if (lamp.isReady()) {
+                lamps.add(lamp);
+            }
+        }
+        List<Result> results = new ArrayList<>();
+        // Every lamp gets whichever of the two it does not show, a write of the frame the lamp
+        // already shows is suppressed and never acknowledged
+        LedFrame red = new LedFrame();
+        red.setIntensity(LedFrame.MAX_LEVEL);
+        red.set(LedFrame.CHANNEL_RED, LedFrame.MAX_LEVEL);
+        LedFrame blue = new LedFrame();
+        blue.setIntensity(LedFrame.MAX_LEVEL);
+        blue.set(LedFrame.CHANNEL_BLUE, LedFrame.MAX_LEVEL);
+        LedFrame current = new LedFrame();
+        mManager.addListener(this);
+        try {
+            for (int count = 1; count <= lamps.size(); count++) {
+                long[] samples = new long[mRounds];
+                int lost = 0;
+                for (int round = 0; round < mRounds; round++) {
+                    CountDownLatch pending = new CountDownLatch(count);
+                    synchronized (this) {
+                        mWaiting.clear();
+                        mWaiting.addAll(lamps.subList(0, count));
+                        mPending = pending;
+                    }
+                    long start = System.nanoTime();
+                    for (int i = 0; i < count; i++) {
+                        LampConnection lamp = lamps.get(i);
+                        lamp.getFrame(current);
+                        lamp.writeFrame(current.sameAs(red) ? blue : red);
+                    }
+                    if (pending.await(ROUND_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                        samples[round] = System.nanoTime() - start;
+                    } else {
+                        samples[round] = TimeUnit.MILLISECONDS.toNanos(ROUND_TIMEOUT_MS);
+                        lost++;
+                    }
+                }
+                Result result = summarize(count, samples, lost);
+                Log.i(TAG, result.toString());
+                results.add(result);
+            }
+        } finally {
+            mManager.removeListener(this);
+            synchronized (this) {
+                mWaiting.clear();
+                mPending = null;
+            }
+        }
+        return results;
+    }
+
+    private static Result summarize(int count, long[] samples, int lost) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        double median = sorted[sorted.length / 2] / 1e6;
+        double p95 = sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * 0.95) - 1)] / 1e6;
+        double max = sorted[sorted.length - 1] / 1e6;
+        return new Result(count, samples.length, lost, median, p95, max);
+    }
+
+    @Override
+    public synchronized void onFrameWritten(LampConnection lamp, int status, long latencyNanos) {
+        // Only the first acknowledged write of each lamp in the round counts
+        if (status == LampTransport.GATT_SUCCESS && mWaiting.remove(lamp)) {
+            mPending.countDown();
+        }
+    }
+
+    @Override
+    public void onConnectionStateChanged(LampConnection lamp, int state) {
+    }
+
+    @Override
+    public void onLampFrameRead(LampConnection lamp) {
+    }
+}
@@ -0,0 +1,280 @@
+package com.example.seniorproject;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+import java.util.UUID;
+
+/**
+ * LampTransport on the Android GATT client.
+ */
+public class GattLampTransport implements LampTransport {
+    private final static String TAG = GattLampTransport.class.getSimpleName();
+
+    private final Context mContext;
+    private final BluetoothDevice mDevice;
+    private volatile Callback mCallback;
+
+    private BluetoothGatt mBluetoothGatt;
+    // Replaced as a whole after each discovery, so the callbacks always see a complete table
+    private volatile LampCharacteristics<BluetoothGattCharacteristic> mCharacteristics =
+            new LampCharacteristics<BluetoothGattCharacteristic>();
+    private volatile BluetoothGattDescriptor mLedCccd;
+    private volatile int mPriority = CONNECTION_PRIORITY_BALANCED;
+
+    // Top of the interval range Android uses for CONNECTION_PRIORITY_HIGH
+    private final static long HIGH_PRIORITY_INTERVAL_MICROS = 15000;
+
+    public GattLampTransport(Context context, BluetoothDevice device) {
+        mContext = context;
+        mDevice = device;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    @Override
+    public long getConnectionIntervalMicros() {
+        // Android does not tell apps the negotiated interval. Assume the one asked for last, the
+        // firmware's idle interval unless high priority was requested
+        return mPriority == CONNECTION_PRIORITY_HIGH
+                ? HIGH_PRIORITY_INTERVAL_MICROS : BluetoothComm.CONNECTION_INTERVAL_MS * 1000;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public boolean connect(boolean autoConnect) {
+        // Previously connected device.  Try to reconnect.
+        if (mBluetoothGatt != null) {
+            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
+            return mBluetoothGatt.connect();
+        }
+        mBluetoothGatt = mDevice.connectGatt(mContext, autoConnect, mGattCallback);
+        Log.d(TAG, "Trying to create a new connection to " + mDevice.getAddress());
+        return mBluetoothGatt != null;
+    }
+
+    @Override
+    public void disconnect() {
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "Not connected");
+            return;
+        }
+        mBluetoothGatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+        mCharacteristics = new LampCharacteristics<BluetoothGattCharacteristic>();
+        mLedCccd = null;
+        if (mBluetoothGatt == null) {
+            return;
+        }
+        mBluetoothGatt.close();
+        mBluetoothGatt = null;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "Not connected");
+            return false;
+        }
+        return mBluetoothGatt.discoverServices();
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        if (!gatt.requestConnectionPriority(priority)) {
+            return false;
+        }
+        mPriority = priority;
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        return gatt.requestMtu(mtu);
+    }
+
+    @Override
+    public int resolveLed(UUID serviceUuid, UUID ledCharacteristicUuid) {
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null) {
+            return -1;
+        }
+        BluetoothGattService service = gatt.getService(serviceUuid);
+        if (service == null) {
+            return -1;
+        }
+        BluetoothGattCharacteristic characteristic = service.getCharacteristic(ledCharacteristicUuid);
+        if (characteristic == null) {
+            return -1;
+        }
+        LampCharacteristics<BluetoothGattCharacteristic> characteristics =
+                new LampCharacteristics<BluetoothGattCharacteristic>();
+        characteristics.put(LampCharacteristics.LED, characteristic);
+        // The others are where the default layout has them, if the lamp has them at all
+        for (int slot = 0; slot < LampCharacteristics.COUNT; slot++) {
+            if (slot == LampCharacteristics.LED) {
+                continue;
+            }
+            BluetoothGattService other = gatt.getService(LampCharacteristics.getServiceUuid(slot));
+            if (other != null) {
+                characteristics.put(slot, other.getCharacteristic(LampCharacteristics.getUuid(slot)));
+            }
+        }
+        mCharacteristics = characteristics;
+        return characteristic.getProperties();
+    }
+
+    @Override
+    public boolean readLed() {
+        BluetoothGatt gatt = mBluetoothGatt;
+        BluetoothGattCharacteristic characteristic = mCharacteristics.get(LampCharacteristics.LED);
+        return gatt != null && characteristic != null && gatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean enableLedNotifications() {
+        BluetoothGatt gatt = mBluetoothGatt;
+        BluetoothGattCharacteristic characteristic = mCharacteristics.get(LampCharacteristics.LED);
+        if (gatt == null || characteristic == null) {
+            return false;
+        }
+        BluetoothGattDescriptor cccd = characteristic.getDescriptor(CCCD_UUID);
+        if (cccd == null) {
+            Log.w(TAG, "LED characteristic has no CCCD");
+            return false;
+        }
+        // The local flag routes the notifications to the callback, the CCCD tells the lamp to send them
+        if (!gatt.setCharacteristicNotification(characteristic, true)) {
+            return false;
+        }
+        mLedCccd = cccd;
+        cccd.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        return gatt.writeDescriptor(cccd);
+    }
+
+    @Override
+    public boolean writeLed(byte[] value, boolean withResponse) {
+        BluetoothGatt gatt = mBluetoothGatt;
+        BluetoothGattCharacteristic characteristic = mCharacteristics.get(LampCharacteristics.LED);
+        if (gatt == null || characteristic == null) {
+            return false;
+        }
+        // The characteristic value and write type are shared, only one write is in flight at a time
+        characteristic.setWriteType(withResponse
+                ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        characteristic.setValue(value);
+        return gatt.writeCharacteristic(characteristic);
+    }
+
+    //GATT callback, dispatched on the slot of the characteristic
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            Callback callback = mCallback;
+            if (callback == null) {
+                return;
+            }
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                callback.onConnectionStateChange(status, true);
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                callback.onConnectionStateChange(status, false);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onServicesDiscovered(status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            Callback callback = mCallback;
+            if (callback == null) {
+                return;
+            }
+            int slot = mCharacteristics.slotOf(characteristic);
+            if (slot >= 0) {
+                callback.onRead(slot, status, characteristic.getValue());
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            Callback callback = mCallback;
+            if (callback == null) {
+                return;
+            }
+            int slot = mCharacteristics.slotOf(characteristic);
+            if (slot >= 0) {
+                callback.onWritten(slot, status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            Callback callback = mCallback;
+            if (callback == null) {
+                return;
+            }
+            int slot = mCharacteristics.slotOf(characteristic);
+            if (slot >= 0) {
+                callback.onChanged(slot, characteristic.getValue());
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            Callback callback = mCallback;
+            if (callback != null && descriptor == mLedCccd) {
+                callback.onLedNotificationsEnabled(status);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onMtuChanged(status, mtu);
+            }
+        }
+    };
+}
@@ -0,0 +1,59 @@
+package com.example.seniorproject;
+
+/**
+ * A single GATT request (read, write, descriptor write or MTU exchange) waiting its turn in a
+ * {@link GattOperationQueue}. Subclasses issue the actual BluetoothGatt call in {@link #execute()}.
+ */
+public abstract class GattOperation {
+
+    // Kinds of operations the queue knows about
+    public final static int TYPE_READ = 0;
+    public final static int TYPE_WRITE = 1;
+    public final static int TYPE_DESCRIPTOR_WRITE = 2;
+    public final static int TYPE_MTU_REQUEST = 3;
+
+    private final int mType;
+    private final Object mTarget;
+
+    // Number of times this operation has been started, including retries
+    int mAttempts;
+    // Time the operation was added to the queue, used to report queue wait time
+    long mEnqueuedNanos;
+    // Time of the last attempt, used to report the round trip
+    long mStartedNanos;
+    // Status onFinished() is called with once the queue lets go of its lock
+    int mStatus;
+
+    /**
+     * @param type   one of the TYPE_ constants
+     * @param target the characteristic or descriptor the completion callback will report, used
+     *               with the type to match callbacks to the operation in flight
+     */
+    protected GattOperation(int type, Object target) {
+        mType = type;
+        mTarget = target;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public Object getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * Starts the request on the GATT connection.
+     *
+     * @return false if the Bluetooth stack refused to start it
+     */
+    protected abstract boolean execute();
+
+    /**
+     * Called once the operation has finished for good, either with the status reported by
+     * the completion callback or with {@link GattOperationQueue#STATUS_TIMEOUT} /
+     * {@link GattOperationQueue#STATUS_NOT_STARTED} after all retries were used up.
+     */
+    protected void onFinished(int status) {
+    }
+}
@@ -0,0 +1,310 @@
+package com.example.seniorproject;
+
+import android.util.Log;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes GATT operations for one connection.
+ *
+ * Android only allows a single outstanding read, write or descriptor request per BluetoothGatt,
+ * anything issued while another one is in flight is silently dropped. Operations are kept here
+ * in order and the next one is started straight from the completion callback of the previous one,
+ * so the link never sits idle while work is waiting. Operations that do not complete in time are
+ * retried and eventually dropped so a lost callback cannot stall the queue.
+ *
+ * Finished operations are collected under the lock and their onFinished() is called after it is
+ * released, in the order they finished. It calls into listeners and stores, and may enqueue again.
+ */
+public class GattOperationQueue {
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+
+    // Status values reported to GattOperation.onFinished() when the stack never answered
+    public final static int STATUS_TIMEOUT = -1;
+    public final static int STATUS_NOT_STARTED = -2;
+    public final static int STATUS_CANCELLED = -3;
+
+    public final static long DEFAULT_TIMEOUT_MS = 1500;
+    public final static int DEFAULT_MAX_RETRIES = 2;
+
+    // How often the watchdog looks at the operation in flight while the queue is busy
+    private final static long WATCHDOG_PERIOD_MS = 50;
+
+    private final ArrayDeque<GattOperation> mPending = new ArrayDeque<>();
+    private final ScheduledExecutorService mScheduler;
+    private final boolean mOwnsScheduler;
+    private final long mTimeoutNanos;
+    private final int mMaxRetries;
+
+    private GattOperation mInFlight;
+    private long mDeadlineNanos;
+
+    // Finished operations waiting for their onFinished() call, and whether a thread is calling
+    // them already
+    private final ArrayDeque<GattOperation> mFinished = new ArrayDeque<>();
+    private boolean mDispatching;
+    private ScheduledFuture<?> mWatchdog;
+    private LampMetrics mMetrics;
+
+    // Counters for diagnostics
+    private long mCompletedCount;
+    private long mRetryCount;
+    private long mTimeoutCount;
+    private long mDroppedCount;
+
+    public GattOperationQueue() {
+        this(DEFAULT_TIMEOUT_MS, DEFAULT_MAX_RETRIES);
+    }
+
+    public GattOperationQueue(long timeoutMs, int maxRetries) {
+        this(null, timeoutMs, maxRetries);
+    }
+
+    /**
+     * @param scheduler timer thread to share with other queues, or null to create a private one
+     */
+    public GattOperationQueue(ScheduledExecutorService scheduler, long timeoutMs, int maxRetries) {
+        mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        mMaxRetries = maxRetries;
+        mOwnsScheduler = scheduler == null;
+        mScheduler = mOwnsScheduler ? Executors.newSingleThreadScheduledExecutor() : scheduler;
+    }
+
+    /**
+     * Records queue wait and round trip times, and retries, timeouts and drops into the given
+     * metrics. Null turns recording off.
+     */
+    public synchronized void setMetrics(LampMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Adds an operation to the end of the queue and starts it right away if the link is idle.
+     */
+    public void enqueue(GattOperation op) {
+        synchronized (this) {
+            op.mAttempts = 0;
+            op.mEnqueuedNanos = System.nanoTime();
+            mPending.addLast(op);
+            if (mInFlight == null) {
+                startNext();
+            }
+        }
+        dispatchFinished();
+    }
+
+    /**
+     * Reports the completion callback for a characteristic or descriptor. Late callbacks for an
+     * operation that already timed out are ignored, as are callbacks of another kind than the
+     * operation in flight: a late write response while a read of the same characteristic is out.
+     *
+     * @param type one of the GattOperation.TYPE_ constants
+     */
+    public void onComplete(int type, Object target, int status) {
+        synchronized (this) {
+            if (mInFlight == null || mInFlight.getType() != type || mInFlight.getTarget() != target) {
+                Log.d(TAG, "Ignoring completion that does not match the operation in flight");
+                return;
+            }
+            GattOperation op = mInFlight;
+            mInFlight = null;
+            if (mMetrics != null) {
+                mMetrics.record(roundTripPhase(op.getType()), System.nanoTime() - op.mStartedNanos);
+            }
+            if (status != 0 && op.mAttempts <= mMaxRetries) {
+                // Put it back at the head so ordering is kept
+                countRetry();
+                mPending.addFirst(op);
+            } else {
+                mCompletedCount++;
+                finish(op, status);
+            }
+            startNext();
+        }
+        dispatchFinished();
+    }
+
+    /**
+     * Drops every pending operation, e.g. when the connection goes away.
+     */
+    public void clear() {
+        synchronized (this) {
+            if (mInFlight != null) {
+                finish(mInFlight, STATUS_CANCELLED);
+                mInFlight = null;
+            }
+            while (!mPending.isEmpty()) {
+                finish(mPending.pollFirst(), STATUS_CANCELLED);
+            }
+            stopWatchdog();
+        }
+        dispatchFinished();
+    }
+
+    /**
+     * Releases the timer thread if the queue owns it. The queue cannot be used afterwards.
+     */
+    public void shutdown() {
+        clear();
+        if (mOwnsScheduler) {
+            mScheduler.shutdownNow();
+        }
+    }
+
+    //number of operations waiting, including the one in flight
+    public synchronized int depth() {
+        return mPending.size() + (mInFlight == null ? 0 : 1);
+    }
+
+    public synchronized boolean isIdle() {
+        return mInFlight == null && mPending.isEmpty();
+    }
+
+    public synchronized long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    public synchronized long getRetryCount() {
+        return mRetryCount;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return mTimeoutCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    // Starts operations until one is accepted by the stack or the queue runs dry
+    private void startNext() {
+        while (mInFlight == null && !mPending.isEmpty()) {
+            GattOperation op = mPending.pollFirst();
+            long now = System.nanoTime();
+            if (op.mAttempts++ == 0 && mMetrics != null) {
+                mMetrics.record(LampMetrics.QUEUE_WAIT, now - op.mEnqueuedNanos);
+            }
+            op.mStartedNanos = now;
+            mInFlight = op;
+            mDeadlineNanos = now + mTimeoutNanos;
+            if (!op.execute()) {
+                mInFlight = null;
+                if (op.mAttempts <= mMaxRetries) {
+                    // The stack is busy, leave it at the head and let the watchdog try again
+                    countRetry();
+                    mPending.addFirst(op);
+                    break;
+                }
+                countDrop();
+                Log.w(TAG, "Dropping GATT operation the stack refused to start");
+                finish(op, STATUS_NOT_STARTED);
+            }
+        }
+        if (isIdle()) {
+            stopWatchdog();
+        } else if (mWatchdog == null) {
+            mWatchdog = mScheduler.scheduleWithFixedDelay(mWatchdogTask,
+                    WATCHDOG_PERIOD_MS, WATCHDOG_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void finish(GattOperation op, int status) {
+        op.mStatus = status;
+        mFinished.addLast(op);
+    }
+
+    // Calls onFinished() of the finished operations without holding the lock. Only one thread
+    // does at a time, so they keep their order, another one finds its operations taken care of
+    private void dispatchFinished() {
+        synchronized (this) {
+            if (mDispatching || mFinished.isEmpty()) {
+                return;
+            }
+            mDispatching = true;
+        }
+        GattOperation op;
+        do {
+            synchronized (this) {
+                op = mFinished.pollFirst();
+                mDispatching = op != null;
+            }
+            if (op != null) {
+                try {
+                    op.onFinished(op.mStatus);
+                } catch (RuntimeException e) {
+                    synchronized (this) {
+                        mDispatching = false;
+                    }
+                    throw e;
+                }
+            }
+        } while (op != null);
+    }
+
+    private void countRetry() {
+        mRetryCount++;
+        if (mMetrics != null) {
+            mMetrics.countRetry();
+        }
+    }
+
+    private void countDrop() {
+        mDroppedCount++;
+        if (mMetrics != null) {
+            mMetrics.countDrop();
+        }
+    }
+
+    private static int roundTripPhase(int type) {
+        switch (type) {
+            case GattOperation.TYPE_READ:
+                return LampMetrics.READ_ROUND_TRIP;
+            case GattOperation.TYPE_DESCRIPTOR_WRITE:
+                return LampMetrics.DESCRIPTOR_WRITE_ROUND_TRIP;
+            case GattOperation.TYPE_MTU_REQUEST:
+                return LampMetrics.MTU_EXCHANGE;
+            default:
+                return LampMetrics.WRITE_ROUND_TRIP;
+        }
+    }
+
+    private void stopWatchdog() {
+        if (mWatchdog != null) {
+            mWatchdog.cancel(false);
+            mWatchdog = null;
+        }
+    }
+
+    // Retries operations whose callback never arrived and restarts ones the stack refused
+    private final Runnable mWatchdogTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                if (mInFlight != null) {
+                    if (System.nanoTime() - mDeadlineNanos < 0) {
+                        return;
+                    }
+                    GattOperation op = mInFlight;
+                    mInFlight = null;
+                    mTimeoutCount++;
+                    if (mMetrics != null) {
+                        mMetrics.countTimeout();
+                    }
+                    if (op.mAttempts <= mMaxRetries) {
+                        countRetry();
+                        mPending.addFirst(op);
+                    } else {
+                        countDrop();
+                        Log.w(TAG, "Dropping GATT operation after " + op.mAttempts + " timeouts");
+                        finish(op, STATUS_TIMEOUT);
+                    }
+                }
+                startNext();
+            }
+            dispatchFinished();
+        }
+    };
+}
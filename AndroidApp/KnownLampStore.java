@@ -0,0 +1,110 @@
+package com.example.seniorproject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import java.util.UUID;
+
+/**
+ * Remembers the lamps this phone has been connected to, with the GATT layout found on each,
+ * so the next session can connect straight to the known address instead of scanning first.
+ */
+public class KnownLampStore {
+
+    private final static String PREFS_NAME = "known_lamps";
+    private final static String KEY_LAST_ADDRESS = "last_address";
+    private final static String KEY_LAYOUT_PREFIX = "layout_";
+    private final static String KEY_LAUNCH_TO_COLOR_LAST = "launch_to_color_last_ms";
+    private final static String KEY_LAUNCH_TO_COLOR_COUNT = "launch_to_color_count";
+    private final static String KEY_LAUNCH_TO_COLOR_TOTAL = "launch_to_color_total_ms";
+
+    /**
+     * Service and characteristic layout discovered on a lamp.
+     */
+    public static class Layout {
+        public final UUID serviceUuid;
+        public final UUID ledCharacteristicUuid;
+        // BluetoothGattCharacteristic.PROPERTY_ flags of the LED characteristic
+        public final int ledProperties;
+
+        public Layout(UUID serviceUuid, UUID ledCharacteristicUuid, int ledProperties) {
+            this.serviceUuid = serviceUuid;
+            this.ledCharacteristicUuid = ledCharacteristicUuid;
+            this.ledProperties = ledProperties;
+        }
+
+        String encode() {
+            return serviceUuid + "|" + ledCharacteristicUuid + "|" + ledProperties;
+        }
+
+        static Layout decode(String value) {
+            if (value == null) {
+                return null;
+            }
+            String[] parts = value.split("\\|");
+            if (parts.length != 3) {
+                return null;
+            }
+            try {
+                return new Layout(UUID.fromString(parts[0]), UUID.fromString(parts[1]),
+                        Integer.parseInt(parts[2]));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+
+    public KnownLampStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Records a lamp after its services were discovered and makes it the one to reconnect to.
+     */
+    public void remember(String address, Layout layout) {
+        mPrefs.edit()
+                .putString(KEY_LAST_ADDRESS, address)
+                .putString(KEY_LAYOUT_PREFIX + address, layout.encode())
+                .apply();
+    }
+
+    public void forget(String address) {
+        SharedPreferences.Editor editor = mPrefs.edit().remove(KEY_LAYOUT_PREFIX + address);
+        if (address.equals(getLastAddress())) {
+            editor.remove(KEY_LAST_ADDRESS);
+        }
+        editor.apply();
+    }
+
+    //address of the lamp used last, or null if there is none
+    public String getLastAddress() {
+        return mPrefs.getString(KEY_LAST_ADDRESS, null);
+    }
+
+    public Layout getLayout(String address) {
+        return Layout.decode(mPrefs.getString(KEY_LAYOUT_PREFIX + address, null));
+    }
+
+    /**
+     * Records how long it took from app launch until the first color was applied on the lamp.
+     */
+    public void recordLaunchToColor(long millis) {
+        mPrefs.edit()
+                .putLong(KEY_LAUNCH_TO_COLOR_LAST, millis)
+                .putLong(KEY_LAUNCH_TO_COLOR_COUNT, mPrefs.getLong(KEY_LAUNCH_TO_COLOR_COUNT, 0) + 1)
+                .putLong(KEY_LAUNCH_TO_COLOR_TOTAL, mPrefs.getLong(KEY_LAUNCH_TO_COLOR_TOTAL, 0) + millis)
+                .apply();
+    }
+
+    //launch to first color of the last session, -1 if never measured
+    public long getLastLaunchToColorMs() {
+        return mPrefs.getLong(KEY_LAUNCH_TO_COLOR_LAST, -1);
+    }
+
+    //average launch to first color over all sessions, -1 if never measured
+    public long getAverageLaunchToColorMs() {
+        long count = mPrefs.getLong(KEY_LAUNCH_TO_COLOR_COUNT, 0);
+        return count == 0 ? -1 : mPrefs.getLong(KEY_LAUNCH_TO_COLOR_TOTAL, 0) / count;
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.seniorproject;
+
+import java.util.UUID;
+
+/**
+ * The characteristics of a lamp the app knows, one slot each, with their UUIDs parsed once when
+ * the class loads and a Codec that turns their values into a typed value. After discovery the
+ * transport puts the characteristic objects of its link into the slots. A GATT callback then
+ * finds the slot of its characteristic by comparing references and passes the raw value on with
+ * the slot (LampTransport.Callback), so the callbacks neither build strings nor parse UUIDs. The
+ * connection keeps a handler per slot that decodes the value with the slot's codec.
+ *
+ * A new characteristic gets a slot, its UUIDs and a codec here and a handler in LampConnection.
+ * The transport and its callback stay as they are.
+ */
+public class LampCharacteristics<C> {
+
+    public final static int LED = 0;
+    public final static int COUNT = 1;
+
+    /**
+     * Reads the value of one characteristic into a T. Fills in what the value carries and leaves
+     * the rest of the target as it is, so a caller can decode into a reused object.
+     */
+    public interface Codec<T> {
+        /**
+         * @return false if the value is not one this codec understands, {@code into} is then
+         * left untouched
+         */
+        boolean decode(byte[] value, T into);
+    }
+
+    /**
+     * What the connection does with the callbacks of one slot. Values are raw, only valid during
+     * the call, and decoded with the slot's codec.
+     */
+    public interface Handler {
+        void onRead(int status, byte[] value);
+
+        void onWritten(int status);
+
+        void onChanged(byte[] value);
+    }
+
+    // The LED state, the white channels only come with the RGBW layout
+    public final static Codec<LedFrame> LED_CODEC = new Codec<LedFrame>() {
+        @Override
+        public boolean decode(byte[] value, LedFrame into) {
+            return LedFrameCodec.decode(value, 0, value.length, into);
+        }
+    };
+
+    private final static UUID[] SERVICE_UUIDS = {
+            LampTransport.LED_SERVICE_UUID,
+    };
+    private final static UUID[] UUIDS = {
+            LampTransport.LED_CHARACTERISTIC_UUID,
+    };
+
+    private final Object[] mResolved = new Object[COUNT];
+
+    //service the characteristic of a slot is in on the default layout
+    public static UUID getServiceUuid(int slot) {
+        return SERVICE_UUIDS[slot];
+    }
+
+    public static UUID getUuid(int slot) {
+        return UUIDS[slot];
+    }
+
+    public void put(int slot, C characteristic) {
+        mResolved[slot] = characteristic;
+    }
+
+    //the characteristic of a slot, null if the lamp does not have it
+    @SuppressWarnings("unchecked")
+    public C get(int slot) {
+        return (C) mResolved[slot];
+    }
+
+    /**
+     * @return the slot of the characteristic, or -1 if it is none of the resolved ones
+     */
+    public int slotOf(Object characteristic) {
+        if (characteristic == null) {
+            return -1;
+        }
+        for (int slot = 0; slot < COUNT; slot++) {
+            if (mResolved[slot] == characteristic) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+}
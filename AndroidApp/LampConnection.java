@@ -0,0 +1,1125 @@
+package com.example.seniorproject;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * GATT connection to a single lamp.
+ *
+ * Every lamp gets its own operation queue, command coalescer, write mode policy and frame state,
+ * so a slow or congested lamp never holds up the others. The link itself is a LampTransport,
+ * BluetoothGatt on the phone or a SimulatedLamp anywhere else.
+ *
+ * Once the lamp is discovered the connection subscribes to notifications of the LED
+ * characteristic if the lamp has them. The lamp then pushes its state whenever it changes, from
+ * this app, the button or another phone, and the listener is only told when the pushed state
+ * differs from the last known one, so nothing has to be polled.
+ *
+ * The LED state is kept in a LampStateModel. The desired frame changes as soon as the app asks for
+ * something and is reconciled with the lamp's acknowledgements and reports. Writes that would not
+ * change what the lamp shows are dropped.
+ *
+ * After that the MTU is negotiated. A lamp that comes back with more than the
+ * default MTU unpacks batched writes, and effects then send the frames of several connection
+ * intervals in one write.
+ */
+public class LampConnection {
+    private final static String TAG = LampConnection.class.getSimpleName();
+
+    // Connection states
+    public final static int STATE_DISCONNECTED = 0;
+    public final static int STATE_CONNECTING = 1;
+    public final static int STATE_CONNECTED = 2;
+    public final static int STATE_READY = 3;
+
+    // Connection intervals an effect batch covers at most. The lamp finishes a batch it already
+    // has when the effect is stopped, so this is kept to about a tenth of a second
+    public final static int BATCH_TICKS = 8;
+
+    // Connection events a synced change is sent ahead of its target, besides the queue. A write
+    // that missed the event it was meant for is only known at its response, one event after the
+    // one it arrived in, and the write sent again arrives at the event after that
+    private final static int SYNC_LEAD_EVENTS = 4;
+
+    /**
+     * Receives the events of a connection. Called on Binder threads.
+     */
+    public interface Listener {
+        void onConnectionStateChanged(LampConnection lamp, int state);
+
+        /**
+         * The desired state changed other than by the app asking for it: the lamp reported a
+         * state someone else set, or a write failed and was rolled back. See getFrame().
+         */
+        void onLampFrameRead(LampConnection lamp);
+
+        /**
+         * A frame write finished.
+         *
+         * @param latencyNanos time from the frame being requested until the write completed
+         */
+        void onFrameWritten(LampConnection lamp, int status, long latencyNanos);
+    }
+
+    private final BluetoothDevice mDevice;
+    private final LampTransport mTransport;
+    private final Listener mListener;
+    private final GattOperationQueue mOperationQueue;
+    private final CommandCoalescer mCommandCoalescer;
+    private final WriteModePolicy mWriteModePolicy = new WriteModePolicy();
+    private final EffectPlayer mEffectPlayer;
+    private final ConnectionPriorityPolicy mPriorityPolicy;
+    private final LampMetrics mMetrics;
+
+    // What the connection does with the callbacks of each LampCharacteristics slot, set up in the
+    // constructor
+    private final LampCharacteristics.Handler[] mSlotHandlers =
+            new LampCharacteristics.Handler[LampCharacteristics.COUNT];
+
+    private volatile boolean mLedResolved;
+    private volatile int mState = STATE_DISCONNECTED;
+    private boolean mDiscoverOnConnect;
+
+    // Layout remembered from an earlier session, and the one found by the last discovery
+    private KnownLampStore.Layout mCachedLayout;
+    private volatile KnownLampStore.Layout mLayout;
+
+    // What the app wants the lamp to show, what was sent and what the lamp reported. The desired
+    // frame doubles as the lock for all frame state of the connection
+    private final LampStateModel mStateModel = new LampStateModel();
+    private final LedFrame mFrame = mStateModel.getDesired();
+
+    // Guarded by mFrame. Reports are decoded here, and adopted states copied out for the coalescer
+    private final LedFrame mReportFrame = new LedFrame();
+    private final LedFrame mAdoptedFrame = new LedFrame();
+
+    // Notifications of the LED characteristic are on, and what the CCCD write is matched against
+    private volatile boolean mNotifying;
+    private final Object mCccdTarget = new Object();
+
+    // Frames are encoded into this buffer right before each write, so sending allocates nothing
+    private int mFrameFormat = LedFrameCodec.FORMAT_RGBI;
+    private byte[] mFrameBuffer = new byte[LedFrameCodec.RGBI_LENGTH];
+    private volatile FrameWriteOperation mFrameWriteOp;
+
+    // Guarded by mFrame. The batch the next frame write sends instead of mFrame, length 0 if none,
+    // and a value of every length a batch has had, since a write sends the whole array
+    private boolean mBatchWritesEnabled = true;
+    private byte[] mBatch;
+    private int mBatchLength;
+    private byte[][] mBatchBuffers;
+
+    // Guarded by mFrame. Duration of the fade the next frame write sends instead of mFrame, -1
+    // if none, and whether the firmware knows the fade write
+    private boolean mFadeSupported;
+    private long mFadeDurationMs = -1;
+    private final byte[] mFadeBuffer = new byte[LedFrameCodec.FADE_LENGTH];
+
+    // Guarded by mFrame. The SyncedChange the next fade write belongs to, null if none, and
+    // whether the firmware knows the timed fade write
+    private SyncedChange mSyncChange;
+    private boolean mTimedFadeSupported;
+    private final byte[] mTimedFadeBuffer = new byte[LedFrameCodec.TIMED_FADE_LENGTH];
+
+    // Where the connection events of the link fall, for changes that have to land at a set time
+    private final LinkClock mLinkClock = new LinkClock();
+
+    // MTU of the link, and what the completion of the exchange is matched against
+    private volatile int mMtu = LampTransport.DEFAULT_MTU;
+    private final Object mMtuTarget = new Object();
+
+    // Guarded by mFrame. A frame write is queued or in flight, and whether mFrame changed after
+    // the write in flight encoded it
+    private boolean mFrameWritePending;
+    private boolean mFrameDirty;
+    private long mFrameRequestedNanos;
+
+    // Guarded by mFrame. mFrameDirty holds the state the lamp had before it went dark on a
+    // connect. Until a write of it succeeds, a report is just that dark state and is not adopted
+    private boolean mRestorePending;
+
+    // Start of the connect and of the service discovery in progress, 0 if none
+    private volatile long mConnectStartedNanos;
+    private volatile long mDiscoveryStartedNanos;
+
+    // Completion of the last acknowledged operation, which happens at a connection event
+    private volatile long mLastEventNanos;
+
+    // Connection interval the coalescer currently runs at
+    private long mLinkIntervalMicros;
+
+    /**
+     * @param device    the lamp on the phone, null for a simulated one
+     * @param scheduler timer thread shared by all lamps for queue timeouts and coalescer ticks
+     */
+    public LampConnection(BluetoothDevice device, LampTransport transport,
+                          ScheduledExecutorService scheduler, Listener listener) {
+        this(device, transport, scheduler, listener, new LampMetrics());
+    }
+
+    /**
+     * @param metrics lifecycle timings, shared by all lamps of a manager
+     */
+    public LampConnection(BluetoothDevice device, LampTransport transport,
+                          ScheduledExecutorService scheduler, Listener listener, LampMetrics metrics) {
+        mDevice = device;
+        mTransport = transport;
+        mListener = listener;
+        mMetrics = metrics;
+        mSlotHandlers[LampCharacteristics.LED] = mLedHandler;
+        mTransport.setCallback(mTransportCallback);
+        mOperationQueue = new GattOperationQueue(scheduler,
+                GattOperationQueue.DEFAULT_TIMEOUT_MS, GattOperationQueue.DEFAULT_MAX_RETRIES);
+        mOperationQueue.setMetrics(metrics);
+        mCommandCoalescer = new CommandCoalescer(new CommandCoalescer.Sink() {
+            @Override
+            public void onFlush(int[] levels, int changedMask, boolean settled) {
+                synchronized (mFrame) {
+                    mFrame.setChannels(levels);
+                    mBatchLength = 0;
+                    mFadeDurationMs = -1;
+                    dropSyncLocked();
+                }
+                // A write in flight leaves it to mFrameDirty, sent again the moment it completes
+                writeLedFrame(settled);
+            }
+        }, BluetoothComm.CONNECTION_INTERVAL_MS, scheduler);
+        mEffectPlayer = new EffectPlayer(scheduler, new EffectPlayer.Sink() {
+            @Override
+            public void onEffectFrames(LedFrame[] frames, int[] ticks, int first, int count, boolean last) {
+                mPriorityPolicy.onActivity();
+                // The app's state jumps to the end of the batch, the lamp gets there by itself
+                LedFrame end = frames[first + count - 1];
+                synchronized (mFrame) {
+                    mBatchLength = count > 1 ? encodeBatch(frames, ticks, first, count) : 0;
+                    mFadeDurationMs = -1;
+                    dropSyncLocked();
+                    mFrame.copyFrom(end);
+                }
+                mCommandCoalescer.overwrite(end);
+                writeLedFrame(last);
+            }
+        });
+        mPriorityPolicy = new ConnectionPriorityPolicy(transport, scheduler,
+                new ConnectionPriorityPolicy.Listener() {
+                    @Override
+                    public void onPriorityRequested(int priority) {
+                        refreshLinkInterval();
+                    }
+                });
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    public String getAddress() {
+        return mTransport.getAddress();
+    }
+
+    public LampTransport getTransport() {
+        return mTransport;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public boolean isReady() {
+        return mState == STATE_READY;
+    }
+
+    public LampMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    //power state of the lamp as the app wants it, the switch position
+    public boolean isLampOn() {
+        synchronized (mFrame) {
+            return mStateModel.isOn();
+        }
+    }
+
+    //writes dropped because the lamp already showed what they would set
+    public long getSuppressedWriteCount() {
+        synchronized (mFrame) {
+            return mStateModel.getSuppressedWriteCount();
+        }
+    }
+
+    //states set by someone else that the lamp reported and the app took over
+    public long getAdoptedReportCount() {
+        synchronized (mFrame) {
+            return mStateModel.getAdoptedReportCount();
+        }
+    }
+
+    //true once the lamp pushes its state, reads are then only needed without notifications
+    public boolean isNotifying() {
+        return mNotifying;
+    }
+
+    //MTU negotiated with the lamp, LampTransport.DEFAULT_MTU until the exchange is done
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * Lets effects use batched writes on lamps that negotiated a larger MTU, the default. Turn
+     * it off for firmware that has a larger MTU but does not know the batch format.
+     */
+    public void setBatchWritesEnabled(boolean enabled) {
+        synchronized (mFrame) {
+            mBatchWritesEnabled = enabled;
+            updateBatchLimit();
+        }
+    }
+
+    //raises the connection priority while the lamp is being controlled
+    public ConnectionPriorityPolicy getPriorityPolicy() {
+        return mPriorityPolicy;
+    }
+
+    /**
+     * Gives the connection the layout found on this lamp in an earlier session. Discovery then
+     * starts as soon as the link is up, and frames requested before it finishes are sent the
+     * moment the LED characteristic is resolved.
+     */
+    public void setCachedLayout(KnownLampStore.Layout layout) {
+        mCachedLayout = layout;
+        if (layout != null) {
+            mWriteModePolicy.setStreamingSupported((layout.ledProperties
+                    & LampTransport.PROPERTY_WRITE_NO_RESPONSE) != 0);
+        }
+    }
+
+    //layout found by the last service discovery, null before that
+    public KnownLampStore.Layout getLayout() {
+        return mLayout;
+    }
+
+    /**
+     * Connects to the GATT server hosted on the lamp.
+     *
+     * @param discoverOnConnect run service discovery as soon as the link is up
+     */
+    public boolean connect(boolean discoverOnConnect) {
+        return connect(discoverOnConnect, false);
+    }
+
+    /**
+     * @param autoConnect let the Bluetooth stack connect in the background whenever the lamp comes
+     *                    in range, and reconnect after the link is lost
+     */
+    public boolean connect(boolean discoverOnConnect, boolean autoConnect) {
+        mDiscoverOnConnect = discoverOnConnect || mCachedLayout != null;
+        mState = STATE_CONNECTING;
+        // A background connect can take minutes, that is not link latency
+        mConnectStartedNanos = autoConnect ? 0 : System.nanoTime();
+        return mTransport.connect(autoConnect);
+    }
+
+    /**
+     * Runs service discovery on the connected device.
+     */
+    public void discoverServices() {
+        if (!startDiscovery()) {
+            Log.w(TAG, "Service discovery could not be started");
+        }
+    }
+
+    private boolean startDiscovery() {
+        mDiscoveryStartedNanos = System.nanoTime();
+        return mTransport.discoverServices();
+    }
+
+    /**
+     * Disconnects an existing connection or cancel a pending connection.
+     */
+    public void disconnect() {
+        mTransport.disconnect();
+    }
+
+    /**
+     * Releases the GATT client. The connection can be opened again with connect().
+     */
+    public void close() {
+        mEffectPlayer.stop();
+        mPriorityPolicy.onDisconnected();
+        mCommandCoalescer.discardPending();
+        mOperationQueue.clear();
+        mFrameWriteOp = null;
+        mLedResolved = false;
+        mNotifying = false;
+        mMtu = LampTransport.DEFAULT_MTU;
+        synchronized (mFrame) {
+            mStateModel.onLinkLost();
+            updateBatchLimit();
+            mRestorePending = false;
+        }
+        mState = STATE_DISCONNECTED;
+        mTransport.close();
+    }
+
+    //read LED state
+    public void readLedCharacteristic() {
+        if (!mLedResolved) {
+            Log.w(TAG, "Services not discovered");
+            return;
+        }
+        // Reads and writes of the LED characteristic complete against the transport
+        mOperationQueue.enqueue(new GattOperation(GattOperation.TYPE_READ, mTransport) {
+            @Override
+            protected boolean execute() {
+                return mTransport.readLed();
+            }
+        });
+    }
+
+    /**
+     * Sets the level (0-255) of one LED channel. Updates are coalesced, only the newest value of
+     * each channel is sent, at most once per connection interval.
+     */
+    public void setChannelLevel(int channel, int level) {
+        mEffectPlayer.stop();
+        mPriorityPolicy.onActivity();
+        mCommandCoalescer.set(channel, level);
+    }
+
+    /**
+     * Sets every channel and the intensity from a frame, e.g. one filled in by ColorPipeline.
+     * Coalesced like setChannelLevel(), so it can follow a color or brightness slider.
+     */
+    public void setColor(LedFrame color) {
+        mEffectPlayer.stop();
+        mPriorityPolicy.onActivity();
+        boolean intensityChanged;
+        synchronized (mFrame) {
+            intensityChanged = mFrame.getIntensity() != color.getIntensity();
+            mFrame.setIntensity(color.getIntensity());
+        }
+        for (int i = 0; i < LedFrame.CHANNEL_COUNT; i++) {
+            mCommandCoalescer.set(i, color.get(i));
+        }
+        if (intensityChanged) {
+            // The coalescer only knows the channels, the intensity rides along with them
+            mCommandCoalescer.touch();
+        }
+    }
+
+    /**
+     * Marks the end of a gesture, the current levels are sent once more acknowledged.
+     */
+    public void settle() {
+        mCommandCoalescer.settle();
+    }
+
+    //set the intensity byte, used by the on/off switch
+    public void setIntensity(int intensity) {
+        mEffectPlayer.stop();
+        mPriorityPolicy.onActivity();
+        synchronized (mFrame) {
+            mFrame.setIntensity(intensity);
+        }
+        mCommandCoalescer.settle();
+    }
+
+    /**
+     * Sends a complete frame right away, bypassing the coalescer. Used for scene changes.
+     */
+    public void writeFrame(LedFrame frame) {
+        mEffectPlayer.stop();
+        mPriorityPolicy.onActivity();
+        synchronized (mFrame) {
+            mFrame.copyFrom(frame);
+            mBatchLength = 0;
+            mFadeDurationMs = -1;
+            dropSyncLocked();
+        }
+        // Nothing left for the coalescer to do, the frame is already up to date
+        mCommandCoalescer.overwrite(frame);
+        writeLedFrame(true);
+    }
+
+    /**
+     * Moves the lamp to a frame over the given time. The app's state jumps to the frame at once.
+     * Firmware that knows the fade write (setFadeSupported()) gets the frame and the duration in
+     * one write and steps the LEDs itself. Otherwise, and for the RGBW format, the fade is played
+     * as an effect and streamed.
+     */
+    public void fadeTo(LedFrame frame, long durationMs) {
+        boolean command;
+        LedFrame from = null;
+        synchronized (mFrame) {
+            command = mFadeSupported && mFrameFormat == LedFrameCodec.FORMAT_RGBI;
+            if (!command) {
+                from = new LedFrame(mFrame);
+            }
+        }
+        if (!command) {
+            playEffect(new LedEffect.Fade(from, frame, durationMs));
+            return;
+        }
+        mEffectPlayer.stop();
+        mPriorityPolicy.onActivity();
+        synchronized (mFrame) {
+            mFrame.copyFrom(frame);
+            mBatchLength = 0;
+            mFadeDurationMs = Math.max(0, durationMs);
+            dropSyncLocked();
+        }
+        mCommandCoalescer.overwrite(frame);
+        writeLedFrame(true);
+    }
+
+    /**
+     * Fades the lamp to a frame so that the fade starts at change.getTargetNanos(), together with
+     * the other lamps of the change. The timed fade write goes out right away, acknowledged, with
+     * the delay from the connection event the LinkClock expects it to arrive in to the target.
+     * The acknowledgement tells the change when the lamp started. If it shows the write missed
+     * that event, the write goes out once more with the delay from a later one, as long as it can
+     * still arrive before the target. The connection priority is left alone, a new interval would
+     * move the events the LinkClock found.
+     *
+     * @return false if the lamp cannot take part, see canChangeAt()
+     */
+    public boolean changeAt(LedFrame frame, long durationMs, SyncedChange change) {
+        if (!canChangeAt()) {
+            return false;
+        }
+        mEffectPlayer.stop();
+        synchronized (mFrame) {
+            dropSyncLocked();
+            mSyncChange = change;
+            mFrame.copyFrom(frame);
+            mBatchLength = 0;
+            mFadeDurationMs = Math.max(0, durationMs);
+        }
+        if (!mLinkClock.isSynced()) {
+            // The response of a read ahead of the write tells the LinkClock one more event
+            readLedCharacteristic();
+        }
+        mCommandCoalescer.overwrite(frame);
+        writeLedFrame(true);
+        return true;
+    }
+
+    /**
+     * Whether changeAt() can time a change on this lamp: it is ready and its firmware knows the
+     * timed fade write. Without it the phone can only hand the write to the link at a chosen
+     * moment, which lands no closer to the target than sending it at once.
+     */
+    public boolean canChangeAt() {
+        if (mState != STATE_READY) {
+            return false;
+        }
+        synchronized (mFrame) {
+            return mTimedFadeSupported && mFadeSupported && mFrameFormat == LedFrameCodec.FORMAT_RGBI;
+        }
+    }
+
+    //time a change needs to reach the lamp ahead of its target, for the queue and a few events
+    public long getSyncLeadNanos() {
+        long interval = mTransport.getConnectionIntervalMicros() * 1000;
+        // A read first if the LinkClock needs it, see changeAt()
+        int reads = mLinkClock.isSynced() ? 0 : 2;
+        return (mOperationQueue.depth() + SYNC_LEAD_EVENTS + reads) * interval;
+    }
+
+    /**
+     * Lets changeAt() send timed fade writes. Off by default, firmware without them takes the
+     * 9 byte write for a frame.
+     */
+    public void setTimedFadeSupported(boolean supported) {
+        synchronized (mFrame) {
+            mTimedFadeSupported = supported;
+        }
+    }
+
+    public LinkClock getLinkClock() {
+        return mLinkClock;
+    }
+
+    // A newer command replaces a change that was not written yet, the change goes on without
+    // this lamp
+    private void dropSyncLocked() {
+        if (mSyncChange != null) {
+            mSyncChange.onFailed();
+            mSyncChange = null;
+        }
+    }
+
+    /**
+     * Lets fadeTo() send fade writes. Off by default, firmware without HandleLedFade takes the
+     * 7 byte write for a frame and shows a wrong color.
+     */
+    public void setFadeSupported(boolean supported) {
+        synchronized (mFrame) {
+            mFadeSupported = supported;
+        }
+    }
+
+    /**
+     * Gives a lamp that is not ready yet the state it should come up in, e.g. the one it had
+     * before the link was lost. The firmware starts dark after a connect, this frame goes out as
+     * the first write after discovery, ahead of the subscription and the MTU exchange. When a
+     * link drops, the connection does the same with its desired state by itself. Either way the
+     * lamp's reports are not adopted until the write succeeded.
+     *
+     * @return false if the lamp is ready already, use writeFrame() then
+     */
+    public boolean restoreFrame(LedFrame frame) {
+        if (mState == STATE_READY) {
+            return false;
+        }
+        synchronized (mFrame) {
+            mFrame.copyFrom(frame);
+            mBatchLength = 0;
+            mFadeDurationMs = -1;
+            dropSyncLocked();
+            mFrameDirty = true;
+            mRestorePending = true;
+        }
+        mCommandCoalescer.overwrite(frame);
+        return true;
+    }
+
+    /**
+     * Plays an effect on the lamp until it ends, stopEffect() is called or the app sets the
+     * channels some other way.
+     */
+    public void playEffect(LedEffect effect) {
+        int format;
+        synchronized (mFrame) {
+            format = mFrameFormat;
+        }
+        // Raised first, so the effect is sampled at the interval it will run at
+        mPriorityPolicy.onActivity();
+        mEffectPlayer.start(effect, format, mTransport.getConnectionIntervalMicros(), mLastEventNanos);
+    }
+
+    public void stopEffect() {
+        mEffectPlayer.stop();
+    }
+
+    public boolean isEffectPlaying() {
+        return mEffectPlayer.isPlaying();
+    }
+
+    //the player of this lamp, for its frame counts
+    public EffectPlayer getEffectPlayer() {
+        return mEffectPlayer;
+    }
+
+    /**
+     * Selects the frame layout written to the LED characteristic, one of the LedFrameCodec.FORMAT_
+     * constants. The default is the 4 byte {R,G,B,Intensity} layout of the current firmware.
+     */
+    public void setFrameFormat(int format) {
+        synchronized (mFrame) {
+            mFrameBuffer = new byte[LedFrameCodec.encodedLength(format)];
+            mFrameFormat = format;
+            mStateModel.setFormat(format);
+            updateBatchLimit();
+        }
+    }
+
+    //frame layout written to the LED characteristic, one of the LedFrameCodec.FORMAT_ constants
+    public int getFrameFormat() {
+        synchronized (mFrame) {
+            return mFrameFormat;
+        }
+    }
+
+    //copy the state the app last asked the lamp to show into the given frame
+    public void getFrame(LedFrame into) {
+        synchronized (mFrame) {
+            into.copyFrom(mFrame);
+        }
+    }
+
+    //copy the state last read back or notified by the lamp into the given frame
+    public void getLampFrame(LedFrame into) {
+        synchronized (mFrame) {
+            into.copyFrom(mStateModel.getReported());
+        }
+    }
+
+    //number of GATT operations waiting to go out, including the one in flight
+    public int getOperationQueueDepth() {
+        return mOperationQueue.depth();
+    }
+
+    public void shutdown() {
+        close();
+        mCommandCoalescer.shutdown();
+        mOperationQueue.shutdown();
+    }
+
+    // Writes the CCCD of the LED characteristic. The lamp answers with a notification of its state,
+    // if that does not work the state is read instead
+    private void enableNotifications() {
+        mOperationQueue.enqueue(new GattOperation(GattOperation.TYPE_DESCRIPTOR_WRITE, mCccdTarget) {
+            @Override
+            protected boolean execute() {
+                return mTransport.enableLedNotifications();
+            }
+
+            @Override
+            protected void onFinished(int status) {
+                if (status != LampTransport.GATT_SUCCESS
+                        && status != GattOperationQueue.STATUS_CANCELLED) {
+                    Log.w(TAG, "Notifications could not be enabled, status " + status);
+                    readLedCharacteristic();
+                }
+            }
+        });
+    }
+
+    // Negotiates the MTU, queued behind the first frame or read of the connection
+    private void requestMtu() {
+        mOperationQueue.enqueue(new GattOperation(GattOperation.TYPE_MTU_REQUEST, mMtuTarget) {
+            @Override
+            protected boolean execute() {
+                return mTransport.requestMtu(BluetoothComm.REQUESTED_MTU);
+            }
+        });
+    }
+
+    // Sizes effect batches for the MTU and frame format, call with mFrame locked
+    private void updateBatchLimit() {
+        int payload = mMtu - LampTransport.ATT_WRITE_HEADER_LENGTH;
+        int frames = LedBatchCodec.maxRecords(payload, mFrameFormat);
+        // Only firmware with a larger MTU than the default knows the batch format
+        if (!mBatchWritesEnabled || mMtu <= LampTransport.DEFAULT_MTU || frames < 2) {
+            mEffectPlayer.setBatchLimit(1, 1);
+            mBatchLength = 0;
+            return;
+        }
+        if (mBatch == null || mBatch.length != payload) {
+            mBatch = new byte[payload];
+            mBatchBuffers = new byte[payload + 1][];
+        }
+        mEffectPlayer.setBatchLimit(BATCH_TICKS, frames);
+    }
+
+    // Packs effect frames into mBatch, call with mFrame locked. Returns the length of the batch
+    private int encodeBatch(LedFrame[] frames, int[] ticks, int first, int count) {
+        if (mBatch == null) {
+            return 0;
+        }
+        int length = LedBatchCodec.begin(mBatch);
+        for (int i = first; i < first + count; i++) {
+            if (i == first) {
+                length = LedBatchCodec.add(mBatch, length, 0, frames[i], null, mFrameFormat);
+            } else {
+                length = LedBatchCodec.add(mBatch, length, ticks[i] - ticks[i - 1], frames[i],
+                        frames[i - 1], mFrameFormat);
+            }
+        }
+        return length;
+    }
+
+    //let the coalescer follow the connection interval, whichever side changed it
+    private void refreshLinkInterval() {
+        long interval = mTransport.getConnectionIntervalMicros();
+        synchronized (mFrame) {
+            if (interval == mLinkIntervalMicros) {
+                return;
+            }
+            mLinkIntervalMicros = interval;
+        }
+        mCommandCoalescer.setIntervalMicros(interval);
+    }
+
+    //queue a write of the current frame, or flag it for resending if one is already in flight
+    private void writeLedFrame(boolean settled) {
+        final FrameWriteOperation op = mFrameWriteOp;
+        if (op == null) {
+            // Not discovered yet, the frame goes out as soon as the characteristic is resolved
+            synchronized (mFrame) {
+                mFrameDirty = true;
+            }
+            return;
+        }
+        synchronized (mFrame) {
+            if (settled) {
+                op.mAcknowledged = true;
+            }
+            if (mFrameWritePending) {
+                // A queued write encodes mFrame when it starts, one in flight is sent again after
+                mFrameDirty = true;
+                return;
+            }
+            if (mBatchLength == 0 && mSyncChange == null && mStateModel.suppressWrite(op.mAcknowledged)) {
+                // The lamp shows this already
+                op.mAcknowledged = false;
+                return;
+            }
+            mFrameWritePending = true;
+            mFrameRequestedNanos = System.nanoTime();
+        }
+        mOperationQueue.enqueue(op);
+    }
+
+    /**
+     * Writes whatever mFrame holds at the moment the operation starts. One instance is reused for
+     * the whole connection, so a queued frame always carries the newest values.
+     */
+    private final class FrameWriteOperation extends GattOperation {
+        boolean mAcknowledged;
+        // Write type of the attempt in flight
+        boolean mWithResponse;
+        // Guarded by mFrame. The SyncedChange the write in flight carries, the connection event it
+        // should arrive in, the delay the lamp waits after it arrived and the fade duration, for
+        // sending it again
+        SyncedChange mSyncInFlight;
+        long mSyncArrivalNanos;
+        long mSyncDelayNanos;
+        long mSyncDurationMs;
+
+        FrameWriteOperation() {
+            super(TYPE_WRITE, mTransport);
+        }
+
+        @Override
+        protected boolean execute() {
+            // Encode only when this write actually starts. Retries after congestion fall back
+            // to acknowledged writes.
+            boolean withResponse;
+            byte[] buffer;
+            SyncedChange retried;
+            synchronized (mFrame) {
+                // A retry sends mFrame as it is, the change it carried is given up
+                retried = mSyncInFlight;
+                mSyncInFlight = null;
+                withResponse = !mWriteModePolicy.useWriteWithoutResponse(mAcknowledged);
+                if (mBatchLength > 0) {
+                    buffer = mBatchBuffers[mBatchLength];
+                    if (buffer == null) {
+                        buffer = new byte[mBatchLength];
+                        mBatchBuffers[mBatchLength] = buffer;
+                    }
+                    System.arraycopy(mBatch, 0, buffer, 0, mBatchLength);
+                    mBatchLength = 0;
+                    mStateModel.onSent(true);
+                } else if (mFadeDurationMs >= 0 && mSyncChange != null) {
+                    // The write arrives at the next connection event, the lamp waits from there
+                    // until the target. Acknowledged, the response tells when it arrived
+                    long arrival = mLinkClock.nextEventNanos(System.nanoTime());
+                    long delayMs = Math.max(0, (mSyncChange.getTargetNanos() - arrival + 500000) / 1000000);
+                    LedFrameCodec.encodeTimedFade(mFrame, mFadeDurationMs, delayMs, mTimedFadeBuffer, 0);
+                    buffer = mTimedFadeBuffer;
+                    mSyncArrivalNanos = arrival;
+                    mSyncDelayNanos = Math.min(delayMs, LedFrameCodec.MAX_TIMED_FADE_DELAY_MS) * 1000000;
+                    mSyncDurationMs = mFadeDurationMs;
+                    withResponse = true;
+                    mSyncInFlight = mSyncChange;
+                    mSyncChange = null;
+                    mFadeDurationMs = -1;
+                    mStateModel.onSent(false);
+                } else if (mFadeDurationMs >= 0) {
+                    // The lamp reports the target from the start of the fade
+                    LedFrameCodec.encodeFade(mFrame, mFadeDurationMs, mFadeBuffer, 0);
+                    buffer = mFadeBuffer;
+                    mFadeDurationMs = -1;
+                    mStateModel.onSent(false);
+                } else {
+                    LedFrameCodec.encode(mFrame, mFrameFormat, mFrameBuffer, 0);
+                    buffer = mFrameBuffer;
+                    mStateModel.onSent(false);
+                }
+                mFrameDirty = false;
+            }
+            if (retried != null) {
+                retried.onFailed();
+            }
+            mWithResponse = withResponse;
+            if (!mTransport.writeLed(buffer, withResponse)) {
+                mWriteModePolicy.onCongestion();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        protected void onFinished(int status) {
+            long latency;
+            boolean resend;
+            boolean rolledBack = false;
+            SyncedChange synced;
+            long syncDelay;
+            long syncApplied = 0;
+            synchronized (mFrame) {
+                latency = System.nanoTime() - mFrameRequestedNanos;
+                if (status == LampTransport.GATT_SUCCESS) {
+                    mMetrics.record(LampMetrics.FRAME_LATENCY, latency);
+                    if (mWithResponse) {
+                        mLastEventNanos = System.nanoTime();
+                        mLinkClock.onEvent(mLastEventNanos, mTransport.getConnectionIntervalMicros());
+                        mStateModel.onAcknowledged();
+                    }
+                    mRestorePending = false;
+                }
+                synced = mSyncInFlight;
+                syncDelay = mSyncDelayNanos;
+                mSyncInFlight = null;
+                if (synced != null && status == LampTransport.GATT_SUCCESS) {
+                    // The response came one connection event after the write arrived
+                    long interval = mLinkClock.getIntervalNanos();
+                    long arrived = mLinkClock.nearestEventNanos(System.nanoTime()) - interval;
+                    syncApplied = arrived + syncDelay;
+                    if (arrived - mSyncArrivalNanos > interval / 2 && !mFrameDirty
+                            && mLinkClock.nextEventNanos(System.nanoTime()) - synced.getTargetNanos() <= 0) {
+                        // It missed the event it was meant for and the lamp would start an interval
+                        // late. There is still time to send it again with the delay from the next one
+                        mSyncChange = synced;
+                        mFadeDurationMs = mSyncDurationMs;
+                        mFrameDirty = true;
+                        synced = null;
+                    }
+                }
+                boolean cancelled = status == GattOperationQueue.STATUS_CANCELLED;
+                resend = mFrameDirty && !cancelled;
+                mFrameWritePending = false;
+                if (!cancelled) {
+                    // A cancelled write leaves a newer frame to the next link
+                    mFrameDirty = false;
+                }
+                if (!resend) {
+                    mAcknowledged = false;
+                    // A restore that failed is kept, the lamp only reported the dark state it
+                    // reset to. The next change or link sends it again
+                    if (status != LampTransport.GATT_SUCCESS
+                            && status != GattOperationQueue.STATUS_CANCELLED
+                            && !mRestorePending
+                            && mStateModel.onWriteFailed()) {
+                        // The lamp never got it, go back to what it last reported
+                        mAdoptedFrame.copyFrom(mFrame);
+                        rolledBack = true;
+                    }
+                }
+            }
+            if (synced != null) {
+                if (status == LampTransport.GATT_SUCCESS) {
+                    synced.onApplied(syncApplied);
+                } else {
+                    synced.onFailed();
+                }
+            }
+            if (rolledBack) {
+                mCommandCoalescer.overwrite(mAdoptedFrame);
+                mListener.onLampFrameRead(LampConnection.this);
+            }
+            mListener.onFrameWritten(LampConnection.this, status, latency);
+            refreshLinkInterval();
+            if (resend) {
+                writeLedFrame(false);
+            }
+        }
+    }
+
+    // Reconciles a read or notified state with the model. Only a state someone else set is passed
+    // on, echoes of the app's own writes just confirm what was sent
+    private void onLampReported(byte[] value) {
+        // Checked before the frame lock, the coalescer and player never take it the other way round
+        boolean busy = mCommandCoalescer.hasPending() || mEffectPlayer.isPlaying();
+        int result;
+        synchronized (mFrame) {
+            mReportFrame.copyFrom(mFrame);
+            if (!LampCharacteristics.LED_CODEC.decode(value, mReportFrame)) {
+                return;
+            }
+            result = mStateModel.onReported(mReportFrame,
+                    busy || mFrameWritePending || mFrameDirty || mRestorePending);
+            if (result == LampStateModel.REPORT_ADOPTED) {
+                mAdoptedFrame.copyFrom(mFrame);
+            }
+        }
+        if (result == LampStateModel.REPORT_ADOPTED) {
+            mCommandCoalescer.overwrite(mAdoptedFrame);
+            mListener.onLampFrameRead(this);
+        }
+    }
+
+    //LED characteristic, values decoded with LampCharacteristics.LED_CODEC
+    private final LampCharacteristics.Handler mLedHandler = new LampCharacteristics.Handler() {
+        @Override
+        public void onRead(int status, byte[] value) {
+            if (status == LampTransport.GATT_SUCCESS) {
+                mLastEventNanos = System.nanoTime();
+                mLinkClock.onEvent(mLastEventNanos, mTransport.getConnectionIntervalMicros());
+            }
+            if (status == LampTransport.GATT_SUCCESS && value != null) {
+                onLampReported(value);
+            }
+            // Let the next queued operation go out
+            mOperationQueue.onComplete(GattOperation.TYPE_READ, mTransport, status);
+        }
+
+        @Override
+        public void onWritten(int status) {
+            if (status != LampTransport.GATT_SUCCESS) {
+                Log.w(TAG, "Characteristic write failed with status " + status);
+                mWriteModePolicy.onCongestion();
+            } else {
+                mWriteModePolicy.onWriteSucceeded();
+            }
+            mOperationQueue.onComplete(GattOperation.TYPE_WRITE, mTransport, status);
+        }
+
+        @Override
+        public void onChanged(byte[] value) {
+            // Notifications come with connection events too
+            mLinkClock.onEvent(System.nanoTime(), mTransport.getConnectionIntervalMicros());
+            if (value != null) {
+                onLampReported(value);
+            }
+        }
+    };
+
+    //transport callback
+    private final LampTransport.Callback mTransportCallback = new LampTransport.Callback() {
+        @Override
+        public void onConnectionStateChange(int status, boolean connected) {
+            if (connected) {
+                Log.i(TAG, "Connected to GATT server.");
+                long started = mConnectStartedNanos;
+                if (started != 0) {
+                    mMetrics.record(LampMetrics.CONNECT, System.nanoTime() - started);
+                    mConnectStartedNanos = 0;
+                }
+                mState = STATE_CONNECTED;
+                // Discovery and the first frames go faster at high priority
+                mPriorityPolicy.onConnected();
+                mPriorityPolicy.onActivity();
+                mListener.onConnectionStateChanged(LampConnection.this, mState);
+                if (mDiscoverOnConnect) {
+                    startDiscovery();
+                }
+            } else {
+                Log.i(TAG, "Disconnected from GATT server.");
+                mEffectPlayer.stop();
+                mPriorityPolicy.onDisconnected();
+                mLastEventNanos = 0;
+                mConnectStartedNanos = 0;
+                mDiscoveryStartedNanos = 0;
+                // The characteristic belongs to the old link, frames wait in mFrameDirty until
+                // discovery resolves it again
+                mFrameWriteOp = null;
+                mLedResolved = false;
+                mNotifying = false;
+                mMtu = LampTransport.DEFAULT_MTU;
+                mLinkClock.reset();
+                boolean known;
+                synchronized (mFrame) {
+                    known = mStateModel.isKnown();
+                    mStateModel.onLinkLost();
+                    updateBatchLimit();
+                    dropSyncLocked();
+                }
+                // Nothing queued can complete on a dead link. Values still in the coalescer are
+                // not dropped, with no characteristic they flush into mFrameDirty
+                mOperationQueue.clear();
+                mWriteModePolicy.reset();
+                synchronized (mFrame) {
+                    // The firmware goes dark when the link drops, the desired state goes out
+                    // again as the first write on the next link
+                    if (known || mFrameDirty) {
+                        mFrameDirty = true;
+                        mRestorePending = true;
+                    }
+                }
+                mState = STATE_DISCONNECTED;
+                mListener.onConnectionStateChanged(LampConnection.this, mState);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(int status) {
+            long started = mDiscoveryStartedNanos;
+            if (started != 0) {
+                mMetrics.record(LampMetrics.DISCOVERY, System.nanoTime() - started);
+                mDiscoveryStartedNanos = 0;
+            }
+            // Get just the service that we are looking for, where it was last time if we know
+            KnownLampStore.Layout cached = mCachedLayout;
+            UUID serviceUuid = cached != null ? cached.serviceUuid : LampTransport.LED_SERVICE_UUID;
+            UUID ledUuid = cached != null ? cached.ledCharacteristicUuid : LampTransport.LED_CHARACTERISTIC_UUID;
+            int properties = mTransport.resolveLed(serviceUuid, ledUuid);
+            if (properties < 0 && cached != null) {
+                // The lamp was reflashed since, fall back to the default layout
+                serviceUuid = LampTransport.LED_SERVICE_UUID;
+                ledUuid = LampTransport.LED_CHARACTERISTIC_UUID;
+                properties = mTransport.resolveLed(serviceUuid, ledUuid);
+            }
+            if (properties < 0) {
+                Log.w(TAG, "LED characteristic not found on " + getAddress());
+                return;
+            }
+            // Only stream frames if the lamp accepts write commands on the LED characteristic
+            mWriteModePolicy.setStreamingSupported(
+                    (properties & LampTransport.PROPERTY_WRITE_NO_RESPONSE) != 0);
+            mLayout = new KnownLampStore.Layout(serviceUuid, ledUuid, properties);
+            mLedResolved = true;
+            mFrameWriteOp = new FrameWriteOperation();
+
+            // Anything requested while the link was coming up goes out first
+            boolean framePending;
+            synchronized (mFrame) {
+                framePending = mFrameDirty;
+                mFrameDirty = false;
+            }
+            boolean notify = (properties & LampTransport.PROPERTY_NOTIFY) != 0;
+            if (framePending) {
+                writeLedFrame(true);
+            } else if (!notify) {
+                // Read the current state of the LED from the device
+                readLedCharacteristic();
+            }
+            if (notify) {
+                // The lamp sends its current state as soon as the subscription is on
+                enableNotifications();
+            }
+            requestMtu();
+
+            mState = STATE_READY;
+            mListener.onConnectionStateChanged(LampConnection.this, mState);
+        }
+
+        @Override
+        public void onRead(int slot, int status, byte[] value) {
+            mSlotHandlers[slot].onRead(status, value);
+        }
+
+        @Override
+        public void onWritten(int slot, int status) {
+            mSlotHandlers[slot].onWritten(status);
+        }
+
+        @Override
+        public void onChanged(int slot, byte[] value) {
+            mSlotHandlers[slot].onChanged(value);
+        }
+
+        @Override
+        public void onLedNotificationsEnabled(int status) {
+            mNotifying = status == LampTransport.GATT_SUCCESS;
+            mOperationQueue.onComplete(GattOperation.TYPE_DESCRIPTOR_WRITE, mCccdTarget, status);
+        }
+
+        @Override
+        public void onMtuChanged(int status, int mtu) {
+            if (status == LampTransport.GATT_SUCCESS) {
+                Log.i(TAG, "MTU of " + getAddress() + " is " + mtu);
+                mMtu = mtu;
+                synchronized (mFrame) {
+                    updateBatchLimit();
+                }
+            }
+            mOperationQueue.onComplete(GattOperation.TYPE_MTU_REQUEST, mMtuTarget, status);
+        }
+    };
+}
@@ -0,0 +1,331 @@
+package com.example.seniorproject;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Holds the GATT connections to every lamp in the room and fans group commands out to them.
+ *
+ * Each lamp has its own queue, so a group command is written to all lamps in parallel and the
+ * total latency is that of the slowest link rather than the sum of all of them.
+ */
+public class LampConnectionManager implements LampConnection.Listener {
+
+    private final Context mContext;
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, LampConnection> mConnections = new LinkedHashMap<>();
+    private final CopyOnWriteArrayList<LampConnection.Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final LampMetrics mMetrics;
+
+    // Given to every lamp, see LampConnection.setFadeSupported() and setTimedFadeSupported()
+    private volatile boolean mFadeSupported;
+    private volatile boolean mTimedFadeSupported;
+
+    // Shortest time a synced change is scheduled ahead, and the longest delay a lamp can wait
+    private final static long MIN_SYNC_LEAD_NANOS = 30000000;
+    private final static long MAX_SYNC_LEAD_NANOS = (LedFrameCodec.MAX_TIMED_FADE_DELAY_MS - 100) * 1000000;
+
+    // Records the links of lamps added after it was set, null if none
+    private volatile CommandRecorder mRecorder;
+
+    // Copy of the connection list for group commands, rebuilt only when lamps come and go
+    private volatile LampConnection[] mSnapshot = new LampConnection[0];
+
+    public LampConnectionManager(Context context) {
+        this(context, new LampMetrics());
+    }
+
+    /**
+     * @param metrics lifecycle timings recorded by every lamp of the manager
+     */
+    public LampConnectionManager(Context context, LampMetrics metrics) {
+        mContext = context;
+        mMetrics = metrics;
+    }
+
+    public LampMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public void addListener(LampConnection.Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(LampConnection.Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Connects to a lamp, reusing the existing connection if there is one for its address.
+     *
+     * @param discoverOnConnect run service discovery as soon as the link is up
+     */
+    public LampConnection connect(BluetoothDevice device, boolean discoverOnConnect) {
+        LampConnection lamp = add(device);
+        lamp.connect(discoverOnConnect);
+        return lamp;
+    }
+
+    /**
+     * Adds a lamp without connecting to it yet, or returns the existing connection for its address.
+     */
+    public LampConnection add(BluetoothDevice device) {
+        synchronized (mConnections) {
+            LampConnection lamp = mConnections.get(device.getAddress());
+            if (lamp == null) {
+                lamp = new LampConnection(device, wrap(new GattLampTransport(mContext, device)), mScheduler, this, mMetrics);
+                lamp.setFadeSupported(mFadeSupported);
+                lamp.setTimedFadeSupported(mTimedFadeSupported);
+                mConnections.put(device.getAddress(), lamp);
+                rebuildSnapshot();
+            }
+            return lamp;
+        }
+    }
+
+    /**
+     * Adds a lamp on a transport other than GATT, e.g. a SimulatedLamp.
+     */
+    public LampConnection add(LampTransport transport) {
+        synchronized (mConnections) {
+            LampConnection lamp = mConnections.get(transport.getAddress());
+            if (lamp == null) {
+                lamp = new LampConnection(null, wrap(transport), mScheduler, this, mMetrics);
+                lamp.setFadeSupported(mFadeSupported);
+                lamp.setTimedFadeSupported(mTimedFadeSupported);
+                mConnections.put(transport.getAddress(), lamp);
+                rebuildSnapshot();
+            }
+            return lamp;
+        }
+    }
+
+    /**
+     * Records the operations and callbacks of every lamp added from now on. The recorder decides
+     * whether anything is kept, see CommandRecorder.
+     */
+    public void setRecorder(CommandRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    public LampConnection get(String address) {
+        synchronized (mConnections) {
+            return mConnections.get(address);
+        }
+    }
+
+    //every lamp the manager knows about, connected or not
+    public List<LampConnection> getConnections() {
+        synchronized (mConnections) {
+            return new ArrayList<>(mConnections.values());
+        }
+    }
+
+    public int size() {
+        return mSnapshot.length;
+    }
+
+    /**
+     * Closes the connection to a lamp and forgets it.
+     */
+    public void remove(String address) {
+        LampConnection lamp;
+        synchronized (mConnections) {
+            lamp = mConnections.remove(address);
+            rebuildSnapshot();
+        }
+        if (lamp != null) {
+            lamp.shutdown();
+        }
+    }
+
+    public void disconnectAll() {
+        for (LampConnection lamp : mSnapshot) {
+            lamp.disconnect();
+        }
+    }
+
+    public void closeAll() {
+        for (LampConnection lamp : mSnapshot) {
+            lamp.close();
+        }
+    }
+
+    /**
+     * Closes every connection and stops the timer thread. The manager cannot be used afterwards.
+     */
+    public void shutdown() {
+        synchronized (mConnections) {
+            for (LampConnection lamp : mConnections.values()) {
+                lamp.shutdown();
+            }
+            mConnections.clear();
+            rebuildSnapshot();
+        }
+        mScheduler.shutdownNow();
+    }
+
+    /**
+     * Sets a channel on every ready lamp. Each lamp coalesces the updates on its own.
+     */
+    public void setGroupChannelLevel(int channel, int level) {
+        for (LampConnection lamp : mSnapshot) {
+            if (lamp.isReady()) {
+                lamp.setChannelLevel(channel, level);
+            }
+        }
+    }
+
+    //end of a group gesture, every ready lamp gets its final values acknowledged
+    public void settleGroup() {
+        for (LampConnection lamp : mSnapshot) {
+            if (lamp.isReady()) {
+                lamp.settle();
+            }
+        }
+    }
+
+    /**
+     * Sends one scene to every ready lamp. The writes are queued on all links before any of
+     * them completes, so the lamps change in parallel.
+     *
+     * @return the number of lamps the frame was sent to
+     */
+    public int applyGroupFrame(LedFrame frame) {
+        int sent = 0;
+        for (LampConnection lamp : mSnapshot) {
+            if (lamp.isReady()) {
+                lamp.writeFrame(frame);
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Fades every ready lamp to one frame, see LampConnection.fadeTo().
+     *
+     * @return the number of lamps the fade was sent to
+     */
+    public int fadeGroupTo(LedFrame frame, long durationMs) {
+        int sent = 0;
+        for (LampConnection lamp : mSnapshot) {
+            if (lamp.isReady()) {
+                lamp.fadeTo(frame, durationMs);
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    //whether the lamps run firmware that takes fade writes, applies to lamps added later too
+    public void setFadeSupported(boolean supported) {
+        mFadeSupported = supported;
+        for (LampConnection lamp : mSnapshot) {
+            lamp.setFadeSupported(supported);
+        }
+    }
+
+    //whether the lamps run firmware that takes timed fade writes, applies to lamps added later too
+    public void setTimedFadeSupported(boolean supported) {
+        mTimedFadeSupported = supported;
+        for (LampConnection lamp : mSnapshot) {
+            lamp.setTimedFadeSupported(supported);
+        }
+    }
+
+    /**
+     * Fades every ready lamp to one frame so that all of them start at the same moment, see
+     * LampConnection.changeAt(). The moment is as far ahead as the slowest link needs, each link
+     * still carries a single write. Lamps without the timed fade write get fadeTo() at once
+     * instead and are not part of the change.
+     *
+     * @return the change, which knows the skew between the lamps once all of them acknowledged
+     */
+    public SyncedChange changeGroupAt(LedFrame frame, long durationMs) {
+        return changeAt(mSnapshot, frame, durationMs, mMetrics);
+    }
+
+    // changeGroupAt() on the ready ones of the given lamps, also used by CommandReplay
+    static SyncedChange changeAt(LampConnection[] lamps, LedFrame frame, long durationMs, LampMetrics metrics) {
+        LampConnection[] timed = new LampConnection[lamps.length];
+        int count = 0;
+        long lead = MIN_SYNC_LEAD_NANOS;
+        for (LampConnection lamp : lamps) {
+            if (lamp.canChangeAt()) {
+                lead = Math.max(lead, lamp.getSyncLeadNanos());
+                timed[count++] = lamp;
+            } else if (lamp.isReady()) {
+                lamp.fadeTo(frame, durationMs);
+            }
+        }
+        SyncedChange change = new SyncedChange(System.nanoTime() + Math.min(lead, MAX_SYNC_LEAD_NANOS),
+                count, metrics);
+        for (int i = 0; i < count; i++) {
+            if (!timed[i].changeAt(frame, durationMs, change)) {
+                // Lost its link since
+                change.onFailed();
+            }
+        }
+        return change;
+    }
+
+    /**
+     * Plays an effect on every ready lamp. Each lamp runs it on its own connection interval.
+     *
+     * @return the number of lamps it was started on
+     */
+    public int playGroupEffect(LedEffect effect) {
+        int started = 0;
+        for (LampConnection lamp : mSnapshot) {
+            if (lamp.isReady()) {
+                lamp.playEffect(effect);
+                started++;
+            }
+        }
+        return started;
+    }
+
+    public void stopGroupEffect() {
+        for (LampConnection lamp : mSnapshot) {
+            lamp.stopEffect();
+        }
+    }
+
+    private LampTransport wrap(LampTransport transport) {
+        CommandRecorder recorder = mRecorder;
+        return recorder != null ? new RecordingTransport(transport, recorder) : transport;
+    }
+
+    private void rebuildSnapshot() {
+        mSnapshot = mConnections.values().toArray(new LampConnection[0]);
+    }
+
+    @Override
+    public void onConnectionStateChanged(LampConnection lamp, int state) {
+        for (LampConnection.Listener listener : mListeners) {
+            listener.onConnectionStateChanged(lamp, state);
+        }
+    }
+
+    @Override
+    public void onLampFrameRead(LampConnection lamp) {
+        for (LampConnection.Listener listener : mListeners) {
+            listener.onLampFrameRead(lamp);
+        }
+    }
+
+    @Override
+    public void onFrameWritten(LampConnection lamp, int status, long latencyNanos) {
+        for (LampConnection.Listener listener : mListeners) {
+            listener.onFrameWritten(lamp, status, latencyNanos);
+        }
+    }
+}
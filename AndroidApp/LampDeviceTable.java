@@ -0,0 +1,148 @@
+package com.example.seniorproject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deduplicated table of the lamps seen while scanning, keyed by Bluetooth address.
+ *
+ * Advertising RSSI jumps around by several dB from packet to packet, so every entry keeps an
+ * exponentially smoothed value that is used to pick the nearest lamp. Entries that have not been
+ * heard from for a while are evicted.
+ */
+public class LampDeviceTable {
+
+    // Weight of a new RSSI sample in the smoothed value
+    private final static double RSSI_SMOOTHING = 0.25;
+
+    /**
+     * One lamp seen by the scanner.
+     */
+    public static class Entry {
+        private final String mAddress;
+        private String mName;
+        private double mSmoothedRssi;
+        private int mLastRssi;
+        private long mFirstSeenNanos;
+        private long mLastSeenNanos;
+        private int mSightings;
+
+        Entry(String address) {
+            mAddress = address;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getSmoothedRssi() {
+            return (int) Math.round(mSmoothedRssi);
+        }
+
+        public int getLastRssi() {
+            return mLastRssi;
+        }
+
+        public long getFirstSeenNanos() {
+            return mFirstSeenNanos;
+        }
+
+        public long getLastSeenNanos() {
+            return mLastSeenNanos;
+        }
+
+        public int getSightings() {
+            return mSightings;
+        }
+    }
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    /**
+     * Records an advertisement. Only the first sighting of a lamp allocates.
+     *
+     * @return true if the lamp was not in the table yet
+     */
+    public synchronized boolean update(String address, String name, int rssi, long nowNanos) {
+        Entry entry = mEntries.get(address);
+        boolean added = entry == null;
+        if (added) {
+            entry = new Entry(address);
+            entry.mSmoothedRssi = rssi;
+            entry.mFirstSeenNanos = nowNanos;
+            mEntries.put(address, entry);
+        } else {
+            entry.mSmoothedRssi += RSSI_SMOOTHING * (rssi - entry.mSmoothedRssi);
+        }
+        if (name != null) {
+            entry.mName = name;
+        }
+        entry.mLastRssi = rssi;
+        entry.mLastSeenNanos = nowNanos;
+        entry.mSightings++;
+        return added;
+    }
+
+    /**
+     * Removes every lamp not heard from since {@code oldestNanos}.
+     *
+     * @return the number of entries removed
+     */
+    public synchronized int evictOlderThan(long oldestNanos) {
+        int removed = 0;
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().mLastSeenNanos - oldestNanos < 0) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return the lamp with the strongest smoothed RSSI, or null if the table is empty
+     */
+    public synchronized Entry nearest() {
+        Entry best = null;
+        for (Entry entry : mEntries.values()) {
+            if (best == null || entry.mSmoothedRssi > best.mSmoothedRssi) {
+                best = entry;
+            }
+        }
+        return best;
+    }
+
+    public synchronized Entry get(String address) {
+        return mEntries.get(address);
+    }
+
+    //copy of all entries, strongest first
+    public synchronized List<Entry> snapshot() {
+        List<Entry> list = new ArrayList<>(mEntries.values());
+        Collections.sort(list, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Double.compare(b.mSmoothedRssi, a.mSmoothedRssi);
+            }
+        });
+        return list;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+}
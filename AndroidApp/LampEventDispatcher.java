@@ -0,0 +1,174 @@
+package com.example.seniorproject;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Delivers lamp events to in-process listeners on a chosen executor.
+ *
+ * Events are pooled objects that carry their data and run themselves on the executor, so after
+ * the pool has warmed up delivering an event allocates nothing. Nothing is dispatched at all
+ * while there are no listeners.
+ */
+public class LampEventDispatcher {
+
+    private final static int EVENT_LAMP_FOUND = 0;
+    private final static int EVENT_LAMP_SELECTED = 1;
+    private final static int EVENT_CONNECTION_STATE = 2;
+    private final static int EVENT_CHANNEL_STATE = 3;
+    private final static int EVENT_FRAME_WRITTEN = 4;
+
+    private final CopyOnWriteArrayList<LampEventListener> mListeners = new CopyOnWriteArrayList<>();
+    private volatile Executor mExecutor;
+
+    // Free list of recycled events, guarded by the dispatcher
+    private Event mPool;
+
+    public LampEventDispatcher() {
+        mExecutor = mainThreadExecutor();
+    }
+
+    //executor that posts to the main thread
+    public static Executor mainThreadExecutor() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    //executor that calls the listeners right on the Bluetooth thread that raised the event
+    public static Executor directExecutor() {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+    }
+
+    /**
+     * Sets the executor the listeners are called on. A direct executor gives the lowest latency,
+     * but the listeners then run on Binder threads and must not block.
+     */
+    public void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    public void addListener(LampEventListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(LampEventListener listener) {
+        mListeners.remove(listener);
+    }
+
+    public void dispatchLampFound(BluetoothDevice device, int rssi) {
+        if (mListeners.isEmpty()) {
+            return;
+        }
+        Event event = obtain(EVENT_LAMP_FOUND, device);
+        event.mValue = rssi;
+        mExecutor.execute(event);
+    }
+
+    public void dispatchLampSelected(BluetoothDevice device, int rssi) {
+        if (mListeners.isEmpty()) {
+            return;
+        }
+        Event event = obtain(EVENT_LAMP_SELECTED, device);
+        event.mValue = rssi;
+        mExecutor.execute(event);
+    }
+
+    public void dispatchConnectionState(BluetoothDevice device, int state) {
+        if (mListeners.isEmpty()) {
+            return;
+        }
+        Event event = obtain(EVENT_CONNECTION_STATE, device);
+        event.mValue = state;
+        mExecutor.execute(event);
+    }
+
+    //the frame is copied, the caller may change it again right away
+    public void dispatchChannelState(BluetoothDevice device, LedFrame frame) {
+        if (mListeners.isEmpty()) {
+            return;
+        }
+        Event event = obtain(EVENT_CHANNEL_STATE, device);
+        event.mFrame.copyFrom(frame);
+        mExecutor.execute(event);
+    }
+
+    public void dispatchFrameWritten(BluetoothDevice device, int status, long latencyNanos) {
+        if (mListeners.isEmpty()) {
+            return;
+        }
+        Event event = obtain(EVENT_FRAME_WRITTEN, device);
+        event.mValue = status;
+        event.mNanos = latencyNanos;
+        mExecutor.execute(event);
+    }
+
+    private synchronized Event obtain(int type, BluetoothDevice device) {
+        Event event = mPool;
+        if (event == null) {
+            event = new Event();
+        } else {
+            mPool = event.mNext;
+            event.mNext = null;
+        }
+        event.mType = type;
+        event.mDevice = device;
+        return event;
+    }
+
+    private synchronized void recycle(Event event) {
+        event.mDevice = null;
+        event.mNext = mPool;
+        mPool = event;
+    }
+
+    /**
+     * One pending event. Runs on the executor, calls every listener and goes back to the pool.
+     */
+    private final class Event implements Runnable {
+        private final LedFrame mFrame = new LedFrame();
+        private int mType;
+        private BluetoothDevice mDevice;
+        private int mValue;
+        private long mNanos;
+        private Event mNext;
+
+        @Override
+        public void run() {
+            for (LampEventListener listener : mListeners) {
+                switch (mType) {
+                    case EVENT_LAMP_FOUND:
+                        listener.onLampFound(mDevice, mValue);
+                        break;
+                    case EVENT_LAMP_SELECTED:
+                        listener.onLampSelected(mDevice, mValue);
+                        break;
+                    case EVENT_CONNECTION_STATE:
+                        listener.onConnectionStateChanged(mDevice, mValue);
+                        break;
+                    case EVENT_CHANNEL_STATE:
+                        listener.onChannelState(mDevice, mFrame);
+                        break;
+                    case EVENT_FRAME_WRITTEN:
+                        listener.onFrameWritten(mDevice, mValue, mNanos);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            recycle(this);
+        }
+    }
+}
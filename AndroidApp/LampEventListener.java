@@ -0,0 +1,58 @@
+package com.example.seniorproject;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Receives lamp events from BluetoothComm. Register with BluetoothComm.addEventListener(), the
+ * callbacks run on the executor set with BluetoothComm.setEventExecutor(), the main thread by default.
+ */
+public interface LampEventListener {
+
+    //a lamp that was not heard before has been found by the scanner
+    void onLampFound(BluetoothDevice device, int rssi);
+
+    //the scan picked this lamp as the nearest one, it is the one connect() will use
+    void onLampSelected(BluetoothDevice device, int rssi);
+
+    /**
+     * @param state one of the LampConnection.STATE_ constants
+     */
+    void onConnectionStateChanged(BluetoothDevice device, int state);
+
+    /**
+     * The lamp's channel state changed other than by this app asking for it, because the lamp
+     * reported a state someone else set or a write was rolled back. The frame is only valid
+     * during the call, copy it to keep it.
+     */
+    void onChannelState(BluetoothDevice device, LedFrame frame);
+
+    /**
+     * @param latencyNanos time from the frame being requested until the write completed
+     */
+    void onFrameWritten(BluetoothDevice device, int status, long latencyNanos);
+
+    /**
+     * Empty implementation to extend when only some of the events are needed.
+     */
+    class Adapter implements LampEventListener {
+        @Override
+        public void onLampFound(BluetoothDevice device, int rssi) {
+        }
+
+        @Override
+        public void onLampSelected(BluetoothDevice device, int rssi) {
+        }
+
+        @Override
+        public void onConnectionStateChanged(BluetoothDevice device, int state) {
+        }
+
+        @Override
+        public void onChannelState(BluetoothDevice device, LedFrame frame) {
+        }
+
+        @Override
+        public void onFrameWritten(BluetoothDevice device, int status, long latencyNanos) {
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.seniorproject;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing of every phase of the lamp lifecycle, from the scan to single GATT operations, kept in
+ * LatencyHistograms so the numbers from different phones and firmware builds can be compared.
+ * One instance is shared by the scanner and all connections of the service.
+ */
+public class LampMetrics {
+
+    // Phases
+    public final static int SCAN_FIRST_RESULT = 0;
+    public final static int CONNECT = 1;
+    public final static int DISCOVERY = 2;
+    public final static int READ_ROUND_TRIP = 3;
+    public final static int WRITE_ROUND_TRIP = 4;
+    public final static int DESCRIPTOR_WRITE_ROUND_TRIP = 5;
+    public final static int QUEUE_WAIT = 6;
+    public final static int FRAME_LATENCY = 7;
+    public final static int MTU_EXCHANGE = 8;
+    // From the start of the ConnectPipeline to a lamp that can be controlled
+    public final static int TAP_TO_READY = 9;
+    // Between the first and the last lamp of a SyncedChange
+    public final static int SYNC_SKEW = 10;
+    public final static int PHASE_COUNT = 11;
+
+    private final static String[] PHASE_NAMES = {
+            "scan_first_result",
+            "connect",
+            "discovery",
+            "read_round_trip",
+            "write_round_trip",
+            "descriptor_write_round_trip",
+            "queue_wait",
+            "frame_latency",
+            "mtu_exchange",
+            "tap_to_ready",
+            "sync_skew",
+    };
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[PHASE_COUNT];
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mTimeouts = new AtomicLong();
+    private final AtomicLong mDrops = new AtomicLong();
+
+    public LampMetrics() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    public void record(int phase, long nanos) {
+        mHistograms[phase].record(nanos);
+    }
+
+    /**
+     * Histogram of one phase, for percentiles see LatencyHistogram.getPercentileNanos().
+     */
+    public LatencyHistogram get(int phase) {
+        return mHistograms[phase];
+    }
+
+    //an operation was started again after a failure or timeout
+    public void countRetry() {
+        mRetries.incrementAndGet();
+    }
+
+    public void countTimeout() {
+        mTimeouts.incrementAndGet();
+    }
+
+    //an operation was given up on
+    public void countDrop() {
+        mDrops.incrementAndGet();
+    }
+
+    public long getRetryCount() {
+        return mRetries.get();
+    }
+
+    public long getTimeoutCount() {
+        return mTimeouts.get();
+    }
+
+    public long getDropCount() {
+        return mDrops.get();
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        mRetries.set(0);
+        mTimeouts.set(0);
+        mDrops.set(0);
+    }
+
+    /**
+     * Prints one line per phase with count, percentiles, max and mean in milliseconds.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println(String.format("%-28s %7s %9s %9s %9s %9s %9s",
+                "phase", "count", "p50 ms", "p90 ms", "p99 ms", "max ms", "mean ms"));
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            LatencyHistogram histogram = mHistograms[i];
+            writer.println(String.format("%-28s %7d %9.2f %9.2f %9.2f %9.2f %9.2f",
+                    PHASE_NAMES[i], histogram.getCount(),
+                    histogram.getPercentileNanos(50) / 1e6,
+                    histogram.getPercentileNanos(90) / 1e6,
+                    histogram.getPercentileNanos(99) / 1e6,
+                    histogram.getMaxNanos() / 1e6,
+                    histogram.getMeanNanos() / 1e6));
+        }
+        writer.println("retries " + mRetries.get() + ", timeouts " + mTimeouts.get()
+                + ", drops " + mDrops.get());
+    }
+}
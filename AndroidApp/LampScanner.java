@@ -0,0 +1,336 @@
+package com.example.seniorproject;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scans for lamps continuously or on a duty cycle and keeps what it hears in a {@link LampDeviceTable}.
+ *
+ * Results are batched by the controller where the phone supports it (setReportDelay), which
+ * wakes the app up once per batch instead of once per advertisement. Lamps that stop advertising
+ * are evicted from the table after {@link #EVICT_AFTER_MS}.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class LampScanner {
+    private final static String TAG = LampScanner.class.getSimpleName();
+
+    public final static long DEFAULT_REPORT_DELAY_MS = 500;
+    public final static long EVICT_AFTER_MS = 10000;
+    private final static long EVICT_PERIOD_MS = 2000;
+
+    /**
+     * Receives scanner events. Called on Binder threads or the scanner's timer thread.
+     */
+    public interface Listener {
+        //a lamp that was not in the table yet has been heard
+        void onLampFound(LampDeviceTable.Entry entry);
+
+        void onScanFailed(int errorCode);
+    }
+
+    /**
+     * Receives the result of {@link #selectNearest}.
+     */
+    public interface SelectionCallback {
+        //called with null if no lamp was found before the scanner was stopped
+        void onNearestLamp(LampDeviceTable.Entry entry);
+    }
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final UUID mServiceUuid;
+    private final Listener mListener;
+    private final LampDeviceTable mTable = new LampDeviceTable();
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final LampMetrics mMetrics;
+
+    // Scan configuration
+    private int mScanMode = ScanSettings.SCAN_MODE_BALANCED;
+    private long mReportDelayMs = DEFAULT_REPORT_DELAY_MS;
+    private long mWindowMs;
+    private long mIntervalMs;
+
+    private BluetoothLeScanner mLEScanner;
+    private boolean mRunning;
+    private boolean mRadioScanning;
+    private ScheduledFuture<?> mDutyCycleTask;
+    private ScheduledFuture<?> mEvictTask;
+
+    // When start() was called, 0 once the first advertisement of that scan has been heard
+    private volatile long mStartedNanos;
+
+    // Pending nearest-lamp selection
+    private SelectionCallback mSelectionCallback;
+    private long mSelectionWindowMs;
+    private ScheduledFuture<?> mSelectionTask;
+
+    public LampScanner(BluetoothAdapter adapter, UUID serviceUuid, Listener listener) {
+        this(adapter, serviceUuid, listener, new LampMetrics());
+    }
+
+    /**
+     * @param metrics records the time from start() to the first advertisement
+     */
+    public LampScanner(BluetoothAdapter adapter, UUID serviceUuid, Listener listener,
+                       LampMetrics metrics) {
+        mBluetoothAdapter = adapter;
+        mServiceUuid = serviceUuid;
+        mListener = listener;
+        mMetrics = metrics;
+    }
+
+    /**
+     * @param scanMode one of the ScanSettings.SCAN_MODE_ constants
+     */
+    public synchronized void setScanMode(int scanMode) {
+        mScanMode = scanMode;
+    }
+
+    /**
+     * @param reportDelayMs how long the controller may hold results before reporting them,
+     *                      0 reports every advertisement immediately
+     */
+    public synchronized void setReportDelay(long reportDelayMs) {
+        mReportDelayMs = reportDelayMs;
+    }
+
+    /**
+     * Scan for {@code windowMs} out of every {@code intervalMs}. An interval of 0 scans continuously.
+     * Android blocks apps that start scanning more than five times in 30 seconds, so keep the
+     * interval at 6 seconds or more.
+     */
+    public synchronized void setDutyCycle(long windowMs, long intervalMs) {
+        mWindowMs = windowMs;
+        mIntervalMs = intervalMs;
+    }
+
+    public LampDeviceTable getTable() {
+        return mTable;
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    //the Bluetooth device for a table entry
+    public BluetoothDevice getDevice(String address) {
+        return mBluetoothAdapter.getRemoteDevice(address);
+    }
+
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mStartedNanos = System.nanoTime();
+        startRadio();
+        if (mIntervalMs > 0 && mWindowMs < mIntervalMs) {
+            mScheduler.schedule(mEndWindow, mWindowMs, TimeUnit.MILLISECONDS);
+            mDutyCycleTask = mScheduler.scheduleAtFixedRate(mDutyCycle, mIntervalMs, mIntervalMs,
+                    TimeUnit.MILLISECONDS);
+        }
+        mEvictTask = mScheduler.scheduleWithFixedDelay(mEvict, EVICT_PERIOD_MS, EVICT_PERIOD_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        stopRadio();
+        cancel(mDutyCycleTask);
+        cancel(mEvictTask);
+        mDutyCycleTask = null;
+        mEvictTask = null;
+        if (mSelectionCallback != null) {
+            finishSelection();
+        }
+    }
+
+    public void shutdown() {
+        stop();
+        mScheduler.shutdownNow();
+    }
+
+    /**
+     * Picks the nearest lamp once the scanner has listened for {@code windowMs} after the first
+     * lamp was heard, instead of taking whichever lamp answered first. Starts the scanner if needed.
+     */
+    public synchronized void selectNearest(long windowMs, SelectionCallback callback) {
+        cancel(mSelectionTask);
+        mSelectionTask = null;
+        mSelectionCallback = callback;
+        mSelectionWindowMs = windowMs;
+        if (mTable.size() > 0) {
+            scheduleSelection();
+        }
+        start();
+    }
+
+    private void scheduleSelection() {
+        if (mSelectionTask == null) {
+            mSelectionTask = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (LampScanner.this) {
+                        if (mSelectionCallback != null) {
+                            finishSelection();
+                        }
+                    }
+                }
+            }, mSelectionWindowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void finishSelection() {
+        SelectionCallback callback = mSelectionCallback;
+        mSelectionCallback = null;
+        cancel(mSelectionTask);
+        mSelectionTask = null;
+        callback.onNearestLamp(mTable.nearest());
+    }
+
+    private void startRadio() {
+        if (mRadioScanning) {
+            return;
+        }
+        // Use old scan method for versions older than lollipop
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            //noinspection deprecation
+            mBluetoothAdapter.startLeScan(new UUID[]{mServiceUuid}, mLeScanCallback);
+        } else { // New BLE scanning introduced in LOLLIPOP
+            mLEScanner = mBluetoothAdapter.getBluetoothLeScanner();
+            ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(mScanMode);
+            // Only ask for batching if the controller can hold results, otherwise it is emulated
+            // in the framework and saves nothing
+            if (mReportDelayMs > 0 && mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                settings.setReportDelay(mReportDelayMs);
+            }
+            List<ScanFilter> filters = new ArrayList<>();
+            filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(mServiceUuid)).build());
+            mLEScanner.startScan(filters, settings.build(), mScanCallback);
+        }
+        mRadioScanning = true;
+    }
+
+    private void stopRadio() {
+        if (!mRadioScanning) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            //noinspection deprecation
+            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+        } else if (mLEScanner != null) {
+            // Deliver whatever the controller is still holding before stopping
+            mLEScanner.flushPendingScanResults(mScanCallback);
+            mLEScanner.stopScan(mScanCallback);
+        }
+        mRadioScanning = false;
+    }
+
+    private static void cancel(ScheduledFuture<?> task) {
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    private void onAdvertisement(BluetoothDevice device, int rssi, long timestampNanos) {
+        long started = mStartedNanos;
+        if (started != 0) {
+            mStartedNanos = 0;
+            mMetrics.record(LampMetrics.SCAN_FIRST_RESULT, System.nanoTime() - started);
+        }
+        if (mTable.update(device.getAddress(), device.getName(), rssi, timestampNanos)) {
+            mListener.onLampFound(mTable.get(device.getAddress()));
+        }
+        synchronized (this) {
+            if (mSelectionCallback != null) {
+                scheduleSelection();
+            }
+        }
+    }
+
+    // Turns the radio on at the start of each duty cycle and off once the window has passed
+    private final Runnable mDutyCycle = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (LampScanner.this) {
+                if (!mRunning) {
+                    return;
+                }
+                startRadio();
+                mScheduler.schedule(mEndWindow, mWindowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    };
+
+    private final Runnable mEndWindow = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (LampScanner.this) {
+                if (mRunning) {
+                    stopRadio();
+                }
+            }
+        }
+    };
+
+    private final Runnable mEvict = new Runnable() {
+        @Override
+        public void run() {
+            long oldest = SystemClock.elapsedRealtimeNanos() - TimeUnit.MILLISECONDS.toNanos(EVICT_AFTER_MS);
+            int removed = mTable.evictOlderThan(oldest);
+            if (removed > 0) {
+                Log.d(TAG, "Evicted " + removed + " lamps that stopped advertising");
+            }
+        }
+    };
+
+    //callback for scanning devices with desired service, used before lollipop
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback =
+            new BluetoothAdapter.LeScanCallback() {
+                @Override
+                public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
+                    onAdvertisement(device, rssi, SystemClock.elapsedRealtimeNanos());
+                }
+            };
+
+    //callback for when devices are found
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            onAdvertisement(result.getDevice(), result.getRssi(), result.getTimestampNanos());
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (int i = 0; i < results.size(); i++) {
+                ScanResult result = results.get(i);
+                onAdvertisement(result.getDevice(), result.getRssi(), result.getTimestampNanos());
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "Scan failed with error " + errorCode);
+            mListener.onScanFailed(errorCode);
+        }
+    };
+}
@@ -0,0 +1,185 @@
+package com.example.seniorproject;
+
+/**
+ * What the app knows about the LED state of one lamp, kept by its LampConnection.
+ *
+ * The desired frame is what the app wants the lamp to show. It changes the moment a slider or the
+ * switch moves, so the UI never waits for the link. The sent frame is the last one handed to the
+ * link. It stays unconfirmed until the lamp acknowledges the write or reports the same state back.
+ * The reported frame is the last state the lamp returned from a read or notified.
+ *
+ * Every report is reconciled against the other frames:
+ * <ul>
+ * <li>one that matches the sent frame confirms it;</li>
+ * <li>one that arrives while the sent frame is unconfirmed is an echo of an older write or a step
+ * of a batch, and is only recorded;</li>
+ * <li>one that differs from a confirmed sent frame was made by someone else, another phone or
+ * the lamp itself, and becomes the desired state.</li>
+ * </ul>
+ * A write that fails for good rolls the desired state back to the last report.
+ *
+ * A write is redundant when the lamp already shows what it would set. This compares the light
+ * the firmware produces (LedFrameCodec.outputKey), not the raw bytes.
+ *
+ * Not thread safe. LampConnection holds the lock of the desired frame around every call.
+ */
+public class LampStateModel {
+
+    // Outcome of a report, see onReported()
+    public final static int REPORT_RECORDED = 0;
+    public final static int REPORT_CONFIRMED = 1;
+    public final static int REPORT_ADOPTED = 2;
+
+    private final LedFrame mDesired = new LedFrame();
+    private final LedFrame mSent = new LedFrame();
+    private final LedFrame mReported = new LedFrame();
+    private int mFormat = LedFrameCodec.FORMAT_RGBI;
+
+    // Whether the sent and reported frames hold anything since the link came up
+    private boolean mSentValid;
+    private boolean mReportValid;
+    private boolean mSentConfirmed;
+    // The sent frame is the end of a batch, the lamp only gets there after playing it
+    private boolean mSentBatch;
+
+    // Counters
+    private long mSuppressedWrites;
+    private long mAdoptedReports;
+    private long mRollbacks;
+
+    //the frame the app wants the lamp to show, changed in place by the connection
+    LedFrame getDesired() {
+        return mDesired;
+    }
+
+    LedFrame getReported() {
+        return mReported;
+    }
+
+    //the frame format the lamp takes, one of the LedFrameCodec.FORMAT_ constants
+    void setFormat(int format) {
+        mFormat = format;
+    }
+
+    //power state of the lamp as the app wants it
+    public boolean isOn() {
+        return mDesired.getIntensity() != 0;
+    }
+
+    //whether anything was sent to the lamp or reported by it since the link came up
+    public boolean isKnown() {
+        return mSentValid || mReportValid;
+    }
+
+    //whether the lamp is known to show the last frame sent to it
+    public boolean isSentConfirmed() {
+        return mSentValid && mSentConfirmed;
+    }
+
+    /**
+     * @param settled the write is the final value of a gesture, so a frame that is merely on its
+     *                way to the lamp does not make it redundant
+     * @return true if writing the desired frame now would not change what the lamp shows, the
+     * write is then counted as suppressed
+     */
+    public boolean suppressWrite(boolean settled) {
+        if (!mSentValid || (settled && !mSentConfirmed)) {
+            return false;
+        }
+        if (LedFrameCodec.outputKey(mDesired, mFormat) != LedFrameCodec.outputKey(mSent, mFormat)) {
+            return false;
+        }
+        mSuppressedWrites++;
+        return true;
+    }
+
+    /**
+     * The desired frame was handed to the link.
+     *
+     * @param batch it was the end of a batch the lamp plays out over several connection events
+     */
+    public void onSent(boolean batch) {
+        mSent.copyFrom(mDesired);
+        mSentValid = true;
+        mSentConfirmed = false;
+        mSentBatch = batch;
+    }
+
+    //the lamp acknowledged the write of the sent frame
+    public void onAcknowledged() {
+        if (!mSentBatch) {
+            mSentConfirmed = true;
+        }
+    }
+
+    /**
+     * The lamp read back or notified its state.
+     *
+     * @param busy the app has changes on the way that are not in the sent frame yet, the report
+     *             cannot be adopted then
+     * @return one of the REPORT_ constants
+     */
+    public int onReported(LedFrame frame, boolean busy) {
+        LedFrameCodec.copyEncoded(frame, mReported, mFormat);
+        mReportValid = true;
+        if (mSentValid && LedFrameCodec.sameEncoding(frame, mSent, mFormat)) {
+            mSentConfirmed = true;
+            return REPORT_CONFIRMED;
+        }
+        if (busy || (mSentValid && !mSentConfirmed)) {
+            return REPORT_RECORDED;
+        }
+        adoptReported();
+        mAdoptedReports++;
+        return REPORT_ADOPTED;
+    }
+
+    /**
+     * A write failed after all retries. The lamp still shows what it reported last, the desired
+     * state goes back to that.
+     *
+     * @return true if the desired frame changed
+     */
+    public boolean onWriteFailed() {
+        if (!mReportValid) {
+            // Nothing is known about the lamp, only stop trusting the sent frame
+            mSentValid = false;
+            return false;
+        }
+        boolean changed = !LedFrameCodec.sameEncoding(mDesired, mReported, mFormat);
+        adoptReported();
+        if (changed) {
+            mRollbacks++;
+        }
+        return changed;
+    }
+
+    //the link went down, what the lamp shows is unknown until it reports again
+    public void onLinkLost() {
+        mSentValid = false;
+        mReportValid = false;
+        mSentConfirmed = false;
+        mSentBatch = false;
+    }
+
+    public long getSuppressedWriteCount() {
+        return mSuppressedWrites;
+    }
+
+    //reports of changes made by someone else
+    public long getAdoptedReportCount() {
+        return mAdoptedReports;
+    }
+
+    public long getRollbackCount() {
+        return mRollbacks;
+    }
+
+    private void adoptReported() {
+        LedFrameCodec.copyEncoded(mReported, mDesired, mFormat);
+        mSent.copyFrom(mDesired);
+        mSentValid = true;
+        mSentConfirmed = true;
+        mSentBatch = false;
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.seniorproject;
+
+import java.util.UUID;
+
+/**
+ * The link a LampConnection talks to its lamp over.
+ *
+ * GattLampTransport runs it on BluetoothGatt. SimulatedLamp models the lamp firmware in plain Java,
+ * so the whole command path can be run and measured without a phone or the kit. Like
+ * BluetoothGatt only one read or write can be in flight, the methods return false if the link
+ * refuses an operation, and the callbacks come on the transport's own threads.
+ */
+public interface LampTransport {
+
+    // Same values as BluetoothGatt.GATT_SUCCESS and the BluetoothGattCharacteristic.PROPERTY_ flags
+    int GATT_SUCCESS = 0;
+    int PROPERTY_READ = 0x02;
+    int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    int PROPERTY_WRITE = 0x08;
+    int PROPERTY_NOTIFY = 0x10;
+
+    // Same values as BluetoothGatt.CONNECTION_PRIORITY_
+    int CONNECTION_PRIORITY_BALANCED = 0;
+    int CONNECTION_PRIORITY_HIGH = 1;
+    int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    // ATT MTU every link starts with, and the bytes of it a write spends on the ATT header
+    int DEFAULT_MTU = 23;
+    int ATT_WRITE_HEADER_LENGTH = 3;
+
+    // Resolved once, so the GATT callbacks do not parse UUID strings
+    UUID LED_SERVICE_UUID = UUID.fromString(BluetoothComm.capsenseLedServiceUUID);
+    UUID LED_CHARACTERISTIC_UUID = UUID.fromString(BluetoothComm.ledCharacteristicUUID);
+    UUID CCCD_UUID = UUID.fromString(BluetoothComm.CccdUUID);
+
+    /**
+     * Receives the events of the link.
+     */
+    interface Callback {
+        void onConnectionStateChange(int status, boolean connected);
+
+        void onServicesDiscovered(int status);
+
+        //a read of the characteristic in a LampCharacteristics slot finished, the value is only
+        //valid during the call
+        void onRead(int slot, int status, byte[] value);
+
+        //a write of the characteristic in a slot finished, or was handed to the controller for a
+        //write command
+        void onWritten(int slot, int status);
+
+        //the MTU exchange finished, mtu is the one the link uses from now on
+        void onMtuChanged(int status, int mtu);
+
+        //the write of the LED characteristic's CCCD finished, notifications come from now on
+        void onLedNotificationsEnabled(int status);
+
+        //the lamp notified a new value of the characteristic in a slot, only valid during the call
+        void onChanged(int slot, byte[] value);
+    }
+
+    String getAddress();
+
+    //connection interval the link runs at, in microseconds
+    long getConnectionIntervalMicros();
+
+    void setCallback(Callback callback);
+
+    /**
+     * @param autoConnect connect in the background whenever the lamp is in range
+     */
+    boolean connect(boolean autoConnect);
+
+    void disconnect();
+
+    //releases the link, no more callbacks are made
+    void close();
+
+    boolean discoverServices();
+
+    /**
+     * Asks the central to move the link to other connection parameters, one of the
+     * CONNECTION_PRIORITY_ constants. The change takes effect a few connection events later.
+     */
+    boolean requestConnectionPriority(int priority);
+
+    /**
+     * Starts the ATT MTU exchange. The link uses the smaller of this and the lamp's MTU, writes
+     * can then carry up to MTU - ATT_WRITE_HEADER_LENGTH bytes. Counts as the one operation in
+     * flight.
+     */
+    boolean requestMtu(int mtu);
+
+    /**
+     * Picks the LED characteristic out of the discovered services.
+     *
+     * @return the PROPERTY_ flags of the characteristic, or -1 if the lamp does not have it
+     */
+    int resolveLed(UUID serviceUuid, UUID ledCharacteristicUuid);
+
+    boolean readLed();
+
+    /**
+     * Subscribes to notifications of the LED characteristic by writing its CCCD. Only works if
+     * resolveLed() reported PROPERTY_NOTIFY. Counts as the one operation in flight.
+     */
+    boolean enableLedNotifications();
+
+    /**
+     * Writes the LED characteristic. The value is copied before the method returns.
+     *
+     * @param withResponse false sends a write command, which the lamp does not acknowledge
+     */
+    boolean writeLed(byte[] value, boolean withResponse);
+}
@@ -0,0 +1,105 @@
+package com.example.seniorproject;
+
+/**
+ * Packs several timed updates into one write of the LED characteristic.
+ *
+ * A batch starts with {@link #FORMAT_BATCH} and a record count. Each record is a delay in
+ * connection events after the previous record, a mask of the channels it sets and one byte per
+ * set channel, see HandleLedBatch.h. The firmware applies the first record when the write
+ * arrives and each following one its delay later, so a short keyframe sequence costs one packet
+ * instead of one per frame. Records only carry the channels that changed since the record
+ * before, the first record always carries the whole frame.
+ *
+ * Like LedFrameCodec, encoding writes into a caller supplied buffer and does not allocate.
+ */
+public final class LedBatchCodec {
+
+    // First byte of a batch, LED_BATCH_FORMAT. Follows LedFrameCodec.FORMAT_RGBW
+    public final static int FORMAT_BATCH = 3;
+
+    public final static int HEADER_LENGTH = 2;
+    private final static int RECORD_HEADER_LENGTH = 2;
+    public final static int MAX_RECORDS = 255;
+    public final static int MAX_DELAY = 255;
+
+    // Channel mask bits, LED_BATCH_ in HandleLedBatch.h
+    public final static int MASK_RED = 0x01;
+    public final static int MASK_GREEN = 0x02;
+    public final static int MASK_BLUE = 0x04;
+    public final static int MASK_INTENSITY = 0x08;
+    public final static int MASK_COOL_WHITE = 0x10;
+    public final static int MASK_WARM_WHITE = 0x20;
+
+    // LedFrame channel of each mask bit, in bit order. The intensity is not a channel
+    private final static int INTENSITY = -1;
+    private final static int[] MASK_CHANNELS = {
+            LedFrame.CHANNEL_RED, LedFrame.CHANNEL_GREEN, LedFrame.CHANNEL_BLUE, INTENSITY,
+            LedFrame.CHANNEL_COOL_WHITE, LedFrame.CHANNEL_WARM_WHITE,
+    };
+
+    private LedBatchCodec() {
+    }
+
+    //mask of the channels a frame format carries, the {R,G,B,Intensity} layout has no white
+    public static int channelMask(int format) {
+        int mask = MASK_RED | MASK_GREEN | MASK_BLUE | MASK_INTENSITY;
+        return format == LedFrameCodec.FORMAT_RGBW ? mask | MASK_COOL_WHITE | MASK_WARM_WHITE : mask;
+    }
+
+    //longest a record gets, one that sets every channel of the format
+    public static int maxRecordLength(int format) {
+        return RECORD_HEADER_LENGTH + Integer.bitCount(channelMask(format));
+    }
+
+    /**
+     * @param payload bytes one write can carry, the ATT MTU less 3
+     * @return number of records that always fit in one write
+     */
+    public static int maxRecords(int payload, int format) {
+        return Math.max(0, Math.min(MAX_RECORDS, (payload - HEADER_LENGTH) / maxRecordLength(format)));
+    }
+
+    /**
+     * Starts an empty batch at the beginning of {@code out}.
+     *
+     * @return the length of the batch so far
+     */
+    public static int begin(byte[] out) {
+        out[0] = (byte) FORMAT_BATCH;
+        out[1] = 0;
+        return HEADER_LENGTH;
+    }
+
+    /**
+     * Appends a record to the batch started with {@link #begin}.
+     *
+     * @param length   current length of the batch
+     * @param delay    connection events after the previous record, 0-255
+     * @param previous frame of the previous record, null to send every channel of the format
+     * @return the new length of the batch
+     */
+    public static int add(byte[] out, int length, int delay, LedFrame frame, LedFrame previous, int format) {
+        int formatMask = channelMask(format);
+        int mask = 0;
+        int offset = length + RECORD_HEADER_LENGTH;
+        for (int bit = 0; bit < MASK_CHANNELS.length; bit++) {
+            if ((formatMask & (1 << bit)) == 0) {
+                continue;
+            }
+            int level = level(frame, bit);
+            if (previous == null || level != level(previous, bit)) {
+                mask |= 1 << bit;
+                out[offset++] = (byte) level;
+            }
+        }
+        out[length] = (byte) Math.min(delay, MAX_DELAY);
+        out[length + 1] = (byte) mask;
+        out[1]++;
+        return offset;
+    }
+
+    private static int level(LedFrame frame, int bit) {
+        int channel = MASK_CHANNELS[bit];
+        return channel == INTENSITY ? frame.getIntensity() : frame.get(channel);
+    }
+}
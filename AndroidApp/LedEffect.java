@@ -0,0 +1,198 @@
+package com.example.seniorproject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An animation of the lamp output over time: fades, color cycles, breathing or a timeline of
+ * keyframes. An effect only describes what the lamp should show at a given time, an
+ * {@link EffectPlayer} samples it once per connection interval and sends the frames.
+ */
+public abstract class LedEffect {
+
+    private final long mDurationMs;
+    private final boolean mLooping;
+
+    /**
+     * @param durationMs length of the effect, or of one period if it loops
+     */
+    protected LedEffect(long durationMs, boolean looping) {
+        if (durationMs <= 0) {
+            throw new IllegalArgumentException("Effect duration must be positive");
+        }
+        mDurationMs = durationMs;
+        mLooping = looping;
+    }
+
+    public long getDurationMs() {
+        return mDurationMs;
+    }
+
+    //a looping effect starts over after getDurationMs() until it is stopped
+    public boolean isLooping() {
+        return mLooping;
+    }
+
+    /**
+     * Fills in the frame the lamp should show {@code timeMs} into the effect, 0 to getDurationMs().
+     */
+    public abstract void frameAt(long timeMs, LedFrame out);
+
+    //linear blend from a to b, position/span of the way
+    static void blend(LedFrame a, LedFrame b, long position, long span, LedFrame out) {
+        for (int i = 0; i < LedFrame.CHANNEL_COUNT; i++) {
+            out.set(i, mix(a.get(i), b.get(i), position, span));
+        }
+        out.setIntensity(mix(a.getIntensity(), b.getIntensity(), position, span));
+    }
+
+    private static int mix(int from, int to, long position, long span) {
+        // Rounded to the nearest level
+        return from + (int) (((to - from) * position * 2 + (to >= from ? span : -span)) / (span * 2));
+    }
+
+    /**
+     * Goes from one frame to another in a straight line, then holds the second one.
+     */
+    public static class Fade extends LedEffect {
+        private final LedFrame mFrom;
+        private final LedFrame mTo;
+
+        public Fade(LedFrame from, LedFrame to, long durationMs) {
+            super(durationMs, false);
+            mFrom = new LedFrame(from);
+            mTo = new LedFrame(to);
+        }
+
+        @Override
+        public void frameAt(long timeMs, LedFrame out) {
+            blend(mFrom, mTo, Math.min(timeMs, getDurationMs()), getDurationMs(), out);
+        }
+    }
+
+    /**
+     * Runs the red, green and blue channels around the color wheel once per period.
+     */
+    public static class ColorCycle extends LedEffect {
+        private final int mIntensity;
+
+        public ColorCycle(long periodMs, int intensity) {
+            super(periodMs, true);
+            mIntensity = intensity;
+        }
+
+        @Override
+        public void frameAt(long timeMs, LedFrame out) {
+            int hue = (int) (timeMs % getDurationMs() * ColorPipeline.HUE_STEPS / getDurationMs());
+            ColorPipeline.setHue(hue, 255, out);
+            out.setIntensity(mIntensity);
+        }
+    }
+
+    /**
+     * Keeps the colors of a frame and swells the intensity between two levels once per period.
+     */
+    public static class Breathing extends LedEffect {
+        private final LedFrame mColor;
+        private final int mMinIntensity;
+        private final int mMaxIntensity;
+
+        public Breathing(LedFrame color, long periodMs, int minIntensity, int maxIntensity) {
+            super(periodMs, true);
+            mColor = new LedFrame(color);
+            mMinIntensity = minIntensity;
+            mMaxIntensity = maxIntensity;
+        }
+
+        @Override
+        public void frameAt(long timeMs, LedFrame out) {
+            double phase = 2 * Math.PI * (timeMs % getDurationMs()) / getDurationMs();
+            double level = (1 - Math.cos(phase)) / 2;
+            out.copyFrom(mColor);
+            out.setIntensity(mMinIntensity + (int) Math.round((mMaxIntensity - mMinIntensity) * level));
+        }
+    }
+
+    /**
+     * User defined timeline. The lamp moves in a straight line from one keyframe to the next and
+     * holds the last one, or goes back to the first one if the timeline loops.
+     */
+    public static class Keyframes extends LedEffect {
+        private final long[] mTimes;
+        private final LedFrame[] mFrames;
+
+        private Keyframes(long[] times, LedFrame[] frames, long durationMs, boolean looping) {
+            super(durationMs, looping);
+            mTimes = times;
+            mFrames = frames;
+        }
+
+        @Override
+        public void frameAt(long timeMs, LedFrame out) {
+            int last = mTimes.length - 1;
+            if (timeMs <= mTimes[0]) {
+                out.copyFrom(mFrames[0]);
+                return;
+            }
+            for (int i = 0; i < last; i++) {
+                if (timeMs < mTimes[i + 1]) {
+                    blend(mFrames[i], mFrames[i + 1], timeMs - mTimes[i], mTimes[i + 1] - mTimes[i], out);
+                    return;
+                }
+            }
+            if (isLooping() && getDurationMs() > mTimes[last]) {
+                // Wrap around to the first keyframe at the end of the period
+                blend(mFrames[last], mFrames[0], timeMs - mTimes[last], getDurationMs() - mTimes[last], out);
+            } else {
+                out.copyFrom(mFrames[last]);
+            }
+        }
+
+        /**
+         * Collects keyframes in time order.
+         */
+        public static class Builder {
+            private final List<Long> mTimes = new ArrayList<>();
+            private final List<LedFrame> mFrames = new ArrayList<>();
+            private boolean mLooping;
+            private long mPeriodMs;
+
+            /**
+             * @param timeMs time from the start of the effect, must be later than the previous keyframe
+             */
+            public Builder add(long timeMs, LedFrame frame) {
+                if (!mTimes.isEmpty() && timeMs <= mTimes.get(mTimes.size() - 1)) {
+                    throw new IllegalArgumentException("Keyframes must be added in time order");
+                }
+                mTimes.add(timeMs);
+                mFrames.add(new LedFrame(frame));
+                return this;
+            }
+
+            /**
+             * Repeats the timeline every {@code periodMs}, which must not be before the last keyframe.
+             */
+            public Builder setLooping(long periodMs) {
+                mLooping = true;
+                mPeriodMs = periodMs;
+                return this;
+            }
+
+            public Keyframes build() {
+                if (mTimes.isEmpty()) {
+                    throw new IllegalStateException("A timeline needs at least one keyframe");
+                }
+                long end = mTimes.get(mTimes.size() - 1);
+                if (mLooping && mPeriodMs < end) {
+                    throw new IllegalStateException("Loop period ends before the last keyframe");
+                }
+                long[] times = new long[mTimes.size()];
+                for (int i = 0; i < times.length; i++) {
+                    times[i] = mTimes.get(i);
+                }
+                return new Keyframes(times, mFrames.toArray(new LedFrame[0]),
+                        mLooping ? mPeriodMs : Math.max(end, 1), mLooping);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.seniorproject;
+
+/**
+ * Full output state of one lamp: the five LED channels plus the master intensity.
+ *
+ * Frames are mutable and meant to be reused, so nothing on the slider path has to allocate.
+ * All values are 0-255.
+ */
+public class LedFrame {
+
+    // Channel indexes, in the order the sliders appear on screen
+    public final static int CHANNEL_COOL_WHITE = 0;
+    public final static int CHANNEL_WARM_WHITE = 1;
+    public final static int CHANNEL_RED = 2;
+    public final static int CHANNEL_GREEN = 3;
+    public final static int CHANNEL_BLUE = 4;
+    public final static int CHANNEL_COUNT = 5;
+
+    public final static int MAX_LEVEL = 255;
+
+    private final int[] mChannels = new int[CHANNEL_COUNT];
+    private int mIntensity;
+
+    public LedFrame() {
+    }
+
+    public LedFrame(LedFrame other) {
+        copyFrom(other);
+    }
+
+    public int get(int channel) {
+        return mChannels[channel];
+    }
+
+    public void set(int channel, int level) {
+        mChannels[channel] = clamp(level);
+    }
+
+    public int getIntensity() {
+        return mIntensity;
+    }
+
+    public void setIntensity(int intensity) {
+        mIntensity = clamp(intensity);
+    }
+
+    //set all five channels at once, in CHANNEL_ order
+    public void setChannels(int[] levels) {
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            mChannels[i] = clamp(levels[i]);
+        }
+    }
+
+    public void copyFrom(LedFrame other) {
+        System.arraycopy(other.mChannels, 0, mChannels, 0, CHANNEL_COUNT);
+        mIntensity = other.mIntensity;
+    }
+
+    //true if both frames hold exactly the same values
+    public boolean sameAs(LedFrame other) {
+        if (mIntensity != other.mIntensity) {
+            return false;
+        }
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            if (mChannels[i] != other.mChannels[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            mChannels[i] = 0;
+        }
+        mIntensity = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "LedFrame{cw=" + mChannels[CHANNEL_COOL_WHITE] + ", ww=" + mChannels[CHANNEL_WARM_WHITE]
+                + ", r=" + mChannels[CHANNEL_RED] + ", g=" + mChannels[CHANNEL_GREEN]
+                + ", b=" + mChannels[CHANNEL_BLUE] + ", i=" + mIntensity + "}";
+    }
+
+    private static int clamp(int level) {
+        if (level < 0) {
+            return 0;
+        }
+        return level > MAX_LEVEL ? MAX_LEVEL : level;
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.seniorproject;
+
+/**
+ * Packs {@link LedFrame}s into the byte layout of the LED characteristic and back.
+ *
+ * Two formats exist:
+ * <ul>
+ * <li>{@link #FORMAT_RGBI}: the 4 byte {R,G,B,Intensity} layout the firmware keeps in RGBledData
+ * (RGB_CHAR_DATA_LEN). The white channels are not carried.</li>
+ * <li>{@link #FORMAT_RGBW}: a version byte followed by {R,G,B,Intensity,CW,WW}, for firmware
+ * that drives the white strings. The RGB firmware ignores it, see HandleRGBWrite.</li>
+ * </ul>
+ * A third layout is not a frame but a command: {@link #FORMAT_FADE} followed by
+ * {R,G,B,Intensity} and a duration, which firmware with HandleLedFade plays out by itself.
+ * {@link #FORMAT_TIMED_FADE} adds a delay after which the lamp starts the fade.
+ * Encoding writes into a caller supplied buffer and decoding fills a caller supplied frame, so
+ * neither allocates.
+ */
+public final class LedFrameCodec {
+
+    public final static int FORMAT_RGBI = 1;
+    public final static int FORMAT_RGBW = 2;
+
+    // Byte offsets of the {R,G,B,Intensity} layout, the same as RED_INDEX etc. in main.h
+    private final static int RED_INDEX = 0;
+    private final static int GREEN_INDEX = 1;
+    private final static int BLUE_INDEX = 2;
+    private final static int INTENSITY_INDEX = 3;
+
+    public final static int RGBI_LENGTH = 4;
+    public final static int RGBW_LENGTH = 7;
+
+    // Fade to a frame, LED_FADE_FORMAT etc. in HandleLedFade.h. The duration is a 16 bit count
+    // of FADE_TIME_UNIT_MS, low byte first
+    public final static int FORMAT_FADE = 4;
+    public final static int FADE_LENGTH = 7;
+    public final static int FADE_TIME_UNIT_MS = 10;
+    public final static long MAX_FADE_MS = 0xffffL * FADE_TIME_UNIT_MS;
+
+    // Fade that starts a delay after the write arrives, LED_TIMED_FADE_FORMAT etc. in
+    // HandleLedFade.h. A fade write followed by the delay in milliseconds, low byte first
+    public final static int FORMAT_TIMED_FADE = 5;
+    public final static int TIMED_FADE_LENGTH = 9;
+    public final static long MAX_TIMED_FADE_DELAY_MS = 2000;
+
+    // Below this the firmware switches the LEDs off, LED_NO_COLOR_THRESHOLD in main.h
+    public final static int LED_NO_COLOR_THRESHOLD = 4;
+
+    private LedFrameCodec() {
+    }
+
+    //number of bytes a frame takes in the given format
+    public static int encodedLength(int format) {
+        switch (format) {
+            case FORMAT_RGBI:
+                return RGBI_LENGTH;
+            case FORMAT_RGBW:
+                return RGBW_LENGTH;
+            default:
+                throw new IllegalArgumentException("Unknown frame format " + format);
+        }
+    }
+
+    /**
+     * Writes the frame into {@code out} starting at {@code offset}.
+     *
+     * @return the number of bytes written
+     */
+    public static int encode(LedFrame frame, int format, byte[] out, int offset) {
+        switch (format) {
+            case FORMAT_RGBI:
+                encodeRgbi(frame, out, offset);
+                return RGBI_LENGTH;
+            case FORMAT_RGBW:
+                out[offset] = (byte) FORMAT_RGBW;
+                encodeRgbi(frame, out, offset + 1);
+                out[offset + 5] = (byte) frame.get(LedFrame.CHANNEL_COOL_WHITE);
+                out[offset + 6] = (byte) frame.get(LedFrame.CHANNEL_WARM_WHITE);
+                return RGBW_LENGTH;
+            default:
+                throw new IllegalArgumentException("Unknown frame format " + format);
+        }
+    }
+
+    /**
+     * Writes a fade to {@code target} into {@code out} starting at {@code offset}. Only red,
+     * green, blue and intensity are carried.
+     *
+     * @param durationMs rounded to FADE_TIME_UNIT_MS and clamped to MAX_FADE_MS
+     * @return the number of bytes written
+     */
+    public static int encodeFade(LedFrame target, long durationMs, byte[] out, int offset) {
+        long units = (Math.max(0, Math.min(durationMs, MAX_FADE_MS)) + FADE_TIME_UNIT_MS / 2) / FADE_TIME_UNIT_MS;
+        if (units > 0xffff) {
+            units = 0xffff;
+        }
+        out[offset] = (byte) FORMAT_FADE;
+        encodeRgbi(target, out, offset + 1);
+        out[offset + 5] = (byte) units;
+        out[offset + 6] = (byte) (units >> 8);
+        return FADE_LENGTH;
+    }
+
+    /**
+     * Writes a fade to {@code target} that the lamp starts {@code delayMs} after it received it.
+     *
+     * @param durationMs as for encodeFade()
+     * @param delayMs    clamped to MAX_TIMED_FADE_DELAY_MS
+     * @return the number of bytes written
+     */
+    public static int encodeTimedFade(LedFrame target, long durationMs, long delayMs, byte[] out, int offset) {
+        encodeFade(target, durationMs, out, offset);
+        long delay = Math.max(0, Math.min(delayMs, MAX_TIMED_FADE_DELAY_MS));
+        out[offset] = (byte) FORMAT_TIMED_FADE;
+        out[offset + 7] = (byte) delay;
+        out[offset + 8] = (byte) (delay >> 8);
+        return TIMED_FADE_LENGTH;
+    }
+
+    /**
+     * Reads a frame back from the characteristic value. The format is recognised from the length,
+     * a 4 byte value is always the {R,G,B,Intensity} layout.
+     *
+     * @return false if the value is not a frame this codec understands, {@code into} is then left
+     * untouched
+     */
+    public static boolean decode(byte[] data, int offset, int length, LedFrame into) {
+        if (length == RGBI_LENGTH) {
+            decodeRgbi(data, offset, into);
+            return true;
+        }
+        if (length >= RGBW_LENGTH && data[offset] == FORMAT_RGBW) {
+            decodeRgbi(data, offset + 1, into);
+            into.set(LedFrame.CHANNEL_COOL_WHITE, data[offset + 5] & 0xff);
+            into.set(LedFrame.CHANNEL_WARM_WHITE, data[offset + 6] & 0xff);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Identifies the light the firmware produces for a frame. UpdateRGBled scales each color by
+     * intensity/255 in 8 bit and switches the LEDs off below LED_NO_COLOR_THRESHOLD, so many
+     * different frames give the same PWM output, and writing one after the other changes nothing.
+     *
+     * @return equal values for frames the lamp shows the same way, 0 for off
+     */
+    public static long outputKey(LedFrame frame, int format) {
+        int intensity = frame.getIntensity();
+        int red = frame.get(LedFrame.CHANNEL_RED) * intensity / 255;
+        int green = frame.get(LedFrame.CHANNEL_GREEN) * intensity / 255;
+        int blue = frame.get(LedFrame.CHANNEL_BLUE) * intensity / 255;
+        long key;
+        if (intensity < LED_NO_COLOR_THRESHOLD || (red < LED_NO_COLOR_THRESHOLD
+                && green < LED_NO_COLOR_THRESHOLD && blue < LED_NO_COLOR_THRESHOLD)) {
+            key = 0;
+        } else {
+            key = (red << 16) | (green << 8) | blue;
+        }
+        if (format == FORMAT_RGBW) {
+            // Nothing is known about how the white strings are driven, every level counts
+            key |= (long) frame.get(LedFrame.CHANNEL_COOL_WHITE) << 24
+                    | (long) frame.get(LedFrame.CHANNEL_WARM_WHITE) << 32;
+        }
+        return key;
+    }
+
+    //true if both frames give the same bytes in the given format, channels it does not carry are ignored
+    public static boolean sameEncoding(LedFrame a, LedFrame b, int format) {
+        if (a.getIntensity() != b.getIntensity() || a.get(LedFrame.CHANNEL_RED) != b.get(LedFrame.CHANNEL_RED)
+                || a.get(LedFrame.CHANNEL_GREEN) != b.get(LedFrame.CHANNEL_GREEN)
+                || a.get(LedFrame.CHANNEL_BLUE) != b.get(LedFrame.CHANNEL_BLUE)) {
+            return false;
+        }
+        return format != FORMAT_RGBW
+                || (a.get(LedFrame.CHANNEL_COOL_WHITE) == b.get(LedFrame.CHANNEL_COOL_WHITE)
+                && a.get(LedFrame.CHANNEL_WARM_WHITE) == b.get(LedFrame.CHANNEL_WARM_WHITE));
+    }
+
+    //copies the channels the given format carries, the others of {@code into} are left alone
+    public static void copyEncoded(LedFrame from, LedFrame into, int format) {
+        into.set(LedFrame.CHANNEL_RED, from.get(LedFrame.CHANNEL_RED));
+        into.set(LedFrame.CHANNEL_GREEN, from.get(LedFrame.CHANNEL_GREEN));
+        into.set(LedFrame.CHANNEL_BLUE, from.get(LedFrame.CHANNEL_BLUE));
+        into.setIntensity(from.getIntensity());
+        if (format == FORMAT_RGBW) {
+            into.set(LedFrame.CHANNEL_COOL_WHITE, from.get(LedFrame.CHANNEL_COOL_WHITE));
+            into.set(LedFrame.CHANNEL_WARM_WHITE, from.get(LedFrame.CHANNEL_WARM_WHITE));
+        }
+    }
+
+    private static void encodeRgbi(LedFrame frame, byte[] out, int offset) {
+        out[offset + RED_INDEX] = (byte) frame.get(LedFrame.CHANNEL_RED);
+        out[offset + GREEN_INDEX] = (byte) frame.get(LedFrame.CHANNEL_GREEN);
+        out[offset + BLUE_INDEX] = (byte) frame.get(LedFrame.CHANNEL_BLUE);
+        out[offset + INTENSITY_INDEX] = (byte) frame.getIntensity();
+    }
+
+    private static void decodeRgbi(byte[] data, int offset, LedFrame into) {
+        into.set(LedFrame.CHANNEL_RED, data[offset + RED_INDEX] & 0xff);
+        into.set(LedFrame.CHANNEL_GREEN, data[offset + GREEN_INDEX] & 0xff);
+        into.set(LedFrame.CHANNEL_BLUE, data[offset + BLUE_INDEX] & 0xff);
+        into.setIntensity(data[offset + INTENSITY_INDEX] & 0xff);
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.seniorproject;
+
+/**
+ * Where the connection events of one link fall on the phone's clock. Responses and notifications
+ * only arrive at connection events, so the time of their callbacks, taken modulo the connection
+ * interval, gives the phase of the events. The callbacks come a little after the event and by a
+ * varying amount, so the earliest one is the best estimate: an earlier callback moves the estimate
+ * all the way, a later one only by 1/DRIFT_GAIN of its lag, which follows the slow drift between
+ * the phone's and the lamp's clocks. Taken modulo the interval, a callback held up for most of an
+ * interval looks like an early one, so only callbacks a little early or a little late count. Any
+ * other callback was held up and is left out, unless MIN_SAMPLES of them in a row say the events
+ * moved.
+ *
+ * The firmware answers a write request in the connection event after the one the write arrived
+ * in, CustomEventHandler only runs once the event is over. So a write arrived one interval before
+ * the event of its response, and a write handed to the link now arrives at the next event. A
+ * constant delay of the callbacks moves every lamp the same way and does not spread them apart.
+ */
+public class LinkClock {
+
+    // Share of a late callback's lag the estimate follows
+    private final static int DRIFT_GAIN = 8;
+    // Callbacks before the phase is trusted
+    public final static int MIN_SAMPLES = 3;
+    // Most a callback comes before the estimated event, drift and the spread of the quickest
+    // callbacks stay well below it
+    private final static long MAX_EARLY_NANOS = 2000000;
+    // Share of the interval a callback may lag the estimated event and still count
+    private final static int MAX_LAG_SHARE = 4;
+
+    private long mIntervalNanos;
+    // System.nanoTime() of one connection event
+    private long mEventNanos;
+    private int mSamples;
+    // Callbacks in a row that were left out
+    private int mOutliers;
+    // Mean lag of the callbacks behind the estimated events
+    private long mJitterNanos;
+
+    /**
+     * Takes the time of a callback that came with a connection event. A new interval starts the
+     * estimate over, the events are on a different grid then.
+     */
+    public synchronized void onEvent(long nanos, long intervalMicros) {
+        long interval = intervalMicros * 1000;
+        if (interval <= 0) {
+            return;
+        }
+        if (interval != mIntervalNanos || mSamples == 0 || mOutliers >= MIN_SAMPLES) {
+            mIntervalNanos = interval;
+            mEventNanos = nanos;
+            mSamples = 1;
+            mOutliers = 0;
+            mJitterNanos = 0;
+            return;
+        }
+        long lag = mod(nanos - mEventNanos, interval);
+        if (lag >= interval - Math.min(MAX_EARLY_NANOS, interval / MAX_LAG_SHARE)) {
+            // Earlier than any callback before
+            mEventNanos = nanos;
+            lag = 0;
+        } else if (lag <= interval / MAX_LAG_SHARE) {
+            mEventNanos += lag / DRIFT_GAIN;
+        } else {
+            mOutliers++;
+            return;
+        }
+        mOutliers = 0;
+        mJitterNanos += (lag - mJitterNanos) / DRIFT_GAIN;
+        if (mSamples < Integer.MAX_VALUE) {
+            mSamples++;
+        }
+    }
+
+    //whether enough callbacks came in with the current interval to predict the events
+    public synchronized boolean isSynced() {
+        return mSamples >= MIN_SAMPLES;
+    }
+
+    //time of the first connection event after the given one, the time itself before any callback
+    public synchronized long nextEventNanos(long nanos) {
+        if (mSamples == 0) {
+            return nanos;
+        }
+        return nanos + mIntervalNanos - mod(nanos - mEventNanos, mIntervalNanos);
+    }
+
+    //time of the connection event closest to the given one, the time itself before any callback
+    public synchronized long nearestEventNanos(long nanos) {
+        if (mSamples == 0) {
+            return nanos;
+        }
+        long since = mod(nanos - mEventNanos, mIntervalNanos);
+        return since <= mIntervalNanos / 2 ? nanos - since : nanos - since + mIntervalNanos;
+    }
+
+    public synchronized long getIntervalNanos() {
+        return mIntervalNanos;
+    }
+
+    //mean lag of the callbacks behind the connection events, how far the estimate can be off
+    public synchronized long getJitterNanos() {
+        return mJitterNanos;
+    }
+
+    // Remainder that is never negative, a callback can come before the estimated event
+    private static long mod(long value, long interval) {
+        long remainder = value % interval;
+        return remainder < 0 ? remainder + interval : remainder;
+    }
+
+    //the link went down, the next one has its own events
+    public synchronized void reset() {
+        mSamples = 0;
+        mOutliers = 0;
+        mIntervalNanos = 0;
+        mJitterNanos = 0;
+    }
+}
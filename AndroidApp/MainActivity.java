@@ -7,17 +7,17 @@ import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
 import android.os.Bundle;
 import android.util.Log;
@@ -42,12 +42,19 @@ public class MainActivity extends AppCompatActivity {
     private static Button discover_button;
     private static Button disconnect_button;
     private static Switch led_switch;
-    private static SeekBar seekBarWC;
+    private static SeekBar seekBarCW;
+    private static SeekBar seekBarWW;
+    private static SeekBar seekBarR;
+    private static SeekBar seekBarG;
+    private static SeekBar seekBarB;
     private static boolean mConnectState;
     private static boolean mServiceConnected;
     private static BluetoothComm mBluetoothComm;
     private static final int REQUEST_ENABLE_BLE = 1;
 
+    // When the activity was created, for the launch to first color metric
+    private static long mLaunchNanos;
+
 
     //service initialization
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -58,6 +65,11 @@ public class MainActivity extends AppCompatActivity {
             mBluetoothComm = ((BluetoothComm.LocalBinder) service).getService();
             mServiceConnected = true;
             mBluetoothComm.initialize();
+            mBluetoothComm.addEventListener(mLampEventListener);
+            mBluetoothComm.setLaunchTime(mLaunchNanos);
+            // One tap is enough: the lamp used last, or the nearest one, is connected and
+            // discovered without pressing the other buttons, which stay as a fallback
+            mBluetoothComm.connectAutomatically();
         }
 
         @Override
@@ -72,6 +84,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mLaunchNanos = SystemClock.elapsedRealtimeNanos();
         setContentView(R.layout.activity_main);
 
 
@@ -82,8 +95,12 @@ public class MainActivity extends AppCompatActivity {
         connect_button = (Button) findViewById(R.id.connect_button);
         discover_button = (Button) findViewById(R.id.discoverSvc_button);
         disconnect_button = (Button) findViewById(R.id.disconnect_button);
-        led_switch = (Switch) findViewById(R.id.led_switch);
-        seekBarWC = (SeekBar) findViewById(R.id.seekBarWC);
+        led_switch = (Switch) findViewById(R.id.led_switchR);
+        seekBarCW = (SeekBar) findViewById(R.id.seekBarCW);
+        seekBarWW = (SeekBar) findViewById(R.id.seekBarWW);
+        seekBarR = (SeekBar) findViewById(R.id.seekBarR);
+        seekBarG = (SeekBar) findViewById(R.id.seekBarG);
+        seekBarB = (SeekBar) findViewById(R.id.seekBarB);
 
         // Initialize service and connection state variable
         mServiceConnected = false;
@@ -98,38 +115,46 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
-        seekBarWC.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
-            int PWMValue = 0;
-            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                PWMValue = progress;
-                if(PWMValue > 0){
-                    mBluetoothComm.writeLedCharacteristic(fromUser);
-                } else {
-                    mBluetoothComm.writeLedCharacteristic(fromUser);
-                }
-            }
+        /* All five channel sliders share one listener, BluetoothComm coalesces the updates */
+        seekBarCW.setOnSeekBarChangeListener(mSeekBarListener);
+        seekBarWW.setOnSeekBarChangeListener(mSeekBarListener);
+        seekBarR.setOnSeekBarChangeListener(mSeekBarListener);
+        seekBarG.setOnSeekBarChangeListener(mSeekBarListener);
+        seekBarB.setOnSeekBarChangeListener(mSeekBarListener);
+    }
 
-            public void onStartTrackingTouch(SeekBar seekBar) {
-                // TODO Auto-generated method stub
-            }
+    //map a slider to the LED channel it controls
+    private static int channelFor(SeekBar seekBar) {
+        if (seekBar == seekBarCW) {
+            return LedFrame.CHANNEL_COOL_WHITE;
+        } else if (seekBar == seekBarWW) {
+            return LedFrame.CHANNEL_WARM_WHITE;
+        } else if (seekBar == seekBarR) {
+            return LedFrame.CHANNEL_RED;
+        } else if (seekBar == seekBarG) {
+            return LedFrame.CHANNEL_GREEN;
+        }
+        return LedFrame.CHANNEL_BLUE;
+    }
 
-            public void onStopTrackingTouch(SeekBar seekBar) {
+    /* This will be called when any of the LED channel sliders is moved */
+    private final SeekBar.OnSeekBarChangeListener mSeekBarListener = new SeekBar.OnSeekBarChangeListener() {
+        public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+            if (fromUser && mBluetoothComm != null) {
+                mBluetoothComm.setChannelLevel(channelFor(seekBar), progress);
             }
-        });
-    }
+        }
 
-    @Override
-    protected void onResume() {
-        super.onResume();
-        // Register the broadcast receiver. This specified the messages the main activity looks for from the PSoCCapSenseLedService
-        final IntentFilter filter = new IntentFilter();
-        filter.addAction(BluetoothComm.ACTION_BLESCAN_CALLBACK);
-        filter.addAction(BluetoothComm.ACTION_CONNECTED);
-        filter.addAction(BluetoothComm.ACTION_DISCONNECTED);
-        filter.addAction(BluetoothComm.ACTION_SERVICES_DISCOVERED);
-        filter.addAction(BluetoothComm.ACTION_DATA_RECEIVED);
-        registerReceiver(mBleUpdateReceiver, filter);
-    }
+        public void onStartTrackingTouch(SeekBar seekBar) {
+        }
+
+        public void onStopTrackingTouch(SeekBar seekBar) {
+            // Make sure the value the finger stopped on is acknowledged by the lamp
+            if (mBluetoothComm != null) {
+                mBluetoothComm.settleChannels();
+            }
+        }
+    };
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
@@ -141,15 +166,10 @@ public class MainActivity extends AppCompatActivity {
         super.onActivityResult(requestCode, resultCode, data);
     }
 
-    @Override
-    protected void onPause() {
-        super.onPause();
-        unregisterReceiver(mBleUpdateReceiver);
-    }
-
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mBluetoothComm.removeEventListener(mLampEventListener);
         mBluetoothComm.close();
         unbindService(mServiceConnection);
         mBluetoothComm = null;
@@ -208,21 +228,34 @@ public class MainActivity extends AppCompatActivity {
 
     }
 
+    //enable or disable all channel sliders
+    private static void setSlidersEnabled(boolean enabled) {
+        seekBarCW.setEnabled(enabled);
+        seekBarWW.setEnabled(enabled);
+        seekBarR.setEnabled(enabled);
+        seekBarG.setEnabled(enabled);
+        seekBarB.setEnabled(enabled);
+    }
+
     /**
-     * Listener for BLE event broadcasts
+     * Listener for BLE events, called on the main thread
      */
-    private final BroadcastReceiver mBleUpdateReceiver = new BroadcastReceiver() {
+    private final LampEventListener mLampEventListener = new LampEventListener.Adapter() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            switch (action) {
-                case BluetoothComm.ACTION_BLESCAN_CALLBACK:
-                    // Disable the search button and enable the connect button
-                    search_button.setEnabled(false);
-                    connect_button.setEnabled(true);
-                    break;
+        public void onLampSelected(BluetoothDevice device, int rssi) {
+            // Disable the search button and enable the connect button
+            search_button.setEnabled(false);
+            connect_button.setEnabled(true);
+        }
 
-                case BluetoothComm.ACTION_CONNECTED:
+        @Override
+        public void onConnectionStateChanged(BluetoothDevice device, int state) {
+            // Other lamps of the fleet do not drive the buttons
+            if (mBluetoothComm == null || !mBluetoothComm.isActiveLamp(device)) {
+                return;
+            }
+            switch (state) {
+                case LampConnection.STATE_CONNECTED:
                     /* This if statement is needed because we sometimes get a GATT_CONNECTED */
                     /* action when sending Capsense notifications */
                     if (!mConnectState) {
@@ -234,35 +267,44 @@ public class MainActivity extends AppCompatActivity {
                         Log.d(TAG, "Connected to Device");
                     }
                     break;
-                case BluetoothComm.ACTION_DISCONNECTED:
+                case LampConnection.STATE_DISCONNECTED:
                     // Disable the disconnect, discover svc, discover char button, and enable the search button
                     disconnect_button.setEnabled(false);
                     discover_button.setEnabled(false);
                     search_button.setEnabled(true);
-                    // Turn off and disable the LED and CapSense switches
+                    // Turn off and disable the LED switch and the channel sliders
                     led_switch.setChecked(false);
                     led_switch.setEnabled(false);
+                    setSlidersEnabled(false);
                     mConnectState = false;
                     Log.d(TAG, "Disconnected");
                     break;
-                case BluetoothComm.ACTION_SERVICES_DISCOVERED:
+                case LampConnection.STATE_READY:
                     // Disable the discover services button
                     discover_button.setEnabled(false);
-                    // Enable the LED and CapSense switches
+                    // Enable the LED switch and the channel sliders
                     led_switch.setEnabled(true);
+                    setSlidersEnabled(true);
                     Log.d(TAG, "Services Discovered");
                     break;
-                case BluetoothComm.ACTION_DATA_RECEIVED:
-                    // This is called after a notify or a read completes
-                    // Check LED switch Setting
-                    if(mBluetoothComm.getLedSwitchState()){
-                        led_switch.setChecked(true);
-                    } else {
-                        led_switch.setChecked(false);
-                    }
                 default:
                     break;
             }
         }
+
+        @Override
+        public void onChannelState(BluetoothDevice device, LedFrame frame) {
+            // This is called when the lamp reports a state the app did not set, or a write was rolled back
+            if (mBluetoothComm == null || !mBluetoothComm.isActiveLamp(device)) {
+                return;
+            }
+            // Check LED switch Setting, the listeners ignore changes that do not come from the user
+            led_switch.setChecked(frame.getIntensity() != 0);
+            seekBarCW.setProgress(frame.get(LedFrame.CHANNEL_COOL_WHITE));
+            seekBarWW.setProgress(frame.get(LedFrame.CHANNEL_WARM_WHITE));
+            seekBarR.setProgress(frame.get(LedFrame.CHANNEL_RED));
+            seekBarG.setProgress(frame.get(LedFrame.CHANNEL_GREEN));
+            seekBarB.setProgress(frame.get(LedFrame.CHANNEL_BLUE));
+        }
     };
 }
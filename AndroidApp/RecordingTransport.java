@@ -0,0 +1,182 @@
+package com.example.seniorproject;
+
+import java.util.UUID;
+
+/**
+ * Puts a {@link CommandRecorder} between a LampConnection and its link. Every operation the
+ * connection starts and every callback of the link is recorded on the way through, nothing is
+ * changed. Costs next to nothing while the recorder is stopped.
+ */
+public class RecordingTransport implements LampTransport {
+
+    private final LampTransport mTransport;
+    private final CommandRecorder mRecorder;
+    private final int mLamp;
+    private volatile Callback mCallback;
+
+    public RecordingTransport(LampTransport transport, CommandRecorder recorder) {
+        mTransport = transport;
+        mRecorder = recorder;
+        mLamp = recorder.lampIndex(transport.getAddress());
+    }
+
+    //the link underneath
+    public LampTransport getTransport() {
+        return mTransport;
+    }
+
+    @Override
+    public String getAddress() {
+        return mTransport.getAddress();
+    }
+
+    @Override
+    public long getConnectionIntervalMicros() {
+        return mTransport.getConnectionIntervalMicros();
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+        mTransport.setCallback(callback != null ? mRecordingCallback : null);
+    }
+
+    @Override
+    public boolean connect(boolean autoConnect) {
+        mRecorder.record(CommandRecorder.OP_CONNECT, mLamp, autoConnect ? 1 : 0);
+        return started(CommandRecorder.OP_CONNECT, mTransport.connect(autoConnect));
+    }
+
+    @Override
+    public void disconnect() {
+        mRecorder.record(CommandRecorder.OP_DISCONNECT, mLamp);
+        mTransport.disconnect();
+    }
+
+    @Override
+    public void close() {
+        mTransport.close();
+    }
+
+    @Override
+    public boolean discoverServices() {
+        mRecorder.record(CommandRecorder.OP_DISCOVER, mLamp);
+        return started(CommandRecorder.OP_DISCOVER, mTransport.discoverServices());
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        mRecorder.record(CommandRecorder.OP_PRIORITY, mLamp, priority);
+        return started(CommandRecorder.OP_PRIORITY, mTransport.requestConnectionPriority(priority));
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        mRecorder.record(CommandRecorder.OP_MTU, mLamp, mtu);
+        return started(CommandRecorder.OP_MTU, mTransport.requestMtu(mtu));
+    }
+
+    @Override
+    public int resolveLed(UUID serviceUuid, UUID ledCharacteristicUuid) {
+        return mTransport.resolveLed(serviceUuid, ledCharacteristicUuid);
+    }
+
+    @Override
+    public boolean readLed() {
+        mRecorder.record(CommandRecorder.OP_READ, mLamp);
+        return started(CommandRecorder.OP_READ, mTransport.readLed());
+    }
+
+    @Override
+    public boolean enableLedNotifications() {
+        mRecorder.record(CommandRecorder.OP_NOTIFY, mLamp);
+        return started(CommandRecorder.OP_NOTIFY, mTransport.enableLedNotifications());
+    }
+
+    @Override
+    public boolean writeLed(byte[] value, boolean withResponse) {
+        // Recorded first, the callback may come before the link returns
+        mRecorder.recordValue(CommandRecorder.OP_WRITE, mLamp, withResponse ? 1 : 0, value);
+        return started(CommandRecorder.OP_WRITE, mTransport.writeLed(value, withResponse));
+    }
+
+    // Follows the record of an operation the link refused with an OP_REFUSED one
+    private boolean started(int type, boolean started) {
+        if (!started) {
+            mRecorder.record(CommandRecorder.OP_REFUSED, mLamp, type);
+        }
+        return started;
+    }
+
+    private final Callback mRecordingCallback = new Callback() {
+        @Override
+        public void onConnectionStateChange(int status, boolean connected) {
+            mRecorder.record(CommandRecorder.EVT_CONNECTION, mLamp, status, connected ? 1 : 0);
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onConnectionStateChange(status, connected);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(int status) {
+            mRecorder.record(CommandRecorder.EVT_DISCOVERED, mLamp, status);
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onServicesDiscovered(status);
+            }
+        }
+
+        // Recordings only hold the LED characteristic
+        @Override
+        public void onRead(int slot, int status, byte[] value) {
+            if (slot == LampCharacteristics.LED) {
+                mRecorder.recordValue(CommandRecorder.EVT_READ, mLamp, status, value);
+            }
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onRead(slot, status, value);
+            }
+        }
+
+        @Override
+        public void onWritten(int slot, int status) {
+            if (slot == LampCharacteristics.LED) {
+                mRecorder.record(CommandRecorder.EVT_WRITTEN, mLamp, status);
+            }
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onWritten(slot, status);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(int status, int mtu) {
+            mRecorder.record(CommandRecorder.EVT_MTU, mLamp, status, mtu);
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onMtuChanged(status, mtu);
+            }
+        }
+
+        @Override
+        public void onLedNotificationsEnabled(int status) {
+            mRecorder.record(CommandRecorder.EVT_NOTIFYING, mLamp, status);
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onLedNotificationsEnabled(status);
+            }
+        }
+
+        @Override
+        public void onChanged(int slot, byte[] value) {
+            if (slot == LampCharacteristics.LED) {
+                mRecorder.recordValue(CommandRecorder.EVT_CHANGED, mLamp, -1, value);
+            }
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onChanged(slot, value);
+            }
+        }
+    };
+}
@@ -0,0 +1,392 @@
+package com.example.seniorproject;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Keeps the last state of every lamp and the named scenes of the user in one small binary file,
+ * so a lamp the firmware reset on disconnect can be given its colors back on the next connect.
+ *
+ * The file is memory mapped. Opening it only checks the header, scenes are read out of the map
+ * when they are asked for, so a store with thousands of scenes costs no more to open than an
+ * empty one. Lamp states are updated in place in the map, which survives the app being killed
+ * and costs no system call. Adding or deleting a scene rewrites the file, which is rare.
+ *
+ * Layout, all numbers big endian:
+ * <pre>
+ * header  16 bytes  magic "LSCN", version, 0, lamp capacity (16 bit), lamp count (16 bit),
+ *                   0 (16 bit), scene count (32 bit)
+ * lamps   12 bytes each, lamp capacity of them: address (6), frame (6)
+ * scenes  32 bytes each: name length (1), UTF-8 name (25), frame (6)
+ * </pre>
+ * A frame is {CW,WW,R,G,B,Intensity}.
+ *
+ * Thread safe. Nothing is read or written before the first call that needs it.
+ */
+public class SceneStore {
+    private final static String TAG = SceneStore.class.getSimpleName();
+
+    public final static String FILE_NAME = "scenes.bin";
+
+    private final static int MAGIC = 0x4C53434E;
+    private final static int VERSION = 1;
+    private final static int HEADER_LENGTH = 16;
+    private final static int LAMP_CAPACITY_OFFSET = 6;
+    private final static int LAMP_COUNT_OFFSET = 8;
+    private final static int SCENE_COUNT_OFFSET = 12;
+
+    private final static int FRAME_LENGTH = LedFrame.CHANNEL_COUNT + 1;
+    private final static int ADDRESS_LENGTH = 6;
+    private final static int LAMP_RECORD_LENGTH = ADDRESS_LENGTH + FRAME_LENGTH;
+    private final static int SCENE_RECORD_LENGTH = 32;
+    public final static int MAX_NAME_LENGTH = SCENE_RECORD_LENGTH - 1 - FRAME_LENGTH;
+
+    // Lamps the file has room for when it is created, it grows when more are seen
+    private final static int INITIAL_LAMP_CAPACITY = 8;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+
+    // The mapped file, null before the first access and when there is no file yet
+    private MappedByteBuffer mMap;
+    private boolean mLoaded;
+    private int mLampCapacity;
+    private int mLampCount;
+    private int mSceneCount;
+
+    // Decoded names are copied out of the map here
+    private final byte[] mNameBuffer = new byte[MAX_NAME_LENGTH];
+
+    public SceneStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Copies the last state recorded for a lamp into {@code into}.
+     *
+     * @return false if nothing was recorded for it
+     */
+    public synchronized boolean getLampState(String address, LedFrame into) {
+        load();
+        int record = findLamp(parseAddress(address));
+        if (record < 0) {
+            return false;
+        }
+        readFrame(lampOffset(record) + ADDRESS_LENGTH, into);
+        return true;
+    }
+
+    /**
+     * Records the state a lamp was last set to. Cheap enough to call after every write, a lamp
+     * seen before is updated in place.
+     */
+    public synchronized void recordLampState(String address, LedFrame frame) {
+        long key = parseAddress(address);
+        if (key < 0) {
+            return;
+        }
+        load();
+        int record = findLamp(key);
+        if (record < 0) {
+            if (mMap == null || mLampCount == mLampCapacity) {
+                // Grow the lamp table, the rewrite keeps the scenes
+                if (!rewrite(Math.max(INITIAL_LAMP_CAPACITY, mLampCapacity * 2), null, -1)) {
+                    return;
+                }
+            }
+            record = mLampCount++;
+            int offset = lampOffset(record);
+            for (int i = 0; i < ADDRESS_LENGTH; i++) {
+                mMap.put(offset + i, (byte) (key >> (8 * (ADDRESS_LENGTH - 1 - i))));
+            }
+            mMap.putShort(LAMP_COUNT_OFFSET, (short) mLampCount);
+        }
+        writeFrame(lampOffset(record) + ADDRESS_LENGTH, frame);
+    }
+
+    public synchronized int getSceneCount() {
+        load();
+        return mSceneCount;
+    }
+
+    public synchronized String getSceneName(int index) {
+        load();
+        int offset = sceneOffset(index);
+        int length = mMap.get(offset) & 0xff;
+        for (int i = 0; i < length; i++) {
+            mNameBuffer[i] = mMap.get(offset + 1 + i);
+        }
+        return new String(mNameBuffer, 0, length, UTF_8);
+    }
+
+    //copies the frame of a scene into the given frame
+    public synchronized void getScene(int index, LedFrame into) {
+        load();
+        readFrame(sceneOffset(index) + 1 + MAX_NAME_LENGTH, into);
+    }
+
+    /**
+     * @return the index of the scene with the given name, -1 if there is none
+     */
+    public synchronized int findScene(String name) {
+        load();
+        byte[] encoded = name.getBytes(UTF_8);
+        if (encoded.length > MAX_NAME_LENGTH) {
+            return -1;
+        }
+        for (int index = 0; index < mSceneCount; index++) {
+            int offset = sceneOffset(index);
+            if ((mMap.get(offset) & 0xff) != encoded.length) {
+                continue;
+            }
+            int i = 0;
+            while (i < encoded.length && mMap.get(offset + 1 + i) == encoded[i]) {
+                i++;
+            }
+            if (i == encoded.length) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Saves a scene, replacing one of the same name.
+     *
+     * @param name at most MAX_NAME_LENGTH bytes of UTF-8
+     * @return false if the name is too long or the file could not be written
+     */
+    public synchronized boolean saveScene(String name, LedFrame frame) {
+        byte[] encoded = name.getBytes(UTF_8);
+        if (encoded.length == 0 || encoded.length > MAX_NAME_LENGTH) {
+            return false;
+        }
+        int index = findScene(name);
+        if (index >= 0) {
+            // Same size, changed in place
+            writeFrame(sceneOffset(index) + 1 + MAX_NAME_LENGTH, frame);
+            return true;
+        }
+        byte[] record = new byte[SCENE_RECORD_LENGTH];
+        record[0] = (byte) encoded.length;
+        System.arraycopy(encoded, 0, record, 1, encoded.length);
+        encodeFrame(frame, record, 1 + MAX_NAME_LENGTH);
+        return rewrite(Math.max(INITIAL_LAMP_CAPACITY, mLampCapacity), record, -1);
+    }
+
+    //removes a scene, returns false if there is none by that name
+    public synchronized boolean deleteScene(String name) {
+        int index = findScene(name);
+        return index >= 0 && rewrite(mLampCapacity, null, index);
+    }
+
+    /**
+     * Writes the lamp states updated in place out to the file. They survive the app being killed
+     * without this, but not the phone losing power.
+     */
+    public synchronized void flush() {
+        if (mMap != null) {
+            mMap.force();
+        }
+    }
+
+    // Maps the file on the first access. A missing or damaged file leaves the store empty
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+        if (!map()) {
+            Log.w(TAG, "Ignoring damaged scene store " + mFile);
+            mMap = null;
+            mLampCapacity = 0;
+            mLampCount = 0;
+            mSceneCount = 0;
+        }
+    }
+
+    private boolean map() {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            long size = file.length();
+            if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+                return false;
+            }
+            mMap = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (mMap.getInt(0) != MAGIC || mMap.get(4) != VERSION) {
+                return false;
+            }
+            mLampCapacity = mMap.getShort(LAMP_CAPACITY_OFFSET) & 0xffff;
+            mLampCount = mMap.getShort(LAMP_COUNT_OFFSET) & 0xffff;
+            mSceneCount = mMap.getInt(SCENE_COUNT_OFFSET);
+            return mLampCount <= mLampCapacity && mSceneCount >= 0
+                    && size == HEADER_LENGTH + (long) mLampCapacity * LAMP_RECORD_LENGTH
+                    + (long) mSceneCount * SCENE_RECORD_LENGTH;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not map " + mFile + ": " + e.getMessage());
+            return false;
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * Writes a new file next to the old one and moves it over, so a crash leaves one or the other.
+     *
+     * @param lampCapacity size of the lamp table of the new file
+     * @param addedScene   record appended to the scenes, null for none
+     * @param deletedScene index of a scene left out, -1 for none
+     */
+    private boolean rewrite(int lampCapacity, byte[] addedScene, int deletedScene) {
+        int scenes = mSceneCount + (addedScene != null ? 1 : 0) - (deletedScene >= 0 ? 1 : 0);
+        ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + lampCapacity * LAMP_RECORD_LENGTH
+                + scenes * SCENE_RECORD_LENGTH);
+        out.putInt(MAGIC);
+        out.put((byte) VERSION);
+        out.put((byte) 0);
+        out.putShort((short) lampCapacity);
+        out.putShort((short) mLampCount);
+        out.putShort((short) 0);
+        out.putInt(scenes);
+        for (int i = 0; i < mLampCount * LAMP_RECORD_LENGTH; i++) {
+            out.put(mMap.get(HEADER_LENGTH + i));
+        }
+        out.position(HEADER_LENGTH + lampCapacity * LAMP_RECORD_LENGTH);
+        for (int index = 0; index < mSceneCount; index++) {
+            if (index == deletedScene) {
+                continue;
+            }
+            int offset = sceneOffset(index);
+            for (int i = 0; i < SCENE_RECORD_LENGTH; i++) {
+                out.put(mMap.get(offset + i));
+            }
+        }
+        if (addedScene != null) {
+            out.put(addedScene);
+        }
+        out.flip();
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(temp, "rw");
+            file.setLength(0);
+            while (out.hasRemaining()) {
+                file.getChannel().write(out);
+            }
+            file.getChannel().force(true);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + temp + ": " + e.getMessage());
+            closeQuietly(file);
+            temp.delete();
+            return false;
+        }
+        closeQuietly(file);
+        if (!temp.renameTo(mFile)) {
+            Log.w(TAG, "Could not replace " + mFile);
+            temp.delete();
+            return false;
+        }
+        if (!map()) {
+            Log.w(TAG, "Could not map the rewritten " + mFile);
+            mMap = null;
+            return false;
+        }
+        return true;
+    }
+
+    // Index of the lamp record with the given address, -1 if there is none
+    private int findLamp(long key) {
+        if (key < 0) {
+            return -1;
+        }
+        for (int record = 0; record < mLampCount; record++) {
+            int offset = lampOffset(record);
+            long stored = 0;
+            for (int i = 0; i < ADDRESS_LENGTH; i++) {
+                stored = stored << 8 | (mMap.get(offset + i) & 0xff);
+            }
+            if (stored == key) {
+                return record;
+            }
+        }
+        return -1;
+    }
+
+    private int lampOffset(int record) {
+        return HEADER_LENGTH + record * LAMP_RECORD_LENGTH;
+    }
+
+    private int sceneOffset(int index) {
+        if (index < 0 || index >= mSceneCount) {
+            throw new IndexOutOfBoundsException("Scene " + index + " of " + mSceneCount);
+        }
+        return HEADER_LENGTH + mLampCapacity * LAMP_RECORD_LENGTH + index * SCENE_RECORD_LENGTH;
+    }
+
+    private void readFrame(int offset, LedFrame into) {
+        for (int i = 0; i < LedFrame.CHANNEL_COUNT; i++) {
+            into.set(i, mMap.get(offset + i) & 0xff);
+        }
+        into.setIntensity(mMap.get(offset + LedFrame.CHANNEL_COUNT) & 0xff);
+    }
+
+    private void writeFrame(int offset, LedFrame frame) {
+        for (int i = 0; i < LedFrame.CHANNEL_COUNT; i++) {
+            mMap.put(offset + i, (byte) frame.get(i));
+        }
+        mMap.put(offset + LedFrame.CHANNEL_COUNT, (byte) frame.getIntensity());
+    }
+
+    private static void encodeFrame(LedFrame frame, byte[] out, int offset) {
+        for (int i = 0; i < LedFrame.CHANNEL_COUNT; i++) {
+            out[offset + i] = (byte) frame.get(i);
+        }
+        out[offset + LedFrame.CHANNEL_COUNT] = (byte) frame.getIntensity();
+    }
+
+    // "AA:BB:CC:DD:EE:FF" as a 48 bit number, -1 if it is not an address. Does not allocate
+    static long parseAddress(String address) {
+        if (address == null || address.length() != 17) {
+            return -1;
+        }
+        long key = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return -1;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return -1;
+            }
+            key = key << 4 | digit;
+        }
+        return key;
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            // Nothing to do, the data is written or the error was reported already
+        }
+    }
+}
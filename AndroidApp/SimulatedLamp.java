@@ -0,0 +1,1107 @@
+package com.example.seniorproject;
+
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plain Java model of the lamp firmware behind a LampTransport, so the command path can be run,
+ * loaded and benchmarked on a desktop JVM without a phone or the kit.
+ *
+ * The firmware side follows BLEApplications.c: writes to the LED characteristic go through
+ * HandleRGBWrite and UpdateRGBled, with the intensity scaling and the shutdown below
+ * LED_NO_COLOR_THRESHOLD, and a disconnect resets the color. The link is modeled per connection
+ * event. Packets the client queues go out at the next event, a few per event, and requests are
+ * answered one event later. The client side only buffers a few packets, so writing faster than the
+ * link can carry gets refused the way BluetoothGatt refuses it when busy. The connection starts at
+ * the central's default interval. UpdateConnectionParam then asks for the active interval while
+ * writes come in and for the idle one after CONN_PARAM_IDLE_LOOPS events without any, and the phone
+ * can ask for its own with requestConnectionPriority. The last request wins. Values longer than
+ * one link layer packet are split over several, so a long write may take more than one event.
+ * Batched writes are played out one connection event at a time like HandleLedBatch does. A client
+ * that subscribed through the CCCD is notified of RGBledData by SendRGBNotification, at most once
+ * per event and only when it changed, in the event after the change. Fade writes are stepped by a
+ * timer standing in for WDT counter 0, every LED_FADE_TICK_MS like HandleLedFade. Timed fade
+ * writes start their fade after the delay on another timer, for WDT counter 1 with an ILO that
+ * was measured exactly.
+ *
+ * Callbacks and the Observer run on the simulator's timer thread.
+ */
+public class SimulatedLamp implements LampTransport {
+
+    // Firmware constants, see main.h and BLEApplications.h
+    public final static int RGB_CHAR_DATA_LEN = 4;
+    public final static int RED_INDEX = 0;
+    public final static int GREEN_INDEX = 1;
+    public final static int BLUE_INDEX = 2;
+    public final static int INTENSITY_INDEX = 3;
+    public final static int RGB_LED_MAX_VAL = 255;
+    public final static int RGB_LED_OFF = 255;
+    public final static int LED_NO_COLOR_THRESHOLD = 0x04;
+    public final static int CONN_PARAM_UPDATE_MIN_CONN_INTERVAL = 50;
+    public final static int CONN_PARAM_UPDATE_MAX_CONN_INTERVAL = 52;
+    public final static int CONN_PARAM_ACTIVE_MIN_CONN_INTERVAL = 9;
+    public final static int CONN_PARAM_ACTIVE_MAX_CONN_INTERVAL = 12;
+    public final static int CONN_PARAM_IDLE_LOOPS = 240;
+    public final static int CYBLE_GATT_MTU = 247;
+    public final static int LED_BATCH_FORMAT = 3;
+    public final static int LED_BATCH_HEADER_LEN = 2;
+    public final static int LED_BATCH_RECORD_HEADER_LEN = 2;
+    public final static int LED_BATCH_CHANNELS = 6;
+    public final static int LED_FADE_FORMAT = 4;
+    public final static int LED_FADE_LEN = 7;
+    public final static int LED_FADE_COLOR_INDEX = 1;
+    public final static int LED_FADE_DURATION_INDEX = 5;
+    public final static int LED_FADE_TIME_UNIT_MS = 10;
+    public final static int LED_FADE_TICK_MS = 20;
+    public final static int LED_TIMED_FADE_FORMAT = 5;
+    public final static int LED_TIMED_FADE_LEN = 9;
+    public final static int LED_TIMED_FADE_DELAY_INDEX = 7;
+    public final static int LED_TIMED_FADE_MAX_DELAY_MS = 2000;
+
+    // Connection intervals are counted in units of 1.25 ms
+    public final static long CONN_INTERVAL_UNIT_MICROS = 1250;
+    // Interval the phone uses until the lamp asks for its own
+    public final static int DEFAULT_INITIAL_CONN_INTERVAL = 24;
+    public final static int DEFAULT_TX_BUFFER_PACKETS = 4;
+    public final static int DEFAULT_PACKETS_PER_EVENT = 4;
+    public final static long DEFAULT_CONNECT_DELAY_MICROS = 30000;
+
+    // Intervals the phone picks for requestConnectionPriority()
+    public final static int HIGH_PRIORITY_CONN_INTERVAL = 9;
+    public final static int BALANCED_CONN_INTERVAL = 24;
+    public final static int LOW_POWER_CONN_INTERVAL = 80;
+
+    // Connection events until the requested parameters take effect
+    private final static int PARAM_UPDATE_EVENTS = 6;
+    // Round trips service discovery takes on the lamp's GATT database
+    private final static int DISCOVERY_ROUND_TRIPS = 5;
+    // Link layer payload of one packet, and the L2CAP and ATT headers a write adds to its value
+    private final static int LL_PAYLOAD_LEN = 27;
+    private final static int WRITE_OVERHEAD_LEN = 7;
+    // Status reported when the link is lost, the supervision timeout
+    public final static int STATUS_CONNECTION_TIMEOUT = 0x08;
+    // ATT error for a write to a descriptor the lamp does not have
+    public final static int STATUS_INVALID_HANDLE = 0x01;
+
+    // Packet and response types
+    private final static int NONE = 0;
+    private final static int WRITE_REQ = 1;
+    private final static int WRITE_CMD = 2;
+    private final static int READ_REQ = 3;
+    private final static int DISCOVERY = 4;
+    private final static int MTU_REQ = 5;
+    private final static int CCCD_WRITE = 6;
+
+    // Parameter sets UpdateConnectionParam asks for, CONN_PARAM_SET_ in BLEApplications.h
+    private final static int PARAM_SET_NONE = 0;
+    private final static int PARAM_SET_ACTIVE = 1;
+    private final static int PARAM_SET_IDLE = 2;
+
+    // Link states
+    private final static int LINK_DISCONNECTED = 0;
+    private final static int LINK_CONNECTING = 1;
+    private final static int LINK_CONNECTED = 2;
+
+    /**
+     * Watches the firmware. Called on the simulator thread with the lamp locked, must not call
+     * back into the transport methods.
+     */
+    public interface Observer {
+        //the output was set by UpdateRGBled or a fade step, see getPwmCompare() and isLedShutDown()
+        void onLedUpdated(SimulatedLamp lamp);
+    }
+
+    private final String mAddress;
+    private final ScheduledExecutorService mScheduler;
+    private final boolean mOwnsScheduler;
+    private volatile Callback mCallback;
+    private Observer mObserver;
+
+    // Configuration
+    private boolean mWriteWithoutResponse = true;
+    private int mPacketsPerEvent = DEFAULT_PACKETS_PER_EVENT;
+    private int mInitialInterval = DEFAULT_INITIAL_CONN_INTERVAL;
+    private int mRequestedInterval = CONN_PARAM_UPDATE_MIN_CONN_INTERVAL;
+    private int mActiveInterval = CONN_PARAM_ACTIVE_MIN_CONN_INTERVAL;
+    private long mConnectDelayMicros = DEFAULT_CONNECT_DELAY_MICROS;
+    private int mMaxMtu = CYBLE_GATT_MTU;
+    private boolean mNotifySupported = true;
+
+    // Firmware state, RGBledData and the PrISM compare values for R, G and B
+    private final int[] mRgbLedData = new int[RGB_CHAR_DATA_LEN];
+    private final int[] mPwmCompare = {RGB_LED_OFF, RGB_LED_OFF, RGB_LED_OFF};
+    private boolean mShutDownLed = true;
+    private boolean mDriveStrong = true;
+
+    // HandleLedBatch state, the batch being played, the next record and the events until it is due
+    private byte[] mLedBatch = new byte[CYBLE_GATT_MTU - LampTransport.ATT_WRITE_HEADER_LENGTH];
+    private int mLedBatchLen;
+    private int mLedBatchIndex;
+    private int mLedBatchRecords;
+    private int mLedBatchLoops;
+
+    // HandleLedFade state, the color the fade started from and the one shown at the last step, the
+    // length and progress of the fade in timer ticks, and the timer, null when no fade is playing
+    private final int[] mLedFadeStart = new int[RGB_CHAR_DATA_LEN];
+    private final int[] mLedFadeLevel = new int[RGB_CHAR_DATA_LEN];
+    private int mLedFadeTotalTicks;
+    private int mLedFadeElapsedTicks;
+    private ScheduledFuture<?> mLedFadeTask;
+    // Fade of a timed fade write waiting for its delay
+    private final byte[] mLedFadeScheduled = new byte[LED_FADE_LEN];
+    private ScheduledFuture<?> mLedFadeScheduleTask;
+
+    // SendRGBNotification state, the subscription and RGBledData as the client last heard it
+    private boolean mRgbNotificationsEnabled;
+    private boolean mRgbNotificationPending;
+    private final int[] mNotifiedRgbLedData = new int[RGB_CHAR_DATA_LEN];
+    // Notification the lamp queued for the next event, and the one being delivered
+    private boolean mNotificationQueued;
+    private final byte[] mQueuedNotification = new byte[RGB_CHAR_DATA_LEN];
+    private final byte[] mNotification = new byte[RGB_CHAR_DATA_LEN];
+
+    // Link state
+    private int mLinkState = LINK_DISCONNECTED;
+    private boolean mAutoConnect;
+    private boolean mDiscovered;
+    private int mInterval;
+    private int mMtu = DEFAULT_MTU;
+    private int mRequestedMtu;
+    private long mEventCounter;
+    private ScheduledFuture<?> mEventTask;
+    // System.nanoTime() of the next connection event, of the current one while it runs. Events
+    // are one interval apart from the last one's anchor, not from when the timer got to run it,
+    // like the link layer keeps them
+    private long mNextEventNanos;
+
+    // Connection parameter state of UpdateConnectionParam, and the next interval change from either side
+    private int mParamSet;
+    private int mIdleLoops;
+    private boolean mParamRequestPending;
+    private long mParamResponseEvent;
+    private int mPendingInterval;
+    private long mPendingIntervalEvent;
+
+    // Packets waiting in the phone's controller, a ring buffer
+    private int[] mPacketType;
+    private byte[][] mPacketValue;
+    private int[] mPacketLength;
+    // System.nanoTime() each packet was queued at
+    private long[] mPacketQueuedNanos;
+    private int mTxHead;
+    private int mTxCount;
+    // Link layer packets of the oldest one already sent
+    private int mTxHeadSent;
+
+    // The one request in flight and the event its response is due in
+    private boolean mRequestOutstanding;
+    private int mResponseType = NONE;
+    private long mResponseEvent;
+    private final byte[] mReadResponse = new byte[RGB_CHAR_DATA_LEN];
+    private int mCccdStatus;
+
+    // Counters
+    private long mWriteRequests;
+    private long mWriteCommands;
+    private long mIgnoredCommands;
+    private long mReads;
+    private long mBusyRefusals;
+    private long mLedUpdates;
+    private long mBatches;
+    private long mFades;
+    private long mTimedFades;
+    private long mNotifications;
+    private long mConnectionEvents;
+    private long mIntervalChanges;
+
+    /**
+     * Creates a lamp with its own timer thread, release it with shutdown().
+     */
+    public SimulatedLamp(String address) {
+        this(address, Executors.newSingleThreadScheduledExecutor(), true);
+    }
+
+    /**
+     * @param scheduler timer thread for the link, must run one task at a time
+     */
+    public SimulatedLamp(String address, ScheduledExecutorService scheduler) {
+        this(address, scheduler, false);
+    }
+
+    private SimulatedLamp(String address, ScheduledExecutorService scheduler, boolean ownsScheduler) {
+        mAddress = address;
+        mScheduler = scheduler;
+        mOwnsScheduler = ownsScheduler;
+        setTxBufferPackets(DEFAULT_TX_BUFFER_PACKETS);
+    }
+
+    public synchronized void setObserver(Observer observer) {
+        mObserver = observer;
+    }
+
+    //whether the LED characteristic has the Write Without Response property
+    public synchronized void setWriteWithoutResponseSupported(boolean supported) {
+        mWriteWithoutResponse = supported;
+    }
+
+    //packets the phone's controller buffers before writes are refused
+    public synchronized void setTxBufferPackets(int packets) {
+        mPacketType = new int[packets];
+        mPacketValue = new byte[packets][mMaxMtu - ATT_WRITE_HEADER_LENGTH];
+        mPacketLength = new int[packets];
+        mPacketQueuedNanos = new long[packets];
+        mTxHead = 0;
+        mTxCount = 0;
+    }
+
+    //whether the LED characteristic has the Notify property, and with it a CCCD
+    public synchronized void setNotifySupported(boolean supported) {
+        mNotifySupported = supported;
+    }
+
+    //MTU the BLE component is configured for, the link uses the smaller of this and the phone's
+    public synchronized void setMaxMtu(int mtu) {
+        mMaxMtu = mtu;
+        mLedBatch = new byte[mtu - ATT_WRITE_HEADER_LENGTH];
+        setTxBufferPackets(mPacketType.length);
+    }
+
+    //link layer packets the link carries in one connection event
+    public synchronized void setPacketsPerEvent(int packets) {
+        mPacketsPerEvent = packets;
+    }
+
+    /**
+     * @param initialUnits   interval the phone connects with, in 1.25 ms units
+     * @param requestedUnits interval the firmware asks for when the link is idle, in 1.25 ms units
+     */
+    public synchronized void setConnectionIntervals(int initialUnits, int requestedUnits) {
+        mInitialInterval = initialUnits;
+        mRequestedInterval = requestedUnits;
+    }
+
+    //interval the firmware asks for while writes come in, in 1.25 ms units
+    public synchronized void setActiveConnectionInterval(int units) {
+        mActiveInterval = units;
+    }
+
+    //time from connect() until the link is up, one advertising interval or so
+    public synchronized void setConnectDelay(long micros) {
+        mConnectDelayMicros = micros;
+    }
+
+    public void shutdown() {
+        close();
+        if (mOwnsScheduler) {
+            mScheduler.shutdownNow();
+        }
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public synchronized boolean connect(boolean autoConnect) {
+        mAutoConnect = autoConnect;
+        if (mLinkState == LINK_DISCONNECTED) {
+            mLinkState = LINK_CONNECTING;
+            mScheduler.schedule(mLinkUp, mConnectDelayMicros, TimeUnit.MICROSECONDS);
+        }
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        mScheduler.execute(mDisconnect);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            mAutoConnect = false;
+            linkDown();
+        }
+    }
+
+    /**
+     * Drops the link as if the lamp went out of range. Reconnects by itself with autoConnect.
+     */
+    public void simulateLinkLoss() {
+        boolean reconnect;
+        synchronized (this) {
+            if (mLinkState != LINK_CONNECTED) {
+                return;
+            }
+            linkDown();
+            reconnect = mAutoConnect;
+            if (reconnect) {
+                mLinkState = LINK_CONNECTING;
+                mScheduler.schedule(mLinkUp, mConnectDelayMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+        Callback callback = mCallback;
+        if (callback != null) {
+            callback.onConnectionStateChange(STATUS_CONNECTION_TIMEOUT, false);
+        }
+    }
+
+    /**
+     * Changes RGBledData on the lamp's side, as a write from another phone would. Runs through
+     * HandleRGBWrite at the next connection event, a subscribed client hears about it after that.
+     */
+    public void simulateExternalWrite(byte[] value) {
+        final byte[] copy = value.clone();
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedLamp.this) {
+                    if (mLinkState == LINK_CONNECTED) {
+                        handleRgbWrite(copy, copy.length);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized boolean discoverServices() {
+        if (mLinkState != LINK_CONNECTED || mRequestOutstanding) {
+            return false;
+        }
+        mRequestOutstanding = true;
+        mResponseType = DISCOVERY;
+        mResponseEvent = mEventCounter + DISCOVERY_ROUND_TRIPS;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestConnectionPriority(int priority) {
+        if (mLinkState != LINK_CONNECTED) {
+            return false;
+        }
+        switch (priority) {
+            case CONNECTION_PRIORITY_HIGH:
+                changeInterval(HIGH_PRIORITY_CONN_INTERVAL);
+                break;
+            case CONNECTION_PRIORITY_LOW_POWER:
+                changeInterval(LOW_POWER_CONN_INTERVAL);
+                break;
+            default:
+                changeInterval(BALANCED_CONN_INTERVAL);
+                break;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestMtu(int mtu) {
+        if (!canSend() || mRequestOutstanding) {
+            return false;
+        }
+        mRequestOutstanding = true;
+        mRequestedMtu = mtu;
+        // The exchange is a request and response like a read
+        queuePacket(MTU_REQ, null);
+        return true;
+    }
+
+    @Override
+    public synchronized int resolveLed(UUID serviceUuid, UUID ledCharacteristicUuid) {
+        if (!mDiscovered || !LED_SERVICE_UUID.equals(serviceUuid)
+                || !LED_CHARACTERISTIC_UUID.equals(ledCharacteristicUuid)) {
+            return -1;
+        }
+        return PROPERTY_READ | PROPERTY_WRITE | (mWriteWithoutResponse ? PROPERTY_WRITE_NO_RESPONSE : 0)
+                | (mNotifySupported ? PROPERTY_NOTIFY : 0);
+    }
+
+    @Override
+    public synchronized boolean readLed() {
+        if (!canSend() || mRequestOutstanding) {
+            return false;
+        }
+        mRequestOutstanding = true;
+        queuePacket(READ_REQ, null);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean enableLedNotifications() {
+        if (!canSend() || mRequestOutstanding) {
+            return false;
+        }
+        mRequestOutstanding = true;
+        queuePacket(CCCD_WRITE, null);
+        return true;
+    }
+
+    @Override
+    public boolean writeLed(byte[] value, boolean withResponse) {
+        synchronized (this) {
+            if (!canSend() || mRequestOutstanding || value.length > mMtu - ATT_WRITE_HEADER_LENGTH) {
+                return false;
+            }
+            if (withResponse) {
+                mRequestOutstanding = true;
+                queuePacket(WRITE_REQ, value);
+                return true;
+            }
+            queuePacket(WRITE_CMD, value);
+        }
+        // The phone reports a write command done as soon as its controller has taken it
+        mScheduler.execute(mCommandAccepted);
+        return true;
+    }
+
+    public synchronized boolean isConnected() {
+        return mLinkState == LINK_CONNECTED;
+    }
+
+    //current connection interval in microseconds
+    @Override
+    public synchronized long getConnectionIntervalMicros() {
+        return mInterval * CONN_INTERVAL_UNIT_MICROS;
+    }
+
+    //RGBledData byte, one of the _INDEX constants
+    public synchronized int getRgbLedData(int index) {
+        return mRgbLedData[index];
+    }
+
+    //PrISM compare value of the RED_, GREEN_ or BLUE_INDEX output, the LEDs are active low
+    public synchronized int getPwmCompare(int index) {
+        return mPwmCompare[index];
+    }
+
+    //shut_down_led, true while the LED pins are in HiZ and the chip may deep sleep
+    public synchronized boolean isLedShutDown() {
+        return mShutDownLed;
+    }
+
+    //level the LED output actually shows, 0 when shut down
+    public synchronized int getOutputLevel(int index) {
+        return mDriveStrong ? RGB_LED_MAX_VAL - mPwmCompare[index] : 0;
+    }
+
+    public synchronized long getWriteRequestCount() {
+        return mWriteRequests;
+    }
+
+    public synchronized long getWriteCommandCount() {
+        return mWriteCommands;
+    }
+
+    //write commands dropped because the characteristic does not have Write Without Response
+    public synchronized long getIgnoredCommandCount() {
+        return mIgnoredCommands;
+    }
+
+    public synchronized long getReadCount() {
+        return mReads;
+    }
+
+    //writes refused because the controller buffer was full
+    public synchronized long getBusyCount() {
+        return mBusyRefusals;
+    }
+
+    public synchronized long getLedUpdateCount() {
+        return mLedUpdates;
+    }
+
+    //batched writes received
+    public synchronized long getBatchCount() {
+        return mBatches;
+    }
+
+    //fades started, by fade writes and by timed fade writes whose delay is over
+    public synchronized long getFadeCount() {
+        return mFades;
+    }
+
+    //timed fade writes received
+    public synchronized long getTimedFadeCount() {
+        return mTimedFades;
+    }
+
+    //whether a fade is being played out
+    public synchronized boolean isFading() {
+        return mLedFadeTask != null;
+    }
+
+    //notifications of RGBledData sent to the client
+    public synchronized long getNotificationCount() {
+        return mNotifications;
+    }
+
+    //MTU the link uses
+    public synchronized int getMtu() {
+        return mMtu;
+    }
+
+    public synchronized long getConnectionEventCount() {
+        return mConnectionEvents;
+    }
+
+    //times the connection interval changed, from either side
+    public synchronized long getIntervalChangeCount() {
+        return mIntervalChanges;
+    }
+
+    private boolean canSend() {
+        if (mLinkState != LINK_CONNECTED || !mDiscovered) {
+            return false;
+        }
+        if (mTxCount == mPacketType.length) {
+            mBusyRefusals++;
+            return false;
+        }
+        return true;
+    }
+
+    private void queuePacket(int type, byte[] value) {
+        int slot = (mTxHead + mTxCount) % mPacketType.length;
+        mPacketType[slot] = type;
+        if (value != null) {
+            System.arraycopy(value, 0, mPacketValue[slot], 0, value.length);
+            mPacketLength[slot] = value.length;
+        } else {
+            mPacketLength[slot] = 0;
+        }
+        mPacketQueuedNanos[slot] = System.nanoTime();
+        mTxCount++;
+    }
+
+    // Sends what fits into one connection event, a long write may only be complete in a later one.
+    // A packet queued after the event's anchor waits for the next event, even if the timer got to
+    // run this one late
+    private void receivePackets() {
+        int budget = mPacketsPerEvent;
+        while (budget > 0 && mTxCount > 0 && mPacketQueuedNanos[mTxHead] - mNextEventNanos <= 0) {
+            int needed = (mPacketLength[mTxHead] + WRITE_OVERHEAD_LEN + LL_PAYLOAD_LEN - 1) / LL_PAYLOAD_LEN
+                    - mTxHeadSent;
+            if (needed > budget) {
+                mTxHeadSent += budget;
+                return;
+            }
+            budget -= needed;
+            mTxHeadSent = 0;
+            receivePacket();
+        }
+    }
+
+    // The lamp receives the oldest packet
+    private void receivePacket() {
+        int slot = mTxHead;
+        mTxHead = (mTxHead + 1) % mPacketType.length;
+        mTxCount--;
+        switch (mPacketType[slot]) {
+            case WRITE_REQ:
+                // CYBLE_EVT_GATTS_WRITE_REQ, the response goes back in the next event
+                mWriteRequests++;
+                handleRgbWrite(mPacketValue[slot], mPacketLength[slot]);
+                mResponseType = WRITE_REQ;
+                mResponseEvent = mEventCounter + 1;
+                break;
+            case WRITE_CMD:
+                // CYBLE_EVT_GATTS_WRITE_CMD_REQ, only delivered if the property is set
+                if (mWriteWithoutResponse) {
+                    mWriteCommands++;
+                    handleRgbWrite(mPacketValue[slot], mPacketLength[slot]);
+                } else {
+                    mIgnoredCommands++;
+                }
+                break;
+            case READ_REQ:
+                // The stack answers from the attribute value UpdateRGBled stored
+                mReads++;
+                for (int i = 0; i < RGB_CHAR_DATA_LEN; i++) {
+                    mReadResponse[i] = (byte) mRgbLedData[i];
+                }
+                mResponseType = READ_REQ;
+                mResponseEvent = mEventCounter + 1;
+                break;
+            case CCCD_WRITE:
+                // CYBLE_EVT_GATTS_WRITE_REQ on the CCCD, HandleRGBCccdWrite
+                if (mNotifySupported) {
+                    mRgbNotificationsEnabled = true;
+                    mRgbNotificationPending = true;
+                    mCccdStatus = GATT_SUCCESS;
+                } else {
+                    mCccdStatus = STATUS_INVALID_HANDLE;
+                }
+                mResponseType = CCCD_WRITE;
+                mResponseEvent = mEventCounter + 1;
+                break;
+            case MTU_REQ:
+                // The stack answers the exchange with the MTU of the BLE component
+                mMtu = Math.max(DEFAULT_MTU, Math.min(mRequestedMtu, mMaxMtu));
+                mResponseType = MTU_REQ;
+                mResponseEvent = mEventCounter + 1;
+                break;
+            default:
+                break;
+        }
+    }
+
+    // HandleRGBWrite, only a complete frame is applied and longer values may be a batch or a fade
+    // or are ignored
+    private void handleRgbWrite(byte[] value, int length) {
+        if (length < RGB_CHAR_DATA_LEN) {
+            return;
+        }
+        mIdleLoops = 0;
+        if (length > RGB_CHAR_DATA_LEN && value[0] == LED_BATCH_FORMAT) {
+            stopLedFade();
+            cancelLedFadeSchedule();
+            startLedBatch(value, length);
+            return;
+        }
+        if (length == LED_FADE_LEN && value[0] == LED_FADE_FORMAT) {
+            cancelLedFadeSchedule();
+            startLedFade(value);
+            return;
+        }
+        if (length == LED_TIMED_FADE_LEN && value[0] == LED_TIMED_FADE_FORMAT) {
+            scheduleLedFade(value);
+            return;
+        }
+        if (length > RGB_CHAR_DATA_LEN) {
+            // A format the firmware does not know, e.g. an RGBW frame
+            return;
+        }
+        mLedBatchRecords = 0;
+        stopLedFade();
+        cancelLedFadeSchedule();
+        mRgbLedData[RED_INDEX] = value[RED_INDEX] & 0xFF;
+        mRgbLedData[GREEN_INDEX] = value[GREEN_INDEX] & 0xFF;
+        mRgbLedData[BLUE_INDEX] = value[BLUE_INDEX] & 0xFF;
+        mRgbLedData[INTENSITY_INDEX] = value[INTENSITY_INDEX] & 0xFF;
+        updateRgbLed();
+    }
+
+    // StartLedBatch, the newest write replaces a batch that is still playing
+    private void startLedBatch(byte[] value, int length) {
+        mLedBatchRecords = 0;
+        if (length <= LED_BATCH_HEADER_LEN || length > mLedBatch.length) {
+            return;
+        }
+        mBatches++;
+        System.arraycopy(value, 0, mLedBatch, 0, length);
+        mLedBatchLen = length;
+        mLedBatchIndex = LED_BATCH_HEADER_LEN;
+        mLedBatchRecords = mLedBatch[1] & 0xFF;
+        if (mLedBatchRecords > 0) {
+            if (mLedBatch[mLedBatchIndex] == 0) {
+                applyDueLedBatchRecords();
+            } else {
+                mLedBatchLoops = mLedBatch[mLedBatchIndex] & 0xFF;
+            }
+        }
+    }
+
+    // HandleLedBatch, runs at the start of every connection event before the packets arrive
+    private void handleLedBatch() {
+        if (mLedBatchRecords == 0) {
+            return;
+        }
+        if (mLedBatchLoops > 0) {
+            mLedBatchLoops--;
+        }
+        if (mLedBatchLoops == 0) {
+            applyDueLedBatchRecords();
+        }
+    }
+
+    // ApplyDueLedBatchRecords, the next record and those with no delay after it, one LED update
+    private void applyDueLedBatchRecords() {
+        do {
+            if (!applyLedBatchRecord()) {
+                mLedBatchRecords = 0;
+            }
+        } while (mLedBatchRecords > 0 && mLedBatchIndex < mLedBatchLen && mLedBatch[mLedBatchIndex] == 0);
+        updateRgbLed();
+        if (mLedBatchRecords > 0 && mLedBatchIndex < mLedBatchLen) {
+            mLedBatchLoops = mLedBatch[mLedBatchIndex] & 0xFF;
+        } else {
+            mLedBatchRecords = 0;
+        }
+    }
+
+    // ApplyLedBatchRecord, the first four mask bits are in RGBledData order, white is skipped
+    private boolean applyLedBatchRecord() {
+        int index = mLedBatchIndex + LED_BATCH_RECORD_HEADER_LEN;
+        if (index > mLedBatchLen) {
+            return false;
+        }
+        int mask = mLedBatch[mLedBatchIndex + 1];
+        for (int channel = 0; channel < LED_BATCH_CHANNELS; channel++) {
+            if ((mask & (1 << channel)) != 0) {
+                if (index >= mLedBatchLen) {
+                    return false;
+                }
+                if (channel <= INTENSITY_INDEX) {
+                    mRgbLedData[channel] = mLedBatch[index] & 0xFF;
+                }
+                index++;
+            }
+        }
+        mLedBatchIndex = index;
+        mLedBatchRecords--;
+        return true;
+    }
+
+    // UpdateConnectionParam, the main loop runs it once per connection event
+    private void updateConnectionParam() {
+        if (mIdleLoops < CONN_PARAM_IDLE_LOOPS) {
+            mIdleLoops++;
+        }
+        int wanted = mIdleLoops < CONN_PARAM_IDLE_LOOPS ? PARAM_SET_ACTIVE : PARAM_SET_IDLE;
+        if (wanted != mParamSet && !mParamRequestPending) {
+            mParamSet = wanted;
+            mParamRequestPending = true;
+            mParamResponseEvent = mEventCounter + PARAM_UPDATE_EVENTS;
+            changeInterval(wanted == PARAM_SET_ACTIVE ? mActiveInterval : mRequestedInterval);
+        }
+    }
+
+    // SendRGBNotification, runs at the end of the main loop pass. The notification goes out in the
+    // next connection event
+    private void sendRgbNotification() {
+        if (!mRgbNotificationsEnabled || !mRgbNotificationPending || mNotificationQueued) {
+            return;
+        }
+        for (int i = 0; i < RGB_CHAR_DATA_LEN; i++) {
+            mQueuedNotification[i] = (byte) mRgbLedData[i];
+            mNotifiedRgbLedData[i] = mRgbLedData[i];
+        }
+        mNotificationQueued = true;
+        mRgbNotificationPending = false;
+    }
+
+    private void changeInterval(int units) {
+        mPendingInterval = units;
+        mPendingIntervalEvent = mEventCounter + PARAM_UPDATE_EVENTS;
+    }
+
+    // StartLedFade, the target goes to RGBledData at once and the output follows on the timer
+    private void startLedFade(byte[] value) {
+        mLedBatchRecords = 0;
+        mFades++;
+        if (mLedFadeTask == null) {
+            for (int i = 0; i < RGB_CHAR_DATA_LEN; i++) {
+                mLedFadeLevel[i] = mRgbLedData[i];
+            }
+        }
+        for (int i = 0; i < RGB_CHAR_DATA_LEN; i++) {
+            mLedFadeStart[i] = mLedFadeLevel[i];
+            mRgbLedData[i] = value[LED_FADE_COLOR_INDEX + i] & 0xFF;
+        }
+        int duration = (value[LED_FADE_DURATION_INDEX] & 0xFF) | (value[LED_FADE_DURATION_INDEX + 1] & 0xFF) << 8;
+        mLedFadeTotalTicks = (duration * LED_FADE_TIME_UNIT_MS + LED_FADE_TICK_MS / 2) / LED_FADE_TICK_MS;
+        if (mLedFadeTotalTicks == 0) {
+            stopLedFade();
+            updateRgbLed();
+            return;
+        }
+        mLedFadeElapsedTicks = 0;
+        if (mLedFadeTask == null) {
+            mLedFadeTask = mScheduler.scheduleAtFixedRate(mLedFadeTick, LED_FADE_TICK_MS, LED_FADE_TICK_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+        publishRgbLed();
+    }
+
+    // ScheduleLedFade, the fade part is kept as a fade write until the delay is over
+    private void scheduleLedFade(byte[] value) {
+        cancelLedFadeSchedule();
+        mTimedFades++;
+        mLedFadeScheduled[0] = LED_FADE_FORMAT;
+        System.arraycopy(value, LED_FADE_COLOR_INDEX, mLedFadeScheduled, LED_FADE_COLOR_INDEX,
+                LED_FADE_LEN - LED_FADE_COLOR_INDEX);
+        int delay = Math.min((value[LED_TIMED_FADE_DELAY_INDEX] & 0xFF)
+                | (value[LED_TIMED_FADE_DELAY_INDEX + 1] & 0xFF) << 8, LED_TIMED_FADE_MAX_DELAY_MS);
+        if (delay == 0) {
+            startLedFade(mLedFadeScheduled);
+            return;
+        }
+        // WDT counter 1 starts in the connection event the write arrived in, however late the
+        // timer got to run the event
+        long due = mNextEventNanos + delay * 1000000L;
+        mLedFadeScheduleTask = mScheduler.schedule(mLedFadeScheduleDue, due - System.nanoTime(),
+                TimeUnit.NANOSECONDS);
+    }
+
+    private void cancelLedFadeSchedule() {
+        if (mLedFadeScheduleTask != null) {
+            mLedFadeScheduleTask.cancel(false);
+            mLedFadeScheduleTask = null;
+        }
+    }
+
+    // Match of WDT counter 1, HandleLedFade starts the fade
+    private final Runnable mLedFadeScheduleDue = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SimulatedLamp.this) {
+                if (mLedFadeScheduleTask == null) {
+                    return;
+                }
+                mLedFadeScheduleTask = null;
+                startLedFade(mLedFadeScheduled);
+            }
+        }
+    };
+
+    private void stopLedFade() {
+        if (mLedFadeTask != null) {
+            mLedFadeTask.cancel(false);
+            mLedFadeTask = null;
+        }
+    }
+
+    // HandleLedFade for one tick of the WDT
+    private final Runnable mLedFadeTick = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SimulatedLamp.this) {
+                if (mLedFadeTask == null) {
+                    return;
+                }
+                mLedFadeElapsedTicks++;
+                for (int i = 0; i < RGB_CHAR_DATA_LEN; i++) {
+                    mLedFadeLevel[i] = ledFadeLevel(mLedFadeStart[i], mRgbLedData[i], mLedFadeElapsedTicks,
+                            mLedFadeTotalTicks);
+                }
+                setRgbOutput(mLedFadeLevel[RED_INDEX], mLedFadeLevel[GREEN_INDEX], mLedFadeLevel[BLUE_INDEX],
+                        mLedFadeLevel[INTENSITY_INDEX]);
+                if (mLedFadeElapsedTicks >= mLedFadeTotalTicks) {
+                    stopLedFade();
+                }
+            }
+        }
+    };
+
+    // LedFadeLevel, on the straight line from start to target and rounded towards the start
+    static int ledFadeLevel(int start, int target, int elapsed, int total) {
+        if (elapsed >= total) {
+            return target;
+        }
+        if (target >= start) {
+            return start + (target - start) * elapsed / total;
+        }
+        return start - (start - target) * elapsed / total;
+    }
+
+    private void updateRgbLed() {
+        setRgbOutput(mRgbLedData[RED_INDEX], mRgbLedData[GREEN_INDEX], mRgbLedData[BLUE_INDEX],
+                mRgbLedData[INTENSITY_INDEX]);
+        publishRgbLed();
+    }
+
+    // SetRGBOutput, scales the colors by the intensity and shuts the LED down below the threshold
+    private void setRgbOutput(int red, int green, int blue, int intensity) {
+        red = red * intensity / 255;
+        green = green * intensity / 255;
+        blue = blue * intensity / 255;
+        if (intensity < LED_NO_COLOR_THRESHOLD
+                || (red < LED_NO_COLOR_THRESHOLD && green < LED_NO_COLOR_THRESHOLD
+                && blue < LED_NO_COLOR_THRESHOLD)) {
+            // Pins go to HiZ, the compare values are left as they were
+            mShutDownLed = true;
+            mDriveStrong = false;
+        } else {
+            mShutDownLed = false;
+            mDriveStrong = true;
+            mPwmCompare[RED_INDEX] = RGB_LED_MAX_VAL - red;
+            mPwmCompare[GREEN_INDEX] = RGB_LED_MAX_VAL - green;
+            mPwmCompare[BLUE_INDEX] = RGB_LED_MAX_VAL - blue;
+        }
+        mLedUpdates++;
+        if (mObserver != null) {
+            mObserver.onLedUpdated(this);
+        }
+    }
+
+    // PublishRGBled, flags a notification if the client subscribed and knows a different color
+    private void publishRgbLed() {
+        if (mRgbNotificationsEnabled) {
+            for (int i = 0; i < RGB_CHAR_DATA_LEN; i++) {
+                if (mNotifiedRgbLedData[i] != mRgbLedData[i]) {
+                    mRgbNotificationPending = true;
+                }
+            }
+        }
+    }
+
+    private void linkDown() {
+        if (mEventTask != null) {
+            mEventTask.cancel(false);
+            mEventTask = null;
+        }
+        boolean wasConnected = mLinkState == LINK_CONNECTED;
+        mLinkState = LINK_DISCONNECTED;
+        mDiscovered = false;
+        mRequestOutstanding = false;
+        mResponseType = NONE;
+        mTxCount = 0;
+        mTxHeadSent = 0;
+        mMtu = DEFAULT_MTU;
+        mRgbNotificationsEnabled = false;
+        mRgbNotificationPending = false;
+        mNotificationQueued = false;
+        if (wasConnected) {
+            // CYBLE_EVT_GATT_DISCONNECT_IND drops the batch or the fade and resets the color
+            mLedBatchRecords = 0;
+            stopLedFade();
+            cancelLedFadeSchedule();
+            for (int i = 0; i < RGB_CHAR_DATA_LEN; i++) {
+                mRgbLedData[i] = 0;
+            }
+            updateRgbLed();
+        }
+    }
+
+    private void scheduleConnectionEvent() {
+        mNextEventNanos += mInterval * CONN_INTERVAL_UNIT_MICROS * 1000;
+        mEventTask = mScheduler.schedule(mConnectionEvent, mNextEventNanos - System.nanoTime(),
+                TimeUnit.NANOSECONDS);
+    }
+
+    private final Runnable mLinkUp = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SimulatedLamp.this) {
+                if (mLinkState != LINK_CONNECTING) {
+                    return;
+                }
+                mLinkState = LINK_CONNECTED;
+                mInterval = mInitialInterval;
+                mEventCounter = 0;
+                mNextEventNanos = System.nanoTime();
+                // CYBLE_EVT_GATT_CONNECT_IND counts as activity
+                mParamSet = PARAM_SET_NONE;
+                mIdleLoops = 0;
+                mParamRequestPending = false;
+                mPendingInterval = 0;
+                scheduleConnectionEvent();
+            }
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onConnectionStateChange(GATT_SUCCESS, true);
+            }
+        }
+    };
+
+    private final Runnable mDisconnect = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SimulatedLamp.this) {
+                if (mLinkState == LINK_DISCONNECTED) {
+                    return;
+                }
+                mAutoConnect = false;
+                linkDown();
+            }
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onConnectionStateChange(GATT_SUCCESS, false);
+            }
+        }
+    };
+
+    private final Runnable mCommandAccepted = new Runnable() {
+        @Override
+        public void run() {
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onWritten(LampCharacteristics.LED, GATT_SUCCESS);
+            }
+        }
+    };
+
+    // One connection event: the due response comes back, then the phone sends what it has buffered
+    private final Runnable mConnectionEvent = new Runnable() {
+        @Override
+        public void run() {
+            int response = NONE;
+            int mtu;
+            int cccdStatus;
+            boolean notify;
+            synchronized (SimulatedLamp.this) {
+                if (mLinkState != LINK_CONNECTED) {
+                    return;
+                }
+                mtu = mMtu;
+                cccdStatus = mCccdStatus;
+                mEventCounter++;
+                mConnectionEvents++;
+                // The notification queued in the last pass goes out first
+                notify = mNotificationQueued;
+                if (notify) {
+                    System.arraycopy(mQueuedNotification, 0, mNotification, 0, RGB_CHAR_DATA_LEN);
+                    mNotificationQueued = false;
+                    mNotifications++;
+                }
+                handleLedBatch();
+                if (mResponseType != NONE && mResponseEvent <= mEventCounter) {
+                    response = mResponseType;
+                    mResponseType = NONE;
+                    mRequestOutstanding = false;
+                    if (response == DISCOVERY) {
+                        mDiscovered = true;
+                    }
+                }
+                receivePackets();
+                updateConnectionParam();
+                sendRgbNotification();
+                if (mPendingInterval != 0 && mEventCounter >= mPendingIntervalEvent) {
+                    mInterval = mPendingInterval;
+                    mPendingInterval = 0;
+                    mIntervalChanges++;
+                }
+                if (mParamRequestPending && mEventCounter >= mParamResponseEvent) {
+                    // CYBLE_EVT_L2CAP_CONN_PARAM_UPDATE_RSP
+                    mParamRequestPending = false;
+                }
+                scheduleConnectionEvent();
+            }
+            Callback callback = mCallback;
+            if (callback == null) {
+                return;
+            }
+            if (notify) {
+                callback.onChanged(LampCharacteristics.LED, mNotification);
+            }
+            switch (response) {
+                case WRITE_REQ:
+                    callback.onWritten(LampCharacteristics.LED, GATT_SUCCESS);
+                    break;
+                case READ_REQ:
+                    callback.onRead(LampCharacteristics.LED, GATT_SUCCESS, mReadResponse);
+                    break;
+                case DISCOVERY:
+                    callback.onServicesDiscovered(GATT_SUCCESS);
+                    break;
+                case MTU_REQ:
+                    callback.onMtuChanged(GATT_SUCCESS, mtu);
+                    break;
+                case CCCD_WRITE:
+                    callback.onLedNotificationsEnabled(cccdStatus);
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+}
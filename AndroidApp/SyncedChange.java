@@ -0,0 +1,120 @@
+package com.example.seniorproject;
+
+import android.util.Log;
+
+/**
+ * One fade that should start on several lamps at the same moment, see
+ * LampConnectionManager.changeGroupAt(). Every lamp reports when the change showed on it, worked
+ * out from the acknowledgement of its write and the connection events of its LinkClock, or that it
+ * did not take part after all. Once all lamps reported, the skew between the first and the last
+ * one goes to LampMetrics.SYNC_SKEW.
+ */
+public class SyncedChange {
+    private final static String TAG = SyncedChange.class.getSimpleName();
+
+    // A lamp this far behind the target missed it, its write did not arrive in time
+    public final static long LATE_NANOS = 10000000;
+
+    private final long mTargetNanos;
+    private final LampMetrics mMetrics;
+    private int mPending;
+    private int mApplied;
+    private int mFailed;
+    private int mLate;
+    private long mFirstNanos = Long.MAX_VALUE;
+    private long mLastNanos = Long.MIN_VALUE;
+
+    /**
+     * @param targetNanos System.nanoTime() the change should show at
+     * @param lamps       the number of lamps that will report
+     */
+    public SyncedChange(long targetNanos, int lamps, LampMetrics metrics) {
+        mTargetNanos = targetNanos;
+        mPending = lamps;
+        mMetrics = metrics;
+    }
+
+    public long getTargetNanos() {
+        return mTargetNanos;
+    }
+
+    //a lamp showed the change at the given System.nanoTime()
+    public synchronized void onApplied(long appliedNanos) {
+        if (mPending == 0) {
+            return;
+        }
+        mApplied++;
+        if (appliedNanos - mTargetNanos > LATE_NANOS) {
+            mLate++;
+        }
+        mFirstNanos = Math.min(mFirstNanos, appliedNanos);
+        mLastNanos = Math.max(mLastNanos, appliedNanos);
+        finishOne();
+    }
+
+    //a lamp dropped out, e.g. the link went down or a newer write replaced the change
+    public synchronized void onFailed() {
+        if (mPending == 0) {
+            return;
+        }
+        mFailed++;
+        finishOne();
+    }
+
+    private void finishOne() {
+        mPending--;
+        if (mPending > 0) {
+            return;
+        }
+        if (mApplied > 1) {
+            mMetrics.record(LampMetrics.SYNC_SKEW, mLastNanos - mFirstNanos);
+        }
+        Log.i(TAG, "Change on " + mApplied + " lamps, skew " + (mApplied > 1 ? (mLastNanos - mFirstNanos) / 1000 : 0)
+                + " us, " + mLate + " late, " + mFailed + " failed");
+        notifyAll();
+    }
+
+    public synchronized boolean isComplete() {
+        return mPending == 0;
+    }
+
+    /**
+     * Waits until every lamp reported.
+     *
+     * @return false on timeout
+     */
+    public synchronized boolean await(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (mPending > 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    public synchronized int getAppliedCount() {
+        return mApplied;
+    }
+
+    public synchronized int getFailedCount() {
+        return mFailed;
+    }
+
+    //lamps that showed the change more than LATE_NANOS after the target
+    public synchronized int getLateCount() {
+        return mLate;
+    }
+
+    //time between the first and the last lamp that showed the change, 0 for fewer than two
+    public synchronized long getSkewNanos() {
+        return mApplied > 1 ? mLastNanos - mFirstNanos : 0;
+    }
+
+    //when the last lamp showed the change, relative to the target
+    public synchronized long getLastOffsetNanos() {
+        return mApplied > 0 ? mLastNanos - mTargetNanos : 0;
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.seniorproject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses between write-without-response and acknowledged writes for LED frames.
+ *
+ * An acknowledged write costs a full round trip, the firmware answers every write request with
+ * CyBle_GattsWriteRsp before the next one can go out. While a slider is moving the intermediate
+ * values are streamed as write commands instead, and only the final settled value is sent
+ * acknowledged. When the link pushes back (the stack refuses a write or reports a failure, which is
+ * how CYBLE_EVT_STACK_BUSY_STATUS on the lamp shows up on the phone) streaming is suspended for a
+ * back-off period that doubles on every new failure.
+ */
+public class WriteModePolicy {
+
+    public final static long INITIAL_BACKOFF_MS = 100;
+    public final static long MAX_BACKOFF_MS = 3200;
+
+    // Successful writes in a row needed before the back-off is reset
+    private final static int RECOVERY_WRITES = 8;
+
+    private boolean mStreamingSupported = true;
+    private long mBackoffNanos;
+    private long mBackoffUntilNanos;
+    private int mSuccessRun;
+    private long mCongestionCount;
+
+    /**
+     * Disables streaming altogether when the characteristic does not allow write-without-response.
+     */
+    public synchronized void setStreamingSupported(boolean supported) {
+        mStreamingSupported = supported;
+    }
+
+    /**
+     * @param settled true for the final value of a gesture, which must be acknowledged
+     * @return true if the frame should be sent as a write command without response
+     */
+    public synchronized boolean useWriteWithoutResponse(boolean settled) {
+        if (settled || !mStreamingSupported) {
+            return false;
+        }
+        return mBackoffUntilNanos == 0 || System.nanoTime() - mBackoffUntilNanos >= 0;
+    }
+
+    public synchronized void onWriteSucceeded() {
+        if (mBackoffNanos != 0 && ++mSuccessRun >= RECOVERY_WRITES) {
+            mBackoffNanos = 0;
+            mBackoffUntilNanos = 0;
+            mSuccessRun = 0;
+        }
+    }
+
+    /**
+     * Called when a write was refused or failed, starts or extends the back-off.
+     */
+    public synchronized void onCongestion() {
+        mCongestionCount++;
+        mSuccessRun = 0;
+        if (mBackoffNanos == 0) {
+            mBackoffNanos = TimeUnit.MILLISECONDS.toNanos(INITIAL_BACKOFF_MS);
+        } else {
+            mBackoffNanos = Math.min(mBackoffNanos * 2, TimeUnit.MILLISECONDS.toNanos(MAX_BACKOFF_MS));
+        }
+        mBackoffUntilNanos = System.nanoTime() + mBackoffNanos;
+    }
+
+    //true while streaming is suspended because of congestion
+    public synchronized boolean isBackingOff() {
+        return mBackoffUntilNanos != 0 && System.nanoTime() - mBackoffUntilNanos < 0;
+    }
+
+    public synchronized long getCongestionCount() {
+        return mCongestionCount;
+    }
+
+    public synchronized void reset() {
+        mBackoffNanos = 0;
+        mBackoffUntilNanos = 0;
+        mSuccessRun = 0;
+    }
+}
@@ -0,0 +1,29 @@
+package android.util;
+
+/**
+ * Stands in for the framework's Log class when the app code runs on a desktop JVM. Debug and info
+ * messages are dropped so they do not distort the measurements, warnings and errors go to stderr.
+ */
+public final class Log {
+
+    private Log() {
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        System.err.println("W/" + tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        System.err.println("E/" + tag + ": " + msg);
+        return 0;
+    }
+}
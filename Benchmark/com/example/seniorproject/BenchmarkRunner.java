@@ -0,0 +1,131 @@
+package com.example.seniorproject;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Small stand-in for JMH: warms a case up until the JIT has compiled it, then measures it over
+ * several iterations and reports the time and the bytes allocated per operation.
+ *
+ * Allocation is read from the HotSpot ThreadMXBean for the measuring thread only, so work the
+ * case hands to timer threads has to be measured separately (see ControlPathBenchmark).
+ */
+public class BenchmarkRunner {
+
+    /**
+     * One benchmark. run() performs the given number of operations on the calling thread.
+     */
+    public abstract static class Case {
+        final String name;
+
+        protected Case(String name) {
+            this.name = name;
+        }
+
+        protected void setUp() throws Exception {
+        }
+
+        protected abstract void run(int ops) throws Exception;
+
+        protected void tearDown() throws Exception {
+        }
+    }
+
+    /**
+     * Measurement of one case.
+     */
+    public static class Result {
+        public final String name;
+        public final double nsPerOp;
+        public final double minNsPerOp;
+        public final double maxNsPerOp;
+        public final double bytesPerOp;
+
+        Result(String name, double nsPerOp, double minNsPerOp, double maxNsPerOp, double bytesPerOp) {
+            this.name = name;
+            this.nsPerOp = nsPerOp;
+            this.minNsPerOp = minNsPerOp;
+            this.maxNsPerOp = maxNsPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-40s %10.1f ns/op  [%8.1f .. %8.1f]  %8.1f B/op",
+                    name, nsPerOp, minNsPerOp, maxNsPerOp, bytesPerOp);
+        }
+    }
+
+    // Consumed results, read by nobody, keeps the JIT from removing the measured work
+    public static volatile long sink;
+
+    private final int mWarmupIterations;
+    private final int mIterations;
+    private final int mOpsPerIteration;
+    private final com.sun.management.ThreadMXBean mThreads;
+
+    public BenchmarkRunner(int warmupIterations, int iterations, int opsPerIteration) {
+        mWarmupIterations = warmupIterations;
+        mIterations = iterations;
+        mOpsPerIteration = opsPerIteration;
+        mThreads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    //bytes allocated by the calling thread so far
+    public long allocatedBytes() {
+        return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    //bytes allocated by every live thread so far
+    public long allocatedBytesAllThreads() {
+        long[] ids = mThreads.getAllThreadIds();
+        long total = 0;
+        for (long bytes : mThreads.getThreadAllocatedBytes(ids)) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    public Result run(Case c) throws Exception {
+        c.setUp();
+        try {
+            for (int i = 0; i < mWarmupIterations; i++) {
+                c.run(mOpsPerIteration);
+            }
+            double total = 0;
+            double min = Double.MAX_VALUE;
+            double max = 0;
+            long bytes = 0;
+            for (int i = 0; i < mIterations; i++) {
+                long allocatedBefore = allocatedBytes();
+                long start = System.nanoTime();
+                c.run(mOpsPerIteration);
+                double ns = (double) (System.nanoTime() - start) / mOpsPerIteration;
+                bytes += allocatedBytes() - allocatedBefore;
+                total += ns;
+                min = Math.min(min, ns);
+                max = Math.max(max, ns);
+            }
+            return new Result(c.name, total / mIterations, min, max,
+                    (double) bytes / ((long) mIterations * mOpsPerIteration));
+        } finally {
+            c.tearDown();
+        }
+    }
+
+    public List<Result> runAll(List<Case> cases, String filter) throws Exception {
+        List<Result> results = new ArrayList<>();
+        for (Case c : cases) {
+            if (filter == null || c.name.contains(filter)) {
+                Result result = run(c);
+                System.out.println(result);
+                results.add(result);
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,1623 @@
+package com.example.seniorproject;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Benchmarks the path from a slider movement to a command on the wire, on a desktop JVM.
+ *
+ * The micro benchmarks time the pieces the main activity's listeners go through: frame encoding,
+ * LampConnection.setChannelLevel (all BluetoothComm.setChannelLevel adds is a field read), the
+ * operation queue, the coalescer and the read and write callbacks. Callbacks are delivered by a
+ * LoopbackTransport so no link timing gets in. The end-to-end run then drags a slider at 60 Hz
+ * against a SimulatedLamp and measures how long each value takes to reach the PWM output.
+ *
+ * Usage: ControlPathBenchmark [filter] [-quick]. Only cases whose name contains the filter run.
+ */
+public class ControlPathBenchmark {
+
+    private final static int WARMUP_ITERATIONS = 10;
+    private final static int ITERATIONS = 10;
+    private final static int OPS_PER_ITERATION = 200000;
+
+    // Slider events per second, and how long the end-to-end storm lasts
+    private final static int SLIDER_RATE_HZ = 60;
+    private final static int WARMUP_CHANGES = 3;
+    private final static int FLEET_LAMPS = 8;
+    private final static long STORM_SECONDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String filter = null;
+        boolean quick = false;
+        for (String arg : args) {
+            if (arg.equals("-quick")) {
+                quick = true;
+            } else {
+                filter = arg;
+            }
+        }
+        BenchmarkRunner runner = quick
+                ? new BenchmarkRunner(3, 3, OPS_PER_ITERATION / 10)
+                : new BenchmarkRunner(WARMUP_ITERATIONS, ITERATIONS, OPS_PER_ITERATION);
+        runner.runAll(cases(), filter);
+        if (filter == null || "color.accuracy".contains(filter)) {
+            colorAccuracy();
+        }
+        if (filter == null || "endToEnd.sliderStorm".contains(filter)) {
+            sliderStorm(runner, quick ? 1 : STORM_SECONDS);
+        }
+        if (filter == null || "endToEnd.effects".contains(filter)) {
+            effects();
+        }
+        if (filter == null || "endToEnd.fadeCommand".contains(filter)) {
+            fadeCommand(quick ? 1000 : 2000);
+        }
+        if (filter == null || "endToEnd.stateSync".contains(filter)) {
+            stateSync(quick ? 10 : 50);
+        }
+        if (filter == null || "endToEnd.sceneRestore".contains(filter)) {
+            sceneRestore();
+        }
+        if (filter == null || "endToEnd.connectPipeline".contains(filter)) {
+            connectPipeline(quick ? 5 : 20);
+        }
+        if (filter == null || "endToEnd.replay".contains(filter)) {
+            replay(quick ? 1 : STORM_SECONDS);
+        }
+        if (filter == null || "endToEnd.syncedScene".contains(filter)) {
+            syncedScene(quick ? 10 : 40);
+        }
+        if (filter == null || "endToEnd.fleetScaling".contains(filter)) {
+            fleetScaling(quick ? 4 : FLEET_LAMPS, quick ? 5 : 21);
+        }
+    }
+
+    static List<BenchmarkRunner.Case> cases() {
+        List<BenchmarkRunner.Case> cases = new ArrayList<>();
+
+        cases.add(new BenchmarkRunner.Case("codec.encodeRgbi") {
+            private final LedFrame mFrame = new LedFrame();
+            private final byte[] mOut = new byte[LedFrameCodec.RGBI_LENGTH];
+
+            @Override
+            protected void run(int ops) {
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    mFrame.set(LedFrame.CHANNEL_RED, i & 0xff);
+                    acc += LedFrameCodec.encode(mFrame, LedFrameCodec.FORMAT_RGBI, mOut, 0) + mOut[i & 3];
+                }
+                BenchmarkRunner.sink += acc;
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("codec.encodeRgbw") {
+            private final LedFrame mFrame = new LedFrame();
+            private final byte[] mOut = new byte[LedFrameCodec.RGBW_LENGTH];
+
+            @Override
+            protected void run(int ops) {
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    mFrame.set(LedFrame.CHANNEL_WARM_WHITE, i & 0xff);
+                    acc += LedFrameCodec.encode(mFrame, LedFrameCodec.FORMAT_RGBW, mOut, 0) + mOut[i % 7];
+                }
+                BenchmarkRunner.sink += acc;
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("codec.encodeBatch8") {
+            private final LedFrame[] mFrames = new LedFrame[8];
+            private final byte[] mOut = new byte[BluetoothComm.REQUESTED_MTU];
+
+            @Override
+            protected void setUp() {
+                for (int i = 0; i < mFrames.length; i++) {
+                    mFrames[i] = new LedFrame();
+                    mFrames[i].setIntensity(LedFrame.MAX_LEVEL);
+                }
+            }
+
+            @Override
+            protected void run(int ops) {
+                // Eight frames of a fade, a batch of one effect write
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    int length = LedBatchCodec.begin(mOut);
+                    for (int f = 0; f < mFrames.length; f++) {
+                        mFrames[f].set(LedFrame.CHANNEL_RED, (i + f) & 0xff);
+                        length = LedBatchCodec.add(mOut, length, f == 0 ? 0 : 1, mFrames[f],
+                                f == 0 ? null : mFrames[f - 1], LedFrameCodec.FORMAT_RGBI);
+                    }
+                    acc += length + mOut[i & 15];
+                }
+                BenchmarkRunner.sink += acc;
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("color.hue") {
+            private final LedFrame mFrame = new LedFrame();
+
+            @Override
+            protected void run(int ops) {
+                // A hue slider at varying saturation and brightness
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    ColorPipeline.color(i * 7, i & 0xff, (i >> 3) & 0xff, mFrame);
+                    acc += mFrame.get(LedFrame.CHANNEL_GREEN) + mFrame.getIntensity();
+                }
+                BenchmarkRunner.sink += acc;
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("color.temperature") {
+            private final LedFrame mFrame = new LedFrame();
+
+            @Override
+            protected void run(int ops) {
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    int kelvin = ColorPipeline.WARM_KELVIN + i % (ColorPipeline.COOL_KELVIN - ColorPipeline.WARM_KELVIN);
+                    ColorPipeline.temperature(kelvin, i & 0xff, (i & 1) != 0, mFrame);
+                    acc += mFrame.get(LedFrame.CHANNEL_BLUE) + mFrame.get(LedFrame.CHANNEL_COOL_WHITE);
+                }
+                BenchmarkRunner.sink += acc;
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("scenes.open5000") {
+            private File mFile;
+
+            @Override
+            protected void setUp() throws Exception {
+                mFile = createSceneFile(5000);
+            }
+
+            @Override
+            protected void run(int ops) {
+                // What the service pays on the first access, a fresh store every time
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    acc += new SceneStore(mFile).getSceneCount();
+                }
+                BenchmarkRunner.sink += acc;
+            }
+
+            @Override
+            protected void tearDown() {
+                mFile.delete();
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("scenes.find5000") {
+            private File mFile;
+            private SceneStore mStore;
+            private final LedFrame mFrame = new LedFrame();
+
+            @Override
+            protected void setUp() throws Exception {
+                mFile = createSceneFile(5000);
+                mStore = new SceneStore(mFile);
+            }
+
+            @Override
+            protected void run(int ops) {
+                // Worst case, the last scene of the file
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    int index = mStore.findScene("scene 4999");
+                    mStore.getScene(index, mFrame);
+                    acc += index + mFrame.get(LedFrame.CHANNEL_RED);
+                }
+                BenchmarkRunner.sink += acc;
+            }
+
+            @Override
+            protected void tearDown() {
+                mFile.delete();
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("scenes.recordLampState") {
+            private File mFile;
+            private SceneStore mStore;
+            private final LedFrame mFrame = new LedFrame();
+
+            @Override
+            protected void setUp() throws Exception {
+                mFile = createSceneFile(100);
+                mStore = new SceneStore(mFile);
+                for (int lamp = 0; lamp < 4; lamp++) {
+                    mStore.recordLampState("00:00:00:00:00:1" + lamp, mFrame);
+                }
+            }
+
+            @Override
+            protected void run(int ops) {
+                // Every acknowledged frame write of the last lamp
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    mFrame.set(LedFrame.CHANNEL_RED, i & 0xff);
+                    mStore.recordLampState("00:00:00:00:00:13", mFrame);
+                    acc += i;
+                }
+                BenchmarkRunner.sink += acc;
+            }
+
+            @Override
+            protected void tearDown() {
+                mFile.delete();
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("recorder.stopped") {
+            private final CommandRecorder mRecorder = new CommandRecorder();
+            private final byte[] mValue = {(byte) 200, 60, 10, (byte) 255};
+
+            @Override
+            protected void run(int ops) {
+                // What every write pays when nobody records
+                for (int i = 0; i < ops; i++) {
+                    mRecorder.recordValue(CommandRecorder.OP_WRITE, 0, 0, mValue);
+                }
+                BenchmarkRunner.sink += mRecorder.getRecordCount();
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("recorder.ringWrite") {
+            private final CommandRecorder mRecorder = new CommandRecorder();
+            private final byte[] mValue = {(byte) 200, 60, 10, (byte) 255};
+
+            @Override
+            protected void setUp() {
+                // Small enough that the ring wraps and evicts all the time
+                mRecorder.startRing(64 * 1024);
+                mRecorder.lampIndex("00:00:00:00:00:07");
+            }
+
+            @Override
+            protected void run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    mValue[0] = (byte) i;
+                    mRecorder.recordValue(CommandRecorder.OP_WRITE, 0, 0, mValue);
+                }
+                BenchmarkRunner.sink += mRecorder.getRecordCount();
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("metrics.record") {
+            private final LatencyHistogram mHistogram = new LatencyHistogram();
+
+            @Override
+            protected void run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    mHistogram.record(((long) i * 7919) & 0xffffff);
+                }
+                BenchmarkRunner.sink += mHistogram.getCount();
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("codec.decodeRgbi") {
+            private final LedFrame mFrame = new LedFrame();
+            private final byte[] mData = {10, 20, 30, (byte) 255};
+
+            @Override
+            protected void run(int ops) {
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    mData[0] = (byte) i;
+                    LedFrameCodec.decode(mData, 0, mData.length, mFrame);
+                    acc += mFrame.get(LedFrame.CHANNEL_RED);
+                }
+                BenchmarkRunner.sink += acc;
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("command.setChannelLevel") {
+            private ScheduledExecutorService mScheduler;
+            private LoopbackTransport mTransport;
+            private LampConnection mLamp;
+
+            @Override
+            protected void setUp() {
+                mScheduler = Executors.newSingleThreadScheduledExecutor();
+                mTransport = new LoopbackTransport();
+                mLamp = new LampConnection(null, mTransport, mScheduler, new NullListener());
+                mLamp.connect(true);
+                mTransport.bringUp();
+            }
+
+            @Override
+            protected void run(int ops) {
+                // What the seek bar listener does on every progress change
+                for (int i = 0; i < ops; i++) {
+                    mLamp.setChannelLevel(LedFrame.CHANNEL_RED + i % 3, i & 0xff);
+                }
+            }
+
+            @Override
+            protected void tearDown() {
+                mLamp.shutdown();
+                mScheduler.shutdownNow();
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("queue.enqueueComplete") {
+            private final Object mTarget = new Object();
+            private GattOperationQueue mQueue;
+            private GattOperation mOp;
+
+            @Override
+            protected void setUp() {
+                mQueue = new GattOperationQueue();
+                mOp = new GattOperation(GattOperation.TYPE_WRITE, mTarget) {
+                    @Override
+                    protected boolean execute() {
+                        return true;
+                    }
+                };
+            }
+
+            @Override
+            protected void run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    mQueue.enqueue(mOp);
+                    mQueue.onComplete(GattOperation.TYPE_WRITE, mTarget, 0);
+                }
+            }
+
+            @Override
+            protected void tearDown() {
+                mQueue.shutdown();
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("coalescer.sliderStorm") {
+            private CommandCoalescer mCoalescer;
+            private int mFlushes;
+
+            @Override
+            protected void setUp() {
+                mCoalescer = new CommandCoalescer(new CommandCoalescer.Sink() {
+                    @Override
+                    public void onFlush(int[] levels, int changedMask, boolean settled) {
+                        mFlushes++;
+                    }
+                }, BluetoothComm.CONNECTION_INTERVAL_MS);
+            }
+
+            @Override
+            protected void run(int ops) {
+                // All five sliders dragged at once, far faster than any finger
+                for (int i = 0; i < ops; i++) {
+                    mCoalescer.set(i % LedFrame.CHANNEL_COUNT, (i >> 3) & 0xff);
+                }
+            }
+
+            @Override
+            protected void tearDown() {
+                mCoalescer.shutdown();
+                BenchmarkRunner.sink += mFlushes;
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("dispatch.onLedRead") {
+            private ScheduledExecutorService mScheduler;
+            private LoopbackTransport mTransport;
+            private LampConnection mLamp;
+            private final byte[] mValue = {10, 20, 30, (byte) 255};
+
+            @Override
+            protected void setUp() {
+                mScheduler = Executors.newSingleThreadScheduledExecutor();
+                mTransport = new LoopbackTransport();
+                mLamp = new LampConnection(null, mTransport, mScheduler, new NullListener());
+                mLamp.connect(true);
+                mTransport.bringUp();
+                // Complete the read issued after discovery
+                mTransport.getCallback().onRead(LampCharacteristics.LED, LampTransport.GATT_SUCCESS, mValue);
+            }
+
+            @Override
+            protected void run(int ops) {
+                LampTransport.Callback callback = mTransport.getCallback();
+                for (int i = 0; i < ops; i++) {
+                    mLamp.readLedCharacteristic();
+                    mValue[0] = (byte) i;
+                    callback.onRead(LampCharacteristics.LED, LampTransport.GATT_SUCCESS, mValue);
+                }
+            }
+
+            @Override
+            protected void tearDown() {
+                mLamp.shutdown();
+                mScheduler.shutdownNow();
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("dispatch.onLedWritten") {
+            private ScheduledExecutorService mScheduler;
+            private LoopbackTransport mTransport;
+            private LampConnection mLamp;
+            private final LedFrame mFrame = new LedFrame();
+
+            @Override
+            protected void setUp() {
+                mScheduler = Executors.newSingleThreadScheduledExecutor();
+                mTransport = new LoopbackTransport();
+                mLamp = new LampConnection(null, mTransport, mScheduler, new NullListener());
+                mLamp.connect(true);
+                mTransport.bringUp();
+                mTransport.getCallback().onRead(LampCharacteristics.LED, LampTransport.GATT_SUCCESS, new byte[4]);
+                mFrame.setIntensity(LedFrame.MAX_LEVEL);
+            }
+
+            @Override
+            protected void run(int ops) {
+                LampTransport.Callback callback = mTransport.getCallback();
+                for (int i = 0; i < ops; i++) {
+                    mFrame.set(LedFrame.CHANNEL_BLUE, i & 0xff);
+                    mLamp.writeFrame(mFrame);
+                    callback.onWritten(LampCharacteristics.LED, LampTransport.GATT_SUCCESS);
+                }
+            }
+
+            @Override
+            protected void tearDown() {
+                mLamp.shutdown();
+                mScheduler.shutdownNow();
+            }
+        });
+
+        cases.add(new BenchmarkRunner.Case("dispatch.characteristicSlot") {
+            private final LampCharacteristics<Object> mCharacteristics = new LampCharacteristics<Object>();
+            private final Object[] mCallbackCharacteristics = new Object[LampCharacteristics.COUNT + 1];
+            // Only adds up what the transport would pass on
+            private final LampTransport.Callback mCallback = new LampTransport.Callback() {
+                @Override
+                public void onConnectionStateChange(int status, boolean connected) {
+                }
+
+                @Override
+                public void onServicesDiscovered(int status) {
+                }
+
+                @Override
+                public void onRead(int slot, int status, byte[] value) {
+                    BenchmarkRunner.sink += status;
+                }
+
+                @Override
+                public void onWritten(int slot, int status) {
+                    BenchmarkRunner.sink += status;
+                }
+
+                @Override
+                public void onMtuChanged(int status, int mtu) {
+                }
+
+                @Override
+                public void onLedNotificationsEnabled(int status) {
+                }
+
+                @Override
+                public void onChanged(int slot, byte[] value) {
+                    BenchmarkRunner.sink += value.length;
+                }
+            };
+
+            @Override
+            protected void setUp() {
+                for (int slot = 0; slot < LampCharacteristics.COUNT; slot++) {
+                    mCallbackCharacteristics[slot] = new Object();
+                    mCharacteristics.put(slot, mCallbackCharacteristics[slot]);
+                }
+                // A characteristic of some other service
+                mCallbackCharacteristics[LampCharacteristics.COUNT] = new Object();
+            }
+
+            @Override
+            protected void run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    int slot = mCharacteristics.slotOf(mCallbackCharacteristics[i % mCallbackCharacteristics.length]);
+                    if (slot >= 0) {
+                        mCallback.onWritten(slot, i);
+                    }
+                }
+            }
+        });
+
+        return cases;
+    }
+
+    /**
+     * Drags the red slider at SLIDER_RATE_HZ against a SimulatedLamp with the firmware's
+     * connection interval and reports the time from each value being set until the PWM output
+     * shows it. Values the coalescer replaced by a newer one never reach the output and are
+     * counted as coalesced.
+     */
+    static void sliderStorm(BenchmarkRunner runner, long seconds) throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final SimulatedLamp sim = new SimulatedLamp("00:00:00:00:00:02");
+        final CountDownLatch ready = new CountDownLatch(1);
+        // Time each output level was last requested at, indexed by level
+        final long[] requestedAt = new long[LedFrame.MAX_LEVEL + 1];
+        final int events = (int) (seconds * SLIDER_RATE_HZ);
+        final long[] latencies = new long[events];
+        final int[] applied = new int[1];
+
+        LampConnection lamp = new LampConnection(null, sim, scheduler, new NullListener() {
+            @Override
+            public void onConnectionStateChanged(LampConnection lamp, int state) {
+                if (state == LampConnection.STATE_READY) {
+                    ready.countDown();
+                }
+            }
+        });
+        lamp.connect(true);
+        if (!ready.await(5, TimeUnit.SECONDS)) {
+            System.out.println("endToEnd.sliderStorm: simulated lamp did not become ready");
+            return;
+        }
+        lamp.setIntensity(LedFrame.MAX_LEVEL);
+        Thread.sleep(500);
+
+        sim.setObserver(new SimulatedLamp.Observer() {
+            @Override
+            public void onLedUpdated(SimulatedLamp lamp) {
+                int level = lamp.getOutputLevel(SimulatedLamp.RED_INDEX);
+                synchronized (requestedAt) {
+                    if (requestedAt[level] != 0 && applied[0] < latencies.length) {
+                        latencies[applied[0]++] = System.nanoTime() - requestedAt[level];
+                        requestedAt[level] = 0;
+                    }
+                }
+            }
+        });
+
+        long framesBefore = sim.getLedUpdateCount();
+        long allocatedBefore = runner.allocatedBytesAllThreads();
+        long period = TimeUnit.SECONDS.toNanos(1) / SLIDER_RATE_HZ;
+        long next = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            // Sweep up and down between 10 and 250 so every step changes the output
+            int step = i % 480;
+            int level = 10 + (step < 240 ? step : 479 - step);
+            synchronized (requestedAt) {
+                requestedAt[level] = System.nanoTime();
+            }
+            lamp.setChannelLevel(LedFrame.CHANNEL_RED, level);
+            next += period;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+        lamp.settle();
+        Thread.sleep(500);
+        long allocated = runner.allocatedBytesAllThreads() - allocatedBefore;
+        long frames = sim.getLedUpdateCount() - framesBefore;
+
+        int count;
+        synchronized (requestedAt) {
+            count = applied[0];
+        }
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        System.out.println(String.format("%-40s %d slider events, %d frames applied, %d coalesced",
+                "endToEnd.sliderStorm", events, frames, events - count));
+        if (count > 0) {
+            System.out.println(String.format("%-40s median %.1f ms, p95 %.1f ms, max %.1f ms",
+                    "", percentileMs(sorted, 0.5), percentileMs(sorted, 0.95),
+                    sorted[count - 1] / 1e6));
+        }
+        System.out.println(String.format("%-40s interval %.2f ms, %d write requests, %d write commands, "
+                        + "%d busy, %d notifications, %.1f B per slider event (all threads)",
+                "", sim.getConnectionIntervalMicros() / 1000.0, sim.getWriteRequestCount(),
+                sim.getWriteCommandCount(), sim.getBusyCount(), sim.getNotificationCount(),
+                (double) allocated / events));
+        PrintWriter writer = new PrintWriter(System.out);
+        lamp.getMetrics().dump(writer);
+        writer.flush();
+
+        lamp.shutdown();
+        sim.shutdown();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Plays each kind of effect on a SimulatedLamp and compares the frames sent with the ticks
+     * the effect spans, and with the number of times the PWM output actually changed. Every
+     * effect runs once with one write per frame and once with batched writes.
+     */
+    static void effects() throws Exception {
+        LedFrame white = new LedFrame();
+        white.set(LedFrame.CHANNEL_RED, 255);
+        white.set(LedFrame.CHANNEL_GREEN, 255);
+        white.set(LedFrame.CHANNEL_BLUE, 255);
+        LedFrame dim = new LedFrame(white);
+        white.setIntensity(255);
+        dim.setIntensity(40);
+        LedFrame amber = new LedFrame();
+        amber.set(LedFrame.CHANNEL_RED, 255);
+        amber.set(LedFrame.CHANNEL_GREEN, 120);
+        LedFrame off = new LedFrame();
+
+        LedEffect[] effects = {
+                new LedEffect.Fade(white, dim, 2000),
+                new LedEffect.Fade(off, white, 500),
+                new LedEffect.Breathing(amber, 3000, 0, 255),
+                new LedEffect.ColorCycle(3000, 128),
+                new LedEffect.Keyframes.Builder().add(0, off).add(400, amber).add(800, white)
+                        .add(1600, dim).build(),
+        };
+        String[] names = {"fade.whiteToDim", "fade.offToWhite", "breathing", "colorCycle", "keyframes"};
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        for (int run = 0; run < effects.length * 2; run++) {
+            int i = run % effects.length;
+            boolean batched = run >= effects.length;
+            final SimulatedLamp sim = new SimulatedLamp("00:00:00:00:00:03");
+            final CountDownLatch ready = new CountDownLatch(1);
+            final long[] outputChanges = new long[1];
+            LampConnection lamp = new LampConnection(null, sim, scheduler, new NullListener() {
+                @Override
+                public void onConnectionStateChanged(LampConnection lamp, int state) {
+                    if (state == LampConnection.STATE_READY) {
+                        ready.countDown();
+                    }
+                }
+            });
+            lamp.setBatchWritesEnabled(batched);
+            lamp.connect(true);
+            if (!ready.await(5, TimeUnit.SECONDS)) {
+                System.out.println("endToEnd.effects: simulated lamp did not become ready");
+                return;
+            }
+            // Let the MTU exchange and the connection parameter update settle, so the player
+            // sees the final interval
+            Thread.sleep(600);
+            sim.setObserver(new SimulatedLamp.Observer() {
+                private long mLast = -1;
+
+                @Override
+                public void onLedUpdated(SimulatedLamp lamp) {
+                    long output = lamp.isLedShutDown() ? 0 : ((long) lamp.getOutputLevel(SimulatedLamp.RED_INDEX) << 16)
+                            | (lamp.getOutputLevel(SimulatedLamp.GREEN_INDEX) << 8)
+                            | lamp.getOutputLevel(SimulatedLamp.BLUE_INDEX);
+                    if (output != mLast) {
+                        outputChanges[0]++;
+                        mLast = output;
+                    }
+                }
+            });
+            long updatesBefore = sim.getLedUpdateCount();
+            lamp.playEffect(effects[i]);
+            // One pass of the effect, plus a little for the last frame of a fade to land
+            Thread.sleep(effects[i].getDurationMs() + (effects[i].isLooping() ? 0 : 300));
+            lamp.stopEffect();
+            EffectPlayer player = lamp.getEffectPlayer();
+            long updates = sim.getLedUpdateCount() - updatesBefore;
+            System.out.println(String.format("%-40s %4d ticks, %4d frames sent (%.0f%% suppressed) "
+                            + "in %4d writes, %4d lamp updates, %4d output changes",
+                    "endToEnd.effects." + names[i] + (batched ? ".batched" : ""),
+                    player.getTickCount(), player.getSentCount(),
+                    100.0 * (player.getTickCount() - player.getFrameCount()) / player.getTickCount(),
+                    player.getBatchCount(), updates, outputChanges[0]));
+            lamp.shutdown();
+            sim.shutdown();
+        }
+
+        // Slow effects are where suppression pays off, only their schedule is looked at
+        LedEffect[] slow = {
+                new LedEffect.Fade(off, dim, 30000),
+                new LedEffect.Breathing(amber, 12000, 0, 80),
+        };
+        String[] slowNames = {"fade.sunrise30s", "breathing.dim12s"};
+        LoopbackTransport transport = new LoopbackTransport();
+        LampConnection lamp = new LampConnection(null, transport, scheduler, new NullListener());
+        transport.bringUp();
+        for (int i = 0; i < slow.length; i++) {
+            lamp.playEffect(slow[i]);
+            lamp.stopEffect();
+            EffectPlayer player = lamp.getEffectPlayer();
+            System.out.println(String.format("%-40s %4d ticks, %4d frames kept (%.0f%% suppressed)",
+                    "endToEnd.effects." + slowNames[i], player.getTickCount(), player.getFrameCount(),
+                    100.0 * (player.getTickCount() - player.getFrameCount()) / player.getTickCount()));
+        }
+        lamp.shutdown();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Checks the color pipeline against the same math in floating point, with the lamp's output
+     * worked out the way UpdateRGBled does it: channel * intensity / 255 in 8 bit, and off below
+     * LED_NO_COLOR_THRESHOLD. Errors are in PWM counts of the output, brightness in slider steps.
+     */
+    static void colorAccuracy() {
+        LedFrame frame = new LedFrame();
+        int threshold = LedFrameCodec.LED_NO_COLOR_THRESHOLD;
+
+        // Hue wheel at a few saturations over the whole brightness range
+        double maxError = 0;
+        double sumError = 0;
+        long samples = 0;
+        long lostColors = 0;
+        int[] saturations = {255, 192, 128, 0};
+        for (int saturation : saturations) {
+            for (int hue = 0; hue < ColorPipeline.HUE_STEPS; hue += 3) {
+                for (int brightness = 1; brightness < 256; brightness++) {
+                    ColorPipeline.color(hue, saturation, brightness, frame);
+                    double scale = threshold + (255 - threshold)
+                            * Math.pow((brightness - 1) / 254.0, ColorPipeline.GAMMA);
+                    boolean off = isOutputOff(frame);
+                    for (int c = LedFrame.CHANNEL_RED; c <= LedFrame.CHANNEL_BLUE; c++) {
+                        double pure = hueLevel(hue, c);
+                        double ideal = (255 - (255 - pure) * saturation / 255.0) * scale / 255;
+                        int output = off ? 0 : frame.get(c) * frame.getIntensity() / 255;
+                        double error = Math.abs(output - ideal);
+                        maxError = Math.max(maxError, error);
+                        sumError += error;
+                        samples++;
+                    }
+                    if (off) {
+                        lostColors++;
+                    }
+                }
+            }
+        }
+        System.out.println(String.format("%-40s max %.2f, mean %.3f PWM counts over %d channels, %d colors off",
+                "color.accuracy.hue", maxError, sumError / samples, samples, lostColors));
+
+        // Brightness through the intensity byte and back
+        int maxStep = 0;
+        int exact = 0;
+        boolean monotonic = true;
+        for (int brightness = 0; brightness < 256; brightness++) {
+            int intensity = ColorPipeline.intensityFor(brightness);
+            int back = ColorPipeline.brightnessFor(intensity);
+            maxStep = Math.max(maxStep, Math.abs(back - brightness));
+            if (back == brightness) {
+                exact++;
+            }
+            if (brightness > 0 && intensity < ColorPipeline.intensityFor(brightness - 1)) {
+                monotonic = false;
+            }
+        }
+        System.out.println(String.format("%-40s %d of 256 exact, max %d steps off, %s, brightness 1 -> intensity %d",
+                "color.accuracy.brightness", exact, maxStep, monotonic ? "monotonic" : "NOT monotonic",
+                ColorPipeline.intensityFor(1)));
+
+        // Temperatures between the table steps, for red/green/blue and for the white strings
+        double maxRgbError = 0;
+        double maxWhiteError = 0;
+        double warmMired = 1e6 / ColorPipeline.WARM_KELVIN;
+        double coolMired = 1e6 / ColorPipeline.COOL_KELVIN;
+        for (int kelvin = ColorPipeline.WARM_KELVIN; kelvin <= ColorPipeline.COOL_KELVIN; kelvin++) {
+            ColorPipeline.temperature(kelvin, 255, false, frame);
+            int rgb = ColorPipeline.blackBodyRgb(kelvin);
+            maxRgbError = Math.max(maxRgbError, Math.abs(frame.get(LedFrame.CHANNEL_RED) - (rgb >> 16 & 0xff)));
+            maxRgbError = Math.max(maxRgbError, Math.abs(frame.get(LedFrame.CHANNEL_GREEN) - (rgb >> 8 & 0xff)));
+            maxRgbError = Math.max(maxRgbError, Math.abs(frame.get(LedFrame.CHANNEL_BLUE) - (rgb & 0xff)));
+            ColorPipeline.temperature(kelvin, 255, true, frame);
+            double cool = 255 * (warmMired - 1e6 / kelvin) / (warmMired - coolMired);
+            maxWhiteError = Math.max(maxWhiteError, Math.abs(frame.get(LedFrame.CHANNEL_COOL_WHITE) - cool));
+        }
+        System.out.println(String.format("%-40s max %.0f levels off on red/green/blue, %.2f on the white mix",
+                "color.accuracy.temperature", maxRgbError, maxWhiteError));
+    }
+
+    // UpdateRGBled switches the LEDs off for a low intensity or when every scaled color is low
+    private static boolean isOutputOff(LedFrame frame) {
+        int intensity = frame.getIntensity();
+        int threshold = LedFrameCodec.LED_NO_COLOR_THRESHOLD;
+        return intensity < threshold
+                || (frame.get(LedFrame.CHANNEL_RED) * intensity / 255 < threshold
+                && frame.get(LedFrame.CHANNEL_GREEN) * intensity / 255 < threshold
+                && frame.get(LedFrame.CHANNEL_BLUE) * intensity / 255 < threshold);
+    }
+
+    // Level of a channel on the hue wheel at full saturation, worked out without the table
+    private static double hueLevel(int hue, int channel) {
+        // Each channel is a trapezoid around its own center on the wheel
+        int center = channel == LedFrame.CHANNEL_RED ? 0 : channel == LedFrame.CHANNEL_GREEN ? 512 : 1024;
+        int distance = Math.abs(hue - center);
+        distance = Math.min(distance, ColorPipeline.HUE_STEPS - distance);
+        if (distance <= 256) {
+            return 255;
+        }
+        return Math.max(0, 512 - distance);
+    }
+
+    /**
+     * Changes the color on the lamp's side, the way another phone would, and reports the time
+     * until the connection's listener sees the new state. The app only learns about these from
+     * notifications, the number of reads shows that nothing was polled. Afterwards the app asks
+     * for the state the lamp already shows, those writes should all be suppressed.
+     */
+    static void stateSync(int changes) throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final SimulatedLamp sim = new SimulatedLamp("00:00:00:00:00:04");
+        final CountDownLatch ready = new CountDownLatch(1);
+        final Semaphore seen = new Semaphore(0);
+        final int[] wanted = new int[1];
+
+        LampConnection lamp = new LampConnection(null, sim, scheduler, new NullListener() {
+            private final LedFrame mFrame = new LedFrame();
+
+            @Override
+            public void onConnectionStateChanged(LampConnection lamp, int state) {
+                if (state == LampConnection.STATE_READY) {
+                    ready.countDown();
+                }
+            }
+
+            @Override
+            public void onLampFrameRead(LampConnection lamp) {
+                lamp.getLampFrame(mFrame);
+                synchronized (wanted) {
+                    if (mFrame.get(LedFrame.CHANNEL_RED) == wanted[0]) {
+                        seen.release();
+                    }
+                }
+            }
+        });
+        lamp.connect(true);
+        if (!ready.await(5, TimeUnit.SECONDS)) {
+            System.out.println("endToEnd.stateSync: simulated lamp did not become ready");
+            return;
+        }
+        // Let the subscription, the MTU exchange and the idle interval settle
+        Thread.sleep(600);
+
+        long[] latencies = new long[changes];
+        int count = 0;
+        long readsBefore = sim.getReadCount();
+        byte[] value = {0, 0, 0, (byte) 255};
+        for (int i = 0; i < changes; i++) {
+            int red = 10 + i % 240;
+            synchronized (wanted) {
+                wanted[0] = red;
+            }
+            value[SimulatedLamp.RED_INDEX] = (byte) red;
+            long started = System.nanoTime();
+            sim.simulateExternalWrite(value);
+            if (seen.tryAcquire(1, TimeUnit.SECONDS)) {
+                latencies[count++] = System.nanoTime() - started;
+            }
+        }
+
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        System.out.println(String.format("%-40s %d external changes, %d seen, notifications %s",
+                "endToEnd.stateSync", changes, count, lamp.isNotifying() ? "on" : "off"));
+        if (count > 0) {
+            System.out.println(String.format("%-40s median %.1f ms, p95 %.1f ms, max %.1f ms",
+                    "", percentileMs(sorted, 0.5), percentileMs(sorted, 0.95),
+                    sorted[count - 1] / 1e6));
+        }
+        System.out.println(String.format("%-40s interval %.2f ms, %d notifications, %d reads",
+                "", sim.getConnectionIntervalMicros() / 1000.0, sim.getNotificationCount(),
+                sim.getReadCount() - readsBefore));
+
+        // The switch and a scene that match what the lamp shows, and a slider set to its level
+        long writesBefore = sim.getWriteRequestCount() + sim.getWriteCommandCount();
+        LedFrame current = new LedFrame();
+        lamp.getFrame(current);
+        for (int i = 0; i < changes; i++) {
+            lamp.setIntensity(current.getIntensity());
+            lamp.writeFrame(current);
+            lamp.setChannelLevel(LedFrame.CHANNEL_RED, current.get(LedFrame.CHANNEL_RED));
+            lamp.settle();
+        }
+        Thread.sleep(300);
+        System.out.println(String.format("%-40s %d redundant requests, %d writes, %d suppressed",
+                "", changes * 3, sim.getWriteRequestCount() + sim.getWriteCommandCount() - writesBefore,
+                lamp.getSuppressedWriteCount()));
+
+        lamp.shutdown();
+        sim.shutdown();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * The same fades streamed as an effect and sent as one fade write the lamp plays out itself:
+     * writes on the link, steps the output takes and when it reaches the target.
+     */
+    static void fadeCommand(long durationMs) throws Exception {
+        LedFrame white = new LedFrame();
+        white.set(LedFrame.CHANNEL_RED, 255);
+        white.set(LedFrame.CHANNEL_GREEN, 255);
+        white.set(LedFrame.CHANNEL_BLUE, 255);
+        white.setIntensity(255);
+        LedFrame dim = new LedFrame(white);
+        dim.setIntensity(40);
+        LedFrame off = new LedFrame();
+        LedFrame[][] fades = {{off, white}, {white, dim}};
+        String[] names = {"offToWhite", "whiteToDim"};
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        for (int run = 0; run < fades.length * 2; run++) {
+            int i = run % fades.length;
+            boolean command = run >= fades.length;
+            final SimulatedLamp sim = new SimulatedLamp("00:00:00:00:00:06");
+            final CountDownLatch ready = new CountDownLatch(1);
+            LampConnection lamp = new LampConnection(null, sim, scheduler, new NullListener() {
+                @Override
+                public void onConnectionStateChanged(LampConnection lamp, int state) {
+                    if (state == LampConnection.STATE_READY) {
+                        ready.countDown();
+                    }
+                }
+            });
+            lamp.setFadeSupported(command);
+            lamp.connect(true);
+            if (!ready.await(5, TimeUnit.SECONDS)) {
+                System.out.println("endToEnd.fadeCommand: simulated lamp did not become ready");
+                return;
+            }
+            lamp.writeFrame(fades[i][0]);
+            Thread.sleep(600);
+
+            // Both targets are white, each color shows at the intensity
+            int level = fades[i][1].getIntensity();
+            final long target = (long) level << 16 | level << 8 | level;
+            final long[] outputChanges = new long[1];
+            final long[] reachedNanos = new long[1];
+            sim.setObserver(new SimulatedLamp.Observer() {
+                private long mLast = -1;
+
+                @Override
+                public void onLedUpdated(SimulatedLamp lamp) {
+                    long output = lamp.isLedShutDown() ? 0 : ((long) lamp.getOutputLevel(SimulatedLamp.RED_INDEX) << 16)
+                            | (lamp.getOutputLevel(SimulatedLamp.GREEN_INDEX) << 8)
+                            | lamp.getOutputLevel(SimulatedLamp.BLUE_INDEX);
+                    if (output != mLast) {
+                        outputChanges[0]++;
+                        mLast = output;
+                        reachedNanos[0] = output == target ? System.nanoTime() : 0;
+                    }
+                }
+            });
+            long writesBefore = sim.getWriteRequestCount() + sim.getWriteCommandCount();
+            long started = System.nanoTime();
+            lamp.fadeTo(fades[i][1], durationMs);
+            Thread.sleep(durationMs + 500);
+            long writes = sim.getWriteRequestCount() + sim.getWriteCommandCount() - writesBefore;
+            System.out.println(String.format("%-40s %4d writes, %4d output steps, target %s",
+                    "endToEnd.fadeCommand." + names[i] + (command ? ".command" : ".streamed"),
+                    writes, outputChanges[0], reachedNanos[0] == 0 ? "NOT reached"
+                            : String.format("reached after %.0f of %d ms", (reachedNanos[0] - started) / 1e6, durationMs)));
+            lamp.shutdown();
+            sim.shutdown();
+        }
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Reconnects to a lamp the store has a state for. The firmware comes up dark, the state
+     * should reach the PWM output with the first write and without any input. Then the link
+     * drops and autoConnect brings it back: the state should go out again by itself, and the dark
+     * state the lamp reports must not end up in the store.
+     */
+    static void sceneRestore() throws Exception {
+        File file = createSceneFile(5000);
+        final SceneStore store = new SceneStore(file);
+        final SimulatedLamp sim = new SimulatedLamp("00:00:00:00:00:05");
+        LedFrame last = new LedFrame();
+        last.set(LedFrame.CHANNEL_RED, 200);
+        last.set(LedFrame.CHANNEL_GREEN, 60);
+        last.set(LedFrame.CHANNEL_BLUE, 10);
+        last.setIntensity(LedFrame.MAX_LEVEL);
+        store.recordLampState(sim.getAddress(), last);
+
+        // Replaced for the reconnect, counted down when the lamp shows the state again
+        final CountDownLatch[] restored = {new CountDownLatch(1)};
+        final long[] writesAtRestore = new long[1];
+        sim.setObserver(new SimulatedLamp.Observer() {
+            @Override
+            public void onLedUpdated(SimulatedLamp lamp) {
+                if (restored[0].getCount() > 0 && lamp.getRgbLedData(SimulatedLamp.RED_INDEX) == 200
+                        && lamp.getRgbLedData(SimulatedLamp.GREEN_INDEX) == 60) {
+                    writesAtRestore[0] = lamp.getWriteRequestCount() + lamp.getWriteCommandCount();
+                    restored[0].countDown();
+                }
+            }
+        });
+
+        // A fresh store, as after a restart of the app. The listener keeps it up to date the way
+        // BluetoothComm does
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        LampConnection lamp = new LampConnection(null, sim, scheduler, new NullListener() {
+            private final LedFrame mFrame = new LedFrame();
+
+            @Override
+            public void onLampFrameRead(LampConnection lamp) {
+                rememberState(lamp);
+            }
+
+            @Override
+            public void onFrameWritten(LampConnection lamp, int status, long latencyNanos) {
+                if (status == LampTransport.GATT_SUCCESS) {
+                    rememberState(lamp);
+                }
+            }
+
+            private void rememberState(LampConnection lamp) {
+                synchronized (mFrame) {
+                    lamp.getFrame(mFrame);
+                    store.recordLampState(lamp.getAddress(), mFrame);
+                }
+            }
+        });
+        long started = System.nanoTime();
+        LedFrame frame = new LedFrame();
+        boolean found = new SceneStore(file).getLampState(sim.getAddress(), frame);
+        long loadNanos = System.nanoTime() - started;
+        lamp.restoreFrame(frame);
+        lamp.connect(true, true);
+        boolean done = restored[0].await(5, TimeUnit.SECONDS);
+        long restoreNanos = System.nanoTime() - started;
+
+        System.out.println(String.format("%-40s state %s in a 5000 scene store, looked up in %.2f ms",
+                "endToEnd.sceneRestore", found ? "found" : "NOT found", loadNanos / 1e6));
+        if (done) {
+            System.out.println(String.format("%-40s on the lamp %.1f ms after connect, in write %d of the connection",
+                    "", restoreNanos / 1e6, writesAtRestore[0]));
+        } else {
+            System.out.println(String.format("%-40s state did not reach the lamp", ""));
+        }
+
+        // Let the subscription report the state, then drop the link
+        Thread.sleep(300);
+        restored[0] = new CountDownLatch(1);
+        long writesBefore = sim.getWriteRequestCount() + sim.getWriteCommandCount();
+        started = System.nanoTime();
+        sim.simulateLinkLoss();
+        done = restored[0].await(5, TimeUnit.SECONDS);
+        restoreNanos = System.nanoTime() - started;
+        Thread.sleep(300);
+        LedFrame stored = new LedFrame();
+        store.getLampState(sim.getAddress(), stored);
+        lamp.getFrame(frame);
+        if (done) {
+            System.out.println(String.format("%-40s back on the lamp %.1f ms after the link dropped, in write %d of the new link",
+                    "endToEnd.sceneRestore.linkLoss", restoreNanos / 1e6, writesAtRestore[0] - writesBefore));
+        } else {
+            System.out.println(String.format("%-40s state did not reach the lamp after the link dropped",
+                    "endToEnd.sceneRestore.linkLoss"));
+        }
+        System.out.println(String.format("%-40s app state red %d, stored red %d, want %d",
+                "", frame.get(LedFrame.CHANNEL_RED), stored.get(LedFrame.CHANNEL_RED), last.get(LedFrame.CHANNEL_RED)));
+
+        lamp.shutdown();
+        sim.shutdown();
+        scheduler.shutdownNow();
+        file.delete();
+    }
+
+    /**
+     * Time from the tap to a lamp that can be controlled, through the ConnectPipeline against a
+     * room of SimulatedLamps: with the lamp used last in range, without a known lamp, with a
+     * known lamp that is gone, and cancelled half way.
+     */
+    static void connectPipeline(int runs) throws Exception {
+        String[] scenarios = {"known", "scan", "knownGone", "cancel"};
+        for (String scenario : scenarios) {
+            long[] elapsed = new long[runs];
+            long[] connectOffsets = new long[runs];
+            int ready = 0;
+            int nearest = 0;
+            int cancelled = 0;
+            int leftConnected = 0;
+            for (int run = 0; run < runs; run++) {
+                SimulatedRoom room = new SimulatedRoom(run);
+                room.addLamp("00:00:00:00:01:01", -70, true);
+                room.addLamp("00:00:00:00:01:02", -50, true);
+                room.addLamp("00:00:00:00:01:03", -80, true);
+                if (scenario.equals("known")) {
+                    room.mKnownAddress = "00:00:00:00:01:03";
+                } else if (scenario.equals("knownGone")) {
+                    room.addLamp("00:00:00:00:01:09", -60, false);
+                    room.mKnownAddress = "00:00:00:00:01:09";
+                }
+                room.mPipeline.start();
+                if (scenario.equals("cancel")) {
+                    // Between the end of the selection window and the lamp being ready
+                    Thread.sleep(300);
+                    room.mPipeline.cancel();
+                    Thread.sleep(200);
+                    if (room.mFailure == ConnectPipeline.FAILURE_CANCELLED) {
+                        cancelled++;
+                    }
+                    leftConnected += room.connectedCount();
+                } else if (room.mDone.await(10, TimeUnit.SECONDS) && room.mReadyLamp != null) {
+                    elapsed[ready] = room.mElapsedNanos;
+                    connectOffsets[ready] = room.mPipeline.getStepOffsetNanos(ConnectPipeline.STEP_CONNECT);
+                    ready++;
+                    if (room.mReadyLamp.getAddress().equals(scenario.equals("known")
+                            ? "00:00:00:00:01:03" : "00:00:00:00:01:02")) {
+                        nearest++;
+                    }
+                }
+                room.shutdown();
+            }
+            String name = "endToEnd.connectPipeline." + scenario;
+            if (scenario.equals("cancel")) {
+                System.out.println(String.format("%-40s %d runs, %d cancelled, %d lamps left connected",
+                        name, runs, cancelled, leftConnected));
+                continue;
+            }
+            long[] sorted = Arrays.copyOf(elapsed, ready);
+            Arrays.sort(sorted);
+            long[] connects = Arrays.copyOf(connectOffsets, ready);
+            Arrays.sort(connects);
+            System.out.println(String.format("%-40s %d of %d ready, %d on the expected lamp",
+                    name, ready, runs, nearest));
+            if (ready > 0) {
+                System.out.println(String.format("%-40s tap to ready median %.1f ms, p95 %.1f ms, connect started at %.1f ms",
+                        "", percentileMs(sorted, 0.5), percentileMs(sorted, 0.95), percentileMs(connects, 0.5)));
+            }
+        }
+    }
+
+    /**
+     * A session of two lamps recorded through RecordingTransport, once to a file and once into a
+     * small ring, and played back with CommandReplay at the recorded pace and four times faster.
+     */
+    static void replay(long stormSeconds) throws Exception {
+        File file = File.createTempFile("recording", ".bin");
+        File saved = File.createTempFile("ring", ".bin");
+        CommandRecorder recorder = new CommandRecorder();
+        recorder.startFile(file, 16 * 1024);
+        long writes = recordSession(recorder, stormSeconds);
+        recorder.stop();
+        System.out.println(String.format("%-40s %d records in %d bytes (%.1f bytes/record), %d writes on the links",
+                "endToEnd.replay.record", recorder.getRecordCount(), file.length(),
+                (double) file.length() / Math.max(1, recorder.getRecordCount()), writes));
+
+        CommandRecorder ring = new CommandRecorder();
+        // Too small for the whole session, the replay gets the tail of it
+        ring.startRing(4 * 1024);
+        recordSession(ring, stormSeconds);
+        ring.save(saved);
+        ring.stop();
+        System.out.println(String.format("%-40s kept %d bytes, %d of %d records dropped",
+                "endToEnd.replay.ring", saved.length(), ring.getDroppedRecordCount(), ring.getRecordCount()));
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        CommandReplay replay = new CommandReplay(file);
+        for (double speed : new double[]{1, 4}) {
+            printReplay(String.format("endToEnd.replay.%.0fx", speed), replay, replay.run(speed, scheduler));
+        }
+        CommandReplay tail = new CommandReplay(saved);
+        printReplay("endToEnd.replay.ring.1x", tail, tail.run(1, scheduler));
+        scheduler.shutdownNow();
+        file.delete();
+        saved.delete();
+    }
+
+    // Slider storm, settle, effect, group frame and a fade on two simulated lamps, each command
+    // recorded next to the call the way BluetoothComm does. Returns the writes on the links
+    private static long recordSession(CommandRecorder recorder, long stormSeconds) throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        SimulatedLamp[] sims = {new SimulatedLamp("00:00:00:00:02:01"), new SimulatedLamp("00:00:00:00:02:02")};
+        LampConnection[] lamps = new LampConnection[sims.length];
+        final CountDownLatch ready = new CountDownLatch(sims.length);
+        for (int i = 0; i < sims.length; i++) {
+            lamps[i] = new LampConnection(null, new RecordingTransport(sims[i], recorder), scheduler, new NullListener() {
+                @Override
+                public void onConnectionStateChanged(LampConnection lamp, int state) {
+                    if (state == LampConnection.STATE_READY) {
+                        ready.countDown();
+                    }
+                }
+            });
+            lamps[i].setFadeSupported(true);
+            lamps[i].connect(true);
+        }
+        if (!ready.await(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Simulated lamps did not become ready");
+        }
+        Thread.sleep(300);
+        long writesBefore = 0;
+        for (SimulatedLamp sim : sims) {
+            writesBefore += sim.getWriteRequestCount() + sim.getWriteCommandCount();
+        }
+
+        for (int i = 0; i < lamps.length; i++) {
+            recorder.record(CommandRecorder.CMD_INTENSITY, i, LedFrame.MAX_LEVEL);
+            lamps[i].setIntensity(LedFrame.MAX_LEVEL);
+        }
+        Random random = new Random(7);
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / SLIDER_RATE_HZ;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(stormSeconds);
+        while (System.nanoTime() < end) {
+            int lamp = random.nextInt(lamps.length);
+            int channel = random.nextInt(3);
+            int level = random.nextInt(LedFrame.MAX_LEVEL + 1);
+            recorder.record(CommandRecorder.CMD_CHANNEL, lamp, channel, level);
+            lamps[lamp].setChannelLevel(channel, level);
+            LockSupport.parkNanos(periodNanos);
+        }
+        for (int i = 0; i < lamps.length; i++) {
+            recorder.record(CommandRecorder.CMD_SETTLE, i);
+            lamps[i].settle();
+        }
+        Thread.sleep(300);
+
+        LedFrame amber = new LedFrame();
+        amber.set(LedFrame.CHANNEL_RED, 255);
+        amber.set(LedFrame.CHANNEL_GREEN, 120);
+        amber.setIntensity(255);
+        LedEffect breathing = new LedEffect.Breathing(amber, 1000, 0, 255);
+        recorder.recordEffect(0, breathing);
+        lamps[0].playEffect(breathing);
+        Thread.sleep(1500);
+        recorder.record(CommandRecorder.CMD_EFFECT_STOP, 0);
+        lamps[0].stopEffect();
+
+        LedFrame white = new LedFrame();
+        white.set(LedFrame.CHANNEL_RED, 255);
+        white.set(LedFrame.CHANNEL_GREEN, 255);
+        white.set(LedFrame.CHANNEL_BLUE, 255);
+        white.setIntensity(255);
+        recorder.recordFrame(CommandRecorder.CMD_FRAME, CommandRecorder.LAMP_ALL, white, 0);
+        for (LampConnection lamp : lamps) {
+            lamp.writeFrame(white);
+        }
+        Thread.sleep(300);
+        LedFrame dim = new LedFrame(white);
+        dim.setIntensity(40);
+        recorder.recordFrame(CommandRecorder.CMD_FADE, CommandRecorder.LAMP_ALL, dim, 500);
+        for (LampConnection lamp : lamps) {
+            lamp.fadeTo(dim, 500);
+        }
+        Thread.sleep(800);
+
+        long writes = -writesBefore;
+        for (int i = 0; i < sims.length; i++) {
+            writes += sims[i].getWriteRequestCount() + sims[i].getWriteCommandCount();
+            lamps[i].shutdown();
+            sims[i].shutdown();
+        }
+        scheduler.shutdownNow();
+        return writes;
+    }
+
+    private static void printReplay(String name, CommandReplay replay, CommandReplay.Result result) {
+        System.out.println(String.format("%-40s %d commands over %.1f s on %d lamps, played in %.1f s, max lag %.2f ms",
+                name, result.commands, replay.getDurationMicros() / 1e6, result.lamps, result.elapsedNanos / 1e9,
+                result.maxLagNanos / 1e6));
+        System.out.println(String.format("%-40s %d writes (%d recorded), %d converged, %d of %d on the recorded frame",
+                "", result.writes, result.recordedWrites, result.converged, result.matchingRecording,
+                result.recordedFrames));
+        System.out.println(String.format("%-40s frame latency p50 %.1f ms, p95 %.1f ms",
+                "", result.frameLatency.getPercentileNanos(50) / 1e6, result.frameLatency.getPercentileNanos(95) / 1e6));
+    }
+
+    /**
+     * Scene changes on four simulated lamps with different connection intervals: written to each
+     * lamp as soon as possible, as fades for firmware without the timed fade, which changeGroupAt()
+     * sends at once too, and sent ahead as timed fades. The skew is when the last lamp changed after the first one, as the
+     * simulated firmware saw it, next to the skew the SyncedChange worked out from the responses.
+     */
+    static void syncedScene(int changes) throws Exception {
+        String[] modes = {"sequential", "untimedFade", "lampTimed"};
+        int[] intervals = {9, 12, 18, 24};
+        for (String mode : modes) {
+            LampConnectionManager manager = new LampConnectionManager(null);
+            manager.setFadeSupported(!mode.equals("sequential"));
+            manager.setTimedFadeSupported(mode.equals("lampTimed"));
+            final CountDownLatch ready = new CountDownLatch(intervals.length);
+            manager.addListener(new NullListener() {
+                @Override
+                public void onConnectionStateChanged(LampConnection lamp, int state) {
+                    if (state == LampConnection.STATE_READY) {
+                        ready.countDown();
+                    }
+                }
+            });
+            SimulatedLamp[] sims = new SimulatedLamp[intervals.length];
+            final long[] changed = new long[intervals.length];
+            final int[] target = new int[1];
+            for (int i = 0; i < sims.length; i++) {
+                sims[i] = new SimulatedLamp("00:00:00:00:03:0" + i);
+                sims[i].setActiveConnectionInterval(intervals[i]);
+                final int index = i;
+                sims[i].setObserver(new SimulatedLamp.Observer() {
+                    @Override
+                    public void onLedUpdated(SimulatedLamp lamp) {
+                        if (changed[index] == 0 && lamp.getRgbLedData(SimulatedLamp.RED_INDEX) == target[0]) {
+                            changed[index] = System.nanoTime();
+                        }
+                    }
+                });
+                manager.add(sims[i]).connect(true);
+            }
+            if (!ready.await(5, TimeUnit.SECONDS)) {
+                System.out.println("endToEnd.syncedScene: simulated lamps did not become ready");
+                return;
+            }
+            Thread.sleep(1000);
+
+            Random random = new Random(3);
+            LedFrame frame = new LedFrame();
+            frame.setIntensity(LedFrame.MAX_LEVEL);
+            long[] skews = new long[changes];
+            long[] estimateErrors = new long[changes];
+            long[] lastAfterRequest = new long[changes];
+            int measured = 0;
+            int estimated = 0;
+            long writesAfterWarmup = 0;
+            // The first changes warm up the code paths and give the LinkClocks their samples
+            for (int c = -WARMUP_CHANGES; c < changes; c++) {
+                Thread.sleep(300 + random.nextInt(200));
+                int level = 100 + (c + WARMUP_CHANGES) % 2 * 100;
+                Arrays.fill(changed, 0);
+                target[0] = level;
+                frame.set(LedFrame.CHANNEL_RED, level);
+                long requested = System.nanoTime();
+                SyncedChange change = null;
+                if (mode.equals("sequential")) {
+                    manager.applyGroupFrame(frame);
+                } else {
+                    change = manager.changeGroupAt(frame, 0);
+                    change.await(2000);
+                }
+                Thread.sleep(200);
+                if (c == -1) {
+                    for (SimulatedLamp sim : sims) {
+                        writesAfterWarmup += sim.getWriteRequestCount() + sim.getWriteCommandCount();
+                    }
+                }
+                long first = Long.MAX_VALUE;
+                long last = 0;
+                for (long time : changed) {
+                    first = Math.min(first, time);
+                    last = Math.max(last, time);
+                }
+                if (first == 0 || c < 0) {
+                    continue;
+                }
+                skews[measured] = last - first;
+                lastAfterRequest[measured] = last - requested;
+                measured++;
+                if (change != null && change.getAppliedCount() == sims.length) {
+                    estimateErrors[estimated++] = Math.abs(change.getSkewNanos() - (last - first));
+                }
+            }
+            long writes = 0;
+            for (SimulatedLamp sim : sims) {
+                writes += sim.getWriteRequestCount() + sim.getWriteCommandCount();
+            }
+            writes -= writesAfterWarmup;
+            long[] sortedSkews = Arrays.copyOf(skews, measured);
+            Arrays.sort(sortedSkews);
+            long[] sortedLast = Arrays.copyOf(lastAfterRequest, measured);
+            Arrays.sort(sortedLast);
+            String name = "endToEnd.syncedScene." + mode;
+            System.out.println(String.format("%-40s %d of %d changes on all lamps, %.1f writes per lamp and change",
+                    name, measured, changes, (double) writes / Math.max(1, changes * sims.length)));
+            if (measured > 0) {
+                System.out.println(String.format("%-40s skew median %.2f ms, p95 %.2f ms, max %.2f ms, last lamp %.1f ms after the request",
+                        "", percentileMs(sortedSkews, 0.5), percentileMs(sortedSkews, 0.95),
+                        sortedSkews[measured - 1] / 1e6, percentileMs(sortedLast, 0.5)));
+            }
+            if (estimated > 0) {
+                long[] sortedErrors = Arrays.copyOf(estimateErrors, estimated);
+                Arrays.sort(sortedErrors);
+                System.out.println(String.format("%-40s reported skew off by median %.2f ms, max %.2f ms",
+                        "", percentileMs(sortedErrors, 0.5), sortedErrors[estimated - 1] / 1e6));
+            }
+            manager.shutdown();
+            for (SimulatedLamp sim : sims) {
+                sim.shutdown();
+            }
+        }
+    }
+
+    /**
+     * FleetBenchmark on simulated lamps: acknowledged scene changes to the first 1..lamps of them,
+     * timed until the last one acknowledged.
+     */
+    static void fleetScaling(int lamps, int rounds) throws Exception {
+        LampConnectionManager manager = new LampConnectionManager(null);
+        final CountDownLatch ready = new CountDownLatch(lamps);
+        manager.addListener(new NullListener() {
+            @Override
+            public void onConnectionStateChanged(LampConnection lamp, int state) {
+                if (state == LampConnection.STATE_READY) {
+                    ready.countDown();
+                }
+            }
+        });
+        SimulatedLamp[] sims = new SimulatedLamp[lamps];
+        for (int i = 0; i < lamps; i++) {
+            sims[i] = new SimulatedLamp(String.format("00:00:00:00:04:%02X", i));
+            manager.add(sims[i]).connect(true);
+        }
+        if (!ready.await(5, TimeUnit.SECONDS)) {
+            System.out.println("endToEnd.fleetScaling: simulated lamps did not become ready");
+        } else {
+            for (FleetBenchmark.Result result : new FleetBenchmark(manager, rounds).run()) {
+                System.out.println(String.format("%-40s median %.1f ms, p95 %.1f ms, max %.1f ms, %d of %d lost",
+                        "endToEnd.fleetScaling." + result.lampCount, result.medianMs, result.p95Ms,
+                        result.maxMs, result.lost, result.rounds));
+            }
+        }
+        manager.shutdown();
+        for (SimulatedLamp sim : sims) {
+            sim.shutdown();
+        }
+    }
+
+    /**
+     * Lamps around the phone for the ConnectPipeline. A scan hears every advertising lamp once,
+     * somewhere in its first advertising interval, lamps that are not advertising never connect.
+     */
+    static class SimulatedRoom implements ConnectPipeline.Steps, ConnectPipeline.Listener {
+        // Advertising interval of the simulated lamps, and the time the radio takes to start a scan
+        private final static long ADVERTISING_INTERVAL_MS = 100;
+        private final static long SCAN_START_MS = 10;
+
+        final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+        final ConnectPipeline mPipeline = new ConnectPipeline(this, this, mScheduler);
+        final CountDownLatch mDone = new CountDownLatch(1);
+        String mKnownAddress;
+        volatile LampConnection mReadyLamp;
+        volatile long mElapsedNanos;
+        volatile int mFailure;
+
+        private final Random mRandom;
+        private final Map<String, SimulatedLamp> mLamps = new LinkedHashMap<>();
+        private final Map<String, Integer> mRssi = new LinkedHashMap<>();
+        private final Map<String, LampConnection> mConnections = new LinkedHashMap<>();
+        private final List<String> mAdvertising = new ArrayList<>();
+        private volatile boolean mScanning;
+
+        SimulatedRoom(long seed) {
+            mRandom = new Random(seed);
+        }
+
+        void addLamp(String address, int rssi, boolean advertising) {
+            SimulatedLamp sim = new SimulatedLamp(address, mScheduler);
+            if (!advertising) {
+                // Out of range, the connect never completes
+                sim.setConnectDelay(TimeUnit.SECONDS.toMicros(60));
+            } else {
+                mAdvertising.add(address);
+            }
+            mLamps.put(address, sim);
+            mRssi.put(address, rssi);
+        }
+
+        int connectedCount() {
+            int count = 0;
+            for (SimulatedLamp sim : mLamps.values()) {
+                if (sim.isConnected()) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        void shutdown() {
+            mPipeline.cancel();
+            for (LampConnection lamp : mConnections.values()) {
+                lamp.shutdown();
+            }
+            mScheduler.shutdownNow();
+        }
+
+        @Override
+        public boolean initialize() {
+            return true;
+        }
+
+        @Override
+        public String getKnownAddress() {
+            return mKnownAddress;
+        }
+
+        @Override
+        public void startScan() {
+            mScanning = true;
+            for (final String address : mAdvertising) {
+                long delay = SCAN_START_MS + mRandom.nextInt((int) ADVERTISING_INTERVAL_MS);
+                mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mScanning) {
+                            mPipeline.onLampFound(address, mRssi.get(address));
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void stopScan() {
+            mScanning = false;
+        }
+
+        @Override
+        public LampConnection openLamp(String address) {
+            LampConnection lamp = mConnections.get(address);
+            if (lamp == null) {
+                lamp = new LampConnection(null, mLamps.get(address), mScheduler, new NullListener() {
+                    @Override
+                    public void onConnectionStateChanged(LampConnection lamp, int state) {
+                        mPipeline.onConnectionStateChanged(lamp, state);
+                    }
+                });
+                mConnections.put(address, lamp);
+            }
+            return lamp;
+        }
+
+        @Override
+        public void onStep(int step) {
+        }
+
+        @Override
+        public void onReady(LampConnection lamp, long elapsedNanos) {
+            mElapsedNanos = elapsedNanos;
+            mReadyLamp = lamp;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onFailed(int reason) {
+            mFailure = reason;
+            mDone.countDown();
+        }
+    }
+
+    // A scene store with the given number of scenes in a temporary file
+    private static File createSceneFile(int scenes) throws Exception {
+        File file = File.createTempFile("scenes", ".bin");
+        file.delete();
+        SceneStore store = new SceneStore(file);
+        LedFrame frame = new LedFrame();
+        for (int i = 0; i < scenes; i++) {
+            frame.set(LedFrame.CHANNEL_RED, i & 0xff);
+            frame.setIntensity(LedFrame.MAX_LEVEL);
+            store.saveScene("scene " + i, frame);
+        }
+        return file;
+    }
+
+    private static double percentileMs(long[] sorted, double p) {
+        int index = (int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)));
+        return sorted[index] / 1e6;
+    }
+
+    /**
+     * Listener that ignores everything, extended where a case needs one event.
+     */
+    static class NullListener implements LampConnection.Listener {
+        @Override
+        public void onConnectionStateChanged(LampConnection lamp, int state) {
+        }
+
+        @Override
+        public void onLampFrameRead(LampConnection lamp) {
+        }
+
+        @Override
+        public void onFrameWritten(LampConnection lamp, int status, long latencyNanos) {
+        }
+    }
+}
@@ -0,0 +1,17 @@
+#!/bin/sh
+# Builds and runs the control path benchmarks on a desktop JVM.
+#
+# The app sources, except the activity, compile against the SDK's android.jar. At run time none of
+# the Android classes are loaded except Log, which Benchmark/android/util/Log.java stands in for.
+#
+#   ANDROID_JAR=.../android.jar Benchmark/run.sh [filter] [-quick]
+set -e
+cd "$(dirname "$0")/.."
+ANDROID_JAR=${ANDROID_JAR:-$ANDROID_HOME/platforms/android-29/android.jar}
+OUT=${TMPDIR:-/tmp}/lamp-benchmark
+rm -rf "$OUT"
+mkdir -p "$OUT"
+SOURCES=$(ls AndroidApp/*.java | grep -v MainActivity)
+javac -nowarn -d "$OUT" -cp "$ANDROID_JAR" $SOURCES \
+    Benchmark/android/util/Log.java Benchmark/com/example/seniorproject/*.java
+java -cp "$OUT" com.example.seniorproject.ControlPathBenchmark "$@"
@@ -0,0 +1,129 @@
+/******************************************************************************
+* File Name			: HostStubs.c
+*
+* PC implementations of the WDT and ILO APIs and of the main.c and
+* HandleLedBatch.c functions HandleLedFade.c calls. Nothing touches hardware,
+* the calls are recorded for the tests.
+*******************************************************************************/
+#include <string.h>
+#include <HostStubs.h>
+
+/**************************Variable Declarations*****************************/
+uint32 hostWdtEnabled;
+uint32 hostWdtMatch[2];
+void (*hostWdtCallback[2])(void);
+
+uint32 hostIloHz;
+cystatus hostIloStatus;
+
+uint8 hostOutput[RGB_CHAR_DATA_LEN];
+uint32 hostSetOutputCount;
+uint32 hostUpdateCount;
+uint32 hostPublishCount;
+uint32 hostStopBatchCount;
+
+uint8 RGBledData[RGB_CHAR_DATA_LEN];
+/****************************************************************************/
+
+/*******************************************************************************
+* Function Name: HostStubsReset
+********************************************************************************
+* Summary:
+*        Forget all calls and go back to a dark LED and a measured ILO that runs
+* 25 % fast. The WDT callbacks stay, InitLedFade sets them once.
+*
+*******************************************************************************/
+void HostStubsReset(void)
+{
+	hostWdtEnabled = ZERO;
+	memset(hostWdtMatch, ZERO, sizeof(hostWdtMatch));
+	hostIloHz = 40000;
+	hostIloStatus = CYRET_SUCCESS;
+	memset(hostOutput, ZERO, sizeof(hostOutput));
+	hostSetOutputCount = ZERO;
+	hostUpdateCount = ZERO;
+	hostPublishCount = ZERO;
+	hostStopBatchCount = ZERO;
+	memset(RGBledData, ZERO, sizeof(RGBledData));
+}
+
+/* WDT */
+void CySysWdtWriteMode(uint32 counterNum, uint32 mode)
+{
+	(void)counterNum;
+	(void)mode;
+}
+
+void CySysWdtWriteMatch(uint32 counterNum, uint32 match)
+{
+	hostWdtMatch[counterNum] = match;
+}
+
+void CySysWdtWriteClearOnMatch(uint32 counterNum, uint32 enable)
+{
+	(void)counterNum;
+	(void)enable;
+}
+
+void CySysWdtSetInterruptCallback(uint32 counterNum, void (*function)(void))
+{
+	hostWdtCallback[counterNum] = function;
+}
+
+void CySysWdtResetCounters(uint32 countersMask)
+{
+	(void)countersMask;
+}
+
+void CySysWdtEnable(uint32 counterMask)
+{
+	hostWdtEnabled |= counterMask;
+}
+
+void CySysWdtDisable(uint32 counterMask)
+{
+	hostWdtEnabled &= ~counterMask;
+}
+
+/* ILO, the delay is given in microseconds */
+void CySysClkIloStartMeasurement(void)
+{
+}
+
+cystatus CySysClkIloCompensate(uint32 desiredDelay, uint32 *iloCycles)
+{
+	if(CYRET_SUCCESS == hostIloStatus)
+	{
+		*iloCycles = (uint32)(((uint64_t)desiredDelay * hostIloHz) / 1000000u);
+	}
+	return hostIloStatus;
+}
+
+/* main.c */
+void SetRGBOutput(uint8 red, uint8 green, uint8 blue, uint8 intensity)
+{
+	hostOutput[RED_INDEX] = red;
+	hostOutput[GREEN_INDEX] = green;
+	hostOutput[BLUE_INDEX] = blue;
+	hostOutput[INTENSITY_INDEX] = intensity;
+	hostSetOutputCount++;
+}
+
+void UpdateRGBled(void)
+{
+	memcpy(hostOutput, RGBledData, sizeof(hostOutput));
+	hostUpdateCount++;
+}
+
+void PublishRGBled(void)
+{
+	hostPublishCount++;
+}
+
+/* HandleLedBatch.c */
+void StopLedBatch(void)
+{
+	hostStopBatchCount++;
+}
+
+/* [] END OF FILE */
@@ -0,0 +1,38 @@
+/******************************************************************************
+* File Name			: HostStubs.h
+*
+* What the stubbed component APIs and the main.c functions the fade code calls
+* have seen, for the tests to check.
+*******************************************************************************/
+#if !defined(HOSTSTUBS_H)
+#define HOSTSTUBS_H
+#include <main.h>
+
+/**************************Variable Declarations*****************************/
+/* WDT counters: enabled counters, match values and interrupt callbacks */
+extern uint32 hostWdtEnabled;
+extern uint32 hostWdtMatch[2];
+extern void (*hostWdtCallback[2])(void);
+
+/* ILO frequency CySysClkIloCompensate works with, and its result */
+extern uint32 hostIloHz;
+extern cystatus hostIloStatus;
+
+/* Last levels passed to SetRGBOutput and the number of calls of the output
+* functions */
+extern uint8 hostOutput[RGB_CHAR_DATA_LEN];
+extern uint32 hostSetOutputCount;
+extern uint32 hostUpdateCount;
+extern uint32 hostPublishCount;
+extern uint32 hostStopBatchCount;
+
+/* Array that stores the present RGB LED control data, in BLEApplications.c on
+* the device */
+extern uint8 RGBledData[RGB_CHAR_DATA_LEN];
+/****************************************************************************/
+
+/**************************Function Declarations*****************************/
+void HostStubsReset(void);
+/****************************************************************************/
+#endif
+/* [] END OF FILE */
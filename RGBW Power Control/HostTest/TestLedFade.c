@@ -0,0 +1,277 @@
+/******************************************************************************
+* File Name			: TestLedFade.c
+*
+* Runs HandleLedFade.c on the PC against the stubs in HostStubs.c: the levels
+* of LedFadeLevel, a fade played tick by tick, ticks the main loop missed, a
+* fade written while another one plays, and timed fades. The WDT interrupts are
+* made by calling the callbacks InitLedFade registered. Build and run with
+*	sh "RGBW Power Control/HostTest/run.sh"
+*******************************************************************************/
+#include <stdio.h>
+#include <HostStubs.h>
+
+/**************************Variable Declarations*****************************/
+static int failures = ZERO;
+/****************************************************************************/
+
+#define CHECK(condition)	Check((condition), #condition, __LINE__)
+
+static void Check(int passed, const char *condition, int line)
+{
+	if(!passed)
+	{
+		printf("TestLedFade.c:%d: failed: %s\n", line, condition);
+		failures++;
+	}
+}
+
+/* Starts every test from a dark LED, no fade and no timed fade */
+static void Reset(void)
+{
+	StopLedFade();
+	CancelLedFadeSchedule();
+	HostStubsReset();
+}
+
+/* A fade write to the given color, duration in LED_FADE_TIME_UNIT_MS */
+static void FadeWrite(uint8 *data, uint8 red, uint8 green, uint8 blue, uint8 intensity,
+	uint16 duration)
+{
+	data[0] = LED_FADE_FORMAT;
+	data[LED_FADE_COLOR_INDEX + RED_INDEX] = red;
+	data[LED_FADE_COLOR_INDEX + GREEN_INDEX] = green;
+	data[LED_FADE_COLOR_INDEX + BLUE_INDEX] = blue;
+	data[LED_FADE_COLOR_INDEX + INTENSITY_INDEX] = intensity;
+	data[LED_FADE_DURATION_INDEX] = (uint8)duration;
+	data[LED_FADE_DURATION_INDEX + 1] = (uint8)(duration >> 8);
+}
+
+/* Fires the interrupt of WDT counter 0 the given number of times */
+static void Tick(int count)
+{
+	for(; count > ZERO; count--)
+	{
+		hostWdtCallback[CY_SYS_WDT_COUNTER0]();
+	}
+}
+
+static void TestLevel(void)
+{
+	uint32 elapsed;
+	uint8 previous;
+	uint8 level;
+
+	CHECK(LedFadeLevel(10, 200, 0, 5) == 10);
+	CHECK(LedFadeLevel(10, 200, 5, 5) == 200);
+	CHECK(LedFadeLevel(10, 200, 9, 5) == 200);
+	CHECK(LedFadeLevel(0, 255, 1, 2) == 127);
+	CHECK(LedFadeLevel(255, 0, 1, 2) == 128);
+	CHECK(LedFadeLevel(77, 77, 3, 7) == 77);
+
+	/* The longest fade has 32767 ticks, one step at a time it never goes back
+	* or overshoots */
+	previous = 255;
+	for(elapsed = 0; elapsed <= 32767; elapsed++)
+	{
+		level = LedFadeLevel(255, 3, elapsed, 32767);
+		CHECK(level <= previous && level >= 3);
+		previous = level;
+	}
+	CHECK(previous == 3);
+}
+
+static void TestFade(void)
+{
+	uint8 data[LED_FADE_LEN];
+	int tick;
+
+	Reset();
+	/* 100 ms, 5 ticks */
+	FadeWrite(data, 200, 100, 50, 255, 10);
+	StartLedFade(data, LED_FADE_LEN);
+
+	CHECK(RGBledData[RED_INDEX] == 200 && RGBledData[INTENSITY_INDEX] == 255);
+	CHECK(hostPublishCount == 1);
+	CHECK(hostStopBatchCount == 1);
+	CHECK(hostWdtEnabled & CY_SYS_WDT_COUNTER0_MASK);
+
+	/* No tick, no step */
+	HandleLedFade();
+	CHECK(hostSetOutputCount == 0);
+
+	for(tick = 1; tick <= 5; tick++)
+	{
+		Tick(1);
+		HandleLedFade();
+		CHECK(hostOutput[RED_INDEX] == LedFadeLevel(0, 200, tick, 5));
+		CHECK(hostOutput[GREEN_INDEX] == LedFadeLevel(0, 100, tick, 5));
+		CHECK(hostOutput[BLUE_INDEX] == LedFadeLevel(0, 50, tick, 5));
+		CHECK(hostOutput[INTENSITY_INDEX] == LedFadeLevel(0, 255, tick, 5));
+	}
+	CHECK(hostOutput[RED_INDEX] == 200 && hostOutput[INTENSITY_INDEX] == 255);
+	CHECK(!(hostWdtEnabled & CY_SYS_WDT_COUNTER0_MASK));
+
+	/* Stopped, more ticks change nothing */
+	Tick(1);
+	HandleLedFade();
+	CHECK(hostSetOutputCount == 5);
+}
+
+static void TestMissedTicks(void)
+{
+	uint8 data[LED_FADE_LEN];
+
+	Reset();
+	/* 200 ms, 10 ticks */
+	FadeWrite(data, 250, 0, 0, 250, 20);
+	StartLedFade(data, LED_FADE_LEN);
+
+	/* Three ticks while the main loop was busy are taken in one step */
+	Tick(3);
+	HandleLedFade();
+	CHECK(hostSetOutputCount == 1);
+	CHECK(hostOutput[RED_INDEX] == LedFadeLevel(0, 250, 3, 10));
+
+	/* More ticks than left end on the target, not past it */
+	Tick(20);
+	HandleLedFade();
+	CHECK(hostSetOutputCount == 2);
+	CHECK(hostOutput[RED_INDEX] == 250 && hostOutput[INTENSITY_INDEX] == 250);
+	CHECK(!(hostWdtEnabled & CY_SYS_WDT_COUNTER0_MASK));
+}
+
+static void TestRetarget(void)
+{
+	uint8 data[LED_FADE_LEN];
+	uint8 reached;
+
+	Reset();
+	FadeWrite(data, 200, 0, 0, 255, 10);
+	StartLedFade(data, LED_FADE_LEN);
+	Tick(2);
+	HandleLedFade();
+	reached = hostOutput[RED_INDEX];
+	CHECK(reached == LedFadeLevel(0, 200, 2, 5));
+
+	/* The new fade starts from the color reached, not from the old target */
+	FadeWrite(data, 0, 0, 0, 255, 20);
+	StartLedFade(data, LED_FADE_LEN);
+	CHECK(RGBledData[RED_INDEX] == 0);
+	CHECK(hostWdtEnabled & CY_SYS_WDT_COUNTER0_MASK);
+	Tick(1);
+	HandleLedFade();
+	CHECK(hostOutput[RED_INDEX] == LedFadeLevel(reached, 0, 1, 10));
+	Tick(9);
+	HandleLedFade();
+	CHECK(hostOutput[RED_INDEX] == 0);
+	CHECK(!(hostWdtEnabled & CY_SYS_WDT_COUNTER0_MASK));
+
+	/* A duration of 0 sets the target at once, without the timer */
+	Reset();
+	FadeWrite(data, 30, 40, 50, 255, 0);
+	StartLedFade(data, LED_FADE_LEN);
+	CHECK(hostUpdateCount == 1);
+	CHECK(hostOutput[RED_INDEX] == 30 && hostOutput[BLUE_INDEX] == 50);
+	CHECK(!(hostWdtEnabled & CY_SYS_WDT_COUNTER0_MASK));
+
+	/* A value of another length is not a fade */
+	Reset();
+	StartLedFade(data, LED_FADE_LEN - 1);
+	CHECK(hostPublishCount == 0 && hostUpdateCount == 0);
+}
+
+static void TestTimedFade(void)
+{
+	uint8 data[LED_TIMED_FADE_LEN];
+
+	Reset();
+	/* 100 ms fade after 500 ms */
+	FadeWrite(data, 100, 0, 0, 255, 10);
+	data[0] = LED_TIMED_FADE_FORMAT;
+	data[LED_TIMED_FADE_DELAY_INDEX] = (uint8)500;
+	data[LED_TIMED_FADE_DELAY_INDEX + 1] = (uint8)(500 >> 8);
+	ScheduleLedFade(data, LED_TIMED_FADE_LEN);
+
+	/* Counted with the measured ILO, the lamp does not change yet */
+	CHECK(hostWdtMatch[CY_SYS_WDT_COUNTER1] == 20000);
+	CHECK(hostWdtEnabled & CY_SYS_WDT_COUNTER1_MASK);
+	CHECK(RGBledData[RED_INDEX] == 0 && hostPublishCount == 0);
+	HandleLedFade();
+	CHECK(RGBledData[RED_INDEX] == 0);
+
+	/* The match starts the fade in the next main loop pass */
+	hostWdtCallback[CY_SYS_WDT_COUNTER1]();
+	HandleLedFade();
+	CHECK(RGBledData[RED_INDEX] == 100 && hostPublishCount == 1);
+	CHECK(!(hostWdtEnabled & CY_SYS_WDT_COUNTER1_MASK));
+	CHECK(hostWdtEnabled & CY_SYS_WDT_COUNTER0_MASK);
+	Tick(5);
+	HandleLedFade();
+	CHECK(hostOutput[RED_INDEX] == 100);
+
+	/* Any other write cancels a timed fade that waits */
+	Reset();
+	ScheduleLedFade(data, LED_TIMED_FADE_LEN);
+	FadeWrite(data, 7, 0, 0, 255, 0);
+	StartLedFade(data, LED_FADE_LEN);
+	CHECK(!(hostWdtEnabled & CY_SYS_WDT_COUNTER1_MASK));
+	hostWdtCallback[CY_SYS_WDT_COUNTER1]();
+	HandleLedFade();
+	CHECK(RGBledData[RED_INDEX] == 7);
+
+	/* Without a measurement the nominal ILO frequency is used */
+	Reset();
+	hostIloStatus = CYRET_BAD_PARAM;
+	FadeWrite(data, 100, 0, 0, 255, 10);
+	data[0] = LED_TIMED_FADE_FORMAT;
+	data[LED_TIMED_FADE_DELAY_INDEX] = (uint8)500;
+	data[LED_TIMED_FADE_DELAY_INDEX + 1] = (uint8)(500 >> 8);
+	ScheduleLedFade(data, LED_TIMED_FADE_LEN);
+	CHECK(hostWdtMatch[CY_SYS_WDT_COUNTER1] == (LED_FADE_ILO_FREQ_HZ / 1000) * 500);
+
+	/* The longest delay does not fit one match of the fast ILO, it is counted 
+	* in two, and longer delays are cut to it */
+	Reset();
+	FadeWrite(data, 100, 0, 0, 255, 10);
+	data[0] = LED_TIMED_FADE_FORMAT;
+	data[LED_TIMED_FADE_DELAY_INDEX] = 0xFF;
+	data[LED_TIMED_FADE_DELAY_INDEX + 1] = 0xFF;
+	ScheduleLedFade(data, LED_TIMED_FADE_LEN);
+	CHECK(hostWdtMatch[CY_SYS_WDT_COUNTER1] == (hostIloHz / 1000) * LED_TIMED_FADE_MAX_DELAY_MS / 2);
+	hostWdtCallback[CY_SYS_WDT_COUNTER1]();
+	HandleLedFade();
+	CHECK(RGBledData[RED_INDEX] == 0);
+	hostWdtCallback[CY_SYS_WDT_COUNTER1]();
+	HandleLedFade();
+	CHECK(RGBledData[RED_INDEX] == 100);
+
+	/* No delay starts the fade right away */
+	Reset();
+	data[LED_TIMED_FADE_DELAY_INDEX] = ZERO;
+	data[LED_TIMED_FADE_DELAY_INDEX + 1] = ZERO;
+	ScheduleLedFade(data, LED_TIMED_FADE_LEN);
+	CHECK(RGBledData[RED_INDEX] == 100);
+	CHECK(!(hostWdtEnabled & CY_SYS_WDT_COUNTER1_MASK));
+}
+
+int main(void)
+{
+	HostStubsReset();
+	InitLedFade();
+
+	TestLevel();
+	TestFade();
+	TestMissedTicks();
+	TestRetarget();
+	TestTimedFade();
+
+	if(ZERO != failures)
+	{
+		printf("%d checks failed\n", failures);
+		return 1;
+	}
+	printf("All LED fade checks passed\n");
+	return 0;
+}
+
+/* [] END OF FILE */
@@ -0,0 +1,67 @@
+/******************************************************************************
+* File Name			: project.h
+*
+* Host stand-in for the project.h PSoC Creator generates. It declares only the
+* types, macros and component APIs the fade code uses, HostStubs.c implements
+* the APIs on the PC. See run.sh.
+*******************************************************************************/
+#if !defined(PROJECT_H)
+#define PROJECT_H
+#include <stdint.h>
+
+/***************************Type Declarations********************************/
+typedef uint8_t		uint8;
+typedef uint16_t	uint16;
+typedef uint32_t	uint32;
+typedef int8_t		int8;
+typedef int16_t		int16;
+typedef int32_t		int32;
+typedef uint32		cystatus;
+
+typedef struct
+{
+	uint8 *val;
+	uint16 len;
+	uint16 actualLen;
+} CYBLE_GATT_VALUE_T;
+
+typedef struct
+{
+	CYBLE_GATT_VALUE_T value;
+	uint16 attrHandle;
+} CYBLE_GATT_HANDLE_VALUE_PAIR_T;
+/****************************************************************************/
+
+/***************************Macro Declarations*******************************/
+#define CYRET_SUCCESS				0u
+#define CYRET_BAD_PARAM				1u
+
+#define CY_ISR(FuncName)			void FuncName(void)
+#define CY_ISR_PROTO(FuncName)		void FuncName(void)
+
+/* There is no interrupt on the PC, the test calls the WDT callbacks itself */
+#define CyGlobalIntDisable
+#define CyGlobalIntEnable
+
+#define CY_SYS_WDT_COUNTER0			0u
+#define CY_SYS_WDT_COUNTER1			1u
+#define CY_SYS_WDT_COUNTER0_MASK	0x01u
+#define CY_SYS_WDT_COUNTER1_MASK	0x02u
+#define CY_SYS_WDT_MODE_INT			1u
+
+#define CYBLE_GATT_MTU				23
+/****************************************************************************/
+
+/**************************Function Declarations*****************************/
+void CySysWdtWriteMode(uint32 counterNum, uint32 mode);
+void CySysWdtWriteMatch(uint32 counterNum, uint32 match);
+void CySysWdtWriteClearOnMatch(uint32 counterNum, uint32 enable);
+void CySysWdtSetInterruptCallback(uint32 counterNum, void (*function)(void));
+void CySysWdtResetCounters(uint32 countersMask);
+void CySysWdtEnable(uint32 counterMask);
+void CySysWdtDisable(uint32 counterMask);
+void CySysClkIloStartMeasurement(void);
+cystatus CySysClkIloCompensate(uint32 desiredDelay, uint32 *iloCycles);
+/****************************************************************************/
+#endif
+/* [] END OF FILE */
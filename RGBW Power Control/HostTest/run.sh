@@ -0,0 +1,10 @@
+#!/bin/sh
+# Builds HandleLedFade.c with the host stubs next to this script and runs its tests on the PC.
+#
+#   sh "RGBW Power Control/HostTest/run.sh"
+set -e
+cd "$(dirname "$0")"
+OUT=${TMPDIR:-/tmp}/lamp-fade-test
+cc -std=c99 -Wall -Wextra -I. -I../PSoC_4_BLE_RGB_Power_LED_Control.cydsn -o "$OUT" \
+    TestLedFade.c HostStubs.c ../PSoC_4_BLE_RGB_Power_LED_Control.cydsn/HandleLedFade.c
+"$OUT"
@@ -59,13 +59,20 @@ uint8 deviceConnected = FALSE;
 /* 'restartAdvertisement' flag provided the present state of power mode in firmware */
 uint8 restartAdvertisement = FALSE;
 
-/* This flag is used to let application send a L2CAP connection update request
-* to Central device */
-static uint8 isConnectionUpdateRequested = TRUE;
+/* This flag is set while a L2CAP connection update request sent to the Central
+* device waits for its response. Only one request may be outstanding */
+static uint8 isConnectionUpdatePending = FALSE;
+
+/* Connection parameter set last requested from the Central device, one of the
+* CONN_PARAM_SET_ values */
+static uint8 connectionParamSet = CONN_PARAM_SET_NONE;
+
+/* Main loop passes since the last RGB write, saturates at CONN_PARAM_IDLE_LOOPS */
+static uint32 idleLoopCount = ZERO;
 
 /* Connection Parameter update values. This values are used by the BLE component
 * to update the connector parameter, including connection interval, to desired 
-* value */
+* value. These are used while the link is idle */
 static CYBLE_GAP_CONN_UPDATE_PARAM_T ConnectionParam =
 {
     CONN_PARAM_UPDATE_MIN_CONN_INTERVAL,  		      
@@ -74,6 +81,15 @@ static CYBLE_GAP_CONN_UPDATE_PARAM_T ConnectionParam =
     CONN_PARAM_UPDATE_SUPRV_TIMEOUT 			         	
 };
 
+/* Connection Parameter update values used while the Client is writing colors */
+static CYBLE_GAP_CONN_UPDATE_PARAM_T ActiveConnectionParam =
+{
+    CONN_PARAM_ACTIVE_MIN_CONN_INTERVAL,
+    CONN_PARAM_ACTIVE_MAX_CONN_INTERVAL,
+    CONN_PARAM_ACTIVE_SLAVE_LATENCY,
+    CONN_PARAM_ACTIVE_SUPRV_TIMEOUT
+};
+
 /* This flag is used to switch between CPU Deep Sleep and Sleep, depending on
 * the status of RGB LED color values received. This method allows to conserve 
 * more power while LED usage */
@@ -88,6 +104,17 @@ uint8 switch_off_status_led = FALSE;
 /* Status flag for the Stack Busy state. This flag is used to notify the application 
 * whether there is stack buffer free to push more data or not */
 uint8 busyStatus = 0;
+
+/* Set while the Client has notifications of the RGB LED Control characteristic 
+* enabled in its CCCD. Cleared on every connection and disconnection */
+static uint8 rgbNotificationsEnabled = FALSE;
+
+/* Set when RGBledData differs from what the Client was last told. The notification
+* is sent from the main loop by SendRGBNotification */
+static uint8 rgbNotificationPending = FALSE;
+
+/* RGBledData as it was last sent to the Client in a notification */
+static uint8 notifiedRGBledData[RGB_CHAR_DATA_LEN];
 /****************************************************************************/
 
 /*******************************************************************************
@@ -109,6 +136,10 @@ void CustomEventHandler(uint32 event, void * eventParam)
 	/* Local variable to store the data received as part of the Write request 
 	* events */
 	CYBLE_GATTS_WRITE_REQ_PARAM_T *wrReqParam;
+	
+	/* Local variable to store the data received as part of the Write Without
+	* Response events */
+	CYBLE_GATTS_WRITE_CMD_REQ_PARAM_T *wrCmdParam;
 
     switch(event)
     {
@@ -168,6 +199,16 @@ void CustomEventHandler(uint32 event, void * eventParam)
 			
 			/* This flag is used in application to check connection status */
 			deviceConnected = TRUE;
+			
+			/* The Client discovers services right after connecting, treat the new 
+			* connection as activity so the active parameters are requested first */
+			idleLoopCount = ZERO;
+			connectionParamSet = CONN_PARAM_SET_NONE;
+			isConnectionUpdatePending = FALSE;
+			
+			/* A new Client has to subscribe again */
+			rgbNotificationsEnabled = FALSE;
+			rgbNotificationPending = FALSE;
 			break;
         
         case CYBLE_EVT_GATT_DISCONNECT_IND:
@@ -175,17 +216,26 @@ void CustomEventHandler(uint32 event, void * eventParam)
 			
 			/* Update deviceConnected flag*/
 			deviceConnected = FALSE;
+			
+			/* Nobody is left to notify about the reset below */
+			rgbNotificationsEnabled = FALSE;
+			rgbNotificationPending = FALSE;
 		
-			/* Reset the color coordinates */
+			/* Drop what is left of a batched write or a fade, a timed fade that did 
+			* not start yet, and reset the color coordinates */
+			StopLedBatch();
+			StopLedFade();
+			CancelLedFadeSchedule();
 			RGBledData[RED_INDEX] = ZERO;
             RGBledData[GREEN_INDEX] = ZERO;
             RGBledData[BLUE_INDEX] = ZERO;
             RGBledData[INTENSITY_INDEX] = ZERO;
 			UpdateRGBled();
 
-			/* Reset the isConnectionUpdateRequested flag to allow sending
-			* connection parameter update request in next connection */
-			isConnectionUpdateRequested = TRUE;
+			/* Reset the connection parameter state to allow sending connection 
+			* parameter update requests in next connection */
+			connectionParamSet = CONN_PARAM_SET_NONE;
+			isConnectionUpdatePending = FALSE;
 			
 			/* Set the flag to allow system to go to Deep Sleep */
 			shut_down_led = TRUE;
@@ -197,27 +247,32 @@ void CustomEventHandler(uint32 event, void * eventParam)
             wrReqParam = (CYBLE_GATTS_WRITE_REQ_PARAM_T *) eventParam;
             
 			/* When this event is triggered, the peripheral has received a write command on the custom characteristic */
-			/* Check if the returned handle is matching to RGB LED Control Write Attribute and extract the RGB data*/
-            if(CYBLE_RGB_LED_RGB_LED_CONTROL_CHAR_HANDLE == wrReqParam->handleValPair.attrHandle)
-            {
-				/* Extract the Write value sent by the Client for RGB LED Color characteristic */
-                RGBledData[RED_INDEX] = wrReqParam->handleValPair.value.val[RED_INDEX];
-                RGBledData[GREEN_INDEX] = wrReqParam->handleValPair.value.val[GREEN_INDEX];
-                RGBledData[BLUE_INDEX] = wrReqParam->handleValPair.value.val[BLUE_INDEX];
-                RGBledData[INTENSITY_INDEX] = wrReqParam->handleValPair.value.val[INTENSITY_INDEX];
-                
-				/* Update the PrISM components and the attribute for RGB LED read characteristics*/
-                UpdateRGBled();
-            }
+			HandleRGBWrite(&wrReqParam->handleValPair);
+			
+			/* The Client subscribes to color changes by writing the CCCD of the characteristic */
+			HandleRGBCccdWrite(&wrReqParam->handleValPair);
 			
 			/* Send the response to the write request received. */
 			CyBle_GattsWriteRsp(connectionHandle);
 			
 			break;
 			
+		case CYBLE_EVT_GATTS_WRITE_CMD_REQ:
+			/* This event is received when Central device sends a Write Without Response
+			* command. The client uses these to stream intermediate colors while a slider
+			* is moving, so no response is sent and the next command can follow in the 
+			* same connection interval. This requires the 'Write Without Response' property
+			* to be enabled on the RGB LED Control characteristic in the BLE component */
+            wrCmdParam = (CYBLE_GATTS_WRITE_CMD_REQ_PARAM_T *) eventParam;
+			
+			HandleRGBWrite(&wrCmdParam->handleValPair);
+			
+			break;
+			
 		case CYBLE_EVT_L2CAP_CONN_PARAM_UPDATE_RSP:
-				/* If L2CAP connection parameter update response received, reset application flag */
-            	isConnectionUpdateRequested = FALSE;
+				/* If L2CAP connection parameter update response received, allow the next 
+				* request. A rejected set is not asked for again until the wanted set changes */
+            	isConnectionUpdatePending = FALSE;
             break;
 			
 		case CYBLE_EVT_STACK_BUSY_STATUS:
@@ -235,12 +290,179 @@ void CustomEventHandler(uint32 event, void * eventParam)
     }   	/* switch(event) */
 }
 
+/*******************************************************************************
+* Function Name: HandleRGBWrite
+********************************************************************************
+* Summary:
+*        Extract the RGB data from a Write request or Write Without Response 
+* command and apply it to the LED, or hand a batched write to StartLedBatch 
+* a fade to StartLedFade and a timed fade to ScheduleLedFade. Longer values of 
+* any other format are ignored.
+*
+* Parameters:
+*  handleValPair:	attribute handle and value received from the Client
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+void HandleRGBWrite(CYBLE_GATT_HANDLE_VALUE_PAIR_T *handleValPair)
+{
+	/* Check if the returned handle is matching to RGB LED Control Write Attribute and 
+	* that a complete frame was sent, then extract the RGB data*/
+	if((CYBLE_RGB_LED_RGB_LED_CONTROL_CHAR_HANDLE == handleValPair->attrHandle) && \
+		(handleValPair->value.len >= RGB_CHAR_DATA_LEN))
+	{
+		/* Someone is interacting with the lamp, keep the active connection parameters */
+		idleLoopCount = ZERO;
+		
+		/* A longer value starting with LED_BATCH_FORMAT carries several timed updates, 
+		* they are applied in order by HandleLedBatch */
+		if((handleValPair->value.len > RGB_CHAR_DATA_LEN) && \
+			(LED_BATCH_FORMAT == handleValPair->value.val[0]))
+		{
+			StopLedFade();
+			CancelLedFadeSchedule();
+			StartLedBatch(handleValPair->value.val, handleValPair->value.len);
+			return;
+		}
+		
+		/* A value of LED_FADE_LEN starting with LED_FADE_FORMAT asks for a fade to a
+		* color, the steps are taken by HandleLedFade */
+		if((LED_FADE_LEN == handleValPair->value.len) && \
+			(LED_FADE_FORMAT == handleValPair->value.val[0]))
+		{
+			StartLedFade(handleValPair->value.val, handleValPair->value.len);
+			return;
+		}
+		
+		/* A value of LED_TIMED_FADE_LEN starting with LED_TIMED_FADE_FORMAT is a fade
+		* that waits for a delay first, HandleLedFade starts it */
+		if((LED_TIMED_FADE_LEN == handleValPair->value.len) && \
+			(LED_TIMED_FADE_FORMAT == handleValPair->value.val[0]))
+		{
+			ScheduleLedFade(handleValPair->value.val, handleValPair->value.len);
+			return;
+		}
+		
+		/* Any other longer value is a format this firmware does not know, such as an 
+		* RGBW frame. Its first bytes are no R,G,B,Intensity, leave the LED as it is */
+		if(handleValPair->value.len > RGB_CHAR_DATA_LEN)
+		{
+			return;
+		}
+		
+		/* A single frame replaces whatever is left of a batch or a fade */
+		StopLedBatch();
+		StopLedFade();
+		CancelLedFadeSchedule();
+		
+		/* Extract the Write value sent by the Client for RGB LED Color characteristic */
+		RGBledData[RED_INDEX] = handleValPair->value.val[RED_INDEX];
+		RGBledData[GREEN_INDEX] = handleValPair->value.val[GREEN_INDEX];
+		RGBledData[BLUE_INDEX] = handleValPair->value.val[BLUE_INDEX];
+		RGBledData[INTENSITY_INDEX] = handleValPair->value.val[INTENSITY_INDEX];
+		
+		/* Update the PrISM components and the attribute for RGB LED read characteristics*/
+		UpdateRGBled();
+	}
+}
+
+/*******************************************************************************
+* Function Name: HandleRGBCccdWrite
+********************************************************************************
+* Summary:
+*        Store a Client write to the CCCD of the RGB LED Control characteristic 
+* and enable or disable the notifications of RGBledData. A Client that enables 
+* them is sent the present color right away, so it needs no read after connecting.
+* Does nothing until the characteristic has the Notify property in the BLE 
+* component, which adds the descriptor.
+*
+* Parameters:
+*  handleValPair:	attribute handle and value received from the Client
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+void HandleRGBCccdWrite(CYBLE_GATT_HANDLE_VALUE_PAIR_T *handleValPair)
+{
+#ifdef CYBLE_RGB_LED_RGB_LED_CONTROL_CLIENT_CHARACTERISTIC_CONFIGURATION_DESC_HANDLE
+	if((CYBLE_RGB_LED_RGB_LED_CONTROL_CLIENT_CHARACTERISTIC_CONFIGURATION_DESC_HANDLE == \
+		handleValPair->attrHandle) && (handleValPair->value.len >= RGB_CCCD_DATA_LEN))
+	{
+		/* Store the descriptor value, so a read by the Client returns what it wrote */
+		CyBle_GattsWriteAttributeValue(handleValPair, ZERO, &connectionHandle, CYBLE_GATT_DB_PEER_INITIATED);
+		
+		if(handleValPair->value.val[0] & RGB_CCCD_NOTIFICATION)
+		{
+			rgbNotificationsEnabled = TRUE;
+			rgbNotificationPending = TRUE;
+		}
+		else
+		{
+			rgbNotificationsEnabled = FALSE;
+			rgbNotificationPending = FALSE;
+		}
+	}
+#else
+	/* No CCCD on the characteristic */
+	(void)handleValPair;
+#endif
+}
+
+/*******************************************************************************
+* Function Name: SendRGBNotification
+********************************************************************************
+* Summary:
+*        Notify the Client of the present RGBledData if it changed since the last
+* notification. Called once per main loop pass while connected, which is once
+* per connection event in low power mode. Changes made in between are sent as 
+* one notification of the newest state, and nothing is sent while the stack has
+* no buffer free; the notification then goes out in a later pass.
+*
+* Parameters:
+*  void
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+void SendRGBNotification(void)
+{
+	/* Local variable for the notification of the RGB LED Control characteristic */
+	CYBLE_GATTS_HANDLE_VALUE_NTF_T rgbNotification;
+	
+	if((FALSE == rgbNotificationsEnabled) || (FALSE == rgbNotificationPending) || \
+		(CYBLE_STACK_STATE_FREE != CyBle_GattGetBusStatus()))
+	{
+		return;
+	}
+	
+	rgbNotification.attrHandle = CYBLE_RGB_LED_RGB_LED_CONTROL_CHAR_HANDLE;
+	rgbNotification.value.val = RGBledData;
+	rgbNotification.value.len = RGB_CHAR_DATA_LEN;
+	
+	if(CYBLE_ERROR_OK == CyBle_GattsNotification(connectionHandle, &rgbNotification))
+	{
+		/* Remember what the Client knows now */
+		notifiedRGBledData[RED_INDEX] = RGBledData[RED_INDEX];
+		notifiedRGBledData[GREEN_INDEX] = RGBledData[GREEN_INDEX];
+		notifiedRGBledData[BLUE_INDEX] = RGBledData[BLUE_INDEX];
+		notifiedRGBledData[INTENSITY_INDEX] = RGBledData[INTENSITY_INDEX];
+		rgbNotificationPending = FALSE;
+	}
+}
+
 /*******************************************************************************
 * Function Name: UpdateConnectionParam
 ********************************************************************************
 * Summary:
-*        Send the Connection Update Request to Client device after connection 
-* and modify theconnection interval for low power operation.
+*        Send the Connection Update Request to Client device when the wanted 
+* connection parameters change. A short connection interval is requested while 
+* RGB writes are coming in, and the long interval for low power operation once
+* no write has arrived for CONN_PARAM_IDLE_LOOPS passes of the main loop. Called 
+* once per main loop pass while connected.
 *
 * Parameters:
 *	void
@@ -251,15 +473,38 @@ void CustomEventHandler(uint32 event, void * eventParam)
 *******************************************************************************/
 void UpdateConnectionParam(void)
 {
-	/* If device is connected and Update connection parameter not updated yet,
-	* then send the Connection Parameter Update request to Client. */
-    if(deviceConnected && isConnectionUpdateRequested)
+	/* Local variable for the parameter set the present activity calls for */
+	uint8 wantedParamSet;
+	
+    if(deviceConnected)
 	{
-		/* Reset the flag to indicate that connection Update request has been sent */
-		isConnectionUpdateRequested = FALSE;
+		/* Count the main loop passes since the last write */
+		if(idleLoopCount < CONN_PARAM_IDLE_LOOPS)
+		{
+			idleLoopCount++;
+		}
 		
-		/* Send Connection Update request with set Parameter */
-		CyBle_L2capLeConnectionParamUpdateRequest(connectionHandle.bdHandle, &ConnectionParam);
+		if(idleLoopCount < CONN_PARAM_IDLE_LOOPS)
+		{
+			wantedParamSet = CONN_PARAM_SET_ACTIVE;
+		}
+		else
+		{
+			wantedParamSet = CONN_PARAM_SET_IDLE;
+		}
+		
+		/* Send the Connection Parameter Update request to Client if the wanted set
+		* changed and no other request is waiting for its response */
+		if((wantedParamSet != connectionParamSet) && (FALSE == isConnectionUpdatePending))
+		{
+			if(CYBLE_ERROR_OK == CyBle_L2capLeConnectionParamUpdateRequest(connectionHandle.bdHandle,
+				(CONN_PARAM_SET_ACTIVE == wantedParamSet) ? &ActiveConnectionParam : &ConnectionParam))
+			{
+				/* Set the flags to indicate that connection Update request has been sent */
+				isConnectionUpdatePending = TRUE;
+				connectionParamSet = wantedParamSet;
+			}
+		}
 	}
 }
 
@@ -269,7 +514,8 @@ void UpdateConnectionParam(void)
 * Summary:
 *        Receive the new RGB data and modify PrISM parameters. Also, update the
 * read characteristic handle so that the next read from the BLE central device
-* gives present RGB color and intensity data.
+* gives present RGB color and intensity data, and flag a notification if the 
+* Client subscribed and the data changed.
 *
 * Parameters:
 *  void
@@ -279,23 +525,48 @@ void UpdateConnectionParam(void)
 *
 *******************************************************************************/
 void UpdateRGBled(void)
+{
+	SetRGBOutput(RGBledData[RED_INDEX], RGBledData[GREEN_INDEX], 
+		RGBledData[BLUE_INDEX], RGBledData[INTENSITY_INDEX]);
+	PublishRGBled();
+}
+
+/*******************************************************************************
+* Function Name: SetRGBOutput
+********************************************************************************
+* Summary:
+*        Drive the LED with a color and intensity and set shut_down_led. Only 
+* the PrISM components and the pins change, the attribute is left alone. Used 
+* by UpdateRGBled and for the steps of a fade.
+*
+* Parameters:
+*  red:			red level, 0-255
+*  green:		green level, 0-255
+*  blue:		blue level, 0-255
+*  intensity:	scale of the three levels, 0-255
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+void SetRGBOutput(uint8 red, uint8 green, uint8 blue, uint8 intensity)
 {
 	/* Local variables to calculate the color components from RGB received data*/
 	uint8 debug_red;
 	uint8 debug_green;
 	uint8 debug_blue;
-	uint8 intensity_divide_value = RGBledData[INTENSITY_INDEX];
+	uint8 intensity_divide_value = intensity;
 	
 	/* Calculate the intensity of each of the Red, Green and Blue component from the
 	* received 4-byte data */
-	debug_red = (uint8)(((uint16)RGBledData[RED_INDEX]*intensity_divide_value)/255);
-	debug_green = (uint8)(((uint16)RGBledData[GREEN_INDEX]*intensity_divide_value)/255);
-	debug_blue = (uint8)(((uint16)RGBledData[BLUE_INDEX]*intensity_divide_value)/255);
+	debug_red = (uint8)(((uint16)red*intensity_divide_value)/255);
+	debug_green = (uint8)(((uint16)green*intensity_divide_value)/255);
+	debug_blue = (uint8)(((uint16)blue*intensity_divide_value)/255);
 	
 	/*If the Intensity value sent by client is below a set threshold, assume no intensity
 	* and switch of the RGB colors on LED. Also, set the appropriate flag to allow the system 
 	* to go to Deep Sleep */
-	if(RGBledData[INTENSITY_INDEX] < LED_NO_COLOR_THRESHOLD)
+	if(intensity < LED_NO_COLOR_THRESHOLD)
 	{
 		/* Set the flag to allow the system to go to Deep Sleep */
 		shut_down_led = TRUE;
@@ -346,7 +617,25 @@ void UpdateRGBled(void)
 		    PWM_2_WriteCompare(RGB_LED_MAX_VAL - debug_blue);
 		}
 	}
-	
+}
+
+/*******************************************************************************
+* Function Name: PublishRGBled
+********************************************************************************
+* Summary:
+*        Update the read characteristic handle so that the next read from the 
+* BLE central device gives present RGB color and intensity data, and flag a 
+* notification if the Client subscribed and the data changed.
+*
+* Parameters:
+*  void
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+void PublishRGBled(void)
+{
 	/* Update RGB control handle with new values */
 	rgbHandle.attrHandle = CYBLE_RGB_LED_RGB_LED_CONTROL_CHAR_HANDLE;
 	rgbHandle.value.val = RGBledData;
@@ -355,6 +644,16 @@ void UpdateRGBled(void)
 	/* Send updated RGB control handle as attribute for read by central device, so that
 	* Client reads the new RGB color data */
 	CyBle_GattsWriteAttributeValue(&rgbHandle,FALSE,&connectionHandle,FALSE);
+	
+	/* Flag a notification if the Client subscribed and knows a different color */
+	if((TRUE == rgbNotificationsEnabled) && \
+		((notifiedRGBledData[RED_INDEX] != RGBledData[RED_INDEX]) || \
+		(notifiedRGBledData[GREEN_INDEX] != RGBledData[GREEN_INDEX]) || \
+		(notifiedRGBledData[BLUE_INDEX] != RGBledData[BLUE_INDEX]) || \
+		(notifiedRGBledData[INTENSITY_INDEX] != RGBledData[INTENSITY_INDEX])))
+	{
+		rgbNotificationPending = TRUE;
+	}
 }
 
 /*******************************************************************************
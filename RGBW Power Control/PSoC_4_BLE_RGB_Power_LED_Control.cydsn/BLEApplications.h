@@ -55,6 +55,9 @@
 
 /**************************Function Declarations*****************************/
 void CustomEventHandler(uint32 event, void * eventParam);
+void HandleRGBWrite(CYBLE_GATT_HANDLE_VALUE_PAIR_T *handleValPair);
+void HandleRGBCccdWrite(CYBLE_GATT_HANDLE_VALUE_PAIR_T *handleValPair);
+void SendRGBNotification(void);
 void UpdateConnectionParam(void);
 void HandleStatusLED(void);
 /****************************************************************************/
@@ -62,6 +65,11 @@ void HandleStatusLED(void);
 /***************************Macro Declarations*******************************/
 /* Read and write length of RGB LED data */
 #define RGB_CHAR_DATA_LEN					4
+
+/* Length of the CCCD of the RGB LED Control characteristic, and the bit of its
+* first byte that enables notifications */
+#define RGB_CCCD_DATA_LEN					2
+#define RGB_CCCD_NOTIFICATION				0x01
 											
 /* Connection Update Parameter values to modify connection interval. These values
 * are sent as part of CyBle_L2capLeConnectionParamUpdateRequest() which requests
@@ -77,6 +85,30 @@ void HandleStatusLED(void);
 #define CONN_PARAM_UPDATE_SLAVE_LATENCY		0          
 /* Supervision timeout = CONN_PARAM_UPDATE_SUPRV_TIMEOUT * 10*/
 #define CONN_PARAM_UPDATE_SUPRV_TIMEOUT		200     
+
+/* Connection parameters while the Client is writing colors (slider drag or effect).
+* The range matches CONNECTION_PRIORITY_HIGH on Android (11.25 - 15 ms), so the phone
+* and the lamp ask for the same thing. The CONN_PARAM_UPDATE_ values above are used 
+* once the link has been idle for CONN_PARAM_IDLE_LOOPS */
+#define CONN_PARAM_ACTIVE_MIN_CONN_INTERVAL	9
+#define CONN_PARAM_ACTIVE_MAX_CONN_INTERVAL	12
+#define CONN_PARAM_ACTIVE_SLAVE_LATENCY		0
+#define CONN_PARAM_ACTIVE_SUPRV_TIMEOUT		200
+
+/* Connection parameter set requested from the Client */
+#define CONN_PARAM_SET_NONE					0
+#define CONN_PARAM_SET_ACTIVE				1
+#define CONN_PARAM_SET_IDLE					2
+
+/* Number of main loop passes without a write after which the idle parameters are 
+* requested. In low power mode the loop runs once per connection event, so this is
+* about 3 seconds at the active interval, a little longer than the idle timeout of
+* the app so the lamp's own idle parameters are the last ones asked for */
+#ifdef ENABLE_LOW_POWER_MODE
+#define CONN_PARAM_IDLE_LOOPS				240
+#else
+#define CONN_PARAM_IDLE_LOOPS				600000
+#endif
 							
 /* Number of loops indicating LED Blink rate values for different stages of 
 * BLE connection */
@@ -0,0 +1,264 @@
+/******************************************************************************
+* Project Name		: PSoC_4_BLE_RGB_Power_LED_Control
+* File Name			: HandleLedBatch.c
+* Version 			: 1.0
+* Device Used		: CY8C4247LQI-BL483
+* Software Used		: PSoC Creator 3.1 SP1
+* Compiler    		: ARM GCC 4.8.4, ARM RVDS Generic, ARM MDK Generic
+* Related Hardware	: CY8CKIT-042-BLE Bluetooth Low Energy Pioneer Kit 
+* Owner             : ROIT
+*
+********************************************************************************
+* Copyright (2014-15), Cypress Semiconductor Corporation. All Rights Reserved.
+********************************************************************************
+* This software is owned by Cypress Semiconductor Corporation (Cypress)
+* and is protected by and subject to worldwide patent protection (United
+* States and foreign), United States copyright laws and international treaty
+* provisions. Cypress hereby grants to licensee a personal, non-exclusive,
+* non-transferable license to copy, use, modify, create derivative works of,
+* and compile the Cypress Source Code and derivative works for the sole
+* purpose of creating custom software in support of licensee product to be
+* used only in conjunction with a Cypress integrated circuit as specified in
+* the applicable agreement. Any reproduction, modification, translation,
+* compilation, or representation of this software except as specified above 
+* is prohibited without the express written permission of Cypress.
+*
+* Disclaimer: CYPRESS MAKES NO WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, WITH 
+* REGARD TO THIS MATERIAL, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+* Cypress reserves the right to make changes without further notice to the 
+* materials described herein. Cypress does not assume any liability arising out 
+* of the application or use of any product or circuit described herein. Cypress 
+* does not authorize its products for use as critical components in life-support 
+* systems where a malfunction or failure may reasonably be expected to result in 
+* significant injury to the user. The inclusion of Cypress' product in a life-
+* support systems application implies that the manufacturer assumes all risk of 
+* such use and in doing so indemnifies Cypress against all charges. 
+*
+* Use of this Software may be limited by and subject to the applicable Cypress
+* software license agreement. 
+*******************************************************************************/
+#include <main.h>
+
+/* Array that stores the present RGB LED control data, in BLEApplications.c */
+extern uint8 RGBledData[RGB_CHAR_DATA_LEN];
+
+/**************************Variable Declarations*****************************/
+/* Copy of the batch being played. The value of a write is only valid during the
+* BLE event that delivered it */
+static uint8 ledBatch[LED_BATCH_MAX_LEN];
+
+/* Length of the batch and position of the next record in it */
+static uint16 ledBatchLen = ZERO;
+static uint16 ledBatchIndex = ZERO;
+
+/* Number of records still to be applied, 0 when no batch is playing */
+static uint8 ledBatchRecords = ZERO;
+
+/* Main loop passes until the next record is due */
+static uint32 ledBatchLoops = ZERO;
+/****************************************************************************/
+
+/**************************Function Declarations*****************************/
+static uint8 ApplyLedBatchRecord(void);
+static void ApplyDueLedBatchRecords(void);
+/****************************************************************************/
+
+/*******************************************************************************
+* Function Name: StartLedBatch
+********************************************************************************
+* Summary:
+*        Take a batch written to the RGB LED Control characteristic, apply the 
+* records that are due at once and keep the rest for HandleLedBatch. A batch 
+* that is still playing is dropped, the newest write always wins.
+*
+* Parameters:
+*  data:	value of the write, starting with LED_BATCH_FORMAT
+*  len:		length of the value
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+void StartLedBatch(uint8 *data, uint16 len)
+{
+	/* Local variable to copy the batch */
+	uint16 index;
+	
+	StopLedBatch();
+	
+	/* A batch longer than the buffer can only come from a Client that negotiated
+	* a larger MTU than the BLE component is configured for, ignore it */
+	if((len <= LED_BATCH_HEADER_LEN) || (len > LED_BATCH_MAX_LEN))
+	{
+		return;
+	}
+	
+	for(index = ZERO; index < len; index++)
+	{
+		ledBatch[index] = data[index];
+	}
+	ledBatchLen = len;
+	ledBatchIndex = LED_BATCH_HEADER_LEN;
+	ledBatchRecords = ledBatch[1];
+	
+	if(ledBatchRecords > ZERO)
+	{
+		if(ZERO == ledBatch[ledBatchIndex])
+		{
+			ApplyDueLedBatchRecords();
+		}
+		else
+		{
+			ledBatchLoops = (uint32)ledBatch[ledBatchIndex] * LED_BATCH_LOOPS_PER_EVENT;
+		}
+	}
+}
+
+/*******************************************************************************
+* Function Name: StopLedBatch
+********************************************************************************
+* Summary:
+*        Drop the records of the batch that have not been applied yet. Called 
+* when a single frame is written and on disconnection.
+*
+* Parameters:
+*  void
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+void StopLedBatch(void)
+{
+	ledBatchRecords = ZERO;
+	ledBatchLoops = ZERO;
+}
+
+/*******************************************************************************
+* Function Name: HandleLedBatch
+********************************************************************************
+* Summary:
+*        Count down to the next record of the batch being played and apply it 
+* when it is due. Called once at the start of every main loop pass, before the 
+* BLE events are processed, so a record with a delay of 1 is applied one 
+* connection event after the write that carried it.
+*
+* Parameters:
+*  void
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+void HandleLedBatch(void)
+{
+	if(ZERO == ledBatchRecords)
+	{
+		return;
+	}
+	
+	if(ledBatchLoops > ZERO)
+	{
+		ledBatchLoops--;
+	}
+	
+	if(ZERO == ledBatchLoops)
+	{
+		ApplyDueLedBatchRecords();
+	}
+}
+
+/*******************************************************************************
+* Function Name: ApplyDueLedBatchRecords
+********************************************************************************
+* Summary:
+*        Apply the next record, and every following one with a delay of 0, to 
+* RGBledData and update the LED once for all of them. Then load the delay of 
+* the record after that.
+*
+* Parameters:
+*  void
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+static void ApplyDueLedBatchRecords(void)
+{
+	do
+	{
+		if(FALSE == ApplyLedBatchRecord())
+		{
+			/* The record runs past the end of the value, drop the rest */
+			ledBatchRecords = ZERO;
+		}
+	}
+	while((ledBatchRecords > ZERO) && (ledBatchIndex < ledBatchLen) && 
+		(ZERO == ledBatch[ledBatchIndex]));
+	
+	/* Update the PrISM components and the attribute for RGB LED read characteristics*/
+	UpdateRGBled();
+	
+	if((ledBatchRecords > ZERO) && (ledBatchIndex < ledBatchLen))
+	{
+		ledBatchLoops = (uint32)ledBatch[ledBatchIndex] * LED_BATCH_LOOPS_PER_EVENT;
+	}
+	else
+	{
+		ledBatchRecords = ZERO;
+	}
+}
+
+/*******************************************************************************
+* Function Name: ApplyLedBatchRecord
+********************************************************************************
+* Summary:
+*        Copy the channel values of the record at ledBatchIndex into RGBledData
+* and move to the next record.
+*
+* Parameters:
+*  void
+*
+* Return:
+*  uint8: FALSE if the record is not complete
+*
+*******************************************************************************/
+static uint8 ApplyLedBatchRecord(void)
+{
+	/* Local variables for the channel mask and the position of the next value */
+	uint8 mask;
+	uint8 channel;
+	uint16 index = ledBatchIndex + LED_BATCH_RECORD_HEADER_LEN;
+	
+	if(index > ledBatchLen)
+	{
+		return FALSE;
+	}
+	mask = ledBatch[ledBatchIndex + 1];
+	
+	for(channel = ZERO; channel < LED_BATCH_CHANNELS; channel++)
+	{
+		if(mask & (1u << channel))
+		{
+			if(index >= ledBatchLen)
+			{
+				return FALSE;
+			}
+			
+			/* The first four mask bits are in the order of RGBledData, the values of
+			* the white channels are skipped */
+			if(channel <= INTENSITY_INDEX)
+			{
+				RGBledData[channel] = ledBatch[index];
+			}
+			index++;
+		}
+	}
+	
+	ledBatchIndex = index;
+	ledBatchRecords--;
+	return TRUE;
+}
+
+/* [] END OF FILE */
@@ -0,0 +1,95 @@
+/******************************************************************************
+* Project Name		: PSoC_4_BLE_RGB_Power_LED_Control
+* File Name			: HandleLedBatch.h
+* Version 			: 1.0
+* Device Used		: CY8C4247LQI-BL483
+* Software Used		: PSoC Creator 3.1 SP1
+* Compiler    		: ARM GCC 4.8.4, ARM RVDS Generic, ARM MDK Generic
+* Related Hardware	: CY8CKIT-042-BLE Bluetooth Low Energy Pioneer Kit 
+* Owner             : ROIT
+*
+********************************************************************************
+* Copyright (2014-15), Cypress Semiconductor Corporation. All Rights Reserved.
+********************************************************************************
+* This software is owned by Cypress Semiconductor Corporation (Cypress)
+* and is protected by and subject to worldwide patent protection (United
+* States and foreign), United States copyright laws and international treaty
+* provisions. Cypress hereby grants to licensee a personal, non-exclusive,
+* non-transferable license to copy, use, modify, create derivative works of,
+* and compile the Cypress Source Code and derivative works for the sole
+* purpose of creating custom software in support of licensee product to be
+* used only in conjunction with a Cypress integrated circuit as specified in
+* the applicable agreement. Any reproduction, modification, translation,
+* compilation, or representation of this software except as specified above 
+* is prohibited without the express written permission of Cypress.
+*
+* Disclaimer: CYPRESS MAKES NO WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, WITH 
+* REGARD TO THIS MATERIAL, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+* Cypress reserves the right to make changes without further notice to the 
+* materials described herein. Cypress does not assume any liability arising out 
+* of the application or use of any product or circuit described herein. Cypress 
+* does not authorize its products for use as critical components in life-support 
+* systems where a malfunction or failure may reasonably be expected to result in 
+* significant injury to the user. The inclusion of Cypress' product in a life-
+* support systems application implies that the manufacturer assumes all risk of 
+* such use and in doing so indemnifies Cypress against all charges.  
+*
+* Use of this Software may be limited by and subject to the applicable Cypress
+* software license agreement. 
+*******************************************************************************/
+/********************************************************************************
+*	Contains macros and function declaration used in the HandleLedBatch.c file 
+********************************************************************************/
+#if !defined(HANDLELEDBATCH_H)
+#define HANDLELEDBATCH_H
+	
+/**************************Function Declarations*****************************/
+void StartLedBatch(uint8 *data, uint16 len);
+void StopLedBatch(void);
+void HandleLedBatch(void);
+/****************************************************************************/
+
+/***************************Macro Declarations*******************************/
+/* A write to the RGB LED Control characteristic that is longer than 
+* RGB_CHAR_DATA_LEN and starts with this byte is a batch of records instead of
+* a single {R,G,B,Intensity} frame. The value 2 is taken by the RGBW frame format 
+* of the app. A batch is laid out as
+*	{LED_BATCH_FORMAT, record count, record, record, ...}
+* and each record as
+*	{delay, channel mask, one byte per channel set in the mask}
+* The delay is the number of connection events after the previous record, 0 
+* applies the record together with the previous one. The channel values follow
+* in the order of the mask bits */
+#define LED_BATCH_FORMAT				0x03
+#define LED_BATCH_HEADER_LEN			2
+#define LED_BATCH_RECORD_HEADER_LEN		2
+
+/* Channel mask bits. The white channels are skipped, this board only drives 
+* the RGB LED */
+#define LED_BATCH_RED					0x01
+#define LED_BATCH_GREEN					0x02
+#define LED_BATCH_BLUE					0x04
+#define LED_BATCH_INTENSITY				0x08
+#define LED_BATCH_COOL_WHITE			0x10
+#define LED_BATCH_WARM_WHITE			0x20
+#define LED_BATCH_CHANNELS				6
+
+/* Largest batch that is buffered, one write at the ATT MTU configured in the 
+* BLE component */
+#if defined(CYBLE_GATT_MTU)
+#define LED_BATCH_MAX_LEN				(CYBLE_GATT_MTU - 3)
+#else
+#define LED_BATCH_MAX_LEN				20
+#endif
+
+/* Number of main loop passes in one connection event. In low power mode the 
+* loop runs once per wakeup of the BLESS, which is once per connection event */
+#ifdef ENABLE_LOW_POWER_MODE
+#define LED_BATCH_LOOPS_PER_EVENT		1
+#else
+#define LED_BATCH_LOOPS_PER_EVENT		2000
+#endif
+/****************************************************************************/
+#endif
+/* [] END OF FILE */
@@ -0,0 +1,476 @@
+/******************************************************************************
+* Project Name		: PSoC_4_BLE_RGB_Power_LED_Control
+* File Name			: HandleLedFade.c
+* Version 			: 1.0
+* Device Used		: CY8C4247LQI-BL483
+* Software Used		: PSoC Creator 3.1 SP1
+* Compiler    		: ARM GCC 4.8.4, ARM RVDS Generic, ARM MDK Generic
+* Related Hardware	: CY8CKIT-042-BLE Bluetooth Low Energy Pioneer Kit 
+* Owner             : ROIT
+*
+********************************************************************************
+* Copyright (2014-15), Cypress Semiconductor Corporation. All Rights Reserved.
+********************************************************************************
+* This software is owned by Cypress Semiconductor Corporation (Cypress)
+* and is protected by and subject to worldwide patent protection (United
+* States and foreign), United States copyright laws and international treaty
+* provisions. Cypress hereby grants to licensee a personal, non-exclusive,
+* non-transferable license to copy, use, modify, create derivative works of,
+* and compile the Cypress Source Code and derivative works for the sole
+* purpose of creating custom software in support of licensee product to be
+* used only in conjunction with a Cypress integrated circuit as specified in
+* the applicable agreement. Any reproduction, modification, translation,
+* compilation, or representation of this software except as specified above 
+* is prohibited without the express written permission of Cypress.
+*
+* Disclaimer: CYPRESS MAKES NO WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, WITH 
+* REGARD TO THIS MATERIAL, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+* Cypress reserves the right to make changes without further notice to the 
+* materials described herein. Cypress does not assume any liability arising out 
+* of the application or use of any product or circuit described herein. Cypress 
+* does not authorize its products for use as critical components in life-support 
+* systems where a malfunction or failure may reasonably be expected to result in 
+* significant injury to the user. The inclusion of Cypress' product in a life-
+* support systems application implies that the manufacturer assumes all risk of 
+* such use and in doing so indemnifies Cypress against all charges. 
+*
+* Use of this Software may be limited by and subject to the applicable Cypress
+* software license agreement. 
+*******************************************************************************/
+#include <main.h>
+
+/* Array that stores the present RGB LED control data, in BLEApplications.c */
+extern uint8 RGBledData[RGB_CHAR_DATA_LEN];
+
+/**************************Variable Declarations*****************************/
+/* Color the fade started from and the color shown at the last step. The 
+* target is in RGBledData */
+static uint8 ledFadeStart[RGB_CHAR_DATA_LEN];
+static uint8 ledFadeLevel[RGB_CHAR_DATA_LEN];
+
+/* Length of the fade and the part of it that has passed, in timer ticks */
+static uint32 ledFadeTotalTicks = ZERO;
+static uint32 ledFadeElapsedTicks = ZERO;
+
+/* Set while a fade is playing */
+static uint8 ledFadeActive = FALSE;
+
+/* Timer ticks counted by the WDT interrupt and not handled yet */
+static volatile uint16 ledFadePendingTicks = ZERO;
+
+/* The fade of a timed fade write, laid out as a fade write, while it waits for
+* WDT counter 1. The delay is split into ledFadeScheduleRounds equal matches, 
+* the interrupt sets ledFadeScheduleDue after the last one */
+static uint8 ledFadeScheduled[LED_FADE_LEN];
+static uint8 ledFadeScheduleActive = FALSE;
+static volatile uint8 ledFadeScheduleRounds = ZERO;
+static volatile uint8 ledFadeScheduleDue = FALSE;
+/****************************************************************************/
+
+/**************************Function Declarations*****************************/
+static void BeginLedFade(uint8 *data);
+static void LedFadeTimerCallback(void);
+static void LedFadeScheduleCallback(void);
+/****************************************************************************/
+
+/*******************************************************************************
+* Function Name: InitLedFade
+********************************************************************************
+* Summary:
+*        Configure WDT counter 0 to interrupt every LED_FADE_TICK_MS and WDT 
+* counter 1 for the delays of timed fades. The counters are only enabled while 
+* a fade is playing or waiting, so they do not wake the system otherwise.
+*
+* Parameters:
+*  void
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+void InitLedFade(void)
+{
+	CySysWdtWriteMode(CY_SYS_WDT_COUNTER0, CY_SYS_WDT_MODE_INT);
+	CySysWdtWriteMatch(CY_SYS_WDT_COUNTER0, LED_FADE_WDT_MATCH);
+	CySysWdtWriteClearOnMatch(CY_SYS_WDT_COUNTER0, TRUE);
+	CySysWdtSetInterruptCallback(CY_SYS_WDT_COUNTER0, LedFadeTimerCallback);
+	
+	CySysWdtWriteMode(CY_SYS_WDT_COUNTER1, CY_SYS_WDT_MODE_INT);
+	CySysWdtWriteClearOnMatch(CY_SYS_WDT_COUNTER1, TRUE);
+	CySysWdtSetInterruptCallback(CY_SYS_WDT_COUNTER1, LedFadeScheduleCallback);
+	
+	/* Measure the ILO against the ECO, the delays of timed fades are compensated 
+	* with it */
+	CySysClkIloStartMeasurement();
+}
+
+/*******************************************************************************
+* Function Name: StartLedFade
+********************************************************************************
+* Summary:
+*        Take a fade written to the RGB LED Control characteristic. The target 
+* goes to RGBledData and the attribute right away, the output is moved towards
+* it by HandleLedFade. A fade that is still playing starts the new one from the 
+* color it reached, the newest write always wins. A duration of 0 sets the 
+* target at once.
+*
+* Parameters:
+*  data:	value of the write, starting with LED_FADE_FORMAT
+*  len:		length of the value
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+void StartLedFade(uint8 *data, uint16 len)
+{
+	if(len != LED_FADE_LEN)
+	{
+		return;
+	}
+	
+	CancelLedFadeSchedule();
+	BeginLedFade(data);
+}
+
+/*******************************************************************************
+* Function Name: ScheduleLedFade
+********************************************************************************
+* Summary:
+*        Take a timed fade written to the RGB LED Control characteristic. The 
+* fade is kept and started by HandleLedFade once WDT counter 1 counted the 
+* delay. Until then the lamp, and RGBledData, stay as they are. A timed fade 
+* that is still waiting is replaced.
+*
+* Parameters:
+*  data:	value of the write, starting with LED_TIMED_FADE_FORMAT
+*  len:		length of the value
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+void ScheduleLedFade(uint8 *data, uint16 len)
+{
+	/* Local variables for the byte index, the delay, the ILO cycles of it and 
+	* the matches they are counted in */
+	uint8 index;
+	uint32 delay;
+	uint32 cycles;
+	uint32 rounds;
+	
+	if(len != LED_TIMED_FADE_LEN)
+	{
+		return;
+	}
+	
+	CancelLedFadeSchedule();
+	
+	/* Kept as a fade write, the color and the duration are at the same places */
+	ledFadeScheduled[ZERO] = LED_FADE_FORMAT;
+	for(index = LED_FADE_COLOR_INDEX; index < LED_FADE_LEN; index++)
+	{
+		ledFadeScheduled[index] = data[index];
+	}
+	
+	delay = (uint32)data[LED_TIMED_FADE_DELAY_INDEX] | 
+		((uint32)data[LED_TIMED_FADE_DELAY_INDEX + 1] << 8);
+	if(delay > LED_TIMED_FADE_MAX_DELAY_MS)
+	{
+		delay = LED_TIMED_FADE_MAX_DELAY_MS;
+	}
+	
+	/* The delay is given in microseconds */
+	if(CYRET_SUCCESS != CySysClkIloCompensate(delay * 1000, &cycles))
+	{
+		cycles = (LED_FADE_ILO_FREQ_HZ / 1000) * delay;
+	}
+	
+	if(ZERO == cycles)
+	{
+		BeginLedFade(ledFadeScheduled);
+		return;
+	}
+	
+	/* A fast ILO does not count the longest delay in one 16 bit match */
+	rounds = (cycles / (LED_TIMED_FADE_MAX_MATCH + 1)) + 1;
+	
+	ledFadeScheduleActive = TRUE;
+	ledFadeScheduleRounds = (uint8)rounds;
+	CySysWdtWriteMatch(CY_SYS_WDT_COUNTER1, (cycles + (rounds / 2)) / rounds);
+	CySysWdtResetCounters(CY_SYS_WDT_COUNTER1_MASK);
+	CySysWdtEnable(CY_SYS_WDT_COUNTER1_MASK);
+}
+
+/*******************************************************************************
+* Function Name: CancelLedFadeSchedule
+********************************************************************************
+* Summary:
+*        Drop the timed fade that waits for its delay and stop WDT counter 1. 
+* Called for every other write to the characteristic and on disconnection.
+*
+* Parameters:
+*  void
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+void CancelLedFadeSchedule(void)
+{
+	if(TRUE == ledFadeScheduleActive)
+	{
+		ledFadeScheduleActive = FALSE;
+		CySysWdtDisable(CY_SYS_WDT_COUNTER1_MASK);
+	}
+	ledFadeScheduleDue = FALSE;
+}
+
+/*******************************************************************************
+* Function Name: BeginLedFade
+********************************************************************************
+* Summary:
+*        Start a fade from the color shown, for StartLedFade and for a timed 
+* fade whose delay is over.
+*
+* Parameters:
+*  data:	a fade write, starting with LED_FADE_FORMAT
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+static void BeginLedFade(uint8 *data)
+{
+	/* Local variables for the channel index and the duration of the fade */
+	uint8 index;
+	uint32 duration;
+	
+	StopLedBatch();
+	
+	/* Without a fade playing the output shows RGBledData */
+	if(FALSE == ledFadeActive)
+	{
+		for(index = ZERO; index < RGB_CHAR_DATA_LEN; index++)
+		{
+			ledFadeLevel[index] = RGBledData[index];
+		}
+	}
+	
+	for(index = ZERO; index < RGB_CHAR_DATA_LEN; index++)
+	{
+		ledFadeStart[index] = ledFadeLevel[index];
+		RGBledData[index] = data[LED_FADE_COLOR_INDEX + index];
+	}
+	
+	duration = (uint32)data[LED_FADE_DURATION_INDEX] | 
+		((uint32)data[LED_FADE_DURATION_INDEX + 1] << 8);
+	
+	/* Rounded to the nearest tick */
+	ledFadeTotalTicks = (duration * LED_FADE_TIME_UNIT_MS + (LED_FADE_TICK_MS / 2)) / LED_FADE_TICK_MS;
+	
+	if(ZERO == ledFadeTotalTicks)
+	{
+		StopLedFade();
+		
+		/* Update the PrISM components and the attribute for RGB LED read characteristics*/
+		UpdateRGBled();
+		return;
+	}
+	
+	ledFadeElapsedTicks = ZERO;
+	ledFadePendingTicks = ZERO;
+	
+	if(FALSE == ledFadeActive)
+	{
+		ledFadeActive = TRUE;
+		CySysWdtResetCounters(CY_SYS_WDT_COUNTER0_MASK);
+		CySysWdtEnable(CY_SYS_WDT_COUNTER0_MASK);
+	}
+	
+	/* The Client reads and is notified of the target, not of every step */
+	PublishRGBled();
+}
+
+/*******************************************************************************
+* Function Name: StopLedFade
+********************************************************************************
+* Summary:
+*        End the fade being played and stop the timer. The output stays where 
+* the fade left it until the caller updates it. Called when a single frame or 
+* a batch is written and on disconnection.
+*
+* Parameters:
+*  void
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+void StopLedFade(void)
+{
+	if(TRUE == ledFadeActive)
+	{
+		ledFadeActive = FALSE;
+		CySysWdtDisable(CY_SYS_WDT_COUNTER0_MASK);
+	}
+	ledFadePendingTicks = ZERO;
+}
+
+/*******************************************************************************
+* Function Name: HandleLedFade
+********************************************************************************
+* Summary:
+*        Start a timed fade whose delay is over, move the output by the timer 
+* ticks that passed since the last call and stop the fade once it reached the 
+* target. Called once every main loop pass, the WDT interrupts wake the system 
+* for it.
+*
+* Parameters:
+*  void
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+void HandleLedFade(void)
+{
+	/* Local variables for the ticks to handle and the channel index */
+	uint16 ticks;
+	uint8 index;
+	
+	if(TRUE == ledFadeScheduleDue)
+	{
+		CancelLedFadeSchedule();
+		BeginLedFade(ledFadeScheduled);
+	}
+	
+	if(FALSE == ledFadeActive)
+	{
+		return;
+	}
+	
+	/* Take the ticks counted by the interrupt */
+	CyGlobalIntDisable;
+	ticks = ledFadePendingTicks;
+	ledFadePendingTicks = ZERO;
+	CyGlobalIntEnable;
+	
+	if(ZERO == ticks)
+	{
+		return;
+	}
+	
+	ledFadeElapsedTicks += ticks;
+	if(ledFadeElapsedTicks > ledFadeTotalTicks)
+	{
+		ledFadeElapsedTicks = ledFadeTotalTicks;
+	}
+	
+	for(index = ZERO; index < RGB_CHAR_DATA_LEN; index++)
+	{
+		ledFadeLevel[index] = LedFadeLevel(ledFadeStart[index], RGBledData[index], 
+			ledFadeElapsedTicks, ledFadeTotalTicks);
+	}
+	
+	/* Only the PrISM components change, the attribute holds the target already */
+	SetRGBOutput(ledFadeLevel[RED_INDEX], ledFadeLevel[GREEN_INDEX], 
+		ledFadeLevel[BLUE_INDEX], ledFadeLevel[INTENSITY_INDEX]);
+	
+	if(ledFadeElapsedTicks == ledFadeTotalTicks)
+	{
+		/* Stopping the timer lets the system go back to Deep Sleep when the target 
+		* is dark */
+		StopLedFade();
+	}
+}
+
+/*******************************************************************************
+* Function Name: LedFadeLevel
+********************************************************************************
+* Summary:
+*        Level of one channel at a point of a fade, on the straight line from
+* start to target and rounded towards the start. Uses no hardware, it is checked
+* on the PC with the rest of this file by HostTest/run.sh.
+*
+* Parameters:
+*  start:	level at the beginning of the fade
+*  target:	level at the end of the fade
+*  elapsed:	time passed since the beginning
+*  total:	duration of the fade, in the same unit as elapsed
+*
+* Return:
+*  uint8: the level, target once elapsed reaches total
+*
+*******************************************************************************/
+uint8 LedFadeLevel(uint8 start, uint8 target, uint32 elapsed, uint32 total)
+{
+	if(elapsed >= total)
+	{
+		return target;
+	}
+	
+	if(target >= start)
+	{
+		return start + (uint8)(((uint32)(target - start) * elapsed) / total);
+	}
+	else
+	{
+		return start - (uint8)(((uint32)(start - target) * elapsed) / total);
+	}
+}
+
+/*******************************************************************************
+* Function Name: LedFadeTimerCallback
+********************************************************************************
+* Summary:
+*        Count a tick of WDT counter 0. Runs in the interrupt, the work is done 
+* by HandleLedFade in the main loop.
+*
+* Parameters:
+*  void
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+static void LedFadeTimerCallback(void)
+{
+	if(ledFadePendingTicks < 0xFFFF)
+	{
+		ledFadePendingTicks++;
+	}
+}
+
+/*******************************************************************************
+* Function Name: LedFadeScheduleCallback
+********************************************************************************
+* Summary:
+*        Flag the end of the delay of a timed fade on the last match of WDT 
+* counter 1. Runs in the interrupt, HandleLedFade starts the fade and stops the
+* counter.
+*
+* Parameters:
+*  void
+*
+* Return:
+*  void
+*
+*******************************************************************************/
+static void LedFadeScheduleCallback(void)
+{
+	if(TRUE == ledFadeScheduleActive)
+	{
+		if(ledFadeScheduleRounds > 1)
+		{
+			ledFadeScheduleRounds--;
+		}
+		else
+		{
+			ledFadeScheduleDue = TRUE;
+		}
+	}
+}
+
+/* [] END OF FILE */
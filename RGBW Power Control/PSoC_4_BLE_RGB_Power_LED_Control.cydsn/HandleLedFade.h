@@ -0,0 +1,101 @@
+/******************************************************************************
+* Project Name		: PSoC_4_BLE_RGB_Power_LED_Control
+* File Name			: HandleLedFade.h
+* Version 			: 1.0
+* Device Used		: CY8C4247LQI-BL483
+* Software Used		: PSoC Creator 3.1 SP1
+* Compiler    		: ARM GCC 4.8.4, ARM RVDS Generic, ARM MDK Generic
+* Related Hardware	: CY8CKIT-042-BLE Bluetooth Low Energy Pioneer Kit 
+* Owner             : ROIT
+*
+********************************************************************************
+* Copyright (2014-15), Cypress Semiconductor Corporation. All Rights Reserved.
+********************************************************************************
+* This software is owned by Cypress Semiconductor Corporation (Cypress)
+* and is protected by and subject to worldwide patent protection (United
+* States and foreign), United States copyright laws and international treaty
+* provisions. Cypress hereby grants to licensee a personal, non-exclusive,
+* non-transferable license to copy, use, modify, create derivative works of,
+* and compile the Cypress Source Code and derivative works for the sole
+* purpose of creating custom software in support of licensee product to be
+* used only in conjunction with a Cypress integrated circuit as specified in
+* the applicable agreement. Any reproduction, modification, translation,
+* compilation, or representation of this software except as specified above 
+* is prohibited without the express written permission of Cypress.
+*
+* Disclaimer: CYPRESS MAKES NO WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, WITH 
+* REGARD TO THIS MATERIAL, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+* Cypress reserves the right to make changes without further notice to the 
+* materials described herein. Cypress does not assume any liability arising out 
+* of the application or use of any product or circuit described herein. Cypress 
+* does not authorize its products for use as critical components in life-support 
+* systems where a malfunction or failure may reasonably be expected to result in 
+* significant injury to the user. The inclusion of Cypress' product in a life-
+* support systems application implies that the manufacturer assumes all risk of 
+* such use and in doing so indemnifies Cypress against all charges.  
+*
+* Use of this Software may be limited by and subject to the applicable Cypress
+* software license agreement. 
+*******************************************************************************/
+/********************************************************************************
+*	Contains macros and function declaration used in the HandleLedFade.c file 
+********************************************************************************/
+#if !defined(HANDLELEDFADE_H)
+#define HANDLELEDFADE_H
+	
+/**************************Function Declarations*****************************/
+void InitLedFade(void);
+void StartLedFade(uint8 *data, uint16 len);
+void StopLedFade(void);
+void ScheduleLedFade(uint8 *data, uint16 len);
+void CancelLedFadeSchedule(void);
+void HandleLedFade(void);
+uint8 LedFadeLevel(uint8 start, uint8 target, uint32 elapsed, uint32 total);
+/****************************************************************************/
+
+/***************************Macro Declarations*******************************/
+/* A write to the RGB LED Control characteristic of exactly LED_FADE_LEN bytes 
+* that starts with this byte asks for a fade instead of a single frame. It is 
+* laid out as
+*	{LED_FADE_FORMAT, R, G, B, Intensity, duration low byte, duration high byte}
+* The lamp moves from the color it shows to the given one in a straight line 
+* over the duration, which is counted in LED_FADE_TIME_UNIT_MS. RGBledData, and 
+* so reads and notifications, hold the target from the start of the fade */
+#define LED_FADE_FORMAT					0x04
+#define LED_FADE_LEN					7
+#define LED_FADE_COLOR_INDEX			1
+#define LED_FADE_DURATION_INDEX			5
+#define LED_FADE_TIME_UNIT_MS			10
+
+/* The fade steps the PrISM densities on the interrupt of WDT counter 0. The WDT
+* runs from the ILO, which keeps running in Deep Sleep, so the steps go on while 
+* the BLESS sleeps between connection events and the output is dark. The ILO 
+* is nominally 32 kHz and only accurate to some tens of percent, which is good 
+* enough to pace a fade */
+#define LED_FADE_TICK_MS				20
+#define LED_FADE_ILO_FREQ_HZ			32000
+#define LED_FADE_WDT_MATCH				((LED_FADE_ILO_FREQ_HZ / 1000) * LED_FADE_TICK_MS)
+
+/* A write of LED_TIMED_FADE_LEN bytes that starts with LED_TIMED_FADE_FORMAT is 
+* a fade that starts some time after the write arrives, so a Client can have 
+* several lamps change at the same moment. It is laid out as
+*	{LED_TIMED_FADE_FORMAT, R, G, B, Intensity, duration low byte, 
+*	 duration high byte, delay low byte, delay high byte}
+* The color and the duration are those of a fade write. The delay is counted in 
+* milliseconds and cut to LED_TIMED_FADE_MAX_DELAY_MS. The lamp keeps showing 
+* what it shows until the fade starts, any other write before cancels it */
+#define LED_TIMED_FADE_FORMAT			0x05
+#define LED_TIMED_FADE_LEN				9
+#define LED_TIMED_FADE_DELAY_INDEX		7
+#define LED_TIMED_FADE_MAX_DELAY_MS		2000
+
+/* The delay is counted by WDT counter 1. Its 16 bit match holds a bit more than
+* two seconds of the nominal ILO, a faster ILO needs the delay split into 
+* several equal matches. The ILO is measured against the ECO for it, an error 
+* of tens of percent would undo the timing the Client did. Without a 
+* measurement the nominal frequency is used */
+#define LED_TIMED_FADE_MAX_MATCH		0xFFFF
+/****************************************************************************/
+#endif
+/* [] END OF FILE */
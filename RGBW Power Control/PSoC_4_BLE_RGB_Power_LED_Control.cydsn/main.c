@@ -89,6 +89,14 @@ int main()
 	
     for(;;)
     {
+		/* Apply the records of a batched RGB write that are due in this connection
+		* event. This runs before the new BLE events are processed, see HandleLedBatch */
+		HandleLedBatch();
+		
+		/* Start a timed fade that is due and step a fade by the WDT ticks that passed
+		* since the last pass */
+		HandleLedFade();
+		
         /*Process event callback to handle BLE events. The events generated and 
 		* used for this application are inside the 'CustomEventHandler' routine*/
         CyBle_ProcessEvents();
@@ -102,8 +110,14 @@ int main()
 			* to run the BLE communication on desired interval. This affects the data rate 
 			* and power consumption. High connection interval will have lower data rate but 
 			* lower power consumption. Low connection interval will have higher data rate at
-			* expense of higher power. This function is called only once per connection. */
+			* expense of higher power. A short interval is only requested while the Client 
+			* is writing colors, the long one again once the link is idle. */
 			UpdateConnectionParam();
+			
+			/* Push the color to a subscribed Client when it changed, at most once per
+			* pass. This covers writes, batch records and anything else that calls
+			* UpdateRGBled, so the Client never has to poll */
+			SendRGBNotification();
 		}
 		
 		if(restartAdvertisement)
@@ -167,5 +181,8 @@ void InitializeSystem(void)
 	
 	/* Start the Button ISR to allow wakeup from sleep */
 	isr_button_StartEx(MyISR);
+	
+	/* Set up the timer of the fades, it stays off until a fade is written */
+	InitLedFade();
 }
 /* [] END OF FILE */
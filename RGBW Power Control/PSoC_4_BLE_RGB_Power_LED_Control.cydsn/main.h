@@ -48,6 +48,8 @@
 #include <project.h>
 #include <BLEApplications.h>
 #include <HandleLowPower.h>
+#include <HandleLedBatch.h>
+#include <HandleLedFade.h>
 
 /***************************Macro Declarations*******************************/
 /* Respective indexes of color coordiantes in the 4-byte data received
@@ -84,6 +86,8 @@
 CY_ISR_PROTO(MyISR);
 void InitializeSystem(void);
 void UpdateRGBled(void);
+void SetRGBOutput(uint8 red, uint8 green, uint8 blue, uint8 intensity);
+void PublishRGBled(void);
 /****************************************************************************/
 #endif
 /* [] END OF FILE */